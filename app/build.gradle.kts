@@ -32,6 +32,11 @@ android {
         buildConfig = true
     }
 
+    // 打包的棋谱库、局面索引和二进制开局库不压缩，运行时可以直接从APK中映射到内存
+    androidResources {
+        noCompress += listOf("pack", "idx", "book")
+    }
+
     defaultConfig {
         applicationId = "com.zfdang.chess"
         minSdk = 26
@@ -95,11 +100,18 @@ android {
     kotlinOptions {
         jvmTarget = "17"
     }
+    // gamelogic的单元测试(如PerftTest)在普通JVM上运行，android.util.Log等调用返回默认值
+    testOptions {
+        unitTests.isReturnDefaultValues = true
+    }
     buildFeatures {
         viewBinding = true
     }
     ndkVersion = "25.1.8937393"
 
+    // 局面索引在构建时离线建立(:benchmark:buildPositionIndex)，作为asset打包到APK中
+    sourceSets["main"].assets.srcDir(project(":benchmark").layout.buildDirectory.dir("manuals/assets"))
+
     // https://gist.github.com/pankajXdev/574063901ada2fafa329068f41ddb076
     // Config your output file name in Gradle Kotlin DSL
     applicationVariants.all {
@@ -114,10 +126,12 @@ android {
     }
 }
 
+tasks.named("preBuild") {
+    dependsOn(":benchmark:buildPositionIndex")
+}
+
 dependencies {
     implementation("com.readystatesoftware.sqliteasset:sqliteassethelper:+")
-    // https://mvnrepository.com/artifact/com.igormaznitsa/jbbp
-    implementation("com.igormaznitsa:jbbp:3.0.0")
     // https://github.com/PhilJay/MPAndroidChart
     implementation("com.github.PhilJay:MPAndroidChart:v3.1.0")
     implementation(project(":filepicker"))
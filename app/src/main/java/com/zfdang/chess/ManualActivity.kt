@@ -13,17 +13,25 @@ import android.os.Looper
 import android.util.Log
 import android.view.View
 import android.view.WindowManager
+import android.widget.ArrayAdapter
+import android.widget.EditText
 import android.widget.FrameLayout
+import android.widget.LinearLayout
+import android.widget.Spinner
 import android.widget.Toast
 import androidx.appcompat.app.AlertDialog
 import androidx.appcompat.app.AppCompatActivity
 import com.zfdang.chess.adapters.HistoryAndTrendAdapter
-import com.zfdang.chess.utils.CopyAssetsUtil
 import com.zfdang.chess.utils.PathUtil
 import com.zfdang.chess.controllers.ControllerListener
 import com.zfdang.chess.controllers.ManualController
 import com.zfdang.chess.databinding.ActivityManualBinding
 import com.zfdang.chess.gamelogic.GameStatus
+import com.zfdang.chess.manuals.ManualArchive
+import com.zfdang.chess.manuals.LazyManualLibrary
+import com.zfdang.chess.manuals.ManualIndex
+import com.zfdang.chess.manuals.ManualLibrary
+import com.zfdang.chess.manuals.PositionIndex
 import com.zfdang.chess.manuals.XQFParser
 import com.zfdang.chess.views.ChessView
 import me.rosuh.filepicker.config.FilePickerManager
@@ -31,6 +39,10 @@ import me.rosuh.filepicker.filetype.FileType
 import me.rosuh.filepicker.filetype.XQFFileType
 import java.io.File
 import java.io.FileInputStream
+import java.io.IOException
+import java.io.InputStream
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
 
 
 class ManualActivity() : AppCompatActivity(), ControllerListener,
@@ -38,7 +50,12 @@ class ManualActivity() : AppCompatActivity(), ControllerListener,
 
     private val PREFS_NAME = "com.zfdang.chess.manual.preferences"
     private val LAST_LAUNCH_VERSION_NAME = "last_launch_version_name"
-    private lateinit var waitingDialog: AlertDialog
+    private val MANUAL_INDEX_FILE = "xqf.index"
+    // 打包的棋谱库，在APK中不压缩，直接映射到内存中读取，见ManualArchive
+    private val MANUAL_ARCHIVE_ASSET = "XQF.pack"
+    // 构建时离线建立的局面索引，和打包的棋谱库一样直接映射，见PositionIndex
+    private val POSITION_INDEX_ASSET = "positions.idx"
+    private val OLD_POSITION_INDEX_FILE = "xqf.positions"
 
     private var last_selected_path = ""
 
@@ -57,6 +74,23 @@ class ManualActivity() : AppCompatActivity(), ControllerListener,
     // controller, player, game
     private lateinit var controller: ManualController
 
+    // 棋谱库的元数据索引，在后台线程中建立和更新
+    lateinit var manualIndex: ManualIndex
+    // 建立索引等后台任务，Activity销毁时关闭
+    private val backgroundExecutor: ExecutorService = Executors.newSingleThreadExecutor()
+
+    // 打包的棋谱库，APK中没有XQF.pack时为null，使用assets中的XQF文件
+    private var manualArchive: ManualArchive? = null
+    // 按需从assets中读取的棋谱库，有打包的棋谱库时为null
+    private var manualLibrary: LazyManualLibrary? = null
+    private var last_library_folder = ""
+
+    // 搜索棋谱: 按结果过滤，第一项表示不过滤；排序方式可以在结果中切换
+    private val SEARCH_RESULTS = arrayOf("全部结果", "红胜", "黑胜", "平局")
+    private val SEARCH_ORDER_NAMES = arrayOf("标题", "日期", "赛事", "目录")
+    private val SEARCH_ORDERS = arrayOf(ManualIndex.BY_TITLE, ManualIndex.BY_DATE, ManualIndex.BY_EVENT, ManualIndex.BY_PATH)
+    private var last_search_keyword = ""
+
     // mediaplayer
     private lateinit var soundPlayer: SoundPlayer
 
@@ -111,54 +145,117 @@ class ManualActivity() : AppCompatActivity(), ControllerListener,
         }, 500)
 
         last_selected_path = PathUtil.getInternalAppFilesDir(this,"XQF")
+        // 索引建立在整个棋谱库(assets)上，而不是files/XQF中已经复制出来的棋谱
+        manualIndex = ManualIndex(File(PathUtil.getInternalAppFilesDir(this, MANUAL_INDEX_FILE)))
     }
 
     private fun initManual() {
+        // 有打包的棋谱库时直接从中读取，不需要复制成千上万个XQF文件
+        openManualArchive()
+        openPositionIndex()
+
         val pm: PackageManager = getPackageManager()
         var currentVersion = ""
+        // assets中的棋谱只随着应用升级变化，用安装时间判断索引是否过时
+        var libraryStamp = 0L
         try {
             val pi: PackageInfo = pm.getPackageInfo(getPackageName(), 0)
             currentVersion = pi.versionName
+            libraryStamp = pi.lastUpdateTime
         } catch (e: PackageManager.NameNotFoundException) {
             Log.e("Setting", "isFirstRun: " + Log.getStackTraceString(e))
         }
 
-        if(isFirstRun(currentVersion)) {
-            Log.d("Setting", "isFirstRun: true")
-
-            // create a waiting dialog
-            val builder = AlertDialog.Builder(this)
-            builder.setCancelable(false)
-            builder.setTitle("初始化中")
-            builder.setMessage("初次运行，正在初始化棋谱，时间较长(>30s)，请耐心等待...")
-            waitingDialog = builder.create()
-            waitingDialog.show()
-
-            // copy XQF manuals
-            Thread {
-                // copy all XQF files from assets to external storage, when it's the first run of this version
-
-                val destPath = PathUtil.getInternalAppFilesDir(this,"XQF")
-
-                // remove path if exists
-                val file = File(destPath)
-                if(file.exists()) {
-                    if(file.isFile){
-                        file.delete()
-                    } else {
-                        file.deleteRecursively()
-                    }
+        // 棋谱不再在第一次运行时全部复制，浏览时直接读assets的目录，打开时才复制
+        val lazyLibrary = LazyManualLibrary(AssetSource(), "XQF", File(PathUtil.getInternalAppFilesDir(this,"XQF")))
+        if(manualArchive == null) {
+            manualLibrary = lazyLibrary
+        }
+        val firstRun = isFirstRun(currentVersion)
+        val library = manualArchive ?: lazyLibrary.withoutCache()
+        // 以前的版本在设备上建立的局面索引，现在随APK发布
+        val oldPositionFile = File(PathUtil.getInternalAppFilesDir(this, OLD_POSITION_INDEX_FILE))
+        backgroundExecutor.execute {
+            if(firstRun) {
+                // 新版本的assets中的棋谱可能变了，删除以前复制的
+                Log.d("Setting", "isFirstRun: true")
+                lazyLibrary.clearCache()
+                oldPositionFile.delete()
+                setFirstRunVersion(currentVersion)
+            }
+            // 两种棋谱库都建立索引；从assets建立索引时读全部棋谱，不复制到files/XQF
+            updateManualIndex(library, libraryStamp)
+        }
+    }
+
+    override fun onDestroy() {
+        // 还没有开始的任务不再执行；后台任务不访问界面和controller，正在执行的可以自己结束
+        backgroundExecutor.shutdownNow()
+        super.onDestroy()
+    }
+
+    private inner class AssetSource : LazyManualLibrary.Source {
+        override fun list(path: String): Array<String> {
+            return assets.list(path) ?: arrayOf()
+        }
+
+        override fun open(path: String): InputStream {
+            return assets.open(path)
+        }
+    }
+
+    private fun openManualArchive(): Boolean {
+        try {
+            if(assets.list("")?.contains(MANUAL_ARCHIVE_ASSET) != true) {
+                return false
+            }
+            assets.openFd(MANUAL_ARCHIVE_ASSET).use { fd ->
+                FileInputStream(fd.fileDescriptor).channel.use { channel ->
+                    manualArchive = ManualArchive.open(channel, fd.startOffset, fd.length)
                 }
+            }
+            Log.d("ManualActivity", "manual archive: ${manualArchive?.size()} manuals")
+            return true
+        } catch (e: IOException) {
+            Log.e("ManualActivity", "Failed to open manual archive: " + Log.getStackTraceString(e))
+            return false
+        }
+    }
 
-                // copy assets to destPath
-                CopyAssetsUtil.copyAssets(this, "XQF", destPath)
-                runOnUiThread {
-                    setFirstRunVersion(currentVersion)
-                    waitingDialog.dismiss()
-                    Toast.makeText(this, "初始化完成", Toast.LENGTH_SHORT).show()
+    // 局面索引只映射，不读取记录，可以在主线程中打开；APK中没有时不能按局面查找棋谱
+    private fun openPositionIndex(): Boolean {
+        try {
+            if(assets.list("")?.contains(POSITION_INDEX_ASSET) != true) {
+                return false
+            }
+            assets.openFd(POSITION_INDEX_ASSET).use { fd ->
+                FileInputStream(fd.fileDescriptor).channel.use { channel ->
+                    val index = PositionIndex.open(channel, fd.startOffset, fd.length)
+                    controller.setPositionIndex(index)
+                    Log.d("ManualActivity", "position index: ${index.gameCount} manuals, ${index.recordCount} positions")
                 }
-            }.start()
+            }
+            return true
+        } catch (e: IOException) {
+            Log.e("ManualActivity", "Failed to open position index: " + Log.getStackTraceString(e))
+            return false
+        }
+    }
+
+    // 读取已有的索引，棋谱库有变化(stamp不同)时重新建立，需要在后台线程中调用
+    private fun updateManualIndex(library: ManualLibrary, stamp: Long) {
+        if(!manualIndex.load()) {
+            Log.d("ManualActivity", "manual index not found, build it now")
+        }
+        val changed = manualIndex.update(library, stamp)
+        if(changed > 0) {
+            try {
+                manualIndex.save()
+            } catch (e: IOException) {
+                Log.e("ManualActivity", "Failed to save manual index: " + Log.getStackTraceString(e))
+            }
         }
+        Log.d("ManualActivity", "manual index: ${manualIndex.size()} manuals, $changed changed")
     }
 
     private fun isFirstRun(currentVersion:String): Boolean {
@@ -194,7 +291,12 @@ class ManualActivity() : AppCompatActivity(), ControllerListener,
         // handle events for all imagebuttons in activity_player.xml
         when(v) {
             binding.openbt -> {
-                showOpenManualDialog()
+                val library: ManualLibrary? = manualArchive ?: manualLibrary
+                if(library != null) {
+                    showLibraryDialog(library, last_library_folder)
+                } else {
+                    Toast.makeText(this, "正在加载棋谱库...", Toast.LENGTH_SHORT).show()
+                }
             }
             binding.forwardbt -> {
                 controller.manualForward()
@@ -255,6 +357,7 @@ class ManualActivity() : AppCompatActivity(), ControllerListener,
     }
 
 
+    // 直接打开files/XQF中的棋谱文件，包括从棋谱库复制出来的和用户自己放入的
     private fun showOpenManualDialog() {
         val types = arrayListOf<FileType>(XQFFileType())
         FilePickerManager
@@ -267,6 +370,105 @@ class ManualActivity() : AppCompatActivity(), ControllerListener,
             .forResult(FilePickerManager.REQUEST_CODE)
     }
 
+    // 像浏览目录一样浏览棋谱库，先列出子目录，再列出棋谱
+    private fun showLibraryDialog(library: ManualLibrary, folder: String) {
+        // 在后台预先复制这个目录下的棋谱
+        manualLibrary?.prefetch(folder)
+        val items = ArrayList<String>()
+        if(folder.isNotEmpty()) {
+            items.add("..")
+        }
+        val folders: List<String>
+        val files: List<String>
+        if(manualIndex.size() > 0) {
+            // 索引建好之后在内存中浏览，显示棋谱的标题
+            folders = manualIndex.listFolders(folder)
+            val entries = manualIndex.list(folder)
+            files = entries.map { it.path }
+            folders.forEach { items.add("$it/") }
+            entries.forEach { items.add(if(it.title.isEmpty()) it.fileName else it.title) }
+        } else {
+            folders = library.listFolders(folder)
+            files = library.list(folder)
+            folders.forEach { items.add("$it/") }
+            files.forEach { items.add(it.substring(it.lastIndexOf('/') + 1)) }
+        }
+
+        val offset = if(folder.isEmpty()) 0 else 1
+        AlertDialog.Builder(this)
+            .setTitle(if(folder.isEmpty()) "XQF" else folder)
+            .setItems(items.toTypedArray()) { _, which ->
+                if(which < offset) {
+                    showLibraryDialog(library, if(folder.contains('/')) folder.substring(0, folder.lastIndexOf('/')) else "")
+                } else if(which < offset + folders.size) {
+                    val name = folders[which - offset]
+                    showLibraryDialog(library, if(folder.isEmpty()) name else "$folder/$name")
+                } else {
+                    last_library_folder = folder
+                    showLoadedManual(controller.loadManualFromLibrary(library, files[which - offset - folders.size]))
+                }
+            }
+            .setNeutralButton("搜索") { _, _ ->
+                showSearchDialog(library)
+            }
+            .setPositiveButton("本地文件") { _, _ ->
+                showOpenManualDialog()
+            }
+            .setNegativeButton("取消", null)
+            .show()
+    }
+
+    // 在棋谱索引中按标题、赛事、对局者搜索，可以按结果过滤
+    private fun showSearchDialog(library: ManualLibrary) {
+        val keywordInput = EditText(this)
+        keywordInput.hint = "标题、赛事或对局者"
+        keywordInput.setText(last_search_keyword)
+        val resultSpinner = Spinner(this)
+        resultSpinner.adapter = ArrayAdapter(this, android.R.layout.simple_spinner_dropdown_item, SEARCH_RESULTS)
+        val layout = LinearLayout(this)
+        layout.orientation = LinearLayout.VERTICAL
+        layout.setPadding(48, 16, 48, 0)
+        layout.addView(keywordInput)
+        layout.addView(resultSpinner)
+
+        AlertDialog.Builder(this)
+            .setTitle("搜索棋谱")
+            .setView(layout)
+            .setPositiveButton("搜索") { _, _ ->
+                last_search_keyword = keywordInput.text.toString().trim()
+                val position = resultSpinner.selectedItemPosition
+                val result = if(position <= 0) null else SEARCH_RESULTS[position]
+                showSearchResultDialog(library, last_search_keyword, result, 0)
+            }
+            .setNegativeButton("取消", null)
+            .show()
+    }
+
+    // 搜索结果，点击打开棋谱，中间的按钮切换排序方式
+    private fun showSearchResultDialog(library: ManualLibrary, keyword: String, result: String?, order: Int) {
+        if(manualIndex.size() == 0) {
+            Toast.makeText(this, "棋谱索引还没有建立好，请稍后再试", Toast.LENGTH_SHORT).show()
+            return
+        }
+        val entries = manualIndex.search(keyword, result, SEARCH_ORDERS[order])
+        val items = entries.map { e ->
+            val title = if(e.title.isEmpty()) e.fileName else e.title
+            if(e.red.isEmpty() && e.black.isEmpty()) title else "$title  (${e.red} - ${e.black})"
+        }
+        val nextOrder = (order + 1) % SEARCH_ORDERS.size
+        AlertDialog.Builder(this)
+            .setTitle("找到${entries.size}个棋谱，按${SEARCH_ORDER_NAMES[order]}排序")
+            .setItems(items.toTypedArray()) { _, which ->
+                last_library_folder = entries[which].folder
+                showLoadedManual(controller.loadManualFromLibrary(library, entries[which].path))
+            }
+            .setNeutralButton("按${SEARCH_ORDER_NAMES[nextOrder]}排序") { _, _ ->
+                showSearchResultDialog(library, keyword, result, nextOrder)
+            }
+            .setNegativeButton("取消", null)
+            .show()
+    }
+
     override fun onActivityResult(requestCode: Int, resultCode: Int, data: Intent?) {
         super.onActivityResult(requestCode, resultCode, data)
         when (requestCode) {
@@ -288,8 +490,10 @@ class ManualActivity() : AppCompatActivity(), ControllerListener,
     }
 
     fun loadManualFromFile(file: String) {
-        val result = controller.loadManualFromFile(file)
+        showLoadedManual(controller.loadManualFromFile(file))
+    }
 
+    private fun showLoadedManual(result: Boolean) {
         if(result) {
             if(controller.manual.title == null || controller.manual.title.isEmpty()) {
                 binding.textViewTitle.text = controller.manual.filename
@@ -49,6 +49,7 @@ class SettingDialogFragment : DialogFragment() {
         val booleanOpenbook = view.findViewById<CheckBox>(R.id.boolean_openbook)
         val textviewOpenbook = view.findViewById<TextView>(R.id.textViewOpenBook)
         textviewOpenbook.text = "(" + BHDatabase.OPENBOOK_NAME + ")"
+        val booleanCloudOpenbook = view.findViewById<CheckBox>(R.id.boolean_cloud_openbook)
 
         val booleanSound = view.findViewById<CheckBox>(R.id.boolean_sound)
 
@@ -75,6 +76,7 @@ class SettingDialogFragment : DialogFragment() {
         // set the initial values
         if (this.settings != null) {
             booleanOpenbook.isChecked = this.settings.openbook
+            booleanCloudOpenbook.isChecked = this.settings.cloud_openbook
             booleanSound.isChecked = this.settings.sound_effect
             historyInput.progress = this.settings.history_moves
             historyText.text = this.settings.history_moves.toString()
@@ -154,6 +156,7 @@ class SettingDialogFragment : DialogFragment() {
             .setTitle("游戏设置")
             .setPositiveButton("确定") { dialog, id ->
                 settings.openbook = booleanOpenbook.isChecked
+                settings.cloud_openbook = booleanCloudOpenbook.isChecked
                 settings.sound_effect = booleanSound.isChecked
                 settings.history_moves = historyInput.progress
                 settings.go_depth = radioDepth.isChecked
@@ -14,6 +14,9 @@ class Settings(private val context: Context) {
 
     private val openbook_key: String = "openbook"
     var openbook = true
+    // 云库会把局面发送到chessdb.cn，默认不使用
+    private val cloud_openbook_key: String = "cloud_openbook"
+    var cloud_openbook = false
 
     private val sound_effect_key: String = "sound_effect"
     var sound_effect = false
@@ -44,6 +47,7 @@ class Settings(private val context: Context) {
 
         // create variables for settings
         openbook = getBoolean(openbook_key, true)
+        cloud_openbook = getBoolean(cloud_openbook_key, false)
         sound_effect = getBoolean(sound_effect_key, true)
         history_moves = getInt(history_moves_key, 2)
         go_depth = getBoolean(go_depth_key, true)
@@ -70,6 +74,7 @@ class Settings(private val context: Context) {
     fun saveSettings() {
         // save variables for settings
         setBoolean(openbook_key, openbook)
+        setBoolean(cloud_openbook_key, cloud_openbook)
         setBoolean(sound_effect_key, sound_effect)
         setInt(history_moves_key, history_moves)
         setBoolean(go_depth_key, go_depth)
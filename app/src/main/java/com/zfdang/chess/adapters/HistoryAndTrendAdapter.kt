@@ -26,7 +26,7 @@ class HistoryAndTrendAdapter(private val context: Context, private val tableLayo
     private fun updateChart() {
         val entries = ArrayList<Entry>();
         for(i in 0 until controller.game.history.size) {
-            val item = controller.game.history[i].move.board.score
+            val item = controller.game.history[i].score
             entries.add(Entry(i.toFloat(), item));
         }
         if(controller.game.currentBoard.score != 0.toFloat()) {
@@ -14,9 +14,15 @@ import com.zfdang.chess.gamelogic.Piece;
 import com.zfdang.chess.gamelogic.Position;
 import com.zfdang.chess.gamelogic.PvInfo;
 import com.zfdang.chess.gamelogic.Rule;
+import com.zfdang.chess.manuals.XQFManual;
+import com.zfdang.chess.openbook.BHDatabase;
 import com.zfdang.chess.openbook.BHOpenBook;
 import com.zfdang.chess.openbook.BookData;
+import com.zfdang.chess.openbook.CloudOpenBook;
+import com.zfdang.chess.openbook.CompositeOpenBook;
 import com.zfdang.chess.openbook.OpenBook;
+import com.zfdang.chess.openbook.OpenBookBase;
+import com.zfdang.chess.openbook.OpenBookCache;
 
 import org.jetbrains.annotations.NotNull;
 import org.petero.droidfish.player.ComputerPlayer;
@@ -40,6 +46,8 @@ public class GameController implements EngineListener, SearchListener {
 
     public Game game = null;
     private int searchId;
+    // 每次查询开局库加一，返回的结果和当前的查询不一致时丢弃
+    private int bookQueryId;
     private long searchStartTime;
     private long searchEndTime;
 
@@ -51,7 +59,9 @@ public class GameController implements EngineListener, SearchListener {
     private ControllerListener gui = null;
     ArrayList<PvInfo> multiPVs = new ArrayList<>();
 
-    BHOpenBook bhBook = null;
+    // 本地开局库(前面加一层LRU缓存)和云库，在同一个时间预算内合并查询，自动对弈时每一步都会查询
+    CompositeOpenBook openBook = null;
+    CloudOpenBook cloudBook = null;
 
     public ControllerState state;
     public ControllerState preEvalState;
@@ -68,6 +78,7 @@ public class GameController implements EngineListener, SearchListener {
         WAITING_FOR_USER, // 红方出子
         WAITING_FOR_USER_MULTIPV, // 红方寻求帮助，等待多PV结果
         WAITING_FOR_ENGINE, // 黑方出子
+        WAITING_FOR_ENGINE_BOOK, // 黑方查询开局库
         WAITING_FOR_ENGINE_BESTMV, // 黑方寻找最佳着法
         WAITING_FOR_ENGINE_MULTIPV, // 黑方变着，等待多PV结果
         WAITING_FOR_EVAL, // 等待eval的结果
@@ -84,9 +95,16 @@ public class GameController implements EngineListener, SearchListener {
         isAutoPlay = true;
         searchId = 0;
 
-        bhBook = new BHOpenBook(ChessApp.getContext());
+        // 优先使用映射到内存的二进制开局库，APK中没有时再用SQLite库
+        OpenBookBase book = BHDatabase.openBinaryBook(ChessApp.getContext());
+        if (book == null) {
+            book = new BHOpenBook(ChessApp.getContext());
+        }
+        openBook = new CompositeOpenBook();
+        openBook.addBook(new OpenBookCache(book), 1.0);
 
         settings = new Settings(ChessApp.getContext());
+        applyCloudBookSetting();
 
         // Initialize computer player
         if (player == null) {
@@ -104,6 +122,7 @@ public class GameController implements EngineListener, SearchListener {
             state = ControllerState.WAITING_FOR_ENGINE;
         }
         game = new Game(settings.getRed_go_first());
+        openBook.cancelQueries();
         player.stopSearch();
         player.uciNewGame();
     }
@@ -128,6 +147,7 @@ public class GameController implements EngineListener, SearchListener {
         game.startPos = null;
         game.endPos = null;
         gui.onGameEvent(GameStatus.UPDATEUI, "从FEN开局");
+        openBook.cancelQueries();
         player.stopSearch();
         player.uciNewGame();
     }
@@ -188,23 +208,41 @@ public class GameController implements EngineListener, SearchListener {
         }
 
         if(settings.getOpenbook()) {
-            // search openbook first
+            // search openbook first, 在后台线程中查询，不阻塞界面
             gui.onGameEvent(GameStatus.UPDATEUI, "检索开局库...");
 
-            long vkey = game.currentBoard.getZobrist(isRedTurn());
-            List<BookData> bookData = bhBook.query(vkey, isRedTurn(), OpenBook.SortRule.BEST_SCORE);
-            if (bookData != null && bookData.size() > 0) {
-                int idx = 0;
-                if(game.currentBoard.rounds <= random_before_max_rounds && settings.getRandom_move()) {
-                    // 如果在前12步，那么可以随机选择一个着法
-                    idx =  (int) (Math.random() * bookData.size());
-                }
-                Log.d("GameController", "Openbook hit: size = " + bookData.size() + "; bestmove = " + bookData.get(0).getMove() + "; currentMove = " + bookData.get(idx).getMove());
-                computerMovePiece(bookData.get(idx).getMove());
-                return;
+            final String fen = getBookFEN();
+            final int queryId = ++bookQueryId;
+            state = ControllerState.WAITING_FOR_ENGINE_BOOK;
+            openBook.queryAsync(fen, false, OpenBook.SortRule.BEST_SCORE,
+                    data -> gui.runOnUIThread(() -> onBookResult(queryId, data)));
+            return;
+        }
+
+        startEngineSearch();
+    }
+
+    // 开局库的查询结果，在UI线程中调用
+    private synchronized void onBookResult(int queryId, List<BookData> bookData) {
+        if (state != ControllerState.WAITING_FOR_ENGINE_BOOK || queryId != bookQueryId) {
+            // 查询期间开了新局或者换了局面
+            return;
+        }
+        state = ControllerState.WAITING_FOR_ENGINE;
+        if (bookData != null && bookData.size() > 0) {
+            int idx = 0;
+            if(game.currentBoard.rounds <= random_before_max_rounds && settings.getRandom_move()) {
+                // 如果在前12步，那么可以随机选择一个着法
+                idx =  (int) (Math.random() * bookData.size());
             }
+            Log.d("GameController", "Openbook hit: size = " + bookData.size() + "; bestmove = " + bookData.get(0).getMove() + "; currentMove = " + bookData.get(idx).getMove() + "; " + openBook);
+            computerMovePiece(bookData.get(idx).getMove());
+            return;
         }
+        startEngineSearch();
+    }
 
+    private void startEngineSearch() {
         if (settings.getGo_infinite()) {
             gui.onGameEvent(GameStatus.UPDATEUI, "无限搜索着法中, 须闪电出着!");
         } else {
@@ -214,12 +252,7 @@ public class GameController implements EngineListener, SearchListener {
 
         // trigger searchrequest, engine will call notifySearchResult for bestmove
         searchStartTime = System.currentTimeMillis();
-        Board board = null;
-        if (game.history.size() == 0) {
-            board = game.currentBoard;
-        } else {
-            board = game.history.get(0).move.board;
-        }
+        Board board = game.getStartBoard();
         SearchRequest sr = SearchRequest.searchRequest(
                 searchId++,
                 board,
@@ -271,12 +304,7 @@ public class GameController implements EngineListener, SearchListener {
 
         // trigger searchrequest, engine will call notifySearchResult for bestmove
         searchStartTime = System.currentTimeMillis();
-        Board board = null;
-        if (game.history.size() == 0) {
-            board = game.currentBoard;
-        } else {
-            board = game.history.get(0).move.board;
-        }
+        Board board = game.getStartBoard();
         SearchRequest sr = SearchRequest.searchRequest(
                 searchId++,
                 board,
@@ -313,12 +341,7 @@ public class GameController implements EngineListener, SearchListener {
 
         // trigger searchrequest, engine will call notifySearchResult for bestmove
         searchStartTime = System.currentTimeMillis();
-        Board board = null;
-        if (game.history.size() == 0) {
-            board = game.currentBoard;
-        } else {
-            board = game.history.get(0).move.board;
-        }
+        Board board = game.getStartBoard();
         SearchRequest sr = SearchRequest.searchRequest(
                 searchId++,
                 board,
@@ -427,6 +450,20 @@ public class GameController implements EngineListener, SearchListener {
         Map<String, String> uciOptions = new HashMap<>();
         uciOptions.put("Hash", String.valueOf(settings.getHash_size()));
         player.setUCIOptions(uciOptions);
+
+        applyCloudBookSetting();
+    }
+
+    // 云库会把每一步的局面发送到chessdb.cn，只在设置中打开时才使用
+    private void applyCloudBookSetting() {
+        if (settings.getCloud_openbook() && cloudBook == null) {
+            cloudBook = new CloudOpenBook();
+            openBook.addBook(cloudBook, 0.5);
+        } else if (!settings.getCloud_openbook() && cloudBook != null) {
+            openBook.removeBook(cloudBook);
+            cloudBook.close();
+            cloudBook = null;
+        }
     }
 
 
@@ -664,14 +701,21 @@ public class GameController implements EngineListener, SearchListener {
         Log.d("GameController", "Engine initialized");
     }
 
+    // 查询开局库用的FEN，走子方和isRedTurn()一致；CompositeOpenBook用它查云库，并算出vkey查本地库
+    private String getBookFEN() {
+        Board board = new Board(game.currentBoard);
+        board.bRedGo = isRedTurn();
+        return board.toFENString();
+    }
+
     public void swapSides() {
         // search openbook first
-        long vkey = game.currentBoard.getZobrist(isRedTurn());
-        List<BookData> bookData = bhBook.query(vkey, isRedTurn(), OpenBook.SortRule.BEST_SCORE);
-        // iterate bookData one by one
-        for (BookData bd : bookData) {
-            Log.d("GameController", "Openbook hit: " + bd.getMove());
-        }
+        openBook.queryAsync(getBookFEN(), false, OpenBook.SortRule.BEST_SCORE, bookData -> {
+            // iterate bookData one by one
+            for (BookData bd : bookData) {
+                Log.d("GameController", "Openbook hit: " + bd.getMove());
+            }
+        });
     }
 
     public int getMultiPVSize() {
@@ -688,6 +732,21 @@ public class GameController implements EngineListener, SearchListener {
         }
     }
 
+    /*
+     * 把当前对局转换成棋谱，用XQFWriter或PGNWriter导出；被将死时，走最后一步的一方获胜
+     */
+    public XQFManual toManual() {
+        List<Move> moves = new ArrayList<>(game.history.size());
+        for (Game.HistoryRecord record : game.history) {
+            moves.add(record.move);
+        }
+        String result = "未知";
+        if (game.isCheckMate && !game.history.isEmpty()) {
+            result = game.history.get(game.history.size() - 1).isRedMove ? "红胜" : "黑胜";
+        }
+        return XQFManual.fromMoves(game.getStartBoard(), moves, result);
+    }
+
     public void loadGameStatus() {
         // load game status
         try {
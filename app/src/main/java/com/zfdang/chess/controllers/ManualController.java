@@ -7,9 +7,9 @@ import com.zfdang.chess.ChessApp;
 import com.zfdang.chess.gamelogic.Board;
 import com.zfdang.chess.gamelogic.GameStatus;
 import com.zfdang.chess.gamelogic.Move;
-import com.zfdang.chess.gamelogic.Piece;
-import com.zfdang.chess.gamelogic.Position;
 import com.zfdang.chess.gamelogic.PvInfo;
+import com.zfdang.chess.manuals.ManualLibrary;
+import com.zfdang.chess.manuals.PositionIndex;
 import com.zfdang.chess.manuals.XQFManual;
 import com.zfdang.chess.manuals.XQFParser;
 import com.zfdang.chess.utils.PathUtil;
@@ -19,6 +19,8 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 public class ManualController extends GameController{
     public XQFManual manual = null;
@@ -27,6 +29,9 @@ public class ManualController extends GameController{
     private Context context = null;
     private ControllerListener gui = null;
 
+    // 棋谱库的局面索引，后台建立好之后设置
+    private volatile PositionIndex positionIndex = null;
+
     public ManualController(ControllerListener listener) {
         super(listener);
         this.gui = listener;
@@ -42,50 +47,62 @@ public class ManualController extends GameController{
                 inputStream.read(buffer);
                 inputStream.close();
 
-                // use XQFGame to parse the buffer
-                manual = XQFParser.parse(buffer);
-                if(manual == null) {
-                    Log.e("ManualActivity", "Failed to parse XQF game: " + filename);
-                    gui.onGameEvent(GameStatus.ILLEGAL, "Failed to parse XQF game: " + filename);
-                    return false;
-                }
+                return loadManualFromBuffer(buffer, filename);
+            } catch (IOException e) {
+                Log.e("ManualController", "Failed to load manual from file: " + filename);
+                Log.e("ManualController", e.getMessage());
+            }
+        }
 
-                manual.setFilename(PathUtil.getFileName(filename));
+        return false;
+    }
 
-                boolean result = manual.validateAllMoves();
-                if (!result) {
-                    Log.e("ManualActivity", "Failed to validate moves: "  + filename);
-                }
+    // 从棋谱库(打包的或者assets中的)打开棋谱，path是棋谱在库中的路径
+    public boolean loadManualFromLibrary(ManualLibrary library, String path) {
+        byte[] buffer = library.read(path);
+        if(buffer == null) {
+            Log.e("ManualController", "Manual not found in library: " + path);
+            gui.onGameEvent(GameStatus.ILLEGAL, "Manual not found: " + path);
+            return false;
+        }
+        return loadManualFromBuffer(buffer, path);
+    }
 
-                Log.d("ManualActivity", "Parsed XQF game: " + manual);
+    private boolean loadManualFromBuffer(byte[] buffer, String filename) {
+        // use XQFGame to parse the buffer
+        manual = XQFParser.parse(buffer);
+        if(manual == null) {
+            Log.e("ManualActivity", "Failed to parse XQF game: " + filename);
+            gui.onGameEvent(GameStatus.ILLEGAL, "Failed to parse XQF game: " + filename);
+            return false;
+        }
 
-                // 根据XQFManual的getHeadMove()方法获取第一个MoveNode
-                moveNode = manual.getHeadMove();
+        manual.setFilename(PathUtil.getFileName(filename));
 
-                // 根据第一个move的颜色，来确定那方先走
-                if(moveNode.nextMoves.size() > 0) {
-                    Move m = moveNode.nextMoves.get(0).move;
-                    Position p = m.fromPosition;
-                    int piece = manual.board.getPieceByPosition(p);
-                    manual.board.bRedGo = Piece.isRed(piece);
-                    setSatate(manual.board.bRedGo);
-                }
+        boolean result = manual.validateAllMoves();
+        if (!result) {
+            Log.e("ManualActivity", "Failed to validate moves: "  + filename);
+        }
 
-                // reset game
-                game.currentBoard = new Board(manual.board);
-                game.history.clear();
-                game.suggestedMoves.clear();
-                game.startPos = null;
-                game.endPos = null;
+        Log.d("ManualActivity", "Parsed XQF game: " + manual);
 
-                return true;
-            } catch (IOException e) {
-                Log.e("ManualController", "Failed to load manual from file: " + filename);
-                Log.e("ManualController", e.getMessage());
-            }
+        // 根据XQFManual的getHeadMove()方法获取第一个MoveNode
+        moveNode = manual.getHeadMove();
+
+        // 根据第一个move的颜色，来确定那方先走
+        if(moveNode.nextMoves.size() > 0) {
+            manual.board.bRedGo = manual.isRedFirst();
+            setSatate(manual.board.bRedGo);
         }
 
-        return false;
+        // reset game
+        game.currentBoard = new Board(manual.board);
+        game.history.clear();
+        game.suggestedMoves.clear();
+        game.startPos = null;
+        game.endPos = null;
+
+        return true;
     }
 
     public void manualForward() {
@@ -155,6 +172,26 @@ public class ManualController extends GameController{
         gui.onGameEvent(GameStatus.MOVE, "回到上一步");
     }
 
+    public void setPositionIndex(PositionIndex index) {
+        this.positionIndex = index;
+    }
+
+    public boolean hasPositionIndex() {
+        return positionIndex != null;
+    }
+
+    /*
+     * 查找棋谱库中所有出现过当前局面的棋谱，APK中没有局面索引时返回空列表
+     */
+    public List<PositionIndex.Hit> findManualsWithCurrentPosition(int limit) {
+        PositionIndex index = positionIndex;
+        if (index == null) {
+            return Collections.emptyList();
+        }
+        long key = game.currentBoard.getZobrist(game.currentBoard.bRedGo);
+        return index.find(key, limit);
+    }
+
     public String getFirstMoveColor(){
         if(manual == null) {
             return "未打开棋谱...";
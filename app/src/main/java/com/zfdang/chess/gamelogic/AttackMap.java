@@ -0,0 +1,307 @@
+package com.zfdang.chess.gamelogic;
+
+import java.util.Arrays;
+
+/**
+ * 攻击表：记录双方每个格子被多少个棋子攻击，以及每一列的占用情况
+ * 挂在Board上(见Board.getAttackMap)，Board每修改一个格子都会增量更新
+ *
+ * 某个格子的占用变化时，只有下面这些棋子的攻击范围会变：
+ *   这个格子上原来的棋子和新的棋子
+ *   沿四个方向看过去的第一个车，第一个或第二个炮(炮架可能变了)
+ *   上下左右相邻的马(这个格子可能是它的马腿)
+ *   斜向相邻的象(这个格子可能是它的象眼)
+ * 将帅照面用每一列的占用位图判断，不需要扫描
+ */
+final class AttackMap {
+    private final Board board;
+    // attacks[1]是红方的攻击，attacks[0]是黑方的攻击
+    private final byte[][] attacks = new byte[2][Board.BOARD_SQUARES];
+    // fileMask[x]的第y位表示(x, y)上有棋子
+    private final int[] fileMask = new int[Board.BOARD_PIECE_WIDTH];
+    private final int[] kingSquares = new int[2];
+
+    // 一次格子变化中受影响的棋子，最多4个方向各2个，4个马，4个象
+    private final int[] affected = new int[16];
+    private int affectedCount;
+
+    AttackMap(Board board) {
+        this.board = board;
+        rebuild();
+    }
+
+    void rebuild() {
+        Arrays.fill(attacks[0], (byte) 0);
+        Arrays.fill(attacks[1], (byte) 0);
+        Arrays.fill(fileMask, 0);
+        kingSquares[0] = kingSquares[1] = 0;
+        for (int y = 0; y < Board.BOARD_PIECE_HEIGHT; y++) {
+            for (int x = 0; x < Board.BOARD_PIECE_WIDTH; x++) {
+                int sq = Board.toSquare(x, y);
+                int piece = board.getPieceBySquare(sq);
+                if (piece > Piece.EMPTY) {
+                    occupy(sq, piece);
+                    apply(sq, 1);
+                }
+            }
+        }
+    }
+
+    /*
+     * Board修改sq之前调用：去掉受影响的棋子的攻击
+     */
+    void beforeChange(int sq) {
+        collectAffected(sq);
+        for (int i = 0; i < affectedCount; i++) {
+            applyAffected(affected[i], -1);
+        }
+        int piece = board.getPieceBySquare(sq);
+        if (piece > Piece.EMPTY) {
+            apply(sq, -1);
+            vacate(sq, piece);
+        }
+    }
+
+    /*
+     * Board修改sq之后调用：按新的棋盘重新加上受影响的棋子的攻击
+     */
+    void afterChange(int sq) {
+        int piece = board.getPieceBySquare(sq);
+        if (piece > Piece.EMPTY) {
+            occupy(sq, piece);
+            apply(sq, 1);
+        }
+        for (int i = 0; i < affectedCount; i++) {
+            applyAffected(affected[i], 1);
+        }
+    }
+
+    boolean isAttacked(int sq, boolean byRed) {
+        return attacks[byRed ? 1 : 0][sq] > 0;
+    }
+
+    int getAttackCount(int sq, boolean byRed) {
+        return attacks[byRed ? 1 : 0][sq];
+    }
+
+    // 返回red一方将帅的下标，没有返回0
+    int getKingSquare(boolean red) {
+        return kingSquares[red ? 1 : 0];
+    }
+
+    boolean isInCheck(boolean red) {
+        int king = kingSquares[red ? 1 : 0];
+        return king != 0 && (isAttacked(king, !red) || kingsFacing());
+    }
+
+    // 双方将帅在同一列，且中间没有棋子
+    boolean kingsFacing() {
+        int red = kingSquares[1];
+        int black = kingSquares[0];
+        return red != 0 && black != 0 && (red & 0x0F) == (black & 0x0F) && fileClear(red, black);
+    }
+
+    /*
+     * red一方的将帅走到sq之后，是否和对方的将帅照面
+     * 将帅原来所在的格子不在两者之间(否则原局面已经照面了)，所以不需要先移走
+     */
+    boolean kingCanSeeKing(boolean red, int sq) {
+        int enemy = kingSquares[red ? 0 : 1];
+        return enemy != 0 && (sq & 0x0F) == (enemy & 0x0F) && fileClear(sq, enemy);
+    }
+
+    /*
+     * 对于red一方，from或to是否在将帅所在的行、列上，或者是将帅斜向相邻的格子(对方马腿的位置)
+     * 不在这些格子上的非将帅走法，不会让自己的将帅新被攻击，也不会造成照面
+     */
+    boolean touchesKingLines(boolean red, int sq) {
+        int king = kingSquares[red ? 1 : 0];
+        if (king == 0) {
+            return true;
+        }
+        if ((sq & 0x0F) == (king & 0x0F) || (sq >> 4) == (king >> 4)) {
+            return true;
+        }
+        int d = sq - king;
+        return d == -17 || d == -15 || d == 15 || d == 17;
+    }
+
+    private boolean fileClear(int a, int b) {
+        int x = Board.squareX(a);
+        int ya = Board.squareY(a);
+        int yb = Board.squareY(b);
+        int lo = Math.min(ya, yb);
+        int hi = Math.max(ya, yb);
+        int between = ((1 << hi) - 1) & ~((1 << (lo + 1)) - 1);
+        return (fileMask[x] & between) == 0;
+    }
+
+    private void occupy(int sq, int piece) {
+        fileMask[Board.squareX(sq)] |= 1 << Board.squareY(sq);
+        if (piece == Piece.WSHUAI) {
+            kingSquares[1] = sq;
+        } else if (piece == Piece.BJIANG) {
+            kingSquares[0] = sq;
+        }
+    }
+
+    private void vacate(int sq, int piece) {
+        fileMask[Board.squareX(sq)] &= ~(1 << Board.squareY(sq));
+        if (piece == Piece.WSHUAI && kingSquares[1] == sq) {
+            kingSquares[1] = 0;
+        } else if (piece == Piece.BJIANG && kingSquares[0] == sq) {
+            kingSquares[0] = 0;
+        }
+    }
+
+    // affected中车、炮只需要更新朝向sq的那一条射线，记录为 下标 | (射线方向 << 8)
+    private void collectAffected(int sq) {
+        affectedCount = 0;
+        for (int dir = 0; dir < 4; dir++) {
+            int delta = Rule.kingDelta[dir];
+            int s = sq + delta;
+            int found = 0;
+            int p;
+            while ((p = board.getPieceBySquare(s)) != Board.OFFBOARD) {
+                if (p > Piece.EMPTY) {
+                    found++;
+                    if (p == Piece.WPAO || p == Piece.BPAO || (found == 1 && (p == Piece.WJU || p == Piece.BJU))) {
+                        // 从s看向sq的方向和delta相反，kingDelta中相反的方向是dir ^ 1
+                        affected[affectedCount++] = s | ((dir ^ 1) << 8);
+                    }
+                    if (found == 2) {
+                        break;
+                    }
+                }
+                s += delta;
+            }
+        }
+        for (int delta : Rule.kingDelta) {
+            int p = board.getPieceBySquare(sq + delta);
+            if (p == Piece.WMA || p == Piece.BMA) {
+                affected[affectedCount++] = (sq + delta) | (4 << 8);
+            }
+        }
+        for (int delta : Rule.shiDelta) {
+            int p = board.getPieceBySquare(sq + delta);
+            if (p == Piece.WXIANG || p == Piece.BXIANG) {
+                affected[affectedCount++] = (sq + delta) | (4 << 8);
+            }
+        }
+    }
+
+    private void applyAffected(int entry, int delta) {
+        int sq = entry & 0xFF;
+        int dir = entry >> 8;
+        if (dir < 4) {
+            int piece = board.getPieceBySquare(sq);
+            applyRay(attacks[Piece.isRed(piece) ? 1 : 0], sq, Rule.kingDelta[dir], piece == Piece.WPAO || piece == Piece.BPAO, delta);
+        } else {
+            apply(sq, delta);
+        }
+    }
+
+    // 车或炮沿d方向的一条射线
+    private void applyRay(byte[] map, int sq, int d, boolean pao, int delta) {
+        int to = sq + d;
+        int p;
+        if (pao) {
+            // 炮架之后，直到下一个棋子(含)的格子都在炮的攻击范围内
+            while ((p = board.getPieceBySquare(to)) == Piece.EMPTY) {
+                to += d;
+            }
+            if (p == Board.OFFBOARD) {
+                return;
+            }
+            to += d;
+        }
+        while ((p = board.getPieceBySquare(to)) != Board.OFFBOARD) {
+            map[to] += delta;
+            if (p != Piece.EMPTY) {
+                break;
+            }
+            to += d;
+        }
+    }
+
+    /*
+     * 把sq上棋子攻击的格子的计数加上delta
+     * 攻击范围和Rule.generatePieceMoves一致，但包括被自己的棋子占用的格子(保护)
+     */
+    private void apply(int sq, int delta) {
+        int piece = board.getPieceBySquare(sq);
+        byte[] map = attacks[Piece.isRed(piece) ? 1 : 0];
+        int to;
+        switch (piece) {
+            case Piece.BJIANG:
+            case Piece.WSHUAI:
+                for (int d : Rule.kingDelta) {
+                    to = sq + d;
+                    if (Rule.squareArea[to] == (piece == Piece.BJIANG ? 2 : 4)) {
+                        map[to] += delta;
+                    }
+                }
+                break;
+            case Piece.BSHI:
+            case Piece.WSHI:
+                for (int d : Rule.shiDelta) {
+                    to = sq + d;
+                    if (Rule.squareArea[to] == (piece == Piece.BSHI ? 2 : 4)) {
+                        map[to] += delta;
+                    }
+                }
+                break;
+            case Piece.BXIANG:
+            case Piece.WXIANG:
+                for (int d : Rule.xiangDelta) {
+                    to = sq + d;
+                    int a = Rule.squareArea[to];
+                    boolean ownHalf = piece == Piece.BXIANG ? (a == 1 || a == 2) : (a == 3 || a == 4);
+                    if (ownHalf && board.getPieceBySquare(sq + d / 2) == Piece.EMPTY) {
+                        map[to] += delta;
+                    }
+                }
+                break;
+            case Piece.BMA:
+            case Piece.WMA:
+                for (int i = 0; i < Rule.maDelta.length; i++) {
+                    to = sq + Rule.maDelta[i];
+                    if (board.getPieceBySquare(to) != Board.OFFBOARD
+                            && board.getPieceBySquare(sq + Rule.maLegDelta[i]) == Piece.EMPTY) {
+                        map[to] += delta;
+                    }
+                }
+                break;
+            case Piece.BJU:
+            case Piece.WJU:
+                for (int d : Rule.kingDelta) {
+                    applyRay(map, sq, d, false, delta);
+                }
+                break;
+            case Piece.BPAO:
+            case Piece.WPAO:
+                for (int d : Rule.kingDelta) {
+                    applyRay(map, sq, d, true, delta);
+                }
+                break;
+            case Piece.BZU:
+            case Piece.WBING:
+                boolean black = piece == Piece.BZU;
+                to = sq + (black ? 16 : -16);
+                if (board.getPieceBySquare(to) != Board.OFFBOARD) {
+                    map[to] += delta;
+                }
+                if (black ? Rule.squareArea[sq] != 1 : Rule.squareArea[sq] != 3) {
+                    for (int d = -1; d <= 1; d += 2) {
+                        to = sq + d;
+                        if (board.getPieceBySquare(to) != Board.OFFBOARD) {
+                            map[to] += delta;
+                        }
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+    }
+}
@@ -0,0 +1,672 @@
+package com.zfdang.chess.gamelogic;
+
+import java.util.Arrays;
+
+/**
+ * 位棋盘表示的局面，用于批量分析(走法生成、将军和将死检测)
+ *
+ * 90个格子按 sq = y * 9 + x 编号，一个位集合用两个long表示：lo是0-63位，hi是64-89位
+ * 每一种棋子(红黑各7种)都有自己的位集合，另外维护按行排列(和格子编号一致)和按列排列(fsq = x * 10 + y)的占用
+ * 车炮的走法用行、列的占用查表得到，马、象、士、将、兵的走法也都是预先计算好的
+ *
+ * 走法和Rule一样用Rule.encodeMove编码，但起点和终点是0-89的格子编号，不是Board的mailbox下标
+ * 可以和Board互相转换，不丢失信息
+ */
+public class BitBoard {
+    public static final int SQUARES = 90;
+    private static final int WIDTH = 9;
+    private static final int HEIGHT = 10;
+
+    // 预先计算的走法表，以-1结尾；象眼和马腿与走法一一对应
+    private static final int[][] KING_TO = new int[SQUARES][];
+    private static final int[][] SHI_TO = new int[SQUARES][];
+    private static final int[][] XIANG_TO = new int[SQUARES][];
+    private static final int[][] XIANG_EYE = new int[SQUARES][];
+    private static final int[][] MA_TO = new int[SQUARES][];
+    private static final int[][] MA_LEG = new int[SQUARES][];
+    private static final int[][] BING_TO = new int[SQUARES][];    // 红兵
+    private static final int[][] ZU_TO = new int[SQUARES][];      // 黑卒
+    // 反向的表：能攻击sq的马所在的格子和它的马腿，能攻击sq的红兵、黑卒所在的格子
+    private static final int[][] MA_FROM = new int[SQUARES][];
+    private static final int[][] MA_FROM_LEG = new int[SQUARES][];
+    private static final int[][] BING_FROM = new int[SQUARES][];
+    private static final int[][] ZU_FROM = new int[SQUARES][];
+
+    // 车炮在一行(9格)或一列(10格)上的查表结果：车能走到的格子(含第一个棋子)，炮能吃到的格子
+    private static final short[][] RANK_JU = new short[WIDTH][1 << WIDTH];
+    private static final short[][] RANK_PAO = new short[WIDTH][1 << WIDTH];
+    private static final short[][] FILE_JU = new short[HEIGHT][1 << HEIGHT];
+    private static final short[][] FILE_PAO = new short[HEIGHT][1 << HEIGHT];
+
+    static {
+        for (int sq = 0; sq < SQUARES; sq++) {
+            int x = sq % WIDTH;
+            int y = sq / WIDTH;
+
+            KING_TO[sq] = targets(x, y, new int[][]{{0, -1}, {0, 1}, {-1, 0}, {1, 0}}, true);
+            SHI_TO[sq] = targets(x, y, new int[][]{{-1, -1}, {1, -1}, {-1, 1}, {1, 1}}, true);
+            XIANG_TO[sq] = targets(x, y, new int[][]{{-2, -2}, {2, -2}, {-2, 2}, {2, 2}}, false);
+            XIANG_EYE[sq] = new int[XIANG_TO[sq].length];
+            for (int i = 0; i < XIANG_TO[sq].length - 1; i++) {
+                XIANG_EYE[sq][i] = (sq + XIANG_TO[sq][i]) / 2;
+            }
+            XIANG_EYE[sq][XIANG_TO[sq].length - 1] = -1;
+
+            int[][] maOffset = {{1, 2}, {1, -2}, {-1, 2}, {-1, -2}, {2, 1}, {2, -1}, {-2, 1}, {-2, -1}};
+            int[][] maLeg = {{0, 1}, {0, -1}, {0, 1}, {0, -1}, {1, 0}, {1, 0}, {-1, 0}, {-1, 0}};
+            int[] to = new int[9];
+            int[] leg = new int[9];
+            int[] from = new int[9];
+            int[] fromLeg = new int[9];
+            int n = 0;
+            for (int i = 0; i < maOffset.length; i++) {
+                int tx = x + maOffset[i][0];
+                int ty = y + maOffset[i][1];
+                if (tx >= 0 && tx < WIDTH && ty >= 0 && ty < HEIGHT) {
+                    to[n] = ty * WIDTH + tx;
+                    leg[n] = (y + maLeg[i][1]) * WIDTH + x + maLeg[i][0];
+                    // 对称地，(tx, ty)上的马跳到sq，马腿在(tx, ty)旁边
+                    from[n] = to[n];
+                    fromLeg[n] = (ty - maLeg[i][1]) * WIDTH + tx - maLeg[i][0];
+                    n++;
+                }
+            }
+            to[n] = leg[n] = from[n] = fromLeg[n] = -1;
+            MA_TO[sq] = Arrays.copyOf(to, n + 1);
+            MA_LEG[sq] = Arrays.copyOf(leg, n + 1);
+            MA_FROM[sq] = Arrays.copyOf(from, n + 1);
+            MA_FROM_LEG[sq] = Arrays.copyOf(fromLeg, n + 1);
+
+            BING_TO[sq] = pawnTargets(x, y, true);
+            ZU_TO[sq] = pawnTargets(x, y, false);
+        }
+        for (int sq = 0; sq < SQUARES; sq++) {
+            BING_FROM[sq] = reverse(BING_TO, sq);
+            ZU_FROM[sq] = reverse(ZU_TO, sq);
+        }
+
+        for (int pos = 0; pos < WIDTH; pos++) {
+            for (int occ = 0; occ < (1 << WIDTH); occ++) {
+                RANK_JU[pos][occ] = (short) sliderMask(pos, occ, WIDTH, false);
+                RANK_PAO[pos][occ] = (short) sliderMask(pos, occ, WIDTH, true);
+            }
+        }
+        for (int pos = 0; pos < HEIGHT; pos++) {
+            for (int occ = 0; occ < (1 << HEIGHT); occ++) {
+                FILE_JU[pos][occ] = (short) sliderMask(pos, occ, HEIGHT, false);
+                FILE_PAO[pos][occ] = (short) sliderMask(pos, occ, HEIGHT, true);
+            }
+        }
+    }
+
+    // 将和士不能出九宫，象不能过河
+    private static int[] targets(int x, int y, int[][] offsets, boolean palace) {
+        int[] ret = new int[offsets.length + 1];
+        int n = 0;
+        for (int[] o : offsets) {
+            int tx = x + o[0];
+            int ty = y + o[1];
+            if (tx < 0 || tx >= WIDTH || ty < 0 || ty >= HEIGHT) {
+                continue;
+            }
+            boolean sameSide = (y <= 4) == (ty <= 4);
+            if (!sameSide) {
+                continue;
+            }
+            if (palace && !(inPalace(x, y) && inPalace(tx, ty))) {
+                continue;
+            }
+            ret[n++] = ty * WIDTH + tx;
+        }
+        ret[n] = -1;
+        return Arrays.copyOf(ret, n + 1);
+    }
+
+    private static boolean inPalace(int x, int y) {
+        return x >= 3 && x <= 5 && (y <= 2 || y >= 7);
+    }
+
+    private static int[] pawnTargets(int x, int y, boolean red) {
+        int[] ret = new int[4];
+        int n = 0;
+        int fy = red ? y - 1 : y + 1;
+        if (fy >= 0 && fy < HEIGHT) {
+            ret[n++] = fy * WIDTH + x;
+        }
+        // 过河之后可以左右走
+        boolean crossed = red ? y <= 4 : y >= 5;
+        if (crossed) {
+            if (x > 0) {
+                ret[n++] = y * WIDTH + x - 1;
+            }
+            if (x < WIDTH - 1) {
+                ret[n++] = y * WIDTH + x + 1;
+            }
+        }
+        ret[n] = -1;
+        return Arrays.copyOf(ret, n + 1);
+    }
+
+    private static int[] reverse(int[][] table, int sq) {
+        int[] ret = new int[5];
+        int n = 0;
+        for (int from = 0; from < SQUARES; from++) {
+            for (int i = 0; table[from][i] >= 0; i++) {
+                if (table[from][i] == sq) {
+                    ret[n++] = from;
+                }
+            }
+        }
+        ret[n] = -1;
+        return Arrays.copyOf(ret, n + 1);
+    }
+
+    // 一行或一列上，pos处的车能到的格子(pao为false)，或者炮能吃的格子(pao为true)
+    private static int sliderMask(int pos, int occ, int length, boolean pao) {
+        int mask = 0;
+        for (int dir = -1; dir <= 1; dir += 2) {
+            boolean screen = false;
+            for (int i = pos + dir; i >= 0 && i < length; i += dir) {
+                boolean occupied = (occ & (1 << i)) != 0;
+                if (!pao) {
+                    mask |= 1 << i;
+                    if (occupied) {
+                        break;
+                    }
+                } else if (occupied) {
+                    if (screen) {
+                        mask |= 1 << i;
+                        break;
+                    }
+                    screen = true;
+                }
+            }
+        }
+        return mask;
+    }
+
+    // 从(lo, hi)中取出从start开始的width位
+    private static int extract(long lo, long hi, int start, int width) {
+        long bits;
+        if (start >= 64) {
+            bits = hi >>> (start - 64);
+        } else if (start + width <= 64) {
+            bits = lo >>> start;
+        } else {
+            bits = (lo >>> start) | (hi << (64 - start));
+        }
+        return (int) bits & ((1 << width) - 1);
+    }
+
+    // 每种棋子的位集合，下标是棋子的值
+    private final long[] pieceLo = new long[Piece.BZU + 1];
+    private final long[] pieceHi = new long[Piece.BZU + 1];
+    // 按行排列的占用，和格子编号一致
+    private long occLo, occHi;
+    // 按列排列的占用，第x * 10 + y位表示(x, y)上有棋子
+    private long fileOccLo, fileOccHi;
+    // 每个格子上的棋子，用于快速查询被吃的棋子
+    private final byte[] pieces = new byte[SQUARES];
+
+    public boolean bRedGo = true;
+    public int rounds = 1;
+    public float score = 0;
+
+    private int[] undoMoves = new int[64];
+    private int undoCount;
+
+    public BitBoard() {
+    }
+
+    public BitBoard(Board board) {
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int piece = board.getPieceByPosition(x, y);
+                if (Piece.isValid(piece)) {
+                    add(y * WIDTH + x, piece);
+                }
+            }
+        }
+        bRedGo = board.bRedGo;
+        rounds = board.rounds;
+        score = board.score;
+    }
+
+    public Board toBoard() {
+        Board board = new Board();
+        board.clear();
+        for (int sq = 0; sq < SQUARES; sq++) {
+            if (pieces[sq] != Piece.EMPTY) {
+                board.setPieceByPosition(sq % WIDTH, sq / WIDTH, pieces[sq]);
+            }
+        }
+        board.bRedGo = bRedGo;
+        board.rounds = rounds;
+        board.score = score;
+        return board;
+    }
+
+    public static int square(int x, int y) {
+        return y * WIDTH + x;
+    }
+
+    // BitBoard的格子编号和Board的mailbox下标互相转换
+    public static int toBoardSquare(int sq) {
+        return Board.toSquare(sq % WIDTH, sq / WIDTH);
+    }
+
+    public static int fromBoardSquare(int sq) {
+        return Board.squareY(sq) * WIDTH + Board.squareX(sq);
+    }
+
+    public int getPiece(int sq) {
+        return pieces[sq];
+    }
+
+    public long getPieceMaskLo(int piece) {
+        return pieceLo[piece];
+    }
+
+    public long getPieceMaskHi(int piece) {
+        return pieceHi[piece];
+    }
+
+    private void add(int sq, int piece) {
+        pieces[sq] = (byte) piece;
+        if (sq < 64) {
+            pieceLo[piece] |= 1L << sq;
+            occLo |= 1L << sq;
+        } else {
+            pieceHi[piece] |= 1L << (sq - 64);
+            occHi |= 1L << (sq - 64);
+        }
+        int fsq = (sq % WIDTH) * HEIGHT + sq / WIDTH;
+        if (fsq < 64) {
+            fileOccLo |= 1L << fsq;
+        } else {
+            fileOccHi |= 1L << (fsq - 64);
+        }
+    }
+
+    private void remove(int sq, int piece) {
+        pieces[sq] = Piece.EMPTY;
+        if (sq < 64) {
+            pieceLo[piece] &= ~(1L << sq);
+            occLo &= ~(1L << sq);
+        } else {
+            pieceHi[piece] &= ~(1L << (sq - 64));
+            occHi &= ~(1L << (sq - 64));
+        }
+        int fsq = (sq % WIDTH) * HEIGHT + sq / WIDTH;
+        if (fsq < 64) {
+            fileOccLo &= ~(1L << fsq);
+        } else {
+            fileOccHi &= ~(1L << (fsq - 64));
+        }
+    }
+
+    private int rankOcc(int y) {
+        return extract(occLo, occHi, y * WIDTH, WIDTH);
+    }
+
+    private int fileOcc(int x) {
+        return extract(fileOccLo, fileOccHi, x * HEIGHT, HEIGHT);
+    }
+
+    /*
+     * 走一步棋，move中的起点和终点是BitBoard的格子编号
+     */
+    public void makeMove(int move) {
+        int from = Rule.getMoveFrom(move);
+        int to = Rule.getMoveTo(move);
+        int piece = Rule.getMovePiece(move);
+        int captured = Rule.getMoveCaptured(move);
+        if (captured != Piece.EMPTY) {
+            remove(to, captured);
+        }
+        remove(from, piece);
+        add(to, piece);
+        if (undoCount == undoMoves.length) {
+            undoMoves = Arrays.copyOf(undoMoves, undoCount * 2);
+        }
+        undoMoves[undoCount++] = move;
+        bRedGo = !bRedGo;
+        rounds++;
+    }
+
+    public boolean unmakeMove() {
+        if (undoCount == 0) {
+            return false;
+        }
+        int move = undoMoves[--undoCount];
+        int from = Rule.getMoveFrom(move);
+        int to = Rule.getMoveTo(move);
+        int piece = Rule.getMovePiece(move);
+        int captured = Rule.getMoveCaptured(move);
+        remove(to, piece);
+        add(from, piece);
+        if (captured != Piece.EMPTY) {
+            add(to, captured);
+        }
+        bRedGo = !bRedGo;
+        rounds--;
+        return true;
+    }
+
+    public int findKing(boolean red) {
+        int king = red ? Piece.WSHUAI : Piece.BJIANG;
+        if (pieceLo[king] != 0) {
+            return Long.numberOfTrailingZeros(pieceLo[king]);
+        } else if (pieceHi[king] != 0) {
+            return 64 + Long.numberOfTrailingZeros(pieceHi[king]);
+        }
+        return -1;
+    }
+
+    private boolean isOwn(int piece, boolean red) {
+        return piece != Piece.EMPTY && Piece.isRed(piece) == red;
+    }
+
+    /*
+     * sq是否被byRed一方的车、马、炮、兵攻击(不包括将帅照面)
+     */
+    public boolean isAttacked(int sq, boolean byRed) {
+        int x = sq % WIDTH;
+        int y = sq / WIDTH;
+        int ju = byRed ? Piece.WJU : Piece.BJU;
+        int pao = byRed ? Piece.WPAO : Piece.BPAO;
+        int ma = byRed ? Piece.WMA : Piece.BMA;
+
+        // 车炮：查表得到的格子中，最多有两个是车的位置，两个是炮的位置
+        int rank = rankOcc(y);
+        int bits = RANK_JU[x][rank] & rank;
+        while (bits != 0) {
+            int i = Integer.numberOfTrailingZeros(bits);
+            bits &= bits - 1;
+            if (pieces[y * WIDTH + i] == ju) {
+                return true;
+            }
+        }
+        bits = RANK_PAO[x][rank];
+        while (bits != 0) {
+            int i = Integer.numberOfTrailingZeros(bits);
+            bits &= bits - 1;
+            if (pieces[y * WIDTH + i] == pao) {
+                return true;
+            }
+        }
+        int file = fileOcc(x);
+        bits = FILE_JU[y][file] & file;
+        while (bits != 0) {
+            int i = Integer.numberOfTrailingZeros(bits);
+            bits &= bits - 1;
+            if (pieces[i * WIDTH + x] == ju) {
+                return true;
+            }
+        }
+        bits = FILE_PAO[y][file];
+        while (bits != 0) {
+            int i = Integer.numberOfTrailingZeros(bits);
+            bits &= bits - 1;
+            if (pieces[i * WIDTH + x] == pao) {
+                return true;
+            }
+        }
+
+        // 马：马腿上没有棋子
+        int[] from = MA_FROM[sq];
+        int[] leg = MA_FROM_LEG[sq];
+        for (int i = 0; from[i] >= 0; i++) {
+            if (pieces[from[i]] == ma && pieces[leg[i]] == Piece.EMPTY) {
+                return true;
+            }
+        }
+
+        // 兵卒
+        int bing = byRed ? Piece.WBING : Piece.BZU;
+        from = byRed ? BING_FROM[sq] : ZU_FROM[sq];
+        for (int i = 0; from[i] >= 0; i++) {
+            if (pieces[from[i]] == bing) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 双方将帅在同一列上，且中间没有棋子
+    public boolean kingsFacing() {
+        int red = findKing(true);
+        int black = findKing(false);
+        return red >= 0 && black >= 0 && kingCanSee(black, red);
+    }
+
+    // a和b在同一列，且中间没有棋子
+    private boolean kingCanSee(int a, int b) {
+        int x = a % WIDTH;
+        if (x != b % WIDTH) {
+            return false;
+        }
+        int ya = a / WIDTH;
+        int yb = b / WIDTH;
+        int lo = Math.min(ya, yb);
+        int hi = Math.max(ya, yb);
+        int between = ((1 << hi) - 1) & ~((1 << (lo + 1)) - 1);
+        return (fileOcc(x) & between) == 0;
+    }
+
+    private static boolean touchesKingLines(int king, int sq) {
+        int kx = king % WIDTH;
+        int ky = king / WIDTH;
+        int x = sq % WIDTH;
+        int y = sq / WIDTH;
+        return x == kx || y == ky || (Math.abs(x - kx) == 1 && Math.abs(y - ky) == 1);
+    }
+
+    public boolean isInCheck(boolean red) {
+        int king = findKing(red);
+        return king >= 0 && (isAttacked(king, !red) || kingsFacing());
+    }
+
+    /*
+     * 生成red一方的走法，规则和Rule.generateMoves一致(将帅的走法不能照面，其他走法不检查是否被将军)
+     */
+    public int generateMoves(boolean red, int[] moves) {
+        int count = 0;
+        int first = red ? Piece.WSHUAI : Piece.BJIANG;
+        for (int piece = first; piece < first + 7; piece++) {
+            long lo = pieceLo[piece];
+            long hi = pieceHi[piece];
+            while (lo != 0) {
+                int sq = Long.numberOfTrailingZeros(lo);
+                lo &= lo - 1;
+                count = generatePieceMoves(sq, piece, red, moves, count);
+            }
+            while (hi != 0) {
+                int sq = 64 + Long.numberOfTrailingZeros(hi);
+                hi &= hi - 1;
+                count = generatePieceMoves(sq, piece, red, moves, count);
+            }
+        }
+        return count;
+    }
+
+    private int generatePieceMoves(int sq, int piece, boolean red, int[] moves, int count) {
+        int[] to;
+        switch (piece) {
+            case Piece.WSHUAI:
+            case Piece.BJIANG:
+                to = KING_TO[sq];
+                int enemyKing = findKing(!red);
+                for (int i = 0; to[i] >= 0; i++) {
+                    int target = pieces[to[i]];
+                    if (!isOwn(target, red) && (enemyKing < 0 || !kingCanSee(to[i], enemyKing))) {
+                        moves[count++] = Rule.encodeMove(sq, to[i], piece, target);
+                    }
+                }
+                break;
+            case Piece.WSHI:
+            case Piece.BSHI:
+                to = SHI_TO[sq];
+                for (int i = 0; to[i] >= 0; i++) {
+                    int target = pieces[to[i]];
+                    if (!isOwn(target, red)) {
+                        moves[count++] = Rule.encodeMove(sq, to[i], piece, target);
+                    }
+                }
+                break;
+            case Piece.WXIANG:
+            case Piece.BXIANG:
+                to = XIANG_TO[sq];
+                int[] eye = XIANG_EYE[sq];
+                for (int i = 0; to[i] >= 0; i++) {
+                    int target = pieces[to[i]];
+                    if (pieces[eye[i]] == Piece.EMPTY && !isOwn(target, red)) {
+                        moves[count++] = Rule.encodeMove(sq, to[i], piece, target);
+                    }
+                }
+                break;
+            case Piece.WMA:
+            case Piece.BMA:
+                to = MA_TO[sq];
+                int[] leg = MA_LEG[sq];
+                for (int i = 0; to[i] >= 0; i++) {
+                    int target = pieces[to[i]];
+                    if (pieces[leg[i]] == Piece.EMPTY && !isOwn(target, red)) {
+                        moves[count++] = Rule.encodeMove(sq, to[i], piece, target);
+                    }
+                }
+                break;
+            case Piece.WJU:
+            case Piece.BJU:
+            case Piece.WPAO:
+            case Piece.BPAO:
+                count = generateSliderMoves(sq, piece, red, moves, count);
+                break;
+            case Piece.WBING:
+            case Piece.BZU:
+                to = red ? BING_TO[sq] : ZU_TO[sq];
+                for (int i = 0; to[i] >= 0; i++) {
+                    int target = pieces[to[i]];
+                    if (!isOwn(target, red)) {
+                        moves[count++] = Rule.encodeMove(sq, to[i], piece, target);
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+        return count;
+    }
+
+    private int generateSliderMoves(int sq, int piece, boolean red, int[] moves, int count) {
+        int x = sq % WIDTH;
+        int y = sq / WIDTH;
+        boolean pao = piece == Piece.WPAO || piece == Piece.BPAO;
+
+        int rank = rankOcc(y);
+        // 车：查表得到的格子中，空的和对方的都可以走；炮：不吃子时和车一样走到空格子，吃子要隔一个炮架
+        int bits = pao ? (RANK_JU[x][rank] & ~rank) | RANK_PAO[x][rank] : RANK_JU[x][rank];
+        while (bits != 0) {
+            int i = Integer.numberOfTrailingZeros(bits);
+            bits &= bits - 1;
+            int to = y * WIDTH + i;
+            int target = pieces[to];
+            if (!isOwn(target, red)) {
+                moves[count++] = Rule.encodeMove(sq, to, piece, target);
+            }
+        }
+        int file = fileOcc(x);
+        bits = pao ? (FILE_JU[y][file] & ~file) | FILE_PAO[y][file] : FILE_JU[y][file];
+        while (bits != 0) {
+            int i = Integer.numberOfTrailingZeros(bits);
+            bits &= bits - 1;
+            int to = i * WIDTH + x;
+            int target = pieces[to];
+            if (!isOwn(target, red)) {
+                moves[count++] = Rule.encodeMove(sq, to, piece, target);
+            }
+        }
+        return count;
+    }
+
+    /*
+     * 生成red一方所有合法的走法：走完之后自己的将帅不被攻击，也不和对方照面
+     */
+    public int generateLegalMoves(boolean red, int[] moves) {
+        int total = generateMoves(red, moves);
+        int king = findKing(red);
+        boolean inCheck = king < 0 || isInCheck(red);
+        int count = 0;
+        for (int i = 0; i < total; i++) {
+            int move = moves[i];
+            boolean legal;
+            if (!inCheck && Rule.getMovePiece(move) != pieces[king]
+                    && !touchesKingLines(king, Rule.getMoveFrom(move)) && !touchesKingLines(king, Rule.getMoveTo(move))) {
+                // 没有被将军，起点终点都不在将帅的行、列和马腿上，不会让自己的将帅被攻击
+                legal = true;
+            } else {
+                makeMove(move);
+                legal = findKing(red) >= 0 && !isInCheck(red);
+                unmakeMove();
+            }
+            if (legal) {
+                moves[count++] = move;
+            }
+        }
+        return count;
+    }
+
+    /*
+     * 检查from到to是否是red一方的合法走法
+     */
+    public boolean isLegalMove(int from, int to) {
+        int piece = pieces[from];
+        if (piece == Piece.EMPTY) {
+            return false;
+        }
+        boolean red = Piece.isRed(piece);
+        int[] moves = new int[Rule.MAX_PIECE_MOVES];
+        int count = generatePieceMoves(from, piece, red, moves, 0);
+        for (int i = 0; i < count; i++) {
+            if (Rule.getMoveTo(moves[i]) == to) {
+                makeMove(moves[i]);
+                boolean legal = !isInCheck(red);
+                unmakeMove();
+                return legal;
+            }
+        }
+        return false;
+    }
+
+    // red一方被将死(或者困毙)：没有任何合法的走法
+    public boolean isDead(boolean red) {
+        int[] moves = new int[Rule.MAX_GEN_MOVES];
+        return generateLegalMoves(red, moves) == 0;
+    }
+
+    public boolean isCheckmate(boolean red) {
+        return isInCheck(red) && isDead(red);
+    }
+
+    public long perft(int depth) {
+        return perft(depth, new int[Math.max(depth, 1)][Rule.MAX_GEN_MOVES]);
+    }
+
+    private long perft(int depth, int[][] buffers) {
+        if (depth <= 0) {
+            return 1;
+        }
+        int[] moves = buffers[depth - 1];
+        int count = generateLegalMoves(bRedGo, moves);
+        if (depth == 1) {
+            return count;
+        }
+        long nodes = 0;
+        for (int i = 0; i < count; i++) {
+            makeMove(moves[i]);
+            nodes += perft(depth - 1, buffers);
+            unmakeMove();
+        }
+        return nodes;
+    }
+}
@@ -2,8 +2,13 @@ package com.zfdang.chess.gamelogic;
 
 import android.util.Log;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * Created by zfdang on 2016-4-17.
@@ -18,20 +23,61 @@ public class Board implements Serializable {
     static public int BOARD_PIECE_WIDTH = 9;
     static public int BOARD_PIECE_HEIGHT = 10;
 
+    // 棋盘使用16x16的一维数组表示(0x88风格的mailbox)，棋盘外的格子填充OFFBOARD作为哨兵
+    // 棋盘上的(x, y)对应的下标为 (y + 3) * 16 + (x + 3)，和Zobrist中c90表的编码一致
+    // 马和象最多跨两格，所以四周至少留出两格的边界，越界的访问都会读到哨兵，不需要额外的边界检查
+    public static final int BOARD_SQUARES = 256;
+    static final byte OFFBOARD = -1;
+
+    private static final boolean[] inBoard = new boolean[BOARD_SQUARES];
+    private static final byte[] initialSquares = new byte[BOARD_SQUARES];
+    static {
+        int[][] initial = new int[][]{
+                {Piece.BJU, Piece.BMA, Piece.BXIANG, Piece.BSHI, Piece.BJIANG, Piece.BSHI, Piece.BXIANG, Piece.BMA, Piece.BJU},
+                {0, 0, 0, 0, 0, 0, 0, 0, 0},
+                {0, Piece.BPAO, 0, 0, 0, 0, 0, Piece.BPAO, 0},
+                {Piece.BZU, 0, Piece.BZU, 0, Piece.BZU, 0, Piece.BZU, 0, Piece.BZU},
+                {0, 0, 0, 0, 0, 0, 0, 0, 0},
+
+                {0, 0, 0, 0, 0, 0, 0, 0, 0},
+                {Piece.WBING, 0, Piece.WBING, 0, Piece.WBING, 0, Piece.WBING, 0, Piece.WBING},
+                {0, Piece.WPAO, 0, 0, 0, 0, 0, Piece.WPAO, 0},
+                {0, 0, 0, 0, 0, 0, 0, 0, 0},
+                {Piece.WJU, Piece.WMA, Piece.WXIANG, Piece.WSHI, Piece.WSHUAI, Piece.WSHI, Piece.WXIANG, Piece.WMA, Piece.WJU},
+        };
+        Arrays.fill(initialSquares, OFFBOARD);
+        for (int y = 0; y < BOARD_PIECE_HEIGHT; y++) {
+            for (int x = 0; x < BOARD_PIECE_WIDTH; x++) {
+                int sq = toSquare(x, y);
+                inBoard[sq] = true;
+                initialSquares[sq] = (byte) initial[y][x];
+            }
+        }
+    }
+
     // do not access piece value directly, use getPieceByPosition instead
     // it's easy to make mistake with values of (x,y)
-    private int[][] piece = new int[][]{
-            {Piece.BJU, Piece.BMA, Piece.BXIANG, Piece.BSHI, Piece.BJIANG, Piece.BSHI, Piece.BXIANG, Piece.BMA, Piece.BJU},
-            {0, 0, 0, 0, 0, 0, 0, 0, 0},
-            {0, Piece.BPAO, 0, 0, 0, 0, 0, Piece.BPAO, 0},
-            {Piece.BZU, 0, Piece.BZU, 0, Piece.BZU, 0, Piece.BZU, 0, Piece.BZU},
-            {0, 0, 0, 0, 0, 0, 0, 0, 0},
-
-            {0, 0, 0, 0, 0, 0, 0, 0, 0},
-            {Piece.WBING, 0, Piece.WBING, 0, Piece.WBING, 0, Piece.WBING, 0, Piece.WBING},
-            {0, Piece.WPAO, 0, 0, 0, 0, 0, Piece.WPAO, 0},
-            {0, 0, 0, 0, 0, 0, 0, 0, 0},
-            {Piece.WJU, Piece.WMA, Piece.WXIANG, Piece.WSHI, Piece.WSHUAI, Piece.WSHI, Piece.WXIANG, Piece.WMA, Piece.WJU},
+    private transient byte[] squares = initialSquares.clone();
+
+    // 不含走子方的局面哈希，每次修改squares时增量更新，见put()
+    private transient long zobristKey = initialZobristKey;
+    private static final long initialZobristKey = computeZobristKey(initialSquares);
+
+    // makeMove/unmakeMove使用的undo栈，按需分配，不参与序列化和拷贝
+    private transient int[] undoMoves;
+    private transient int[] undoStates;    // rounds << 1 | bRedGo
+    private transient long[] undoKeys;
+    private transient int undoCount;
+
+    // 攻击表，第一次使用时创建，之后随put增量更新
+    private transient AttackMap attackMap;
+
+    // 序列化时仍然保存为int[10][9]的piece字段，以兼容旧版本保存的棋局
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("bRedGo", boolean.class),
+            new ObjectStreamField("rounds", int.class),
+            new ObjectStreamField("score", float.class),
+            new ObjectStreamField("piece", int[][].class),
     };
 
     public static boolean isValidPosition(Position pos) {
@@ -39,6 +85,23 @@ public class Board implements Serializable {
         return pos.x >= 0 && pos.x < BOARD_PIECE_WIDTH && pos.y >= 0 && pos.y < BOARD_PIECE_HEIGHT;
     }
 
+    // (x, y) => mailbox下标，调用者需要保证(x, y)在棋盘内
+    public static int toSquare(int x, int y) {
+        return ((y + 3) << 4) + x + 3;
+    }
+
+    public static int squareX(int sq) {
+        return (sq & 0x0F) - 3;
+    }
+
+    public static int squareY(int sq) {
+        return (sq >> 4) - 3;
+    }
+
+    public static boolean isValidSquare(int sq) {
+        return sq >= 0 && sq < BOARD_SQUARES && inBoard[sq];
+    }
+
     public Board() {
         bRedGo = true;
         rounds = 1;
@@ -48,18 +111,55 @@ public class Board implements Serializable {
         this.bRedGo = b.bRedGo;
         this.rounds = b.rounds;
         this.score = b.score;
-        for (int i = 0; i < this.piece.length; i++) {
-            this.piece[i] = b.piece[i].clone();
-        }
+        this.squares = b.squares.clone();
+        this.zobristKey = b.zobristKey;
     }
 
     public void clear(){
         // clear all pieces to empty
-        for (int y = 0; y < BOARD_PIECE_HEIGHT; y++) {
-            for (int x = 0; x < BOARD_PIECE_WIDTH; x++) {
-                piece[y][x] = Piece.EMPTY;
+        for (int sq = 0; sq < BOARD_SQUARES; sq++) {
+            if (inBoard[sq]) {
+                squares[sq] = Piece.EMPTY;
+            }
+        }
+        zobristKey = 0;
+        attackMap = null;
+    }
+
+    // 所有对squares的修改都要经过这里，以便同步更新zobristKey
+    private void put(int sq, int value) {
+        if (attackMap != null) {
+            attackMap.beforeChange(sq);
+        }
+        int old = squares[sq];
+        if (old > Piece.EMPTY) {
+            zobristKey ^= Zobrist.getPieceKey(old, sq);
+        }
+        if (value > Piece.EMPTY) {
+            zobristKey ^= Zobrist.getPieceKey(value, sq);
+        }
+        squares[sq] = (byte) value;
+        if (attackMap != null) {
+            attackMap.afterChange(sq);
+        }
+    }
+
+    AttackMap getAttackMap() {
+        if (attackMap == null) {
+            attackMap = new AttackMap(this);
+        }
+        return attackMap;
+    }
+
+    private static long computeZobristKey(byte[] squares) {
+        long key = 0;
+        for (int sq = 0; sq < BOARD_SQUARES; sq++) {
+            int piece = squares[sq];
+            if (piece > Piece.EMPTY) {
+                key ^= Zobrist.getPieceKey(piece, sq);
             }
         }
+        return key;
     }
 
     public boolean doMove(Move move){
@@ -86,16 +186,18 @@ public class Board implements Serializable {
     public boolean doMoves(ArrayList<Move> moves){
         if(moves == null) return false;
 
-        // clone one board, and do moves on the cloned board
-        Board clonedBoard = new Board(this);
+        // 直接在棋盘上走，遇到非法的走法时全部撤销
+        int made = 0;
         for(Move move : moves){
-            if(!clonedBoard.doMove(move)) return false;
-        }
-
-        // now it's ok to do moves on the real board
-        for(Move move : moves){
-            doMove(move);
+            if(move == null || !isValidPosition(move.fromPosition) || !isValidPosition(move.toPosition)
+                    || !makeMove(toSquare(move.fromPosition.x, move.fromPosition.y), toSquare(move.toPosition.x, move.toPosition.y))) {
+                unmakeMoves(made);
+                return false;
+            }
+            made++;
         }
+        // 走法都合法，丢弃这些undo记录
+        undoCount -= made;
         return true;
     }
 
@@ -108,27 +210,86 @@ public class Board implements Serializable {
     public boolean doMovesFromUCCIStrings(ArrayList<String> ucciStrings){
         if(ucciStrings == null) return false;
 
-        // clone one board, and do moves on the cloned board
-        Board clonedBoard = new Board(this);
-
-        // convert ucci strings to moves
-        ArrayList<Move> moves = new ArrayList<>();
+        int made = 0;
         for(String ucciString : ucciStrings){
-            Move m = new Move(this);
-            if(!m.fromUCCIString(ucciString)) return false;
-            if(!clonedBoard.doMove(m)) return false;
-
-            moves.add(m);
+            int from = ucciToSquare(ucciString, 0);
+            int to = ucciToSquare(ucciString, 2);
+            if(from < 0 || to < 0 || ucciString.length() != 4 || !makeMove(from, to)) {
+                unmakeMoves(made);
+                return false;
+            }
+            made++;
         }
+        undoCount -= made;
+        return true;
+    }
 
-        // now it's ok to do moves on the real board
-        for(Move move : moves){
-            doMove(move);
+    // 把ucci字符串中offset开始的两个字符(如h2)转换为mailbox下标，不合法返回-1
+    private static int ucciToSquare(String ucciString, int offset) {
+        if(ucciString == null || ucciString.length() < offset + 2) return -1;
+        int x = ucciString.charAt(offset) - 'a';
+        int y = 9 - (ucciString.charAt(offset + 1) - '0');
+        if (x < 0 || x >= BOARD_PIECE_WIDTH || y < 0 || y >= BOARD_PIECE_HEIGHT) return -1;
+        return toSquare(x, y);
+    }
+
+    private boolean makeMove(int from, int to) {
+        int piece = squares[from];
+        if (!Piece.isValid(piece)) {
+            return false;
         }
+        makeMove(Rule.encodeMove(from, to, piece, squares[to]));
         return true;
     }
 
+    /*
+     * 走一步棋，move是Rule.encodeMove编码的走法，调用者需要保证走法中的棋子和棋盘一致
+     * 被吃的棋子、走子方、回合数和zobrist都记录在undo栈中，用unmakeMove恢复
+     */
+    public void makeMove(int move) {
+        if (undoMoves == null) {
+            undoMoves = new int[64];
+            undoStates = new int[64];
+            undoKeys = new long[64];
+        } else if (undoCount == undoMoves.length) {
+            undoMoves = Arrays.copyOf(undoMoves, undoCount * 2);
+            undoStates = Arrays.copyOf(undoStates, undoCount * 2);
+            undoKeys = Arrays.copyOf(undoKeys, undoCount * 2);
+        }
+        undoMoves[undoCount] = move;
+        undoStates[undoCount] = (rounds << 1) | (bRedGo ? 1 : 0);
+        undoKeys[undoCount] = zobristKey;
+        undoCount++;
 
+        put(Rule.getMoveTo(move), Rule.getMovePiece(move));
+        put(Rule.getMoveFrom(move), Piece.EMPTY);
+        bRedGo = !bRedGo;
+        rounds++;
+    }
+
+    /*
+     * 撤销最近一次makeMove，没有可以撤销的走法时返回false
+     */
+    public boolean unmakeMove() {
+        if (undoCount == 0) {
+            return false;
+        }
+        undoCount--;
+        int move = undoMoves[undoCount];
+        put(Rule.getMoveFrom(move), Rule.getMovePiece(move));
+        put(Rule.getMoveTo(move), Rule.getMoveCaptured(move));
+        int state = undoStates[undoCount];
+        rounds = state >> 1;
+        bRedGo = (state & 1) != 0;
+        zobristKey = undoKeys[undoCount];
+        return true;
+    }
+
+    private void unmakeMoves(int count) {
+        for (int i = 0; i < count; i++) {
+            unmakeMove();
+        }
+    }
 
     /*
     * Set piece value by position， it should not be called directly
@@ -136,7 +297,7 @@ public class Board implements Serializable {
     public boolean setPieceByPosition(Position pos, int value){
         if (isValidPosition(pos)) {
             if(value == Piece.EMPTY || Piece.isValid(value)){
-                piece[pos.y][pos.x] = value;
+                put(toSquare(pos.x, pos.y), value);
                 return true;
             }
         }
@@ -146,7 +307,7 @@ public class Board implements Serializable {
     public boolean setPieceByPosition(int x, int y, int value) {
         if (x >= 0 && x < BOARD_PIECE_WIDTH && y >= 0 && y < BOARD_PIECE_HEIGHT) {
             if (value == Piece.EMPTY || Piece.isValid(value)) {
-                piece[y][x] = value;
+                put(toSquare(x, y), value);
                 return true;
             }
         }
@@ -155,7 +316,7 @@ public class Board implements Serializable {
 
     public int getPieceByPosition(Position pos) {
         if(isValidPosition(pos)){
-            return piece[pos.y][pos.x];
+            return squares[toSquare(pos.x, pos.y)];
         } else {
             return -1;
         }
@@ -163,12 +324,22 @@ public class Board implements Serializable {
 
     public int getPieceByPosition(int x, int y) {
         if (x >= 0 && x < BOARD_PIECE_WIDTH && y >= 0 && y < BOARD_PIECE_HEIGHT) {
-            return piece[y][x];
+            return squares[toSquare(x, y)];
         } else {
             return -1;
         }
     }
 
+    // 按mailbox下标读取棋子，棋盘外的格子返回OFFBOARD(-1)，不做边界检查
+    public int getPieceBySquare(int sq) {
+        return squares[sq];
+    }
+
+    // 按mailbox下标设置棋子，调用者需要保证sq在棋盘内，value是合法的棋子或EMPTY
+    void setPieceBySquare(int sq, int value) {
+        put(sq, value);
+    }
+
     public String toFENString() {
         // https://www.xqbase.com/protocol/pgnfen2.htm
         // https://www.xqbase.com/protocol/cchess_fen.htm
@@ -209,7 +380,8 @@ public class Board implements Serializable {
     }
 
     public long getZobrist(boolean redGo) {
-        return Zobrist.getZobristFromBoard(piece, redGo);
+        // zobristKey在走子时增量维护，这里只需要加上走子方
+        return redGo ? zobristKey ^ Zobrist.getPlayerKey() : zobristKey;
     }
 
     public boolean restoreFromFEN(String fenString) {
@@ -229,47 +401,74 @@ public class Board implements Serializable {
         }
 
         // parse isRedGo
+        boolean redGo;
         String side = parts[1].toLowerCase();
         if(side.equals("w") || side.equals("r")) {
             // white or red, both are valid
-            bRedGo = true;
+            redGo = true;
         } else if(side.equals("b")) {
-            bRedGo = false;
+            redGo = false;
         } else {
             Log.e("Board", "Failed to parse side from FEN string: " + fenString);
             return false;
         }
 
         // parse rounds
+        int round;
         String part5 = parts[5];
         try {
-            rounds = Integer.parseInt(part5);
+            round = Integer.parseInt(part5);
         } catch (NumberFormatException e) {
             Log.e("Board", "Failed to parse rounds from FEN string: " + fenString);
             return false;
         }
 
-        // parse fen string
+        // parse fen string, 先解析到临时数组中，检查通过之后才修改棋盘
+        // 必须正好10行，每行正好9列，否则会写到边界外或者下一行
         String fen = parts[0];
+        byte[] cells = new byte[BOARD_PIECE_WIDTH * BOARD_PIECE_HEIGHT];
         int x = 0;
         int y = 0;
         for (int i = 0; i < fen.length(); i++) {
             char c = fen.charAt(i);
             if (c == '/') {
                 // next row
+                if (x != BOARD_PIECE_WIDTH || y + 1 >= BOARD_PIECE_HEIGHT) {
+                    Log.e("Board", "Invalid rank in FEN string: " + fenString);
+                    return false;
+                }
                 x = 0;
                 y++;
-            } else if (c >= '0' && c <= '9') {
-                for (int k = 0; k < c - '0'; k++) {
-                    piece[y][x] = 0;
-                    x++;
+            } else if (c >= '1' && c <= '9') {
+                x += c - '0';
+                if (x > BOARD_PIECE_WIDTH) {
+                    Log.e("Board", "Rank too wide in FEN string: " + fenString);
+                    return false;
                 }
             } else {
-                int value = Piece.pieceValueMap.get(c);
-                piece[y][x] = value;
+                Integer value = Piece.pieceValueMap.get(c);
+                if (value == null || x >= BOARD_PIECE_WIDTH) {
+                    Log.e("Board", "Invalid piece in FEN string: " + fenString);
+                    return false;
+                }
+                cells[y * BOARD_PIECE_WIDTH + x] = (byte) (int) value;
                 x++;
             }
         }
+        if (x != BOARD_PIECE_WIDTH || y != BOARD_PIECE_HEIGHT - 1) {
+            Log.e("Board", "Incomplete board in FEN string: " + fenString);
+            return false;
+        }
+
+        for (y = 0; y < BOARD_PIECE_HEIGHT; y++) {
+            for (x = 0; x < BOARD_PIECE_WIDTH; x++) {
+                squares[toSquare(x, y)] = cells[y * BOARD_PIECE_WIDTH + x];
+            }
+        }
+        zobristKey = computeZobristKey(squares);
+        attackMap = null;
+        bRedGo = redGo;
+        rounds = round;
         return true;
     }
 
@@ -277,8 +476,43 @@ public class Board implements Serializable {
         // randomize values for all pieces
         for (int y = 0; y < BOARD_PIECE_HEIGHT; y++) {
             for (int x = 0; x < BOARD_PIECE_WIDTH; x++) {
-                piece[y][x] = (int) (Math.random() * 14);
+                squares[toSquare(x, y)] = (byte) (Math.random() * 14);
+            }
+        }
+        zobristKey = computeZobristKey(squares);
+        attackMap = null;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        int[][] piece = new int[BOARD_PIECE_HEIGHT][BOARD_PIECE_WIDTH];
+        for (int y = 0; y < BOARD_PIECE_HEIGHT; y++) {
+            for (int x = 0; x < BOARD_PIECE_WIDTH; x++) {
+                piece[y][x] = squares[toSquare(x, y)];
+            }
+        }
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("bRedGo", bRedGo);
+        fields.put("rounds", rounds);
+        fields.put("score", score);
+        fields.put("piece", piece);
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        bRedGo = fields.get("bRedGo", true);
+        rounds = fields.get("rounds", 1);
+        score = fields.get("score", 0f);
+        int[][] piece = (int[][]) fields.get("piece", null);
+        squares = initialSquares.clone();
+        if (piece != null) {
+            clear();
+            for (int y = 0; y < BOARD_PIECE_HEIGHT && y < piece.length; y++) {
+                for (int x = 0; x < BOARD_PIECE_WIDTH && x < piece[y].length; x++) {
+                    squares[toSquare(x, y)] = (byte) piece[y][x];
+                }
             }
         }
+        zobristKey = computeZobristKey(squares);
     }
 }
@@ -0,0 +1,296 @@
+package com.zfdang.chess.gamelogic;
+
+/*
+ * 解析中文纵线记法，是Move.getChsString的反向操作，例如: 炮二平五, 马8进7, 前车进二, 中兵平四, 二兵进一
+ * 数字可以是中文数字、阿拉伯数字或者全角数字，红黑两方都可以用
+ * 在当前的棋盘上找到走子方符合描述的棋子，再用Rule的走法生成检查走法是否合规
+ * 不分配对象，同一个实例不能在多个线程中同时使用
+ * https://www.xqbase.com/protocol/cchess_move.htm
+ */
+public class ChsMoveParser {
+    private static final int ADVANCE = 1;
+    private static final int RETREAT = 2;
+    private static final int TRAVERSE = 3;
+
+    private final int[] moves = new int[Rule.MAX_PIECE_MOVES];
+    // 符合描述的起点: 之前每条纵线选出的(最多9个)加上正在查找的纵线上的(最多10个)，自定义局面中同一种棋子可能很多
+    private final int[] candidates = new int[Board.BOARD_PIECE_WIDTH + Board.BOARD_PIECE_HEIGHT];
+    private int candidateCount;
+
+    /*
+     * 把board上走子方的一步中文记法解析成Rule.encodeMove编码的走法，不能解析或者不合规则时返回0
+     */
+    public int parse(String text, Board board) {
+        if (text == null || text.length() != 4) {
+            return 0;
+        }
+        boolean red = board.bRedGo;
+        int action = actionOf(text.charAt(2));
+        int num = digitOf(text.charAt(3));
+        if (action == 0 || num == 0) {
+            return 0;
+        }
+
+        candidateCount = 0;
+        int piece = pieceOf(text.charAt(0), red);
+        if (piece != Piece.EMPTY) {
+            // 炮二平五: 棋子 + 纵线
+            int file = digitOf(text.charAt(1));
+            if (file == 0) {
+                return 0;
+            }
+            findOnFile(board, piece, fileToX(file, red), red);
+        } else {
+            // 前车进二, 中兵平四, 二兵进一, 前七进一(兵): 位置 + 棋子或纵线
+            char order = text.charAt(0);
+            piece = pieceOf(text.charAt(1), red);
+            int onlyX = -1;
+            if (piece == Piece.EMPTY) {
+                int file = digitOf(text.charAt(1));
+                if (file == 0) {
+                    return 0;
+                }
+                piece = red ? Piece.WBING : Piece.BZU;
+                onlyX = fileToX(file, red);
+            }
+            if (!findByOrder(board, piece, order, onlyX, red)) {
+                return 0;
+            }
+        }
+
+        // 同一条纵线上的仕(士)、相(象)不用前后区分，哪一个能走就是哪一个
+        for (int i = 0; i < candidateCount; i++) {
+            int from = candidates[i];
+            int to = target(from, piece, action, num, red);
+            if (to < 0) {
+                continue;
+            }
+            int move = findMove(board, from, to);
+            if (move != 0) {
+                return move;
+            }
+        }
+        return 0;
+    }
+
+    private static int actionOf(char c) {
+        switch (c) {
+            case '进':
+            case '進':
+                return ADVANCE;
+            case '退':
+                return RETREAT;
+            case '平':
+                return TRAVERSE;
+            default:
+                return 0;
+        }
+    }
+
+    // 1-9，不是数字时返回0
+    static int digitOf(char c) {
+        if (c >= '1' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= '１' && c <= '９') {
+            return c - '０';
+        }
+        switch (c) {
+            case '一':
+                return 1;
+            case '二':
+                return 2;
+            case '三':
+                return 3;
+            case '四':
+                return 4;
+            case '五':
+                return 5;
+            case '六':
+                return 6;
+            case '七':
+                return 7;
+            case '八':
+                return 8;
+            case '九':
+                return 9;
+            default:
+                return 0;
+        }
+    }
+
+    // 棋子的名字转换为走子方的棋子，红黑两方的名字和繁体字都可以用
+    private static int pieceOf(char c, boolean red) {
+        switch (c) {
+            case '帅':
+            case '帥':
+            case '将':
+            case '將':
+                return red ? Piece.WSHUAI : Piece.BJIANG;
+            case '仕':
+            case '士':
+                return red ? Piece.WSHI : Piece.BSHI;
+            case '相':
+            case '象':
+                return red ? Piece.WXIANG : Piece.BXIANG;
+            case '马':
+            case '馬':
+            case '傌':
+                return red ? Piece.WMA : Piece.BMA;
+            case '车':
+            case '車':
+            case '俥':
+                return red ? Piece.WJU : Piece.BJU;
+            case '炮':
+            case '砲':
+            case '包':
+                return red ? Piece.WPAO : Piece.BPAO;
+            case '兵':
+            case '卒':
+                return red ? Piece.WBING : Piece.BZU;
+            default:
+                return Piece.EMPTY;
+        }
+    }
+
+    // 红方的纵线从右到左数，黑方从左到右数(都是从自己的右手边开始)
+    private static int fileToX(int file, boolean red) {
+        return red ? 9 - file : file - 1;
+    }
+
+    // 从前到后: 红方y从小到大，黑方y从大到小
+    private static int rowAt(int i, boolean red) {
+        return red ? i : Board.BOARD_PIECE_HEIGHT - 1 - i;
+    }
+
+    private void findOnFile(Board board, int piece, int x, boolean red) {
+        for (int i = 0; i < Board.BOARD_PIECE_HEIGHT; i++) {
+            int sq = Board.toSquare(x, rowAt(i, red));
+            if (board.getPieceBySquare(sq) == piece) {
+                candidates[candidateCount++] = sq;
+            }
+        }
+    }
+
+    /*
+     * 只看有两个以上这种棋子的纵线，纵线从右到左，同一纵线上从前到后
+     * 前/后: 每条这样的纵线上最前/最后的那个；中: 第二个；一二三四五: 所有这些棋子中的第几个(兵卒)
+     */
+    private boolean findByOrder(Board board, int piece, char order, int onlyX, boolean red) {
+        int nth = 0;
+        switch (order) {
+            case '前':
+            case '中':
+            case '后':
+            case '後':
+                break;
+            default:
+                nth = digitOf(order);
+                if (nth == 0) {
+                    return false;
+                }
+                break;
+        }
+
+        int seen = 0;
+        for (int f = 0; f < Board.BOARD_PIECE_WIDTH; f++) {
+            int x = red ? Board.BOARD_PIECE_WIDTH - 1 - f : f;
+            if (onlyX >= 0 && x != onlyX) {
+                continue;
+            }
+            int start = candidateCount;
+            findOnFile(board, piece, x, red);
+            int count = candidateCount - start;
+            candidateCount = start;
+            if (count < 2) {
+                continue;
+            }
+            if (nth > 0) {
+                if (nth <= seen + count) {
+                    candidates[0] = candidates[start + nth - seen - 1];
+                    candidateCount = 1;
+                    return true;
+                }
+                seen += count;
+                continue;
+            }
+            int index;
+            if (order == '前') {
+                index = 0;
+            } else if (order == '中') {
+                if (count < 3) {
+                    continue;
+                }
+                index = 1;
+            } else {
+                index = count - 1;
+            }
+            candidates[candidateCount++] = candidates[start + index];
+        }
+        return nth == 0 && candidateCount > 0;
+    }
+
+    // 根据动作和数字算出终点，不可能的走法返回-1
+    private static int target(int from, int piece, int action, int num, boolean red) {
+        int x = Board.squareX(from);
+        int y = Board.squareY(from);
+        // 红方前进是y减小
+        int forward = red ? -1 : 1;
+        int dir = action == ADVANCE ? forward : -forward;
+        int tx;
+        int ty;
+        switch (piece) {
+            case Piece.WMA:
+            case Piece.BMA: {
+                if (action == TRAVERSE) {
+                    return -1;
+                }
+                tx = fileToX(num, red);
+                int dx = Math.abs(tx - x);
+                if (dx != 1 && dx != 2) {
+                    return -1;
+                }
+                ty = y + dir * (3 - dx);
+                break;
+            }
+            case Piece.WXIANG:
+            case Piece.BXIANG:
+            case Piece.WSHI:
+            case Piece.BSHI: {
+                if (action == TRAVERSE) {
+                    return -1;
+                }
+                tx = fileToX(num, red);
+                int step = (piece == Piece.WXIANG || piece == Piece.BXIANG) ? 2 : 1;
+                if (Math.abs(tx - x) != step) {
+                    return -1;
+                }
+                ty = y + dir * step;
+                break;
+            }
+            default:
+                if (action == TRAVERSE) {
+                    tx = fileToX(num, red);
+                    ty = y;
+                } else {
+                    tx = x;
+                    ty = y + dir * num;
+                }
+                break;
+        }
+        if (tx < 0 || tx >= Board.BOARD_PIECE_WIDTH || ty < 0 || ty >= Board.BOARD_PIECE_HEIGHT) {
+            return -1;
+        }
+        return Board.toSquare(tx, ty);
+    }
+
+    private int findMove(Board board, int from, int to) {
+        int count = Rule.generatePieceMoves(board, from, moves, 0);
+        for (int i = 0; i < count; i++) {
+            if (Rule.getMoveTo(moves[i]) == to) {
+                return moves[i];
+            }
+        }
+        return 0;
+    }
+}
@@ -3,11 +3,14 @@ package com.zfdang.chess.gamelogic;
 import android.content.Context;
 import android.util.Log;
 
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
@@ -17,11 +20,24 @@ public class Game implements Serializable {
 
     private static final String SAVE_FILENAME = "GameSaveFile";
 
+    // 存档格式: magic, version, flags, 起始局面的FEN, 走法数, 每步2个字节(起点和终点的0-89编号), [每个局面的分数]
+    // 走法的中文描述、UCCI字符串和每一步的棋盘都在读取时重新生成
+    // 旧版本用ObjectOutputStream保存整个Game，文件以0xACED开头，读取时仍然支持
+    private static final int SAVE_MAGIC = 0x43435347;  // "CCSG"
+    private static final int SAVE_VERSION = 1;
+    private static final int FLAG_GAME_OVER = 1;
+    private static final int FLAG_CHECKMATE = 2;
+    private static final int FLAG_SCORES = 4;
+
     //  create public data class HistoryRecord
     public static class HistoryRecord implements Serializable {
         private static final long serialVersionUID = 1L;
 
+        // move只有起点、终点和棋子，不再保存走之前的整个棋盘
         public Move move;
+        public int captured = Piece.EMPTY;
+        // 走之前局面的分数
+        public float score = 0;
         public String ucciString;
         public String chsString;
         public boolean isRedMove;
@@ -49,6 +65,14 @@ public class Game implements Serializable {
     // create ListArray of HistoryRecord
     public ArrayList<HistoryRecord> history = new ArrayList<>();
 
+    // 每隔SNAPSHOT_INTERVAL步保存一个棋盘，getBoardAt从最近的快照开始重放，重放的步数不超过这个值
+    private static final int SNAPSHOT_INTERVAL = 32;
+
+    // 第一步之前的棋盘，history为空时以currentBoard为准
+    private Board startBoard = null;
+    // snapshots[k]是第(k+1)*SNAPSHOT_INTERVAL步之前的棋盘
+    private transient ArrayList<Board> snapshots = new ArrayList<>();
+
     public Board currentBoard = null;
     public transient Move currentMove = null;
     public transient Position startPos =  null;
@@ -80,17 +104,27 @@ public class Game implements Serializable {
 
         int piece = currentBoard.getPieceByPosition(startPos);
 
-        // save to history
-        Board b = new Board(currentBoard);
-        Move m = new Move(new Position(startPos.x, startPos.y), new Position(endPos.x, endPos.y), b);
+        // history被外部清空过(新开局、载入棋谱)，重新记录起始局面
+        if (history.isEmpty()) {
+            startBoard = new Board(currentBoard);
+            snapshots.clear();
+        } else if (history.size() % SNAPSHOT_INTERVAL == 0) {
+            saveSnapshot(history.size(), currentBoard);
+        }
+
+        // save to history, 中文描述依赖走之前的棋盘，生成之后就不再引用棋盘
+        Move m = new Move(new Position(startPos.x, startPos.y), new Position(endPos.x, endPos.y), currentBoard);
         String chsString = m.getChsString();
         String ucciString = m.getUCCIString();
+        m.board = null;
         HistoryRecord record = new HistoryRecord(m, ucciString, chsString, Piece.isRed(piece));
+        record.captured = currentBoard.getPieceByPosition(endPos);
+        record.score = currentBoard.score;
         history.add(record);
 
         // move piece in currentBoard
-        currentMove = new Move(startPos, endPos, currentBoard);
-        currentBoard.doMove(currentMove);
+        currentMove = m;
+        currentBoard.doMove(m);
 
         Log.d("Game", "Move piece " + Piece.getNameByValue(piece) + " from " + startPos.toString() + " to " + endPos.toString());
 
@@ -103,7 +137,14 @@ public class Game implements Serializable {
     public HistoryRecord undoMove(){
         if(history.size() > 0){
             HistoryRecord record = history.remove(history.size()-1);
-            currentBoard = new Board(record.move.board);
+            // 在currentBoard上撤销这一步
+            Move m = record.move;
+            currentBoard.setPieceByPosition(m.fromPosition, m.piece);
+            currentBoard.setPieceByPosition(m.toPosition, record.captured);
+            currentBoard.bRedGo = !currentBoard.bRedGo;
+            currentBoard.rounds--;
+            currentBoard.score = record.score;
+            trimSnapshots();
             clearStartPos();
             endPos = null;
             clearSuggestedMoves();
@@ -112,6 +153,71 @@ public class Game implements Serializable {
         return null;
     }
 
+    /*
+     * 悔count步，步数较多时从快照重建棋盘，而不是一步一步撤销
+     */
+    public void undoMoves(int count) {
+        count = Math.min(count, history.size());
+        if (count > SNAPSHOT_INTERVAL) {
+            int ply = history.size() - count;
+            currentBoard = getBoardAt(ply);
+            history.subList(ply, history.size()).clear();
+            trimSnapshots();
+            clearStartPos();
+            endPos = null;
+            clearSuggestedMoves();
+        } else {
+            for (int i = 0; i < count; i++) {
+                undoMove();
+            }
+        }
+    }
+
+    // 第一步之前的棋盘，不要修改返回的对象
+    public Board getStartBoard() {
+        if (history.isEmpty() || startBoard == null) {
+            return currentBoard;
+        }
+        return startBoard;
+    }
+
+    /*
+     * 第ply步之前的棋盘(ply为0是起始局面，ply为history.size()是当前局面)，返回新的Board
+     */
+    public Board getBoardAt(int ply) {
+        if (ply < 0 || ply > history.size()) {
+            return null;
+        }
+        if (ply == history.size()) {
+            return new Board(currentBoard);
+        }
+        int k = Math.min(ply / SNAPSHOT_INTERVAL, snapshots.size());
+        Board board = new Board(k == 0 ? getStartBoard() : snapshots.get(k - 1));
+        for (int i = k * SNAPSHOT_INTERVAL; i < ply; i++) {
+            board.doMove(history.get(i).move);
+        }
+        board.score = history.get(ply).score;
+        return board;
+    }
+
+    private void saveSnapshot(int ply, Board board) {
+        // 快照按顺序保存，中间缺失的(比如载入旧存档之后)先补上
+        while (snapshots.size() < ply / SNAPSHOT_INTERVAL - 1) {
+            snapshots.add(getBoardAt((snapshots.size() + 1) * SNAPSHOT_INTERVAL));
+        }
+        if (snapshots.size() == ply / SNAPSHOT_INTERVAL - 1) {
+            snapshots.add(new Board(board));
+        }
+    }
+
+    private void trimSnapshots() {
+        // 保留的快照都必须在history.size()步之前或就是当前局面
+        int keep = history.size() / SNAPSHOT_INTERVAL;
+        while (snapshots.size() > keep) {
+            snapshots.remove(snapshots.size() - 1);
+        }
+    }
+
     public GameStatus updateGameStatus(){
         boolean isCheck = false;
         boolean isDead = false;
@@ -178,7 +284,16 @@ public class Game implements Serializable {
 
     public void setStartPos(Position pos) {
         this.startPos = pos;
-        this.possibleToPositions = Rule.PossibleToPositions(currentBoard.getPieceByPosition(pos), pos.x, pos.y, currentBoard);
+        this.possibleToPositions = new ArrayList<>();
+        if (!Board.isValidPosition(pos)) {
+            return;
+        }
+        int[] moves = new int[Rule.MAX_PIECE_MOVES];
+        int count = Rule.generatePieceMoves(currentBoard, Board.toSquare(pos.x, pos.y), moves, 0);
+        for (int i = 0; i < count; i++) {
+            int to = Rule.getMoveTo(moves[i]);
+            possibleToPositions.add(new Position(Board.squareX(to), Board.squareY(to)));
+        }
     }
 
     public void setEndPos(Position pos) {
@@ -199,17 +314,127 @@ public class Game implements Serializable {
     }
 
     public void saveToFile(Context context) throws IOException {
-        try (ObjectOutputStream oos = new ObjectOutputStream(context.openFileOutput(SAVE_FILENAME, Context.MODE_PRIVATE))) {
-            oos.writeObject(this);
+        try (OutputStream out = context.openFileOutput(SAVE_FILENAME, Context.MODE_PRIVATE)) {
+            writeTo(out);
         }
     }
 
     public static Game loadFromFile(Context context) throws IOException, ClassNotFoundException {
-        try (ObjectInputStream ois = new ObjectInputStream(context.openFileInput(SAVE_FILENAME))) {
-            Game game =  (Game) ois.readObject();
-            game.possibleToPositions = new ArrayList<>();
-            game.suggestedMoves = new ArrayList<>();
-            return game;
+        try (InputStream in = context.openFileInput(SAVE_FILENAME)) {
+            return readFrom(in);
+        }
+    }
+
+    void writeTo(OutputStream outputStream) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outputStream));
+        Board startBoard = getStartBoard();
+
+        boolean hasScores = currentBoard.score != 0;
+        for (HistoryRecord record : history) {
+            hasScores |= record.score != 0;
+        }
+        int flags = (isGameOver ? FLAG_GAME_OVER : 0) | (isCheckMate ? FLAG_CHECKMATE : 0) | (hasScores ? FLAG_SCORES : 0);
+
+        out.writeInt(SAVE_MAGIC);
+        out.writeShort(SAVE_VERSION);
+        out.writeByte(flags);
+        out.writeUTF(startBoard.toFENString());
+        out.writeShort(history.size());
+        for (HistoryRecord record : history) {
+            Move m = record.move;
+            out.writeByte(m.fromPosition.y * Board.BOARD_PIECE_WIDTH + m.fromPosition.x);
+            out.writeByte(m.toPosition.y * Board.BOARD_PIECE_WIDTH + m.toPosition.x);
+        }
+        if (hasScores) {
+            for (HistoryRecord record : history) {
+                out.writeFloat(record.score);
+            }
+            out.writeFloat(currentBoard.score);
+        }
+        out.flush();
+    }
+
+    static Game readFrom(InputStream inputStream) throws IOException, ClassNotFoundException {
+        BufferedInputStream in = new BufferedInputStream(inputStream);
+        in.mark(4);
+        int b1 = in.read();
+        int b2 = in.read();
+        in.reset();
+
+        Game game;
+        if (b1 == 0xAC && b2 == 0xED) {
+            // 旧版本的Java序列化存档
+            ObjectInputStream ois = new ObjectInputStream(in);
+            game = (Game) ois.readObject();
+            game.upgradeHistory();
+        } else {
+            game = readBinary(new DataInputStream(in));
+        }
+        game.possibleToPositions = new ArrayList<>();
+        game.suggestedMoves = new ArrayList<>();
+        return game;
+    }
+
+    /*
+     * 旧版本的存档中每一步都保存了走之前的棋盘，转换为起始局面 + 被吃的棋子 + 分数
+     */
+    private void upgradeHistory() {
+        if (snapshots == null) {
+            snapshots = new ArrayList<>();
+        }
+        for (int i = 0; i < history.size(); i++) {
+            Move m = history.get(i).move;
+            if (m == null || m.board == null) {
+                continue;
+            }
+            if (i == 0 && startBoard == null) {
+                startBoard = new Board(m.board);
+            }
+            history.get(i).captured = m.board.getPieceByPosition(m.toPosition);
+            history.get(i).score = m.board.score;
+            m.board = null;
+        }
+    }
+
+    private static Game readBinary(DataInputStream in) throws IOException {
+        if (in.readInt() != SAVE_MAGIC) {
+            throw new IOException("Invalid save file");
+        }
+        int version = in.readUnsignedShort();
+        if (version > SAVE_VERSION) {
+            throw new IOException("Unsupported save file version " + version);
+        }
+        int flags = in.readUnsignedByte();
+        String fen = in.readUTF();
+        int count = in.readUnsignedShort();
+
+        Game game = new Game(true);
+        if (!game.currentBoard.restoreFromFEN(fen)) {
+            throw new IOException("Invalid FEN in save file: " + fen);
+        }
+        // 重放所有的走法，重新生成每一步的记录
+        for (int i = 0; i < count; i++) {
+            int from = in.readUnsignedByte();
+            int to = in.readUnsignedByte();
+            if (from >= 90 || to >= 90) {
+                throw new IOException("Invalid move in save file");
+            }
+            game.startPos = new Position(from % Board.BOARD_PIECE_WIDTH, from / Board.BOARD_PIECE_WIDTH);
+            game.endPos = new Position(to % Board.BOARD_PIECE_WIDTH, to / Board.BOARD_PIECE_WIDTH);
+            if (!Piece.isValid(game.currentBoard.getPieceByPosition(game.startPos))) {
+                throw new IOException("Invalid move in save file");
+            }
+            game.movePiece();
+        }
+        game.currentMove = null;
+        if ((flags & FLAG_SCORES) != 0) {
+            for (HistoryRecord record : game.history) {
+                record.score = in.readFloat();
+            }
+            game.currentBoard.score = in.readFloat();
         }
+        game.isGameOver = (flags & FLAG_GAME_OVER) != 0;
+        game.isCheckMate = (flags & FLAG_CHECKMATE) != 0;
+        return game;
     }
 }
@@ -0,0 +1,74 @@
+package com.zfdang.chess.gamelogic;
+
+/**
+ * Perft: 统计从某个局面出发，走到固定深度的所有合法走法序列的数量
+ * 用来验证Rule的走法生成是否正确，同时作为走法生成的性能基准
+ * 只依赖Board和Rule，可以在普通JVM上运行:
+ *   java com.zfdang.chess.gamelogic.Perft [depth] [fen]
+ */
+public class Perft {
+    public static final String START_FEN = "rnbakabnr/9/1c5c1/p1p1p1p1p/9/9/P1P1P1P1P/1C5C1/9/RNBAKABNR w - - 0 1";
+
+    // 每一层使用各自的走法缓冲区，搜索过程中不分配对象
+    private final int[][] moveBuffers;
+    private final Board board;
+
+    public Perft(Board board, int maxDepth) {
+        this.board = board;
+        this.moveBuffers = new int[Math.max(maxDepth, 1)][Rule.MAX_GEN_MOVES];
+    }
+
+    public long perft(int depth) {
+        if (depth <= 0) {
+            return 1;
+        }
+        if (depth > moveBuffers.length) {
+            throw new IllegalArgumentException("depth " + depth + " exceeds " + moveBuffers.length);
+        }
+        return search(depth);
+    }
+
+    private long search(int depth) {
+        int[] moves = moveBuffers[depth - 1];
+        int count = Rule.generateLegalMoves(board, board.bRedGo, moves);
+        if (depth == 1) {
+            return count;
+        }
+        long nodes = 0;
+        for (int i = 0; i < count; i++) {
+            board.makeMove(moves[i]);
+            nodes += search(depth - 1);
+            board.unmakeMove();
+        }
+        return nodes;
+    }
+
+    public static long perft(String fen, int depth) {
+        Board board = new Board();
+        if (!board.restoreFromFEN(fen)) {
+            throw new IllegalArgumentException("invalid FEN: " + fen);
+        }
+        return new Perft(board, depth).perft(depth);
+    }
+
+    public static void main(String[] args) {
+        int maxDepth = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        String fen = args.length > 1 ? args[1] : START_FEN;
+
+        Board board = new Board();
+        if (!board.restoreFromFEN(fen)) {
+            System.err.println("invalid FEN: " + fen);
+            System.exit(1);
+        }
+
+        System.out.println("perft " + fen);
+        Perft perft = new Perft(board, maxDepth);
+        for (int depth = 1; depth <= maxDepth; depth++) {
+            long start = System.nanoTime();
+            long nodes = perft.perft(depth);
+            long elapsed = System.nanoTime() - start;
+            long nps = elapsed > 0 ? nodes * 1000000000L / elapsed : 0;
+            System.out.printf("depth %d: nodes %d, time %d ms, nps %d%n", depth, nodes, elapsed / 1000000, nps);
+        }
+    }
+}
@@ -3,7 +3,6 @@ package com.zfdang.chess.gamelogic;
 import android.util.Log;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 
 
@@ -52,6 +51,25 @@ public class Rule {
             {1, -1, 1, -1, 1, -1, 1, -1},  //反向蹩马腿
     };
 
+    // 以下是基于Board mailbox下标(见Board.toSquare)的走法生成器使用的数据
+    // 走法编码为一个int: bit 0-7 起点, bit 8-15 终点, bit 16-19 棋子, bit 20-23 被吃的棋子(没有则为EMPTY)
+    public static final int MAX_GEN_MOVES = 128;   // 任何局面下一方的走法数都不会超过这个值
+    public static final int MAX_PIECE_MOVES = 32;  // 单个棋子的走法数都不会超过这个值
+
+    static final byte[] squareArea = new byte[Board.BOARD_SQUARES];
+    static {
+        for (int y = 0; y < Board.BOARD_PIECE_HEIGHT; y++) {
+            for (int x = 0; x < Board.BOARD_PIECE_WIDTH; x++) {
+                squareArea[Board.toSquare(x, y)] = (byte) area[y][x];
+            }
+        }
+    }
+    static final int[] kingDelta = {-16, 16, -1, 1};
+    static final int[] shiDelta = {-17, -15, 15, 17};
+    static final int[] xiangDelta = {-34, -30, 30, 34};
+    static final int[] maDelta = {33, -31, 31, -33, 18, -14, 14, -18};
+    static final int[] maLegDelta = {16, -16, 16, -16, 1, 1, -1, -1};
+
 
     /*
     在棋盘中找到将帅的位置
@@ -295,201 +313,388 @@ public class Rule {
     检查走法是否合法
      */
     public static boolean isValidMove(Move move, Board board) {
-        if (move == null) {
+        if (move == null || !Board.isValidPosition(move.fromPosition) || !Board.isValidPosition(move.toPosition)) {
             return false;
         }
 
-        int piece = board.getPieceByPosition(move.fromPosition);
-        int fromX = move.fromPosition.x;
-        int fromY = move.fromPosition.y;
-
-        // 检查是否是合法的走法
-        List<Position> positions = PossibleToPositions(piece, fromX, fromY, board);
-        Iterator<Position> it = positions.iterator();
-        while (it.hasNext()) {
-            Position pos = it.next();
-            if (pos.equals(move.toPosition)) {
-                // toPosition是所有合法的走法之一
-                return true;
-            }
+        int from = Board.toSquare(move.fromPosition.x, move.fromPosition.y);
+        int to = Board.toSquare(move.toPosition.x, move.toPosition.y);
+
+        return isPieceMove(board, from, to);
+    }
+
+    /*
+     * from上的棋子能否走到to，规则和generatePieceMoves一致，只检查这一步，不生成其他走法，也不分配对象
+     */
+    public static boolean isPieceMove(Board board, int from, int to) {
+        if (!Board.isValidSquare(from) || !Board.isValidSquare(to) || from == to) {
+            return false;
+        }
+        int piece = board.getPieceBySquare(from);
+        int target = board.getPieceBySquare(to);
+        if (piece <= Piece.EMPTY || onSameSide(piece, target)) {
+            return false;
+        }
+        int delta = to - from;
+        switch (piece) {
+            case Piece.BJIANG: //黑将
+            case Piece.WSHUAI: //红帅
+                return (delta == -16 || delta == 16 || delta == -1 || delta == 1)
+                        && squareArea[to] == (piece == Piece.BJIANG ? 2 : 4)
+                        && !board.getAttackMap().kingCanSeeKing(piece == Piece.WSHUAI, to);
+            case Piece.BSHI: //黑士
+            case Piece.WSHI: //红士
+                return (delta == -17 || delta == -15 || delta == 15 || delta == 17)
+                        && squareArea[to] == (piece == Piece.BSHI ? 2 : 4);
+            case Piece.BXIANG: //黑象
+            case Piece.WXIANG: //红象
+                if (delta != -34 && delta != -30 && delta != 30 && delta != 34) {
+                    return false;
+                }
+                int a = squareArea[to];
+                boolean ownHalf = piece == Piece.BXIANG ? (a == 1 || a == 2) : (a == 3 || a == 4);
+                return ownHalf && board.getPieceBySquare(from + delta / 2) == Piece.EMPTY;
+            case Piece.BMA: //黑马
+            case Piece.WMA: //红马
+                for (int i = 0; i < maDelta.length; i++) {
+                    if (maDelta[i] == delta) {
+                        return board.getPieceBySquare(from + maLegDelta[i]) == Piece.EMPTY;
+                    }
+                }
+                return false;
+            case Piece.BJU: //黑车
+            case Piece.WJU: //红车
+            case Piece.BPAO: //黑炮
+            case Piece.WPAO: //红炮
+                int step;
+                if (Board.squareY(from) == Board.squareY(to)) {
+                    step = delta > 0 ? 1 : -1;
+                } else if (Board.squareX(from) == Board.squareX(to)) {
+                    step = delta > 0 ? 16 : -16;
+                } else {
+                    return false;
+                }
+                // 起点和终点之间的棋子数
+                int between = 0;
+                for (int sq = from + step; sq != to; sq += step) {
+                    if (board.getPieceBySquare(sq) != Piece.EMPTY) {
+                        between++;
+                    }
+                }
+                if (piece == Piece.BJU || piece == Piece.WJU) {
+                    return between == 0;
+                }
+                // 炮不吃子时不能有炮架，吃子时正好一个炮架
+                return target == Piece.EMPTY ? between == 0 : between == 1;
+            case Piece.BZU: //黑卒
+            case Piece.WBING: //红兵
+                boolean black = piece == Piece.BZU;
+                if (delta == (black ? 16 : -16)) {
+                    return true;
+                }
+                // 过河兵卒可以左右走
+                return (delta == -1 || delta == 1) && (black ? squareArea[from] != 1 : squareArea[from] != 3);
+            default:
+                return false;
         }
+    }
 
+    public static boolean isJiangShuaiInDanger(int piece, Position pos, Board board) {
+        if (pos == null || !Board.isValidPosition(pos)) {
+            return false;
+        }
+        // 查攻击表，不再逐个检查马、车、炮、兵
+        if (piece == Piece.WSHUAI) {
+            return board.getAttackMap().isAttacked(Board.toSquare(pos.x, pos.y), false);
+        } else if (piece == Piece.BJIANG) {
+            return board.getAttackMap().isAttacked(Board.toSquare(pos.x, pos.y), true);
+        }
         return false;
     }
 
-    public static boolean isJiangShuaiInDanger(int piece, Position pos, Board board) {
-        // 马的攻击和别腿，红帅和黑将都会用到
-        int num = 4;
-        int op_block_num = 10; // 反向蹩马腿
+    /*
+       判断将帅是否被将死
+       判断逻辑比较简单：生成自己一方所有合法的走法，如果一个都没有，那么就返回true；否则返回false。
+     */
+    public static boolean isJiangShuaiDead(int piece, Position bosspos, Board b) {
+        if (piece != Piece.WSHUAI && piece != Piece.BJIANG) {
+            return true;
+        }
+        // generateLegalMoves用makeMove/unmakeMove试走，结束后b保持不变，不需要拷贝棋盘
+        int[] moves = new int[MAX_GEN_MOVES];
+        return generateLegalMoves(b, piece == Piece.WSHUAI, moves) == 0;
+    }
 
-        if (piece == Piece.WSHUAI) {
-            // 找到红帅的位置
-            int x = pos.x, y = pos.y;
-
-            // 被黑马攻击
-            for (int i = 0; i < offsetX[num].length; i++) {
-                int toX = x + offsetX[num][i];
-                int toY = y + offsetY[num][i];
-                int blockX = x + offsetX[op_block_num][i];
-                int blockY = y + offsetY[op_block_num][i];
-                if (InArea(toX, toY) != 0
-                        && board.getPieceByPosition(toX, toY) == Piece.BMA
-                        && !Piece.isValid(board.getPieceByPosition(blockX, blockY))) {
-                    return true;
-                }
-            }
-            // 被黑车攻击
-            if(attackableByJuPao(Piece.BJU, x, y, board)){
-                return true;
-            }
-            // 被黑炮攻击
-            if(attackableByJuPao(Piece.BPAO, x, y, board)){
-                return true;
-            }
-            // 被黑卒攻击
-            if (board.getPieceByPosition(x-1, y) == Piece.BZU
-                    || board.getPieceByPosition(x+1, y) == Piece.BZU
-                    || board.getPieceByPosition(x, y-1) == Piece.BZU) {
-                return true;
-            }
-        } else if(piece == Piece.BJIANG) {
-            // 找到黑将的位置
-            int x = pos.x, y = pos.y;
-
-            // 被红马攻击
-            for (int i = 0; i < offsetX[num].length; i++) {
-                int toX = x + offsetX[num][i];
-                int toY = y + offsetY[num][i];
-                int blockX = x + offsetX[op_block_num][i];
-                int blockY = y + offsetY[op_block_num][i];
-                if (InArea(toX, toY) != 0
-                        && board.getPieceByPosition(toX, toY) == Piece.WMA
-                        && !Piece.isValid(board.getPieceByPosition(blockX, blockY))) {
-                    return true;
+    /*
+     * 走法编码和解码
+     */
+    public static int encodeMove(int from, int to, int piece, int captured) {
+        return from | (to << 8) | (piece << 16) | (captured << 20);
+    }
+
+    public static int getMoveFrom(int move) {
+        return move & 0xFF;
+    }
+
+    public static int getMoveTo(int move) {
+        return (move >> 8) & 0xFF;
+    }
+
+    public static int getMovePiece(int move) {
+        return (move >> 16) & 0x0F;
+    }
+
+    public static int getMoveCaptured(int move) {
+        return (move >> 20) & 0x0F;
+    }
+
+    /*
+     * 生成red一方所有棋子的走法(和PossibleToPositions的规则一致，不检查走后是否被将军)，写入moves，返回走法的数量
+     * moves的长度至少为MAX_GEN_MOVES，整个过程不分配任何对象
+     */
+    public static int generateMoves(Board board, boolean red, int[] moves) {
+        int count = 0;
+        for (int y = 0; y < Board.BOARD_PIECE_HEIGHT; y++) {
+            int sq = Board.toSquare(0, y);
+            for (int x = 0; x < Board.BOARD_PIECE_WIDTH; x++, sq++) {
+                int piece = board.getPieceBySquare(sq);
+                if (piece > Piece.EMPTY && Piece.isRed(piece) == red) {
+                    count = generatePieceMoves(board, sq, moves, count);
                 }
             }
-            // 被红车攻击
-            if(attackableByJuPao(Piece.WJU, x, y, board)){
-                return true;
-            }
-            // 被红炮攻击
-            if(attackableByJuPao(Piece.WPAO, x, y, board)){
-                return true;
+        }
+        return count;
+    }
+
+    /*
+     * 生成red一方所有合法的走法：走完之后自己的将帅不能被攻击，也不能和对方的将帅照面
+     */
+    public static int generateLegalMoves(Board board, boolean red, int[] moves) {
+        int total = generateMoves(board, red, moves);
+        AttackMap map = board.getAttackMap();
+        int kingSq = map.getKingSquare(red);
+        int king = red ? Piece.WSHUAI : Piece.BJIANG;
+        boolean inCheck = map.isInCheck(red);
+        int count = 0;
+        for (int i = 0; i < total; i++) {
+            int move = moves[i];
+            boolean legal;
+            if (inCheck || kingSq == 0 || getMovePiece(move) == king) {
+                // 被将军或者走将帅时，试走之后查攻击表
+                legal = isLegalAfterMove(board, move, red);
+            } else if (map.touchesKingLines(red, getMoveFrom(move)) || map.touchesKingLines(red, getMoveTo(move))) {
+                // 可能是牵制的棋子、炮架或者马腿，只检查经过起点和终点的那几条线
+                legal = !exposesKing(board, move, red, kingSq);
+            } else {
+                // 起点和终点都不在将帅的行、列和马腿位置上，一定合法
+                legal = true;
             }
-            // 被红兵攻击
-            if (board.getPieceByPosition(x-1, y) == Piece.WBING
-                    || board.getPieceByPosition(x+1, y) == Piece.WBING
-                    || board.getPieceByPosition(x, y+1) == Piece.WBING) {
-                return true;
+            if (legal) {
+                moves[count++] = move;
             }
         }
-        return false;
+        return count;
     }
 
     /*
-       判断将帅是否被将死
-       判断逻辑比较简单：将自己一方的所有棋子的所有可能移动的位置都走一遍，如果将帅还在被将军的状态，那么就返回true；否则返回false。
+     * 生成sq上棋子的走法，从moves[start]开始写入，返回写入之后的走法总数
      */
-    public static boolean isJiangShuaiDead(int piece, Position bosspos, Board b) {
-        Board board = new Board(b);
-        if (piece == Piece.WSHUAI) {
-            // 遍历所有的棋子，找到红方的所有棋子
-            for (int y = 0; y < Board.BOARD_PIECE_HEIGHT; y++) {
-                for (int x = 0; x < Board.BOARD_PIECE_WIDTH; x++) {
-                    int pieceid = board.getPieceByPosition(x, y);
-                    if (Piece.isRed(pieceid)) {
-                        // 是红方的棋子
-                        List<Position> positions = PossibleToPositions(pieceid, x, y, board);
-                        Iterator<Position> it = positions.iterator();
-                        while (it.hasNext()) {
-                            Position pos = it.next();
-                            int tempPieceId = board.getPieceByPosition(pos);
-
-                            // move piece
-                            board.setPieceByPosition(x, y, Piece.EMPTY);
-                            board.setPieceByPosition(pos, pieceid);
-
-                            boolean result;
-                            if(pieceid == Piece.WSHUAI){
-                                // 将帅移动了位置
-                                result = isJiangShuaiInDanger(Piece.WSHUAI, pos, board);
-                            } else {
-                                result = isJiangShuaiInDanger(Piece.WSHUAI, bosspos, board);
-                            }
-
-                            if (!result) {
-                                // 移动了某个棋子后，红帅不再被将军，则返回false
-                                return false;
-                            }
-
-                            // revert
-                            board.setPieceByPosition(x, y, pieceid);
-                            board.setPieceByPosition(pos, tempPieceId);
+    public static int generatePieceMoves(Board board, int sq, int[] moves, int start) {
+        int piece = board.getPieceBySquare(sq);
+        int count = start;
+        int to, target;
+        switch (piece) {
+            case Piece.BJIANG: //黑将
+            case Piece.WSHUAI: //红帅
+                for (int delta : kingDelta) {
+                    to = sq + delta;
+                    target = board.getPieceBySquare(to);
+                    if (squareArea[to] == (piece == Piece.BJIANG ? 2 : 4) && !onSameSide(piece, target)
+                            && !board.getAttackMap().kingCanSeeKing(piece == Piece.WSHUAI, to)) {
+                        // to不会导致将帅照脸
+                        moves[count++] = encodeMove(sq, to, piece, target);
+                    }
+                }
+                break;
+            case Piece.BSHI: //黑士
+            case Piece.WSHI: //红士
+                for (int delta : shiDelta) {
+                    to = sq + delta;
+                    target = board.getPieceBySquare(to);
+                    if (squareArea[to] == (piece == Piece.BSHI ? 2 : 4) && !onSameSide(piece, target)) {
+                        moves[count++] = encodeMove(sq, to, piece, target);
+                    }
+                }
+                break;
+            case Piece.BXIANG: //黑象
+            case Piece.WXIANG: //红象
+                for (int delta : xiangDelta) {
+                    to = sq + delta;
+                    int a = squareArea[to];
+                    boolean ownHalf = piece == Piece.BXIANG ? (a == 1 || a == 2) : (a == 3 || a == 4);
+                    if (ownHalf && board.getPieceBySquare(sq + delta / 2) == Piece.EMPTY) {
+                        target = board.getPieceBySquare(to);
+                        if (!onSameSide(piece, target)) {
+                            moves[count++] = encodeMove(sq, to, piece, target);
                         }
                     }
                 }
-            }
-        } else if(piece == Piece.BJIANG) {
-            // 遍历所有的棋子，找到黑方的所有棋子
-            for (int y = 0; y < Board.BOARD_PIECE_HEIGHT; y++) {
-                for (int x = 0; x < Board.BOARD_PIECE_WIDTH; x++) {
-                    int pieceid = board.getPieceByPosition(x, y);
-                    if (Piece.isBlack(pieceid)) {
-                        // 是黑方的棋子
-                        List<Position> positions = PossibleToPositions(pieceid, x, y, board);
-                        Iterator<Position> it = positions.iterator();
-                        while (it.hasNext()) {
-                            Position pos = it.next();
-                            int tempPieceId = board.getPieceByPosition(pos);
-
-                            // move piece
-                            board.setPieceByPosition(x, y, Piece.EMPTY);
-                            board.setPieceByPosition(pos, pieceid);
-
-                            boolean result;
-                            if(pieceid == Piece.BJIANG){
-                                // 将帅移动了位置
-                                result = isJiangShuaiInDanger(Piece.BJIANG, pos, board);
-                            } else {
-                                result = isJiangShuaiInDanger(Piece.BJIANG, bosspos, board);
-                            }
-
-                            if (!result) {
-                                // 移动了某个棋子后，黑将不再被将军，则返回false
-                                return false;
-                            }
-
-                            // revert
-                            board.setPieceByPosition(x, y, pieceid);
-                            board.setPieceByPosition(pos, tempPieceId);
+                break;
+            case Piece.BMA: //黑马
+            case Piece.WMA: //红马
+                for (int i = 0; i < maDelta.length; i++) {
+                    to = sq + maDelta[i];
+                    target = board.getPieceBySquare(to);
+                    if (target != Board.OFFBOARD && !onSameSide(piece, target)
+                            && board.getPieceBySquare(sq + maLegDelta[i]) == Piece.EMPTY) {
+                        moves[count++] = encodeMove(sq, to, piece, target);
+                    }
+                }
+                break;
+            case Piece.BJU: //黑车
+            case Piece.WJU: //红车
+                for (int delta : kingDelta) {
+                    to = sq + delta;
+                    target = board.getPieceBySquare(to);
+                    while (target == Piece.EMPTY) {
+                        moves[count++] = encodeMove(sq, to, piece, Piece.EMPTY);
+                        to += delta;
+                        target = board.getPieceBySquare(to);
+                    }
+                    if (target != Board.OFFBOARD && !onSameSide(piece, target)) {
+                        moves[count++] = encodeMove(sq, to, piece, target);
+                    }
+                }
+                break;
+            case Piece.BPAO: //黑炮
+            case Piece.WPAO: //红炮
+                for (int delta : kingDelta) {
+                    to = sq + delta;
+                    target = board.getPieceBySquare(to);
+                    while (target == Piece.EMPTY) {
+                        moves[count++] = encodeMove(sq, to, piece, Piece.EMPTY);
+                        to += delta;
+                        target = board.getPieceBySquare(to);
+                    }
+                    if (target == Board.OFFBOARD) {
+                        continue;
+                    }
+                    // 翻过炮架，吃掉后面的第一个棋子
+                    to += delta;
+                    target = board.getPieceBySquare(to);
+                    while (target == Piece.EMPTY) {
+                        to += delta;
+                        target = board.getPieceBySquare(to);
+                    }
+                    if (target != Board.OFFBOARD && !onSameSide(piece, target)) {
+                        moves[count++] = encodeMove(sq, to, piece, target);
+                    }
+                }
+                break;
+            case Piece.BZU: //黑卒
+            case Piece.WBING: //红兵
+                boolean black = piece == Piece.BZU;
+                to = sq + (black ? 16 : -16);
+                target = board.getPieceBySquare(to);
+                if (target != Board.OFFBOARD && !onSameSide(piece, target)) {
+                    moves[count++] = encodeMove(sq, to, piece, target);
+                }
+                // 过河兵卒可以左右走
+                if (black ? squareArea[sq] != 1 : squareArea[sq] != 3) {
+                    for (int delta = -1; delta <= 1; delta += 2) {
+                        to = sq + delta;
+                        target = board.getPieceBySquare(to);
+                        if (target != Board.OFFBOARD && !onSameSide(piece, target)) {
+                            moves[count++] = encodeMove(sq, to, piece, target);
                         }
                     }
                 }
-            }
+                break;
+            default:
+                break;
         }
-        return true;
+        return count;
     }
 
     /*
-     * 判断(x,y)是否会被piece攻击，piece只能是车或者炮。
-     * 假如（x,y)是车或者炮，检查它的攻击范围内是否有车或者炮，如果有那么反过来也会被攻击
+     * 在board上临时走一步move，检查red一方的将帅是否安全，然后用unmakeMove恢复棋盘
      */
-    private static boolean attackableByJuPao(int piece, int x, int y, Board board){
-        if(!(piece == Piece.BJU || piece == Piece.BPAO || piece == Piece.WJU || piece == Piece.WPAO)){
-            return false;
+    private static boolean isLegalAfterMove(Board board, int move, boolean red) {
+        board.makeMove(move);
+        AttackMap map = board.getAttackMap();
+        boolean legal = map.getKingSquare(red) != 0 && !map.isInCheck(red);
+        board.unmakeMove();
+        return legal;
+    }
+
+    /*
+     * 没有被将军的时候，走了move(不是将帅)之后，red一方的将帅kingSq是否会被攻击或者照面
+     * 只有经过起点或终点的行、列需要检查：车、将帅看第一个棋子，炮看第二个棋子
+     * 起点是马腿的时候，检查使用这个马腿的两个马
+     */
+    private static boolean exposesKing(Board board, int move, boolean red, int kingSq) {
+        int from = getMoveFrom(move);
+        int to = getMoveTo(move);
+        int ju = red ? Piece.BJU : Piece.WJU;
+        int pao = red ? Piece.BPAO : Piece.WPAO;
+        int enemyKing = red ? Piece.BJIANG : Piece.WSHUAI;
+
+        for (int delta : kingDelta) {
+            if (!onRay(kingSq, delta, from) && !onRay(kingSq, delta, to)) {
+                continue;
+            }
+            int s = kingSq + delta;
+            int found = 0;
+            while (true) {
+                int p = s == from ? Piece.EMPTY : (s == to ? getMovePiece(move) : board.getPieceBySquare(s));
+                if (p == Board.OFFBOARD) {
+                    break;
+                }
+                if (p != Piece.EMPTY) {
+                    found++;
+                    if (found == 1 && (p == ju || p == enemyKing)) {
+                        return true;
+                    }
+                    if (found == 2) {
+                        if (p == pao) {
+                            return true;
+                        }
+                        break;
+                    }
+                }
+                s += delta;
+            }
         }
-        List<Position> positions = PossibleToPositions(piece, x, y, board);
-        Iterator<Position> it = positions.iterator();
-        while (it.hasNext()) {
-            Position pos = it.next();
-            if (board.getPieceByPosition(pos) == piece) {
+
+        int legOffset = from - kingSq;
+        if (legOffset == -17 || legOffset == -15 || legOffset == 15 || legOffset == 17) {
+            int ma = red ? Piece.BMA : Piece.WMA;
+            // 马腿在将帅的斜对角，使用这个马腿的马在将帅的斜对角再往外一格横向或纵向
+            int dx = (legOffset == -17 || legOffset == 15) ? -1 : 1;
+            int dy = legOffset < 0 ? -16 : 16;
+            int h1 = from + dx;
+            int h2 = from + dy;
+            if ((h1 != to && board.getPieceBySquare(h1) == ma) || (h2 != to && board.getPieceBySquare(h2) == ma)) {
                 return true;
             }
         }
         return false;
     }
 
-
+    // sq是否在从origin出发、方向为delta的射线上
+    private static boolean onRay(int origin, int delta, int sq) {
+        int d = sq - origin;
+        switch (delta) {
+            case -16:
+                return d < 0 && (d & 0x0F) == 0;
+            case 16:
+                return d > 0 && (d & 0x0F) == 0;
+            case -1:
+                return d < 0 && d > -16 && (sq >> 4) == (origin >> 4);
+            default:
+                return d > 0 && d < 16 && (sq >> 4) == (origin >> 4);
+        }
+    }
 
     private static int InArea(int x, int y) { // 0 棋盘外 1 黑盘 2 黑十字 3 红盘 4 红十字
         if (x < 0 || x >= Board.BOARD_PIECE_WIDTH || y < 0 || y >= Board.BOARD_PIECE_HEIGHT) {
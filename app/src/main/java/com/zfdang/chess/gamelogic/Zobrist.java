@@ -28,6 +28,30 @@ public class Zobrist {
         return zobrist;
     }
 
+    // Board的mailbox下标和c90表的编码一致，可以直接作为zobristTable的下标
+    public static long getZobristFromBoard(Board board, boolean redGo) {
+        long zobrist = 0;
+        for (int sq = 0; sq < Board.BOARD_SQUARES; sq++) {
+            int piece = board.getPieceBySquare(sq);
+            if (piece > Piece.EMPTY) {
+                zobrist ^= zobristTable[(piece - 1) * 256 + sq];
+            }
+        }
+        if (redGo) {
+            zobrist ^= zobristPlayer;
+        }
+        return zobrist;
+    }
+
+    // 单个棋子在mailbox下标sq上的哈希值，Board用它来增量维护局面的哈希
+    static long getPieceKey(int piece, int sq) {
+        return zobristTable[(piece - 1) * 256 + sq];
+    }
+
+    static long getPlayerKey() {
+        return zobristPlayer;
+    }
+
     private final static int[] c90 = new int[] {
             0x33, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x3b,
             0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49, 0x4a, 0x4b,
@@ -0,0 +1,230 @@
+package com.zfdang.chess.manuals;
+
+import android.util.Log;
+
+import com.zfdang.chess.gamelogic.Board;
+import com.zfdang.chess.gamelogic.Move;
+import com.zfdang.chess.gamelogic.Rule;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ * 批量导入和检查棋谱库：遍历目录下所有的XQF和PGN文件，解析每个棋谱并重放全部着法(包括变着)
+ * 每个文件是一个独立的任务，由固定大小的线程池并行处理，线程数一般取CPU的核数
+ * 不依赖界面，可以在普通的JVM上运行；XQFParser等用到android.util.Log，要用benchmark模块中的Log代替：
+ *   ./gradlew :benchmark:validateManuals -Pdir=<目录> [-Pthreads=线程数]
+ */
+public class BatchValidator {
+    public static class Report {
+        public int files;
+        public int games;
+        public int moves;
+        // 无法读取或解析的文件
+        public final List<String> parseFailures = new ArrayList<>();
+        // 含有不合规则着法的棋谱，"文件 #局号 第几步: 着法"
+        public final List<String> illegalGames = new ArrayList<>();
+        public long elapsedMillis;
+
+        public double getGamesPerSecond() {
+            return elapsedMillis == 0 ? games * 1000.0 : games * 1000.0 / elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "Report{" +
+                    "files=" + files +
+                    ", games=" + games +
+                    ", moves=" + moves +
+                    ", parseFailures=" + parseFailures.size() +
+                    ", illegalGames=" + illegalGames.size() +
+                    ", elapsedMillis=" + elapsedMillis +
+                    ", gamesPerSecond=" + String.format("%.1f", getGamesPerSecond()) +
+                    '}';
+        }
+    }
+
+    // 单个文件的检查结果，在工作线程中生成，汇总时不需要加锁
+    private static class FileResult {
+        final String path;
+        boolean parsed;
+        int games;
+        int moves;
+        final List<String> illegal = new ArrayList<>();
+
+        FileResult(String path) {
+            this.path = path;
+        }
+    }
+
+    private final int threads;
+
+    public BatchValidator(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /*
+     * 检查root目录下的所有棋谱，比较耗时，应该在后台线程中调用
+     */
+    public Report validate(File root) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        List<File> files = listManuals(root);
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<FileResult>> futures = new ArrayList<>(files.size());
+        try {
+            for (final File f : files) {
+                futures.add(pool.submit(() -> validateFile(f)));
+            }
+
+            // 按文件顺序汇总，报告的内容和线程数无关
+            Report report = new Report();
+            for (int i = 0; i < futures.size(); i++) {
+                FileResult r;
+                try {
+                    r = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    Log.e("BatchValidator", "Failed to validate: " + files.get(i), e.getCause());
+                    r = new FileResult(files.get(i).getPath());
+                }
+                report.files++;
+                if (!r.parsed) {
+                    report.parseFailures.add(r.path);
+                    continue;
+                }
+                report.games += r.games;
+                report.moves += r.moves;
+                report.illegalGames.addAll(r.illegal);
+            }
+            report.elapsedMillis = System.currentTimeMillis() - start;
+            return report;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // 用栈遍历目录，结果按路径排序
+    static List<File> listManuals(File root) {
+        List<File> result = new ArrayList<>();
+        ArrayDeque<File> dirs = new ArrayDeque<>();
+        dirs.push(root);
+        while (!dirs.isEmpty()) {
+            File[] files = dirs.pop().listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File f : files) {
+                if (f.isDirectory()) {
+                    dirs.push(f);
+                } else if (isXQF(f) || isPGN(f)) {
+                    result.add(f);
+                }
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    private static boolean isXQF(File f) {
+        return f.getName().toLowerCase().endsWith(".xqf");
+    }
+
+    private static boolean isPGN(File f) {
+        return f.getName().toLowerCase().endsWith(".pgn");
+    }
+
+    static FileResult validateFile(File f) {
+        FileResult r = new FileResult(f.getPath());
+        try {
+            if (isXQF(f)) {
+                XQFManual manual = XQFParser.parse(XQFParser.readFile(f));
+                if (manual == null) {
+                    return r;
+                }
+                r.parsed = true;
+                r.games = 1;
+                checkXQF(manual, r);
+            } else {
+                // 一局一局地读，大的PGN文件也不会全部读到内存中
+                try (PGNReader reader = new PGNReader(new FileInputStream(f))) {
+                    r.parsed = true;
+                    int number = 0;
+                    XQFManual game;
+                    while ((game = reader.next()) != null) {
+                        number++;
+                        r.games++;
+                        if (reader.getLastError() != null) {
+                            r.illegal.add(r.path + " #" + number + " " + reader.getLastError());
+                        }
+                        checkXQF(game, r);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.e("BatchValidator", "Failed to read: " + f, e);
+            r.parsed = false;
+        }
+        return r;
+    }
+
+    // 重放整个着法树，每一步都要符合走子规则
+    private static void checkXQF(XQFManual manual, final FileResult r) {
+        final Board b = new Board(manual.board);
+        final int[] moves = new int[1];
+        manual.walk(new XQFManual.MoveVisitor() {
+            @Override
+            public boolean enter(XQFManual.MoveNode node, int depth, int index) {
+                Move m = node.move;
+                if (m == null) {
+                    return true;
+                }
+                if (!Rule.isValidMove(m, b)) {
+                    r.illegal.add(r.path + " ply " + depth + ": " + m.fromPosition + "-" + m.toPosition);
+                    return false;
+                }
+                int from = Board.toSquare(m.fromPosition.x, m.fromPosition.y);
+                int to = Board.toSquare(m.toPosition.x, m.toPosition.y);
+                b.makeMove(Rule.encodeMove(from, to, b.getPieceByPosition(m.fromPosition), b.getPieceByPosition(m.toPosition)));
+                moves[0]++;
+                return true;
+            }
+
+            @Override
+            public void leave(XQFManual.MoveNode node, int depth) {
+                if (node.move != null) {
+                    b.unmakeMove();
+                }
+            }
+        });
+        r.moves += moves[0];
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: BatchValidator <dir> [threads]");
+            System.exit(2);
+        }
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        Report report = new BatchValidator(threads).validate(new File(args[0]));
+        for (String path : report.parseFailures) {
+            System.out.println("PARSE FAILED: " + path);
+        }
+        for (String s : report.illegalGames) {
+            System.out.println("ILLEGAL: " + s);
+        }
+        System.out.println(report);
+    }
+}
@@ -0,0 +1,28 @@
+package com.zfdang.chess.manuals;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+// 从ByteBuffer(例如内存映射的文件)中顺序读取，配合DataInputStream读取索引和打包文件的表头
+final class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+        return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+        len = Math.min(len, buffer.remaining());
+        buffer.get(b, off, len);
+        return len;
+    }
+}
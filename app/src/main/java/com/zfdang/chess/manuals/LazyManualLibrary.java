@@ -0,0 +1,294 @@
+package com.zfdang.chess.manuals;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * 按需从assets读取的棋谱库，代替第一次运行时复制全部棋谱
+ * 目录列表直接来自Source(AssetManager.list)，棋谱在打开时才从asset中读出，同时保存一份到cacheDir
+ * 最近浏览过的目录由后台线程预先复制，之后打开这些棋谱时直接读文件
+ */
+public class LazyManualLibrary implements ManualLibrary {
+    // 最多预取最近浏览的几个目录，更早的请求直接丢弃
+    private static final int MAX_PENDING_FOLDERS = 4;
+
+    /*
+     * 棋谱的来源，路径相对于来源的根目录
+     * 在Android上是AssetManager: list对文件返回空数组，open打开asset
+     */
+    public interface Source {
+        String[] list(String path) throws IOException;
+
+        InputStream open(String path) throws IOException;
+    }
+
+    private final Source source;
+    private final String root;
+    private final File cacheDir;
+
+    // 目录的列表不会变化，读过一次之后缓存起来
+    private final ConcurrentHashMap<String, String[]> listings = new ConcurrentHashMap<>();
+
+    // 等待预取的目录，最近的在前面
+    private final ArrayDeque<String> pending = new ArrayDeque<>();
+    private Thread prefetcher = null;
+
+    /*
+     * root: 棋谱库在Source中的路径，例如"XQF"
+     * cacheDir: 复制出来的棋谱保存的目录，目录结构和root下相同
+     */
+    public LazyManualLibrary(Source source, String root, File cacheDir) {
+        this.source = source;
+        this.root = root;
+        this.cacheDir = cacheDir;
+    }
+
+    public File getCacheDir() {
+        return cacheDir;
+    }
+
+    private String sourcePath(String path) {
+        if (path.isEmpty()) {
+            return root;
+        }
+        return root.isEmpty() ? path : root + "/" + path;
+    }
+
+    private static String childPath(String folder, String name) {
+        return folder.isEmpty() ? name : folder + "/" + name;
+    }
+
+    private static boolean isManual(String name) {
+        return name.toLowerCase().endsWith(".xqf");
+    }
+
+    private String[] listSource(String folder) {
+        String[] names = listings.get(folder);
+        if (names != null) {
+            return names;
+        }
+        try {
+            names = source.list(sourcePath(folder));
+        } catch (IOException e) {
+            Log.e("LazyManualLibrary", "Failed to list: " + folder, e);
+        }
+        if (names == null) {
+            names = new String[0];
+        }
+        names = names.clone();
+        Arrays.sort(names);
+        listings.put(folder, names);
+        return names;
+    }
+
+    // 目录名中也可能有'.'，只能看列表是否为空来区分目录和其他文件(说明文字等)
+    @Override
+    public List<String> listFolders(String folder) {
+        List<String> result = new ArrayList<>();
+        for (String name : listSource(folder)) {
+            if (!isManual(name) && listSource(childPath(folder, name)).length > 0) {
+                result.add(name);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public List<String> list(String folder) {
+        List<String> result = new ArrayList<>();
+        for (String name : listSource(folder)) {
+            if (isManual(name)) {
+                result.add(childPath(folder, name));
+            }
+        }
+        return result;
+    }
+
+    public File getCachedFile(String path) {
+        return new File(cacheDir, path);
+    }
+
+    /*
+     * 已经复制过的直接读文件，否则从Source读出，并保存一份到cacheDir
+     */
+    @Override
+    public byte[] read(String path) {
+        File cached = getCachedFile(path);
+        if (cached.isFile()) {
+            try {
+                return XQFParser.readFile(cached);
+            } catch (IOException e) {
+                Log.e("LazyManualLibrary", "Failed to read cached file: " + cached, e);
+            }
+        }
+
+        byte[] bytes = readSource(path);
+        if (bytes != null) {
+            materialize(cached, bytes);
+        }
+        return bytes;
+    }
+
+    private byte[] readSource(String path) {
+        byte[] bytes;
+        try (InputStream in = source.open(sourcePath(path))) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            bytes = out.toByteArray();
+        } catch (IOException e) {
+            Log.e("LazyManualLibrary", "Failed to read: " + path, e);
+            return null;
+        }
+        return bytes;
+    }
+
+    /*
+     * 同一个库，但是读取时不保存到cacheDir，建立索引时要读全部棋谱，不能都复制出来
+     * 目录列表的缓存是共用的
+     */
+    public ManualLibrary withoutCache() {
+        return new ManualLibrary() {
+            @Override
+            public List<String> listFolders(String folder) {
+                return LazyManualLibrary.this.listFolders(folder);
+            }
+
+            @Override
+            public List<String> list(String folder) {
+                return LazyManualLibrary.this.list(folder);
+            }
+
+            @Override
+            public byte[] read(String path) {
+                return readSource(path);
+            }
+        };
+    }
+
+    // 先写临时文件再改名，其他线程(预取、索引)不会读到写了一半的文件
+    private static void materialize(File dest, byte[] bytes) {
+        File dir = dest.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            Log.e("LazyManualLibrary", "Failed to create folder: " + dir);
+            return;
+        }
+        File tmp = null;
+        try {
+            tmp = File.createTempFile(".copy", ".tmp", dir);
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                out.write(bytes);
+            }
+            if (!tmp.renameTo(dest) && !dest.isFile()) {
+                Log.e("LazyManualLibrary", "Failed to save: " + dest);
+            }
+        } catch (IOException e) {
+            Log.e("LazyManualLibrary", "Failed to save: " + dest, e);
+        } finally {
+            if (tmp != null && tmp.exists()) {
+                tmp.delete();
+            }
+        }
+    }
+
+    /*
+     * 在后台复制folder目录下还没有复制的棋谱，用户进入一个目录时调用
+     */
+    public void prefetch(String folder) {
+        synchronized (pending) {
+            pending.remove(folder);
+            pending.addFirst(folder);
+            while (pending.size() > MAX_PENDING_FOLDERS) {
+                pending.removeLast();
+            }
+            if (prefetcher == null) {
+                prefetcher = new Thread(this::runPrefetch, "ManualPrefetch");
+                prefetcher.setDaemon(true);
+                prefetcher.setPriority(Thread.MIN_PRIORITY);
+                prefetcher.start();
+            }
+        }
+    }
+
+    private void runPrefetch() {
+        while (true) {
+            String folder;
+            synchronized (pending) {
+                folder = pending.pollFirst();
+                if (folder == null) {
+                    prefetcher = null;
+                    return;
+                }
+            }
+            for (String path : list(folder)) {
+                // 用户又进入了别的目录，先处理新的目录
+                synchronized (pending) {
+                    if (!pending.isEmpty()) {
+                        pending.addLast(folder);
+                        break;
+                    }
+                }
+                if (!getCachedFile(path).isFile()) {
+                    read(path);
+                }
+            }
+            // 子目录的列表也预先读好，浏览时不用等
+            listFolders(folder);
+        }
+    }
+
+    // 等待预取完成，测试用
+    void awaitPrefetch() throws InterruptedException {
+        Thread t;
+        while (true) {
+            synchronized (pending) {
+                t = prefetcher;
+            }
+            if (t == null) {
+                return;
+            }
+            t.join();
+        }
+    }
+
+    // 删除所有复制出来的棋谱，应用升级后assets中的棋谱可能变了
+    public void clearCache() {
+        ArrayDeque<File> stack = new ArrayDeque<>();
+        List<File> dirs = new ArrayList<>();
+        stack.push(cacheDir);
+        while (!stack.isEmpty()) {
+            File dir = stack.pop();
+            File[] files = dir.listFiles();
+            if (files == null) {
+                continue;
+            }
+            dirs.add(dir);
+            for (File f : files) {
+                if (f.isDirectory()) {
+                    stack.push(f);
+                } else {
+                    f.delete();
+                }
+            }
+        }
+        // 子目录在父目录之后加入，倒序删除
+        Collections.reverse(dirs);
+        for (File dir : dirs) {
+            dir.delete();
+        }
+    }
+}
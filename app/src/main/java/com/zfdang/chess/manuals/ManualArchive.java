@@ -0,0 +1,275 @@
+package com.zfdang.chess.manuals;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * 打包的XQF棋谱库：一个文件代替成千上万个零散的XQF文件
+ * 读取时把整个文件映射到内存，按路径二分查找，每个棋谱是映射区中的一段，不需要解包到文件系统
+ * 目录只是路径中的'/'，通过ManualLibrary接口像浏览目录一样浏览棋谱
+ *
+ * 文件格式(大端):
+ *   magic, version, 棋谱数, 数据区的偏移
+ *   目录表，按路径排序: 每个棋谱的相对路径(writeUTF), 在数据区中的偏移(8), 长度(4)
+ *   数据区: 所有XQF文件的原始内容依次相接
+ *
+ * 打包(通过benchmark模块在普通的JVM上运行): ./gradlew :benchmark:packManuals [-Pdir=<XQF目录>] [-Pout=<输出文件>]
+ * 把生成的XQF.pack放到app/src/main/assets/下，应用就会从中读取和建立索引，assets中的XQF目录可以去掉
+ */
+public class ManualArchive implements ManualLibrary {
+    private static final int ARCHIVE_MAGIC = 0x5851504B;  // "XQPK"
+    private static final int ARCHIVE_VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 2 + 4 + 8;
+
+    private final String[] paths;
+    private final long[] offsets;
+    private final int[] lengths;
+    private final ByteBuffer data;
+
+    private ManualArchive(String[] paths, long[] offsets, int[] lengths, ByteBuffer data) {
+        this.paths = paths;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.data = data;
+    }
+
+    public static ManualArchive open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            return open(channel, 0, channel.size());
+        }
+    }
+
+    /*
+     * 打开文件中的一段，例如APK中没有压缩的asset(AssetFileDescriptor的startOffset和length)
+     * 通道关闭之后映射仍然有效
+     */
+    public static ManualArchive open(FileChannel channel, long start, long length) throws IOException {
+        if (length < HEADER_SIZE) {
+            throw new IOException("Invalid manual archive");
+        }
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, start, HEADER_SIZE);
+        if (header.getInt() != ARCHIVE_MAGIC || header.getShort() != ARCHIVE_VERSION) {
+            throw new IOException("Invalid manual archive");
+        }
+        int count = header.getInt();
+        long dataOffset = header.getLong();
+        if (count < 0 || dataOffset < HEADER_SIZE || dataOffset > length) {
+            throw new IOException("Invalid manual archive");
+        }
+
+        // 目录表不大，直接读到内存中
+        ByteBuffer table = channel.map(FileChannel.MapMode.READ_ONLY, start + HEADER_SIZE, dataOffset - HEADER_SIZE);
+        DataInputStream in = new DataInputStream(new ByteBufferInputStream(table));
+        String[] paths = new String[count];
+        long[] offsets = new long[count];
+        int[] lengths = new int[count];
+        long dataSize = length - dataOffset;
+        for (int i = 0; i < count; i++) {
+            paths[i] = in.readUTF();
+            offsets[i] = in.readLong();
+            lengths[i] = in.readInt();
+            if (offsets[i] < 0 || lengths[i] < 0 || offsets[i] + lengths[i] > dataSize) {
+                throw new IOException("Truncated manual archive: " + paths[i]);
+            }
+        }
+        if (dataSize > Integer.MAX_VALUE) {
+            throw new IOException("Manual archive too large");
+        }
+        ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, start + dataOffset, dataSize);
+        return new ManualArchive(paths, offsets, lengths, data);
+    }
+
+    public int size() {
+        return paths.length;
+    }
+
+    // 所有棋谱的路径，按路径排序
+    public List<String> getPaths() {
+        return Arrays.asList(paths);
+    }
+
+    public boolean contains(String path) {
+        return Arrays.binarySearch(paths, path) >= 0;
+    }
+
+    // 第一个 >= prefix 的路径的下标
+    private int lowerBound(String prefix) {
+        int idx = Arrays.binarySearch(paths, prefix);
+        return idx >= 0 ? idx : -idx - 1;
+    }
+
+    @Override
+    public List<String> list(String folder) {
+        String prefix = folder.isEmpty() ? "" : folder + "/";
+        List<String> result = new ArrayList<>();
+        for (int i = lowerBound(prefix); i < paths.length && paths[i].startsWith(prefix); i++) {
+            if (paths[i].indexOf('/', prefix.length()) < 0) {
+                result.add(paths[i]);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public List<String> listFolders(String folder) {
+        String prefix = folder.isEmpty() ? "" : folder + "/";
+        List<String> result = new ArrayList<>();
+        String last = null;
+        for (int i = lowerBound(prefix); i < paths.length && paths[i].startsWith(prefix); i++) {
+            int idx = paths[i].indexOf('/', prefix.length());
+            if (idx < 0) {
+                continue;
+            }
+            String name = paths[i].substring(prefix.length(), idx);
+            if (!name.equals(last)) {
+                result.add(name);
+                last = name;
+            }
+        }
+        // '-'、'.'等字符排在'/'前面，"a-b/"会排在"a/"前面，按名字重新排一下
+        Collections.sort(result);
+        return result;
+    }
+
+    /*
+     * 棋谱在映射区中的那一段，只读，没有这个棋谱时返回null
+     */
+    public ByteBuffer slice(String path) {
+        int idx = Arrays.binarySearch(paths, path);
+        if (idx < 0) {
+            return null;
+        }
+        // duplicate之后各自有独立的position，可以在多个线程中同时读取
+        ByteBuffer buffer = data.duplicate();
+        buffer.position((int) offsets[idx]);
+        buffer.limit((int) offsets[idx] + lengths[idx]);
+        return buffer.slice();
+    }
+
+    // 读出一个棋谱的内容，只复制这个棋谱的几KB
+    @Override
+    public byte[] read(String path) {
+        ByteBuffer buffer = slice(path);
+        if (buffer == null) {
+            return null;
+        }
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    public XQFManual parse(String path) {
+        byte[] bytes = read(path);
+        if (bytes == null) {
+            Log.e("ManualArchive", "Manual not found: " + path);
+            return null;
+        }
+        return XQFParser.parse(bytes);
+    }
+
+    /*
+     * root目录下所有XQF文件的相对路径(以'/'分隔)，排好序；打包和离线建立局面索引用同样的路径
+     * 不能读取的文件(比如文件名不能用当前locale编码)记录日志后跳过，不中断整个打包
+     */
+    static String[] listManuals(File root) {
+        List<String> list = new ArrayList<>();
+        ArrayDeque<File> dirs = new ArrayDeque<>();
+        dirs.push(root);
+        while (!dirs.isEmpty()) {
+            File dir = dirs.pop();
+            File[] files = dir.listFiles();
+            if (files == null) {
+                Log.e("ManualArchive", "Cannot list, skipped: " + dir);
+                continue;
+            }
+            for (File f : files) {
+                if (f.isDirectory()) {
+                    dirs.push(f);
+                } else if (f.getName().toLowerCase().endsWith(".xqf")) {
+                    if (!f.canRead()) {
+                        Log.e("ManualArchive", "Cannot read, skipped: " + f);
+                        continue;
+                    }
+                    String path = f.getPath().substring(root.getPath().length()).replace(File.separatorChar, '/');
+                    list.add(path.startsWith("/") ? path.substring(1) : path);
+                }
+            }
+        }
+        String[] paths = list.toArray(new String[0]);
+        Arrays.sort(paths);
+        return paths;
+    }
+
+    /*
+     * 把root目录下所有的XQF文件打包到out，返回打包的棋谱数
+     */
+    public static int pack(File root, File out) throws IOException {
+        String[] paths = listManuals(root);
+
+        // 先写目录表，算出数据区的偏移
+        ByteArrayOutputStream tableBytes = new ByteArrayOutputStream();
+        DataOutputStream table = new DataOutputStream(tableBytes);
+        long[] lengths = new long[paths.length];
+        long offset = 0;
+        for (int i = 0; i < paths.length; i++) {
+            lengths[i] = new File(root, paths[i]).length();
+            if (lengths[i] > Integer.MAX_VALUE) {
+                throw new IOException("File too large: " + paths[i]);
+            }
+            table.writeUTF(paths[i]);
+            table.writeLong(offset);
+            table.writeInt((int) lengths[i]);
+            offset += lengths[i];
+        }
+        table.flush();
+
+        File tmp = new File(out.getPath() + ".tmp");
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            dos.writeInt(ARCHIVE_MAGIC);
+            dos.writeShort(ARCHIVE_VERSION);
+            dos.writeInt(paths.length);
+            dos.writeLong(HEADER_SIZE + tableBytes.size());
+            tableBytes.writeTo(dos);
+            for (int i = 0; i < paths.length; i++) {
+                byte[] bytes = XQFParser.readFile(new File(root, paths[i]));
+                // 打包过程中文件被修改了，目录表中的长度就不对了
+                if (bytes.length != lengths[i]) {
+                    throw new IOException("File changed while packing: " + paths[i]);
+                }
+                dos.write(bytes);
+            }
+        }
+        if (!tmp.renameTo(out)) {
+            out.delete();
+            if (!tmp.renameTo(out)) {
+                throw new IOException("Failed to write manual archive: " + out);
+            }
+        }
+        return paths.length;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: ManualArchive <dir> <archive>");
+            System.exit(2);
+        }
+        int count = pack(new File(args[0]), new File(args[1]));
+        System.out.println("Packed " + count + " manuals into " + args[1]);
+    }
+}
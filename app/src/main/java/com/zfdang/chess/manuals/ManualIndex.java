@@ -0,0 +1,430 @@
+package com.zfdang.chess.manuals;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/*
+ * XQF棋谱库的元数据索引
+ * 只读取每个文件的文件头(XQFParser.HEADER_SIZE个字节)，把标题、赛事、日期、对局者、结果和类型保存在一个二进制文件中
+ * 以相对路径为键，文件的修改时间和大小没有变化时不再重新读取
+ * 读取失败的文件也记下路径、修改时间和大小，没有变化时同样跳过，不会每次启动都重新读取
+ * 浏览、搜索和排序都在内存中的索引上进行，不需要扫描文件系统
+ *
+ * 索引文件格式: magic, version, 条目数, 每个条目: path, lastModified, size, 7个字符串字段
+ *             读取失败的文件数, 每个文件: path, lastModified, size
+ */
+public class ManualIndex {
+    private static final int INDEX_MAGIC = 0x58514958;  // "XQIX"
+    private static final int INDEX_VERSION = 2;
+
+    public static class Entry {
+        // 相对于棋谱库根目录的路径，以'/'分隔
+        public final String path;
+        public final long lastModified;
+        public final long size;
+
+        public String title = "";
+        public String event = "";
+        public String date = "";
+        public String red = "";
+        public String black = "";
+        public String result = "";
+        public String category = "";
+
+        public Entry(String path, long lastModified, long size) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.size = size;
+        }
+
+        // 所在的目录，根目录下的文件返回""
+        public String getFolder() {
+            int idx = path.lastIndexOf('/');
+            return idx < 0 ? "" : path.substring(0, idx);
+        }
+
+        public String getFileName() {
+            return path.substring(path.lastIndexOf('/') + 1);
+        }
+
+        boolean matches(String keyword) {
+            return title.contains(keyword) || event.contains(keyword) || red.contains(keyword)
+                    || black.contains(keyword) || path.contains(keyword);
+        }
+
+        @Override
+        public String toString() {
+            return "Entry{" +
+                    "path='" + path + '\'' +
+                    ", title='" + title + '\'' +
+                    ", event='" + event + '\'' +
+                    ", date='" + date + '\'' +
+                    ", red='" + red + '\'' +
+                    ", black='" + black + '\'' +
+                    ", result='" + result + '\'' +
+                    ", category='" + category + '\'' +
+                    '}';
+        }
+    }
+
+    public static final Comparator<Entry> BY_PATH = (a, b) -> a.path.compareTo(b.path);
+    public static final Comparator<Entry> BY_TITLE = (a, b) -> a.title.compareTo(b.title);
+    public static final Comparator<Entry> BY_DATE = (a, b) -> a.date.compareTo(b.date);
+    public static final Comparator<Entry> BY_EVENT = (a, b) -> a.event.compareTo(b.event);
+
+    private final File root;
+    private final File indexFile;
+
+    // 按path排序，update时整体替换，查询时不需要加锁
+    private volatile List<Entry> entries = Collections.emptyList();
+    // 读取失败的文件，只有path、lastModified和size，不参与浏览和搜索
+    private volatile List<Entry> failed = Collections.emptyList();
+
+    public ManualIndex(File root, File indexFile) {
+        this.root = root;
+        this.indexFile = indexFile;
+    }
+
+    // 只用update(ManualLibrary, long)建立的索引，没有root
+    public ManualIndex(File indexFile) {
+        this(null, indexFile);
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    public File getFile(Entry entry) {
+        return new File(root, entry.path);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public List<Entry> getFailedEntries() {
+        return failed;
+    }
+
+    /*
+     * 从索引文件读取，文件不存在或格式不对时返回false，此时需要调用update
+     */
+    public boolean load() {
+        if (!indexFile.exists()) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != INDEX_MAGIC || in.readUnsignedShort() != INDEX_VERSION) {
+                Log.e("ManualIndex", "Invalid index file: " + indexFile);
+                return false;
+            }
+            int count = in.readInt();
+            List<Entry> list = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                Entry e = new Entry(in.readUTF(), in.readLong(), in.readLong());
+                e.title = in.readUTF();
+                e.event = in.readUTF();
+                e.date = in.readUTF();
+                e.red = in.readUTF();
+                e.black = in.readUTF();
+                e.result = in.readUTF();
+                e.category = in.readUTF();
+                list.add(e);
+            }
+            int failedCount = in.readInt();
+            List<Entry> failedList = new ArrayList<>(failedCount);
+            for (int i = 0; i < failedCount; i++) {
+                failedList.add(new Entry(in.readUTF(), in.readLong(), in.readLong()));
+            }
+            entries = Collections.unmodifiableList(list);
+            failed = Collections.unmodifiableList(failedList);
+            return true;
+        } catch (IOException e) {
+            Log.e("ManualIndex", "Failed to load index: " + indexFile, e);
+            return false;
+        }
+    }
+
+    /*
+     * 写入一个临时文件之后再改名，写到一半失败也不会破坏原来的索引
+     */
+    public void save() throws IOException {
+        List<Entry> list = entries;
+        List<Entry> failedList = failed;
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeShort(INDEX_VERSION);
+            out.writeInt(list.size());
+            for (Entry e : list) {
+                out.writeUTF(e.path);
+                out.writeLong(e.lastModified);
+                out.writeLong(e.size);
+                out.writeUTF(e.title);
+                out.writeUTF(e.event);
+                out.writeUTF(e.date);
+                out.writeUTF(e.red);
+                out.writeUTF(e.black);
+                out.writeUTF(e.result);
+                out.writeUTF(e.category);
+            }
+            out.writeInt(failedList.size());
+            for (Entry e : failedList) {
+                out.writeUTF(e.path);
+                out.writeLong(e.lastModified);
+                out.writeLong(e.size);
+            }
+        }
+        if (!tmp.renameTo(indexFile)) {
+            indexFile.delete();
+            if (!tmp.renameTo(indexFile)) {
+                throw new IOException("Failed to write index file: " + indexFile);
+            }
+        }
+    }
+
+    // 一次扫描: 和原来的索引对照，没有变化的条目(包括读取失败的)直接沿用
+    private class Scan {
+        final HashMap<String, Entry> old = new HashMap<>();
+        // 以前读取失败的文件，没有变化时不再读取
+        final HashMap<String, Entry> oldFailed = new HashMap<>();
+        final List<Entry> list = new ArrayList<>(Math.max(entries.size(), 16));
+        final List<Entry> failedList = new ArrayList<>();
+        int parsed = 0;
+        // 原来就在索引中的文件数，剩下的是已经删除的
+        int found = 0;
+
+        Scan() {
+            for (Entry e : entries) {
+                old.put(e.path, e);
+            }
+            for (Entry e : failed) {
+                oldFailed.put(e.path, e);
+            }
+        }
+
+        // 原来的条目，没有时返回null
+        Entry find(String path) {
+            Entry e = old.get(path);
+            if (e == null) {
+                e = oldFailed.get(path);
+            }
+            if (e != null) {
+                found++;
+            }
+            return e;
+        }
+
+        void keep(Entry e) {
+            (oldFailed.get(e.path) == e ? failedList : list).add(e);
+        }
+
+        // 新读取的条目，读取失败时entry为null，只记下路径、修改时间和大小
+        void add(String path, long lastModified, long size, Entry entry) {
+            parsed++;
+            if (entry == null) {
+                failedList.add(new Entry(path, lastModified, size));
+            } else {
+                list.add(entry);
+            }
+        }
+
+        int finish() {
+            Collections.sort(list, BY_PATH);
+            entries = Collections.unmodifiableList(list);
+            failed = Collections.unmodifiableList(failedList);
+            return parsed + old.size() + oldFailed.size() - found;
+        }
+    }
+
+    /*
+     * 扫描棋谱库，新增或修改过的文件重新读取文件头，删除的文件从索引中去掉
+     * 比较耗时，应该在后台线程中调用；返回新增、修改(包括读取失败的)和删除的文件数，为0表示索引没有变化
+     */
+    public int update() {
+        Scan scan = new Scan();
+        byte[] header = new byte[XQFParser.HEADER_SIZE];
+
+        // 用栈遍历目录，目录层次很深时也不会递归
+        ArrayDeque<File> dirs = new ArrayDeque<>();
+        dirs.push(root);
+        while (!dirs.isEmpty()) {
+            File[] files = dirs.pop().listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File f : files) {
+                if (f.isDirectory()) {
+                    dirs.push(f);
+                    continue;
+                }
+                if (!f.getName().toLowerCase().endsWith(".xqf")) {
+                    continue;
+                }
+                String path = relativePath(f);
+                long lastModified = f.lastModified();
+                long size = f.length();
+                Entry e = scan.find(path);
+                if (e != null && e.lastModified == lastModified && e.size == size) {
+                    scan.keep(e);
+                } else {
+                    scan.add(path, lastModified, size, readEntry(f, path, lastModified, size, header));
+                }
+            }
+        }
+        return scan.finish();
+    }
+
+    /*
+     * 从ManualLibrary(打包的棋谱库或者assets中的棋谱)建立索引，路径和库中的一样
+     * 库中的棋谱不会单独修改，只随着应用升级整体变化：stamp(例如APK的更新时间)代替修改时间，
+     * 和索引中记录的不同时重新读取，相同时只比较路径，不读取棋谱
+     */
+    public int update(ManualLibrary library, long stamp) {
+        Scan scan = new Scan();
+        ArrayDeque<String> folders = new ArrayDeque<>();
+        folders.push("");
+        while (!folders.isEmpty()) {
+            String folder = folders.pop();
+            for (String name : library.listFolders(folder)) {
+                folders.push(folder.isEmpty() ? name : folder + "/" + name);
+            }
+            for (String path : library.list(folder)) {
+                Entry e = scan.find(path);
+                if (e != null && e.lastModified == stamp) {
+                    scan.keep(e);
+                    continue;
+                }
+                byte[] bytes = library.read(path);
+                if (bytes == null) {
+                    scan.add(path, stamp, 0, null);
+                } else {
+                    scan.add(path, stamp, bytes.length, toEntry(bytes, path, stamp, bytes.length));
+                }
+            }
+        }
+        return scan.finish();
+    }
+
+    private String relativePath(File f) {
+        String path = f.getPath().substring(root.getPath().length());
+        path = path.replace(File.separatorChar, '/');
+        return path.startsWith("/") ? path.substring(1) : path;
+    }
+
+    private static Entry readEntry(File f, String path, long lastModified, long size, byte[] header) {
+        try (InputStream in = new FileInputStream(f)) {
+            int n = 0;
+            while (n < header.length) {
+                int r = in.read(header, n, header.length - n);
+                if (r < 0) {
+                    break;
+                }
+                n += r;
+            }
+            if (n < header.length) {
+                Log.e("ManualIndex", "File too short: " + f);
+                return null;
+            }
+        } catch (IOException ex) {
+            Log.e("ManualIndex", "Failed to read: " + f, ex);
+            return null;
+        }
+        return toEntry(header, path, lastModified, size);
+    }
+
+    // 从文件头(或者整个文件)中读出元数据，格式不对时返回null
+    private static Entry toEntry(byte[] header, String path, long lastModified, long size) {
+        XQFManual manual = XQFParser.parseHeader(header);
+        if (manual == null) {
+            return null;
+        }
+        Entry e = new Entry(path, lastModified, size);
+        e.title = nonNull(manual.getTitle());
+        e.event = nonNull(manual.getEvent());
+        e.date = nonNull(manual.getDate());
+        e.red = nonNull(manual.getRed());
+        e.black = nonNull(manual.getBlack());
+        e.result = nonNull(manual.getResult());
+        e.category = nonNull(manual.getCategory());
+        return e;
+    }
+
+    private static String nonNull(String s) {
+        return s == null ? "" : s;
+    }
+
+    /*
+     * 列出folder目录下的棋谱(不含子目录中的)，folder为""表示根目录
+     */
+    public List<Entry> list(String folder) {
+        List<Entry> result = new ArrayList<>();
+        for (Entry e : entries) {
+            if (e.getFolder().equals(folder)) {
+                result.add(e);
+            }
+        }
+        return result;
+    }
+
+    // folder目录下直接的子目录名，按名字排序
+    public List<String> listFolders(String folder) {
+        String prefix = folder.isEmpty() ? "" : folder + "/";
+        List<String> result = new ArrayList<>();
+        String last = null;
+        for (Entry e : entries) {
+            if (!e.path.startsWith(prefix)) {
+                continue;
+            }
+            int idx = e.path.indexOf('/', prefix.length());
+            if (idx < 0) {
+                continue;
+            }
+            String name = e.path.substring(prefix.length(), idx);
+            if (!name.equals(last)) {
+                result.add(name);
+                last = name;
+            }
+        }
+        return result;
+    }
+
+    /*
+     * 搜索棋谱
+     * keyword: 在标题、赛事、对局者和路径中查找，为null或""时不过滤
+     * result: 棋局结果(红胜、黑胜、平局、未知)，为null时不过滤
+     * order: 排序方式，为null时按路径排序
+     */
+    public List<Entry> search(String keyword, String result, Comparator<Entry> order) {
+        List<Entry> list = new ArrayList<>();
+        boolean anyKeyword = keyword == null || keyword.isEmpty();
+        for (Entry e : entries) {
+            if ((anyKeyword || e.matches(keyword)) && (result == null || result.equals(e.result))) {
+                list.add(e);
+            }
+        }
+        if (order != null && order != BY_PATH) {
+            Collections.sort(list, order);
+        }
+        return list;
+    }
+}
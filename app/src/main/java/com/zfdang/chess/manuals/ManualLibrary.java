@@ -0,0 +1,18 @@
+package com.zfdang.chess.manuals;
+
+import java.util.List;
+
+/*
+ * 可以像目录一样浏览的棋谱库，路径以'/'分隔，""表示根目录
+ * 打包的棋谱库(ManualArchive)和按需从assets复制的棋谱库(LazyManualLibrary)都实现这个接口
+ */
+public interface ManualLibrary {
+    // folder目录下直接的子目录名，按名字排序
+    List<String> listFolders(String folder);
+
+    // folder目录下的棋谱(不含子目录中的)，返回完整的路径
+    List<String> list(String folder);
+
+    // 棋谱文件的内容，读取失败时返回null
+    byte[] read(String path);
+}
@@ -0,0 +1,545 @@
+package com.zfdang.chess.manuals;
+
+import android.util.Log;
+
+import com.zfdang.chess.gamelogic.Board;
+import com.zfdang.chess.gamelogic.ChsMoveParser;
+import com.zfdang.chess.gamelogic.Move;
+import com.zfdang.chess.gamelogic.Piece;
+import com.zfdang.chess.gamelogic.Position;
+import com.zfdang.chess.gamelogic.Rule;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+/*
+ * 流式读取PGN棋谱，每次调用next()读取一局，内存占用和文件大小无关
+ * 按字符扫描，不使用正则表达式，支持:
+ *   标签 [Name "value"]，值中的\"和\\转义
+ *   注释 {...} 和 ; 到行尾，变着 (...)，可以嵌套，NAG $n，回合号 1. 和 1...
+ *   结果 1-0, 0-1, 1/2-1/2, *
+ * 每一局转换成XQFManual，着法和变着放到MoveNode树中，注释放到对应着法的comment中
+ * 着法在棋盘上重放并检查是否符合规则，遇到无法解析的着法时，这条线(主线或变着)后面的着法都丢弃
+ */
+public class PGNReader implements Closeable {
+    private static final Charset GB18030 = Charset.forName("GB18030");
+
+    private final Reader reader;
+    private final char[] buffer = new char[8192];
+    private int pos;
+    private int limit;
+    // 退回的一个字符，-2表示没有
+    private int pushback = -2;
+
+    private final StringBuilder text = new StringBuilder();
+    private final int[] moves = new int[Rule.MAX_PIECE_MOVES];
+    private final ChsMoveParser chsParser = new ChsMoveParser();
+
+    private String lastError;
+
+    public PGNReader(Reader reader) {
+        this.reader = reader;
+    }
+
+    // 自动识别UTF-8和GB18030(GBK)编码
+    public PGNReader(InputStream in) throws IOException {
+        BufferedInputStream bin = new BufferedInputStream(in, 8192);
+        this.reader = new InputStreamReader(bin, detectCharset(bin));
+    }
+
+    /*
+     * 看开头的4KB是不是合法的UTF-8，不是的话按GB18030处理，不消耗流中的数据
+     */
+    public static Charset detectCharset(BufferedInputStream in) throws IOException {
+        byte[] head = new byte[4096];
+        in.mark(head.length);
+        int n = 0;
+        while (n < head.length) {
+            int r = in.read(head, n, head.length - n);
+            if (r < 0) {
+                break;
+            }
+            n += r;
+        }
+        in.reset();
+
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        CharBuffer out = CharBuffer.allocate(n);
+        // endOfInput为false，最后一个不完整的多字节字符不算错误
+        boolean error = decoder.decode(ByteBuffer.wrap(head, 0, n), out, false).isError();
+        return error ? GB18030 : StandardCharsets.UTF_8;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    /*
+     * 最近一次next()返回的棋局中第一个无法解析的着法，例如"ply 3: H7-H0"，全部解析成功时为null
+     */
+    public String getLastError() {
+        return lastError;
+    }
+
+    private int read() throws IOException {
+        if (pushback != -2) {
+            int c = pushback;
+            pushback = -2;
+            return c;
+        }
+        if (pos == limit) {
+            limit = reader.read(buffer, 0, buffer.length);
+            pos = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[pos++];
+    }
+
+    private void unread(int c) {
+        pushback = c;
+    }
+
+    private static boolean isSpace(int c) {
+        // 全角空格和UTF-8的BOM也当作空白
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t' || c == '　' || c == '﻿' || c == '\f';
+    }
+
+    private static boolean isDelimiter(int c) {
+        return c == '[' || c == ']' || c == '{' || c == '}' || c == '(' || c == ')' || c == ';';
+    }
+
+    private int skipSpaces() throws IOException {
+        int c;
+        do {
+            c = read();
+        } while (c >= 0 && isSpace(c));
+        return c;
+    }
+
+    /*
+     * 读取下一局，没有更多棋局时返回null
+     */
+    public XQFManual next() throws IOException {
+        GameBuilder game = null;
+        while (true) {
+            int c = skipSpaces();
+            if (c < 0) {
+                return game == null ? null : finish(game);
+            }
+            switch (c) {
+                case '[':
+                    // 上一局没有结果标记，遇到下一局的标签就结束
+                    if (game != null && game.inMovetext) {
+                        unread(c);
+                        return finish(game);
+                    }
+                    if (game == null) {
+                        game = new GameBuilder();
+                    }
+                    readTag(game);
+                    break;
+                case '{':
+                    if (game == null) {
+                        game = new GameBuilder();
+                    }
+                    game.comment(readUntil('}'));
+                    break;
+                case ';':
+                    if (game == null) {
+                        game = new GameBuilder();
+                    }
+                    game.comment(readUntil('\n'));
+                    break;
+                case '(':
+                    if (game != null) {
+                        game.startVariation();
+                    }
+                    break;
+                case ')':
+                    if (game != null) {
+                        game.endVariation();
+                    }
+                    break;
+                case '$':
+                    // NAG，忽略
+                    readToken(read());
+                    break;
+                case ']':
+                case '}':
+                    break;
+                default:
+                    if (game == null) {
+                        game = new GameBuilder();
+                    }
+                    if (game.token(readToken(c))) {
+                        return finish(game);
+                    }
+                    break;
+            }
+        }
+    }
+
+    private XQFManual finish(GameBuilder game) {
+        lastError = game.error;
+        return game.finish();
+    }
+
+    // 读到end为止(不包括end)，文件结束时返回已经读到的内容
+    private String readUntil(char end) throws IOException {
+        text.setLength(0);
+        int c;
+        while ((c = read()) >= 0 && c != end) {
+            text.append((char) c);
+        }
+        return text.toString().trim();
+    }
+
+    private String readToken(int c) throws IOException {
+        text.setLength(0);
+        while (c >= 0 && !isSpace(c) && !isDelimiter(c)) {
+            text.append((char) c);
+            c = read();
+        }
+        if (c >= 0) {
+            unread(c);
+        }
+        return text.toString();
+    }
+
+    // [Name "value"]
+    private void readTag(GameBuilder game) throws IOException {
+        int c = skipSpaces();
+        String name = readToken(c);
+        c = skipSpaces();
+        if (c != '"') {
+            // 格式不对，跳过这一行标签
+            if (c != ']') {
+                readUntil(']');
+            }
+            return;
+        }
+        text.setLength(0);
+        while ((c = read()) >= 0 && c != '"') {
+            if (c == '\\') {
+                c = read();
+                if (c < 0) {
+                    break;
+                }
+            }
+            text.append((char) c);
+        }
+        String value = text.toString().trim();
+        readUntil(']');
+        game.tag(name, value);
+    }
+
+    private static boolean isResult(String token) {
+        return token.equals("1-0") || token.equals("0-1") || token.equals("1/2-1/2") || token.equals("*");
+    }
+
+    private static String resultName(String token) {
+        switch (token) {
+            case "1-0":
+                return "红胜";
+            case "0-1":
+                return "黑胜";
+            case "1/2-1/2":
+                return "平局";
+            default:
+                return "未知";
+        }
+    }
+
+    /*
+     * 把着法文本解析成Rule.encodeMove编码的走法，必须是board上走子方棋子的合规走法，不能解析时返回0
+     * 支持ICCS(H2-E2)、UCCI(h2e2)和中文纵线记法(炮二平五)
+     */
+    int decodeMove(String move, Board board) {
+        int from;
+        int to;
+        if (move.length() == 5 && move.charAt(2) == '-') {
+            from = coordToSquare(move.charAt(0), move.charAt(1));
+            to = coordToSquare(move.charAt(3), move.charAt(4));
+        } else if (move.length() == 4 && move.charAt(0) < 0x80) {
+            from = coordToSquare(move.charAt(0), move.charAt(1));
+            to = coordToSquare(move.charAt(2), move.charAt(3));
+        } else if (move.length() == 4) {
+            return chsParser.parse(move, board);
+        } else {
+            return 0;
+        }
+        if (from < 0 || to < 0) {
+            return 0;
+        }
+        return findMove(board, from, to);
+    }
+
+    // 棋盘坐标，文件a-i(大小写都可以)，行0-9从红方底线算起，不合法时返回-1
+    private static int coordToSquare(char file, char rank) {
+        int x = (file | 0x20) - 'a';
+        int y = 9 - (rank - '0');
+        if (x < 0 || x >= Board.BOARD_PIECE_WIDTH || y < 0 || y >= Board.BOARD_PIECE_HEIGHT) {
+            return -1;
+        }
+        return Board.toSquare(x, y);
+    }
+
+    // 在from上棋子的走法中找到走到to的那一个
+    int findMove(Board board, int from, int to) {
+        int piece = board.getPieceBySquare(from);
+        if (!Piece.isValid(piece) || Piece.isRed(piece) != board.bRedGo) {
+            return 0;
+        }
+        int count = Rule.generatePieceMoves(board, from, moves, 0);
+        for (int i = 0; i < count; i++) {
+            if (Rule.getMoveTo(moves[i]) == to) {
+                return moves[i];
+            }
+        }
+        return 0;
+    }
+
+    // 变着开始时的状态，结束时回到这里
+    private static class Frame {
+        final XQFManual.MoveNode node;
+        final int made;
+
+        Frame(XQFManual.MoveNode node, int made) {
+            this.node = node;
+            this.made = made;
+        }
+    }
+
+    // 一局棋的标签和着法树，边读边在棋盘上重放
+    private class GameBuilder {
+        final XQFManual manual = new XQFManual();
+        Board board;
+        XQFManual.MoveNode current;
+        // board上已经走了多少步，也是current的深度
+        int made;
+        int depth;
+        // 从这一层变着开始着法无效，-1表示没有
+        int deadDepth = -1;
+        boolean inMovetext;
+        String fen;
+        String error;
+        final ArrayDeque<Frame> frames = new ArrayDeque<>();
+
+        GameBuilder() {
+            manual.setFormat("PGN");
+            current = manual.getHeadMove();
+        }
+
+        void tag(String name, String value) {
+            switch (name) {
+                case "Event":
+                    manual.setEvent(value);
+                    if (manual.getTitle() == null) {
+                        manual.setTitle(value);
+                    }
+                    break;
+                case "Title":
+                    manual.setTitle(value);
+                    break;
+                case "Site":
+                    manual.setSite(value);
+                    break;
+                case "Date":
+                    manual.setDate(value);
+                    break;
+                case "Red":
+                    manual.setRed(value);
+                    break;
+                case "Black":
+                    manual.setBlack(value);
+                    break;
+                case "Result":
+                    manual.setResult(resultName(value));
+                    break;
+                case "Annotator":
+                    manual.setAnnotator(value);
+                    break;
+                case "FEN":
+                    fen = value;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        // 第一次遇到着法时按FEN摆好棋盘
+        void startMovetext() {
+            inMovetext = true;
+            if (fen != null && !fen.isEmpty()) {
+                boolean ok;
+                try {
+                    ok = manual.board.restoreFromFEN(fen);
+                } catch (RuntimeException e) {
+                    ok = false;
+                }
+                if (!ok) {
+                    Log.e("PGNReader", "Invalid FEN: " + fen);
+                    setError("invalid FEN " + fen);
+                    deadDepth = 0;
+                }
+            }
+            board = new Board(manual.board);
+        }
+
+        void setError(String message) {
+            if (error == null) {
+                error = message;
+            }
+        }
+
+        void comment(String comment) {
+            if (comment.isEmpty()) {
+                return;
+            }
+            if (deadDepth >= 0 && depth >= deadDepth) {
+                return;
+            }
+            if (current.move == null) {
+                String annotation = manual.getAnnotation();
+                manual.setAnnotation(annotation == null || annotation.isEmpty() ? comment : annotation + "\n" + comment);
+            } else {
+                String old = current.move.getComment();
+                current.move.setComment(old == null || old.isEmpty() ? comment : old + "\n" + comment);
+            }
+        }
+
+        // 返回true表示这一局结束了
+        boolean token(String token) {
+            if (!inMovetext) {
+                startMovetext();
+            }
+            if (isResult(token)) {
+                if (depth == 0) {
+                    if (manual.getResult() == null || manual.getResult().equals("未知")) {
+                        manual.setResult(resultName(token));
+                    }
+                    return true;
+                }
+                return false;
+            }
+
+            // 回合号: "12." "12..."，也可能和着法连在一起"12.H2-E2"
+            int i = 0;
+            int n = token.length();
+            while (i < n && token.charAt(i) >= '0' && token.charAt(i) <= '9') {
+                i++;
+            }
+            if (i > 0 && i < n && token.charAt(i) == '.') {
+                while (i < n && token.charAt(i) == '.') {
+                    i++;
+                }
+                token = token.substring(i);
+            }
+            // 着法后面的评注符号 ! ? !? 等
+            n = token.length();
+            while (n > 0 && (token.charAt(n - 1) == '!' || token.charAt(n - 1) == '?')) {
+                n--;
+            }
+            if (n == 0) {
+                return false;
+            }
+            if (n < token.length()) {
+                token = token.substring(0, n);
+            }
+            addMove(token);
+            return false;
+        }
+
+        void addMove(String token) {
+            if (deadDepth >= 0 && depth >= deadDepth) {
+                return;
+            }
+            int move = decodeMove(token, board);
+            if (move == 0) {
+                setError("ply " + (made + 1) + ": " + token);
+                deadDepth = depth;
+                return;
+            }
+            int from = Rule.getMoveFrom(move);
+            int to = Rule.getMoveTo(move);
+            Move m = new Move(new Position(Board.squareX(from), Board.squareY(from)),
+                    new Position(Board.squareX(to), Board.squareY(to)));
+            m.piece = Rule.getMovePiece(move);
+            XQFManual.MoveNode node = new XQFManual.MoveNode(m);
+            node.setParent(current);
+            current.addNextMove(node);
+            board.makeMove(move);
+            made++;
+            current = node;
+        }
+
+        // 变着是最近一步的另一种走法，从这一步之前的局面开始
+        void startVariation() {
+            if (!inMovetext) {
+                startMovetext();
+            }
+            boolean dead = deadDepth >= 0 && depth >= deadDepth;
+            if (dead || current.move == null) {
+                frames.push(new Frame(null, made));
+                if (!dead) {
+                    deadDepth = depth + 1;
+                }
+            } else {
+                frames.push(new Frame(current, made));
+                board.unmakeMove();
+                made--;
+                current = current.parent;
+            }
+            depth++;
+        }
+
+        void endVariation() {
+            if (depth == 0) {
+                return;
+            }
+            if (deadDepth == depth) {
+                deadDepth = -1;
+            }
+            depth--;
+            Frame frame = frames.pop();
+            if (frame.node == null) {
+                return;
+            }
+            // 撤销变着中的着法，再走回原来的那一步
+            while (made > frame.made - 1) {
+                board.unmakeMove();
+                made--;
+            }
+            Move m = frame.node.move;
+            int from = Board.toSquare(m.fromPosition.x, m.fromPosition.y);
+            int to = Board.toSquare(m.toPosition.x, m.toPosition.y);
+            board.makeMove(Rule.encodeMove(from, to, board.getPieceBySquare(from), board.getPieceBySquare(to)));
+            made++;
+            current = frame.node;
+        }
+
+        XQFManual finish() {
+            if (manual.getResult() == null) {
+                manual.setResult("未知");
+            }
+            return manual;
+        }
+    }
+}
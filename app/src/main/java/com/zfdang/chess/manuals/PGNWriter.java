@@ -0,0 +1,255 @@
+package com.zfdang.chess.manuals;
+
+import android.util.Log;
+
+import com.zfdang.chess.gamelogic.Board;
+import com.zfdang.chess.gamelogic.Move;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/*
+ * 把棋谱写成PGN，着法用ICCS记法(H2-E2)，注释写成{...}，变着写成(...)，PGNReader可以原样读回
+ * 多局棋谱依次写到同一个channel中：每一局先在StringBuilder中生成，再编码到复用的ByteBuffer，满了就写出
+ * 整个棋谱库可以一遍流式导出，内存占用只和单局的大小有关
+ * 不能在多个线程中同时使用
+ */
+public class PGNWriter implements Closeable {
+    private static final int LINE_WIDTH = 80;
+    private static final String START_FEN = new Board().toFENString();
+
+    private final WritableByteChannel channel;
+    private final CharsetEncoder encoder;
+    private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    private final StringBuilder text = new StringBuilder();
+    // 当前行在text中的开始位置，用于换行
+    private int lineStart;
+    private int games;
+
+    public PGNWriter(WritableByteChannel channel) {
+        this(channel, StandardCharsets.UTF_8);
+    }
+
+    public PGNWriter(WritableByteChannel channel, Charset charset) {
+        this.channel = channel;
+        this.encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    public int getGameCount() {
+        return games;
+    }
+
+    public void write(XQFManual manual) throws IOException {
+        text.setLength(0);
+        boolean redFirst = manual.isRedFirst();
+
+        writeTag("Game", "Chinese Chess");
+        String event = nonEmpty(manual.getEvent()) ? manual.getEvent() : manual.getTitle();
+        writeTag("Event", event);
+        if (nonEmpty(manual.getTitle()) && !manual.getTitle().equals(event)) {
+            writeTag("Title", manual.getTitle());
+        }
+        writeTag("Site", manual.getSite());
+        writeTag("Date", manual.getDate());
+        writeTag("Red", manual.getRed());
+        writeTag("Black", manual.getBlack());
+        String result = resultToken(manual.getResult());
+        writeTag("Result", result);
+        writeTag("Annotator", manual.getAnnotator());
+        Board board = new Board(manual.board);
+        board.bRedGo = redFirst;
+        String fen = board.toFENString();
+        if (!fen.equals(START_FEN)) {
+            writeTag("FEN", fen);
+        }
+        writeTag("Format", "ICCS");
+
+        text.append('\n');
+        lineStart = text.length();
+        if (nonEmpty(manual.getAnnotation())) {
+            writeComment(manual.getAnnotation());
+        }
+        writeLine(manual.getHeadMove(), 0, redFirst, true);
+        writeToken(result);
+        text.append("\n\n");
+
+        encode();
+        games++;
+    }
+
+    private static boolean nonEmpty(String s) {
+        return s != null && !s.isEmpty();
+    }
+
+    private void writeTag(String name, String value) {
+        if (!nonEmpty(value)) {
+            return;
+        }
+        text.append('[').append(name).append(" \"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                text.append('\\');
+            } else if (c == '\n' || c == '\r') {
+                c = ' ';
+            }
+            text.append(c);
+        }
+        text.append("\"]\n");
+    }
+
+    private static String resultToken(String result) {
+        if ("红胜".equals(result)) {
+            return "1-0";
+        } else if ("黑胜".equals(result)) {
+            return "0-1";
+        } else if ("平局".equals(result)) {
+            return "1/2-1/2";
+        }
+        return "*";
+    }
+
+    /*
+     * 从node之后开始写: 先写主线的一步，再把其他的后续着法作为变着写在括号中，然后沿主线继续
+     * 只在变着处递归，递归的深度是变着嵌套的层数，和棋谱的长度无关
+     * needNumber: 前面是变着或者注释，接下来的黑方着法需要写回合号
+     */
+    private void writeLine(XQFManual.MoveNode node, int depth, boolean redFirst, boolean needNumber) {
+        while (!node.nextMoves.isEmpty()) {
+            XQFManual.MoveNode main = node.nextMoves.get(0);
+            writeMove(main.move, depth + 1, redFirst, needNumber);
+            needNumber = nonEmpty(main.move.getComment());
+
+            List<XQFManual.MoveNode> next = node.nextMoves;
+            for (int i = 1; i < next.size(); i++) {
+                XQFManual.MoveNode variation = next.get(i);
+                writeToken("(");
+                writeMove(variation.move, depth + 1, redFirst, true);
+                writeLine(variation, depth + 1, redFirst, nonEmpty(variation.move.getComment()));
+                text.append(')');
+                needNumber = true;
+            }
+            node = main;
+            depth++;
+        }
+    }
+
+    // 红方的着法前面写回合号"n."，黑方的着法在变着开始或注释之后写"n..."
+    private void writeMove(Move move, int ply, boolean redFirst, boolean needNumber) {
+        boolean red = (ply % 2 == 1) == redFirst;
+        int number = (ply + (redFirst ? 1 : 2)) / 2;
+        if (red) {
+            writeToken(number + ".");
+        } else if (needNumber) {
+            writeToken(number + "...");
+        }
+        String ucci = move.getUCCIString();
+        writeToken(Character.toUpperCase(ucci.charAt(0)) + ucci.substring(1, 2) + "-"
+                + Character.toUpperCase(ucci.charAt(2)) + ucci.substring(3));
+        if (nonEmpty(move.getComment())) {
+            writeComment(move.getComment());
+        }
+    }
+
+    // 注释中不能出现'}'，换成全角的'｝'
+    private void writeComment(String comment) {
+        writeToken("{" + comment.replace('}', '｝') + "}");
+    }
+
+    // 用空格分开，'('之后不加空格，一行太长时换行
+    private void writeToken(String token) {
+        if (text.length() > lineStart) {
+            if (text.length() - lineStart + token.length() >= LINE_WIDTH) {
+                text.append('\n');
+                lineStart = text.length();
+            } else if (text.charAt(text.length() - 1) != '(') {
+                text.append(' ');
+            }
+        }
+        text.append(token);
+    }
+
+    private void encode() throws IOException {
+        CharBuffer in = CharBuffer.wrap(text);
+        encoder.reset();
+        CoderResult result;
+        do {
+            result = encoder.encode(in, buffer, true);
+            if (result.isOverflow()) {
+                writeBuffer();
+            }
+        } while (result.isOverflow());
+        while (encoder.flush(buffer).isOverflow()) {
+            writeBuffer();
+        }
+    }
+
+    private void writeBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    public void flush() throws IOException {
+        writeBuffer();
+    }
+
+    // 写出缓冲的内容并关闭channel
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /*
+     * 把一个目录下所有的XQF棋谱导出到一个PGN文件:
+     *   java com.zfdang.chess.manuals.PGNWriter <目录> <输出文件>
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: PGNWriter <dir> <out.pgn>");
+            System.exit(2);
+        }
+        long start = System.currentTimeMillis();
+        int failures = 0;
+        try (PGNWriter writer = new PGNWriter(new FileOutputStream(args[1]).getChannel())) {
+            for (File f : BatchValidator.listManuals(new File(args[0]))) {
+                if (!f.getName().toLowerCase().endsWith(".xqf")) {
+                    continue;
+                }
+                XQFManual manual;
+                try {
+                    manual = XQFParser.parse(XQFParser.readFile(f));
+                } catch (IOException e) {
+                    Log.e("PGNWriter", "Failed to read: " + f, e);
+                    manual = null;
+                }
+                if (manual == null) {
+                    failures++;
+                    continue;
+                }
+                writer.write(manual);
+            }
+            System.out.println("games=" + writer.getGameCount() + ", failures=" + failures
+                    + ", elapsedMillis=" + (System.currentTimeMillis() - start));
+        }
+    }
+}
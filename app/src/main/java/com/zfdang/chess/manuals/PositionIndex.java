@@ -0,0 +1,354 @@
+package com.zfdang.chess.manuals;
+
+import android.util.Log;
+
+import com.zfdang.chess.gamelogic.Board;
+import com.zfdang.chess.gamelogic.Move;
+import com.zfdang.chess.gamelogic.Piece;
+import com.zfdang.chess.gamelogic.Rule;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * 棋谱库的局面索引：从局面的zobrist查到所有出现过这个局面的棋谱
+ * 离线建立：重放每个棋谱的着法树(包括变着)，记录每个节点的 (zobrist, 棋谱编号, 步数)，按zobrist排序后写入文件
+ * 查询时把文件映射到内存，在排好序的记录上二分查找，不需要读取和重放棋谱
+ *
+ * 建立(通过benchmark模块在普通的JVM上运行): ./gradlew :benchmark:buildPositionIndex [-Pdir=<XQF目录>] [-Pout=<输出文件>]
+ * :app构建时自动建立positions.idx并作为asset打包，应用直接从APK中映射，不在设备上建立
+ * 路径和ManualArchive中的一样，所以同一个XQF目录打包的XQF.pack和assets中的XQF目录都可以用
+ *
+ * 文件格式(大端):
+ *   magic, version, 棋谱数, 记录数, 记录区的偏移
+ *   每个棋谱的相对路径(writeUTF)
+ *   记录区: 每条记录12个字节，zobrist(8) + 棋谱编号 << 12 | 步数(4)
+ */
+public class PositionIndex {
+    private static final int INDEX_MAGIC = 0x58515049;  // "XQPI"
+    private static final int INDEX_VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 2 + 4 + 4 + 8;
+    private static final int RECORD_SIZE = 12;
+
+    // 步数只用12位，更深的节点记为MAX_PLY
+    private static final int PLY_BITS = 12;
+    public static final int MAX_PLY = (1 << PLY_BITS) - 1;
+    public static final int MAX_GAMES = 1 << (32 - PLY_BITS);
+
+    public static class Hit {
+        public final int gameId;
+        public final String path;
+        // 第一次出现这个局面时已经走了多少步
+        public final int ply;
+
+        Hit(int gameId, String path, int ply) {
+            this.gameId = gameId;
+            this.path = path;
+            this.ply = ply;
+        }
+
+        @Override
+        public String toString() {
+            return "Hit{" + "gameId=" + gameId + ", path='" + path + '\'' + ", ply=" + ply + '}';
+        }
+    }
+
+    private final String[] paths;
+    private final ByteBuffer records;
+    private final int count;
+
+    private PositionIndex(String[] paths, ByteBuffer records, int count) {
+        this.paths = paths;
+        this.records = records;
+        this.count = count;
+    }
+
+    public int getGameCount() {
+        return paths.length;
+    }
+
+    public int getRecordCount() {
+        return count;
+    }
+
+    public String getPath(int gameId) {
+        return paths[gameId];
+    }
+
+    public static PositionIndex open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            return open(channel, 0, channel.size());
+        }
+    }
+
+    /*
+     * 打开文件中的一段，例如APK中没有压缩的asset(AssetFileDescriptor的startOffset和length)
+     * 通道关闭之后映射仍然有效
+     */
+    public static PositionIndex open(FileChannel channel, long start, long length) throws IOException {
+        if (length < HEADER_SIZE) {
+            throw new IOException("Invalid position index");
+        }
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, start, HEADER_SIZE);
+        if (header.getInt() != INDEX_MAGIC || header.getShort() != INDEX_VERSION) {
+            throw new IOException("Invalid position index");
+        }
+        int games = header.getInt();
+        int count = header.getInt();
+        long recordsOffset = header.getLong();
+        if (games < 0 || count < 0 || recordsOffset < HEADER_SIZE
+                || recordsOffset + (long) count * RECORD_SIZE > length) {
+            throw new IOException("Truncated position index");
+        }
+
+        // 路径表不大，直接读到内存中
+        ByteBuffer pathArea = channel.map(FileChannel.MapMode.READ_ONLY, start + HEADER_SIZE, recordsOffset - HEADER_SIZE);
+        DataInputStream in = new DataInputStream(new ByteBufferInputStream(pathArea));
+        String[] paths = new String[games];
+        for (int i = 0; i < games; i++) {
+            paths[i] = in.readUTF();
+        }
+
+        MappedByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY, start + recordsOffset, (long) count * RECORD_SIZE);
+        return new PositionIndex(paths, records, count);
+    }
+
+    private long keyAt(int i) {
+        return records.getLong(i * RECORD_SIZE);
+    }
+
+    /*
+     * 查找出现过zobrist局面的棋谱，每个棋谱只返回一次(步数最小的那次)，按棋谱编号排序
+     * limit: 最多返回多少个棋谱
+     */
+    public List<Hit> find(long zobrist, int limit) {
+        // 找到第一个 >= zobrist 的记录
+        int lo = 0;
+        int hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keyAt(mid) < zobrist) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+
+        // 同一个key的记录按(棋谱编号, 步数)排好序了
+        List<Hit> hits = new ArrayList<>();
+        int lastGame = -1;
+        for (int i = lo; i < count && keyAt(i) == zobrist && hits.size() < limit; i++) {
+            int value = records.getInt(i * RECORD_SIZE + 8);
+            int gameId = value >>> PLY_BITS;
+            if (gameId != lastGame) {
+                hits.add(new Hit(gameId, paths[gameId], value & MAX_PLY));
+                lastGame = gameId;
+            }
+        }
+        return hits;
+    }
+
+    /*
+     * 建立索引，paths是相对于root的棋谱路径，在索引中的下标就是棋谱编号
+     * 比较耗时，应该在后台线程中调用；返回写入的记录数
+     */
+    public static int build(File root, List<String> paths, File out) throws IOException {
+        if (paths.size() > MAX_GAMES) {
+            throw new IOException("Too many manuals: " + paths.size());
+        }
+        Postings postings = new Postings();
+        for (int gameId = 0; gameId < paths.size(); gameId++) {
+            File f = new File(root, paths.get(gameId));
+            XQFManual manual;
+            try {
+                manual = XQFParser.parse(XQFParser.readFile(f));
+            } catch (IOException e) {
+                Log.e("PositionIndex", "Failed to read: " + f, e);
+                continue;
+            }
+            if (manual == null) {
+                continue;
+            }
+            addManual(manual, gameId, postings);
+        }
+        return write(paths, postings, out);
+    }
+
+    /*
+     * 从ManualLibrary(打包的棋谱库或者assets中的棋谱)建立索引，paths是库中的路径，和ManualIndex中的一样
+     * 读取失败的棋谱没有记录，但是仍然占一个编号
+     */
+    public static int build(ManualLibrary library, List<String> paths, File out) throws IOException {
+        if (paths.size() > MAX_GAMES) {
+            throw new IOException("Too many manuals: " + paths.size());
+        }
+        Postings postings = new Postings();
+        for (int gameId = 0; gameId < paths.size(); gameId++) {
+            byte[] bytes = library.read(paths.get(gameId));
+            XQFManual manual = bytes == null ? null : XQFParser.parse(bytes);
+            if (manual == null) {
+                continue;
+            }
+            addManual(manual, gameId, postings);
+        }
+        return write(paths, postings, out);
+    }
+
+    private static int write(List<String> paths, Postings postings, File out) throws IOException {
+        postings.sort();
+
+        File tmp = new File(out.getPath() + ".tmp");
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            // 先写路径表，算出记录区的偏移
+            ByteArrayOutputStream pathBytes = new ByteArrayOutputStream();
+            DataOutputStream pathOut = new DataOutputStream(pathBytes);
+            for (String path : paths) {
+                pathOut.writeUTF(path);
+            }
+            pathOut.flush();
+
+            dos.writeInt(INDEX_MAGIC);
+            dos.writeShort(INDEX_VERSION);
+            dos.writeInt(paths.size());
+            dos.writeInt(postings.size);
+            dos.writeLong(HEADER_SIZE + pathBytes.size());
+            pathBytes.writeTo(dos);
+            for (int i = 0; i < postings.size; i++) {
+                dos.writeLong(postings.keys[i]);
+                dos.writeInt(postings.values[i]);
+            }
+        }
+        if (!tmp.renameTo(out)) {
+            out.delete();
+            if (!tmp.renameTo(out)) {
+                throw new IOException("Failed to write position index: " + out);
+            }
+        }
+        return postings.size;
+    }
+
+    // 重放一个棋谱的着法树，记录每个节点的局面
+    static void addManual(XQFManual manual, final int gameId, final Postings postings) {
+        final Board b = new Board(manual.board);
+        b.bRedGo = manual.isRedFirst();
+        manual.walk(new XQFManual.MoveVisitor() {
+            @Override
+            public boolean enter(XQFManual.MoveNode node, int depth, int index) {
+                Move m = node.move;
+                if (m != null) {
+                    int piece = b.getPieceByPosition(m.fromPosition);
+                    if (!Board.isValidPosition(m.toPosition) || !Piece.isValid(piece)) {
+                        // 后面的着法都无法重放了，已经记录的局面仍然有效
+                        return false;
+                    }
+                    int from = Board.toSquare(m.fromPosition.x, m.fromPosition.y);
+                    int to = Board.toSquare(m.toPosition.x, m.toPosition.y);
+                    b.makeMove(Rule.encodeMove(from, to, piece, b.getPieceByPosition(m.toPosition)));
+                }
+                postings.add(b.getZobrist(b.bRedGo), gameId << PLY_BITS | Math.min(depth, MAX_PLY));
+                return true;
+            }
+
+            @Override
+            public void leave(XQFManual.MoveNode node, int depth) {
+                if (node.move != null) {
+                    b.unmakeMove();
+                }
+            }
+        });
+    }
+
+    // 建立索引时用的 (zobrist, value) 数组，按key排序，key相同时按value排序
+    // value的高位是棋谱编号，编号 >= 2^19 时是负数，按无符号数比较，find中才能按棋谱编号去重
+    static final class Postings {
+        long[] keys = new long[1024];
+        int[] values = new int[1024];
+        int size;
+
+        void add(long key, int value) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            keys[size] = key;
+            values[size] = value;
+            size++;
+        }
+
+        void sort() {
+            sort(0, size - 1);
+        }
+
+        private boolean less(int i, int j) {
+            return keys[i] < keys[j] || (keys[i] == keys[j] && Integer.compareUnsigned(values[i], values[j]) < 0);
+        }
+
+        private void swap(int i, int j) {
+            long k = keys[i];
+            keys[i] = keys[j];
+            keys[j] = k;
+            int v = values[i];
+            values[i] = values[j];
+            values[j] = v;
+        }
+
+        // 快速排序，只对较小的一半递归，递归深度不超过log(n)
+        private void sort(int lo, int hi) {
+            while (hi - lo > 16) {
+                int mid = (lo + hi) >>> 1;
+                if (less(mid, lo)) swap(mid, lo);
+                if (less(hi, lo)) swap(hi, lo);
+                if (less(hi, mid)) swap(hi, mid);
+                // 中间值放到hi - 1作为枢轴
+                swap(mid, hi - 1);
+                int pivot = hi - 1;
+                int i = lo;
+                int j = hi - 1;
+                while (true) {
+                    while (less(++i, pivot)) ;
+                    while (less(pivot, --j)) ;
+                    if (i >= j) break;
+                    swap(i, j);
+                }
+                swap(i, hi - 1);
+                if (i - lo < hi - i) {
+                    sort(lo, i - 1);
+                    lo = i + 1;
+                } else {
+                    sort(i + 1, hi);
+                    hi = i - 1;
+                }
+            }
+            // 插入排序
+            for (int i = lo + 1; i <= hi; i++) {
+                for (int j = i; j > lo && less(j, j - 1); j--) {
+                    swap(j, j - 1);
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: PositionIndex <dir> <index>");
+            System.exit(2);
+        }
+        File root = new File(args[0]);
+        String[] paths = ManualArchive.listManuals(root);
+        int records = build(root, Arrays.asList(paths), new File(args[1]));
+        System.out.println("Indexed " + paths.length + " manuals, " + records + " positions into " + args[1]);
+    }
+}
@@ -1,45 +1,73 @@
 package com.zfdang.chess.manuals;
 
 import java.nio.charset.Charset;
-import java.util.Arrays;
 
+/*
+ * 顺序读取XQF文件的棋谱记录区(0x400之后)
+ * 直接读取原始的文件内容，高版本的加密数据在读取每个字节时解密，不复制也不修改原来的buffer
+ */
 public class XQFBufferDecoder {
-    private byte[] buffer;
+    private final byte[] buffer;
+    private final byte[] f32Keys;   // 为null表示没有加密
     private int index;
-    private int length;
+    private final int length;
+
+    // 解密注释文本用的临时缓冲区，多个注释之间复用
+    private byte[] scratch;
 
     public XQFBufferDecoder(byte[] buffer) {
+        this(buffer, 0, null);
+    }
+
+    public XQFBufferDecoder(byte[] buffer, int offset, XQFKey keys) {
         this.buffer = buffer;
-        this.index = 0;
+        this.f32Keys = keys == null ? null : keys.getF32Keys();
+        this.index = Math.min(offset, buffer.length);
         this.length = buffer.length;
     }
 
-    private byte[] read(int size) {
-        int start = index;
-        int stop = Math.min(index + size, length);
-        index = stop;
-        return Arrays.copyOfRange(buffer, start, stop);
+    public int remaining() {
+        return length - index;
     }
 
-    public String readString(int size, Charset set) {
-        byte[] buff = read(size);
-        try {
-            return new String(buff, set);
-        } catch (Exception e) {
-            return null;
+    // 解密的密钥按照在文件中的位置循环使用
+    private int byteAt(int i) {
+        if (f32Keys == null) {
+            return buffer[i] & 0xFF;
         }
+        return (buffer[i] - f32Keys[i & 0x1F]) & 0xFF;
     }
 
-    public byte[] readBytes(int size) {
-        return read(size);
+    public int readByte() {
+        if (index >= length) {
+            return 0;
+        }
+        return byteAt(index++);
+    }
+
+    public String readString(int size, Charset set) {
+        int start = index;
+        int stop = Math.min(index + size, length);
+        index = stop;
+        if (f32Keys == null) {
+            return new String(buffer, start, stop - start, set);
+        }
+        int n = stop - start;
+        if (scratch == null || scratch.length < n) {
+            scratch = new byte[Math.max(n, 256)];
+        }
+        for (int i = 0; i < n; i++) {
+            scratch[i] = (byte) byteAt(start + i);
+        }
+        return new String(scratch, 0, n, set);
     }
 
+    // 32位整数，低字节在前，不足4个字节时缺少的部分按0处理
     public int readInt() {
-        byte[] bytes = readBytes(4);
-        int b1 = bytes[0] & 0xFF;
-        int b2 = bytes[1] & 0xFF;
-        int b3 = bytes[2] & 0xFF;
-        int b4 = bytes[3] & 0xFF;
+        int b1 = readByte();
+        int b2 = readByte();
+        int b3 = readByte();
+        int b4 = readByte();
         return b1 + (b2 << 8) + (b3 << 16) + (b4 << 24);
     }
 
@@ -68,4 +96,4 @@ public class XQFBufferDecoder {
         return sb.toString();
     }
 
-}
\ No newline at end of file
+}
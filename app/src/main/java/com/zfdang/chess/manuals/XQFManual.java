@@ -4,9 +4,14 @@ import android.util.Log;
 
 import com.zfdang.chess.gamelogic.Board;
 import com.zfdang.chess.gamelogic.Move;
+import com.zfdang.chess.gamelogic.Piece;
+import com.zfdang.chess.gamelogic.Position;
+import com.zfdang.chess.gamelogic.Rule;
 
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 // XQF format
 // https://github.com/zfdang/chinese-chess-fish-android/blob/master/%E6%A3%8B%E8%B0%B1/XQF%E6%96%87%E4%BB%B6%E6%A0%BC%E5%BC%8F%E8%AF%B4%E6%98%8E.TXT
@@ -76,6 +81,42 @@ public class XQFManual {
         board = new Board();
     }
 
+    /*
+     * XQF文件中没有记录哪一方先走，有着法时按第一步的棋子判断
+     */
+    public boolean isRedFirst() {
+        if (!headMove.nextMoves.isEmpty()) {
+            Move first = headMove.nextMoves.get(0).move;
+            int piece = board.getPieceByPosition(first.fromPosition);
+            if (Piece.isValid(piece)) {
+                return Piece.isRed(piece);
+            }
+        }
+        return board.bRedGo;
+    }
+
+    /*
+     * 从start开始的一串走法(对局的历史)转换成棋谱，每一步的注释来自Move.comment，用XQFWriter或PGNWriter导出
+     * 复制start和每一步走法，不引用传入的对象
+     */
+    public static XQFManual fromMoves(Board start, List<Move> moves, String result) {
+        XQFManual manual = new XQFManual();
+        manual.board = new Board(start);
+        manual.setFormat("XQ");
+        manual.setResult(result);
+
+        MoveNode node = manual.getHeadMove();
+        for (Move m : moves) {
+            Move move = new Move(new Position(m.fromPosition.x, m.fromPosition.y), new Position(m.toPosition.x, m.toPosition.y));
+            move.setComment(m.getComment());
+            MoveNode next = new MoveNode(move);
+            next.setParent(node);
+            node.addNextMove(next);
+            node = next;
+        }
+        return manual;
+    }
+
     // Getters and setters for each field
     public String getTitle() {
         return title;
@@ -187,69 +228,107 @@ public class XQFManual {
         return false;
     }
 
-    public boolean validateAllMoves(){
-        return validateMove(this.board, this.headMove);
-    }
+    /*
+     * 遍历着法树的回调，节点按深度优先(先序)的顺序访问
+     * depth: 根节点为0；index: 是父节点的第几个后续着法，0为主线
+     */
+    public interface MoveVisitor {
+        // 返回false时停止整个遍历
+        boolean enter(MoveNode node, int depth, int index);
 
-    private boolean validateMove(Board _board, MoveNode node) {
-        if(node == null){
-            return true;
-        }
+        // 节点的所有后续着法都访问完之后调用
+        void leave(MoveNode node, int depth);
+    }
 
-        Board b = new Board(_board);
+    /*
+     * 从headMove开始遍历整个着法树，用显式的栈代替递归，栈的大小只和树的深度有关
+     * 全部遍历完返回true，被visitor中止时返回false
+     */
+    public boolean walk(MoveVisitor visitor) {
+        ArrayList<MoveNode> stack = new ArrayList<>();
+        int[] nextChild = new int[16];
 
-        // 验证move自己是否正确
-        if(node.move != null) {
-            if(!b.doMove(node.move)) {
-                Log.e("XQFManual", "Invalid move: " + node.move);
-                return false;
-            }
+        if (!visitor.enter(headMove, 0, 0)) {
+            return false;
         }
-
-        // 验证后续moves是否正确
-        for(MoveNode nextNode : node.nextMoves) {
-            boolean result = validateMove(b, nextNode);
-            if(!result) {
-                return false;
+        stack.add(headMove);
+        nextChild[0] = 0;
+        while (!stack.isEmpty()) {
+            int top = stack.size() - 1;
+            MoveNode node = stack.get(top);
+            int i = nextChild[top];
+            if (i < node.nextMoves.size()) {
+                nextChild[top] = i + 1;
+                MoveNode child = node.nextMoves.get(i);
+                if (!visitor.enter(child, top + 1, i)) {
+                    return false;
+                }
+                if (stack.size() == nextChild.length) {
+                    nextChild = Arrays.copyOf(nextChild, nextChild.length * 2);
+                }
+                nextChild[stack.size()] = 0;
+                stack.add(child);
+            } else {
+                stack.remove(top);
+                visitor.leave(node, top);
             }
         }
         return true;
     }
 
-    private String printAllMoveNodes() {
-        return iterateMoveNode(headMove, 0);
-    }
-
-    private String iterateMoveNode(MoveNode node, int depth) {
-        StringBuilder sb = new StringBuilder();
-        if(node.move == null) {
-            if(node.nextMoves.size() > 1) {
-                sb.append(" root{");
-            } else {
-                sb.append(" root ");
+    public boolean validateAllMoves(){
+        // 在同一个棋盘上走子和撤销，不需要为每一步复制棋盘
+        final Board b = new Board(this.board);
+        return walk(new MoveVisitor() {
+            @Override
+            public boolean enter(MoveNode node, int depth, int index) {
+                // 验证move自己是否正确
+                Move m = node.move;
+                if (m == null) {
+                    return true;
+                }
+                int piece = b.getPieceByPosition(m.fromPosition);
+                if (!Board.isValidPosition(m.toPosition) || !Piece.isValid(piece)) {
+                    Log.e("XQFManual", "Invalid move: " + m);
+                    return false;
+                }
+                int from = Board.toSquare(m.fromPosition.x, m.fromPosition.y);
+                int to = Board.toSquare(m.toPosition.x, m.toPosition.y);
+                b.makeMove(Rule.encodeMove(from, to, piece, b.getPieceByPosition(m.toPosition)));
+                return true;
             }
-        } else {
-            if(node.nextMoves.size() > 1) {
-                // 有分叉
-                sb.append(" " + node.move.getUCCIString() + "{" );
-            } else {
-                sb.append(" " + node.move.getUCCIString() + " ");
+
+            @Override
+            public void leave(MoveNode node, int depth) {
+                if (node.move != null) {
+                    b.unmakeMove();
+                }
             }
-        }
+        });
+    }
 
-        for(int i = 0; i < node.nextMoves.size(); i++) {
-            MoveNode nextNode = node.nextMoves.get(i);
-            if(i == 0){
-                sb.append(iterateMoveNode(nextNode, depth + 1));
-            } else {
-                sb.append("\n");
-                for(int j = 0; j <= depth; j++) {
-                    sb.append("      ");
+    private String printAllMoveNodes() {
+        // 主线接着父节点写在同一行，变着另起一行，按深度缩进
+        final StringBuilder sb = new StringBuilder();
+        walk(new MoveVisitor() {
+            @Override
+            public boolean enter(MoveNode node, int depth, int index) {
+                if (index > 0) {
+                    sb.append('\n');
+                    for (int j = 0; j < depth; j++) {
+                        sb.append("      ");
+                    }
                 }
-                sb.append(iterateMoveNode(nextNode, depth + 1));
+                sb.append(' ').append(node.move == null ? "root" : node.move.getUCCIString());
+                // 有分叉
+                sb.append(node.nextMoves.size() > 1 ? '{' : ' ');
+                return true;
             }
-        }
 
+            @Override
+            public void leave(MoveNode node, int depth) {
+            }
+        });
         return sb.toString();
     }
 
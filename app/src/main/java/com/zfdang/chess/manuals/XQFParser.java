@@ -2,134 +2,145 @@ package com.zfdang.chess.manuals;
 
 import android.util.Log;
 
-import com.igormaznitsa.jbbp.JBBPParser;
-import com.igormaznitsa.jbbp.model.JBBPFieldArrayByte;
-import com.igormaznitsa.jbbp.model.JBBPFieldStruct;
 import com.zfdang.chess.gamelogic.Move;
 import com.zfdang.chess.gamelogic.Piece;
 import com.zfdang.chess.gamelogic.Position;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.Charset;
-import java.util.Arrays;
+import java.util.ArrayDeque;
 
 public class XQFParser {
     private static final Charset GB18030 = Charset.forName("GB18030");
 
-    private static String readString(byte[] buffer) {
-        int length = buffer[0] & 0xFF;
-        if(length < 0) {
-            Log.e("XQFGame", "Invalid string length: " + length);
-            return "";
-        }
-        length = Math.min(length, buffer.length - 1);
-        return new String(buffer, 1, length, GB18030).trim();
+    // 文件头中各个字段的偏移和长度，XQFWriter也按这些偏移写入
+    static final int OFFSET_MAGIC = 0x00;
+    static final int OFFSET_VERSION = 0x02;
+    static final int OFFSET_KEYS = 0x03;
+    static final int OFFSET_PIECE_POS = 0x10;
+    static final int OFFSET_RESULT = 0x33;
+    static final int OFFSET_SETUP = 0x40;
+    static final int OFFSET_TITLE = 0x50;
+    static final int OFFSET_EVENT = 0xD0;
+    static final int OFFSET_DATE = 0x110;
+    static final int OFFSET_SITE = 0x120;
+    static final int OFFSET_RED = 0x130;
+    static final int OFFSET_BLACK = 0x140;
+    static final int OFFSET_RED_TIME = 0x190;
+    static final int OFFSET_BLACK_TIME = 0x1A0;
+    static final int OFFSET_ANNOTATOR = 0x1D0;
+    static final int OFFSET_AUTHOR = 0x1E0;
+    // 文件头的长度，只需要元数据时读取这么多字节就够了
+    public static final int HEADER_SIZE = 0x200;
+    // 棋谱记录的开始位置
+    static final int OFFSET_STEPS = 0x400;
+
+    // 01 - 16: 依次为红方的车马相士帅士相马车炮炮兵兵兵兵兵
+    // 17 - 32: 依次为黑方的车马象士将士象马车炮炮卒卒卒卒卒
+    static final int[] PIECE_KINDS = {
+            Piece.WJU, Piece.WMA, Piece.WXIANG, Piece.WSHI, Piece.WSHUAI, Piece.WSHI, Piece.WXIANG, Piece.WMA, Piece.WJU,
+            Piece.WPAO, Piece.WPAO,
+            Piece.WBING, Piece.WBING, Piece.WBING, Piece.WBING, Piece.WBING,
+            Piece.BJU, Piece.BMA, Piece.BXIANG, Piece.BSHI, Piece.BJIANG, Piece.BSHI, Piece.BXIANG, Piece.BMA, Piece.BJU,
+            Piece.BPAO, Piece.BPAO, Piece.BZU, Piece.BZU, Piece.BZU, Piece.BZU, Piece.BZU
+    };
+
+    // 字段的第一个字节是字符串的长度
+    private static String readString(ByteBuffer header, int offset, int size) {
+        int length = header.get(offset) & 0xFF;
+        length = Math.min(length, size - 1);
+        return new String(header.array(), header.arrayOffset() + offset + 1, length, GB18030).trim();
     }
 
 
-    static public XQFManual parse(byte[] buffer){
+    private static XQFManual readHeader(ByteBuffer header) {
         XQFManual manual = new XQFManual();
 
-        final JBBPParser headerParser = JBBPParser.prepare(
-                "byte[2] szMagic;"
-                        + "byte[1] szVersion;"
-                        + "byte[13] szKeys;"
-                        + "byte[32] szPiecePos;"
-                        + "byte[16] szResult;"
-                        + "byte[16] szSetUp;"
-                        + "byte[64] szTitle;"
-                        + "byte[64] szReserved1;"
-                        + "byte[64] szEvent;"
-                        + "byte[16] szDate;"
-                        + "byte[16] szSite;"
-                        + "byte[16] szRed;"
-                        + "byte[16] szBlack;"
-                        + "byte[64] szRuleTime;"
-                        + "byte[16] szRedTime;"
-                        + "byte[16] szBlackTime;"
-                        + "byte[32] szReserved2;"
-                        + "byte[16] szAnnotator;"
-                        + "byte[16] szAuthor;"
-                        + "byte[16] szReserved3;"
-        );
-
-        try {
-            // use JBBP to unpack header
-            final JBBPFieldStruct header =  headerParser.parse(buffer);
-            byte[] szMagic = header.findFieldForNameAndType("szMagic", JBBPFieldArrayByte.class).getArray();
-            byte[] szVersion = header.findFieldForNameAndType("szVersion", JBBPFieldArrayByte.class).getArray();
-            byte[] szKeys = header.findFieldForNameAndType("szKeys", JBBPFieldArrayByte.class).getArray();
-            byte[] szPiecePos = header.findFieldForNameAndType("szPiecePos", JBBPFieldArrayByte.class).getArray();
-            byte[] szResult = header.findFieldForNameAndType("szResult", JBBPFieldArrayByte.class).getArray();
-            byte[] szSetUp = header.findFieldForNameAndType("szSetUp", JBBPFieldArrayByte.class).getArray();
-            byte[] szTitle = header.findFieldForNameAndType("szTitle", JBBPFieldArrayByte.class).getArray();
-            byte[] szEvent = header.findFieldForNameAndType("szEvent", JBBPFieldArrayByte.class).getArray();
-            byte[] szDate = header.findFieldForNameAndType("szDate", JBBPFieldArrayByte.class).getArray();
-            byte[] szSite = header.findFieldForNameAndType("szSite", JBBPFieldArrayByte.class).getArray();
-            byte[] szRed = header.findFieldForNameAndType("szRed", JBBPFieldArrayByte.class).getArray();
-            byte[] szBlack = header.findFieldForNameAndType("szBlack", JBBPFieldArrayByte.class).getArray();
-            byte[] szRuleTime = header.findFieldForNameAndType("szRuleTime", JBBPFieldArrayByte.class).getArray();
-            byte[] szRedTime = header.findFieldForNameAndType("szRedTime", JBBPFieldArrayByte.class).getArray();
-            byte[] szBlackTime = header.findFieldForNameAndType("szBlackTime", JBBPFieldArrayByte.class).getArray();
-            byte[] szAnnotator = header.findFieldForNameAndType("szAnnotator", JBBPFieldArrayByte.class).getArray();
-            byte[] szAuthor = header.findFieldForNameAndType("szAuthor", JBBPFieldArrayByte.class).getArray();
-
-            // format
-            if(szMagic[0] == 'X' && szMagic[1] == 'Q'){
-                manual.setFormat("XQ");
-            } else {
-                Log.e("XQFParser", "Invalid XQF file format");
-                return null;
+        // 文件头的字段都在固定的位置，直接按偏移读取
+        // format
+        if(header.get(OFFSET_MAGIC) == 'X' && header.get(OFFSET_MAGIC + 1) == 'Q'){
+            manual.setFormat("XQ");
+        } else {
+            Log.e("XQFParser", "Invalid XQF file format");
+            return null;
+        }
+
+        // version
+        manual.setVersion(header.get(OFFSET_VERSION));
+
+        // process other head fields
+        manual.setTitle(readString(header, OFFSET_TITLE, 64));
+        manual.setEvent(readString(header, OFFSET_EVENT, 64));
+        manual.setSite(readString(header, OFFSET_SITE, 16));
+        manual.setDate(readString(header, OFFSET_DATE, 16));
+        manual.setRed(readString(header, OFFSET_RED, 16));
+        manual.setBlack(readString(header, OFFSET_BLACK, 16));
+        manual.setRedDuration(readString(header, OFFSET_RED_TIME, 16));
+        manual.setBlackDuration(readString(header, OFFSET_BLACK_TIME, 16));
+        manual.setAnnotator(readString(header, OFFSET_ANNOTATOR, 16));
+        manual.setAuthor(readString(header, OFFSET_AUTHOR, 16));
+        manual.setResult(parseResult(header.get(OFFSET_RESULT)));
+        manual.setCategory(parseCategory(header.get(OFFSET_SETUP)));
+        return manual;
+    }
+
+    /*
+     * 只解析文件头中的标题、赛事、对局者、结果等信息，不读取棋盘和着法
+     * buffer至少要有HEADER_SIZE个字节
+     */
+    static public XQFManual parseHeader(byte[] buffer){
+        if (buffer == null || buffer.length < HEADER_SIZE) {
+            Log.e("XQFParser", "Invalid XQF file, size = " + (buffer == null ? 0 : buffer.length));
+            return null;
+        }
+        return readHeader(ByteBuffer.wrap(buffer, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN));
+    }
+
+    /*
+     * 读出整个棋谱文件。不用Files.readAllBytes(f.toPath())：默认的POSIX locale下中文文件名转换成Path
+     * 会抛出InvalidPathException，一个文件就会中断整个批处理；这里只会得到IOException，按单个文件的失败处理
+     */
+    static public byte[] readFile(File f) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+            long length = raf.length();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("File too large: " + f);
             }
+            byte[] bytes = new byte[(int) length];
+            raf.readFully(bytes);
+            return bytes;
+        }
+    }
 
-            // version
-            manual.setVersion(szVersion[0]);
-
-            // process other head fields
-            manual.setTitle(readString(szTitle));
-            manual.setEvent(readString(szEvent));
-            manual.setSite(readString(szSite));
-            manual.setDate(readString(szDate));
-            manual.setRed(readString(szRed));
-            manual.setBlack(readString(szBlack));
-            manual.setRedDuration(readString(szRedTime));
-            manual.setBlackDuration(readString(szBlackTime));
-            manual.setAnnotator(readString(szAnnotator));
-            manual.setAuthor(readString(szAuthor));
-            manual.setResult(parseResult(szResult[3]));
-            manual.setCategory(parseCategory(szSetUp[0]));
-
-            XQFKey keys = manual.getVersion() <= 0x0A ? null : initDecryptKey(szKeys);
-//            Log.d("XQFParser", "Keys: " + keys);
-
-            // now to process board info
-            // 0010 - 002F      这32个字节是棋局的开局局面，局面说明见“局面表示”
-            // szPiecePos
-            // 当版本号达到12时，还要进一步解密局面初始位置
-            byte[] piecePos = decryptPiecePos(szPiecePos, manual.getVersion(), keys);
+    static public XQFManual parse(byte[] buffer){
+        XQFManual manual = parseHeader(buffer);
+        if (manual == null) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.wrap(buffer, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        XQFKey keys = manual.getVersion() <= 0x0A ? null : initDecryptKey(header);
+
+        // now to process board info
+        // 0010 - 002F      这32个字节是棋局的开局局面，局面说明见“局面表示”
+        // szPiecePos
+        // 当版本号达到12时，还要进一步解密局面初始位置
+        byte[] piecePos = decryptPiecePos(buffer, OFFSET_PIECE_POS, manual.getVersion(), keys);
 //            Log.d("XQFParser", "PiecePos: " + Arrays.toString(piecePos));
 
-            // 01 - 16: 依次为红方的车马相士帅士相马车炮炮兵兵兵兵兵
-            // 17 - 32: 依次为黑方的车马象士将士象马车炮炮卒卒卒卒卒
-            int[] pieceKinds = {
-                    Piece.WJU, Piece.WMA, Piece.WXIANG, Piece.WSHI, Piece.WSHUAI, Piece.WSHI, Piece.WXIANG, Piece.WMA, Piece.WJU,
-                    Piece.WPAO, Piece.WPAO,
-                    Piece.WBING, Piece.WBING, Piece.WBING, Piece.WBING, Piece.WBING,
-                    Piece.BJU, Piece.BMA, Piece.BXIANG, Piece.BSHI, Piece.BJIANG, Piece.BSHI, Piece.BXIANG, Piece.BMA, Piece.BJU,
-                    Piece.BPAO, Piece.BPAO, Piece.BZU, Piece.BZU, Piece.BZU, Piece.BZU, Piece.BZU
-            };
-
-            // 读取原棋盘
-            manual.board.clear();
-            for (int i = 0; i < 32; i++) {
-                int value = piecePos[i] & 0xFF;
-                if (value == 0xFF) {
-                    // 0xFF表示没有棋子
-                    continue;
-                }
-                manual.board.setPieceByPosition(getPosFromValue(value), pieceKinds[i]);
+        // 读取原棋盘
+        manual.board.clear();
+        for (int i = 0; i < 32; i++) {
+            int value = piecePos[i] & 0xFF;
+            if (value == 0xFF) {
+                // 0xFF表示没有棋子
+                continue;
             }
-            Log.d("XQFParser", "Board: " + manual.board.toFENString());
+            manual.board.setPieceByPosition(getPosFromValue(value), PIECE_KINDS[i]);
+        }
 
 //        B. 棋谱记录 (0400 - 文件尾部)
 //        从0x0400开始存放棋谱记录，每步记录的存放格式为: 8个棋谱记录字节 + 0个或
@@ -146,45 +157,33 @@ public class XQFParser {
 //                于5-8字节处的整数值)。如此反复，可将所有棋步存入。(暂时不支持变着的
 //        保存)。从上面可以看出如果没有注解，一步棋的记录共占8个字节。
 //        0x0400 - 0x0407: 第一步棋的记录；没有着法，但是注解是整个棋局的注解，需要读取出来
-            // 先解密
-            XQFBufferDecoder stepBaseBuff;
-            if (manual.getVersion() <= 0x0A) {
-                stepBaseBuff = new XQFBufferDecoder(Arrays.copyOfRange(buffer, 0x400, buffer.length));
-            } else {
-                stepBaseBuff = new XQFBufferDecoder(decodeBuff(keys, Arrays.copyOfRange(buffer, 0x400, buffer.length)));
-            }
-//            Log.d("XQFParser", "StepBaseBuff: " + stepBaseBuff);
+        // 直接在原buffer上读取，高版本在读取时解密
+        XQFBufferDecoder stepBaseBuff = new XQFBufferDecoder(buffer, OFFSET_STEPS, keys);
 
-            // 0x0400 - 0x0407: 第一步棋的记录；没有着法，但是注解是整个棋局的注解，需要读取出来
-            String gameAnnotation = readAnnotationInfo(stepBaseBuff, manual.getVersion(), keys);
-            manual.setAnnotation(gameAnnotation);
-            Log.d("XQFParser", "Game Annotation: " + manual.getAnnotation());
+        // 0x0400 - 0x0407: 第一步棋的记录；没有着法，但是注解是整个棋局的注解，需要读取出来
+        String gameAnnotation = readAnnotationInfo(stepBaseBuff, manual.getVersion(), keys);
+        manual.setAnnotation(gameAnnotation);
 
-            // 开始读取剩下的着法和注解
-            readSteps(stepBaseBuff, keys, manual, manual.getHeadMove());
-        } catch (IOException e) {
-            Log.e("XQFParser", "Error parsing header", e);
-        }
+        // 开始读取剩下的着法和注解
+        readSteps(stepBaseBuff, keys, manual, manual.getHeadMove());
         return manual;
     }
 
-    private static XQFKey initDecryptKey(byte[] cryptKeys) {
+    private static XQFKey initDecryptKey(ByteBuffer header) {
         XQFKey keys = new XQFKey();
 
-        byte headKeyMask = cryptKeys[0];
-        int headProductId = ((cryptKeys[4] & 0xFF) << 24) |
-                ((cryptKeys[3] & 0xFF) << 16) |
-                ((cryptKeys[2] & 0xFF) << 8) |
-                (cryptKeys[1] & 0xFF);
-
-        int headKeyOrA = cryptKeys[5] & 0xFF;
-        int headKeyOrB = cryptKeys[6] & 0xFF;
-        int headKeyOrC = cryptKeys[7] & 0xFF;
-        int headKeyOrD = cryptKeys[8] & 0xFF;
-        int headKeysSum = cryptKeys[9] & 0xFF;
-        int headKeyXY = cryptKeys[10] & 0xFF;
-        int headKeyXYf = cryptKeys[11] & 0xFF;
-        int headKeyXYt = cryptKeys[12] & 0xFF;
+        // 0003 - 000F: 13个字节的密钥信息
+        byte headKeyMask = header.get(OFFSET_KEYS);
+        int headProductId = header.getInt(OFFSET_KEYS + 1);
+
+        int headKeyOrA = header.get(OFFSET_KEYS + 5) & 0xFF;
+        int headKeyOrB = header.get(OFFSET_KEYS + 6) & 0xFF;
+        int headKeyOrC = header.get(OFFSET_KEYS + 7) & 0xFF;
+        int headKeyOrD = header.get(OFFSET_KEYS + 8) & 0xFF;
+        int headKeysSum = header.get(OFFSET_KEYS + 9) & 0xFF;
+        int headKeyXY = header.get(OFFSET_KEYS + 10) & 0xFF;
+        int headKeyXYf = header.get(OFFSET_KEYS + 11) & 0xFF;
+        int headKeyXYt = header.get(OFFSET_KEYS + 12) & 0xFF;
 
         // Calculate KeyXY
         int bKey = headKeyXY & 0xFF;
@@ -217,20 +216,20 @@ public class XQFParser {
         return keys;
     }
 
-    private static byte[] decryptPiecePos(byte[] manStr, int version, XQFKey keys) {
+    private static byte[] decryptPiecePos(byte[] buffer, int offset, int version, XQFKey keys) {
         byte[] tmpMan = new byte[32];
 
         if (keys == null) {
-            System.arraycopy(manStr, 0, tmpMan, 0, 32);
+            System.arraycopy(buffer, offset, tmpMan, 0, 32);
             return tmpMan;
         }
 
         // 棋子的顺序是乱的，先调整顺序
         for (int i = 0; i < 32; i++) {
             if (version >= 12) {
-                tmpMan[(keys.getKeyXY() + i + 1) & 0x1F] = manStr[i];
+                tmpMan[(keys.getKeyXY() + i + 1) & 0x1F] = buffer[offset + i];
             } else {
-                tmpMan[i] = manStr[i];
+                tmpMan[i] = buffer[offset + i];
             }
         }
 
@@ -245,28 +244,18 @@ public class XQFParser {
         return tmpMan;
     }
 
-    private static byte[] decodeBuff(XQFKey keys, byte[] buff) {
-        int nPos = 0x400;
-        byte[] deBuff = Arrays.copyOf(buff, buff.length);
-
-        for (int i = 0; i < buff.length; i++) {
-            int value = deBuff[i] & 0xFF;
-            int keyByte = keys.getF32Keys()[(nPos + i) % 32] & 0xFF;
-            deBuff[i] = (byte)((value - keyByte) & 0xFF);
-        }
-
-        return deBuff;
-    }
-
     private static String readAnnotationInfo(XQFBufferDecoder buffDecoder, int version, XQFKey keys) {
-        byte[] stepInfo = buffDecoder.readBytes(4);
+        // 前4个字节只用到第3个字节的标志位
+        buffDecoder.readByte();
+        buffDecoder.readByte();
+        int flags = buffDecoder.readByte();
+        buffDecoder.readByte();
         int annoteLen = 0;
 
         if (version <= 0x0A) {
             annoteLen = buffDecoder.readInt();
         } else {
-            stepInfo[2] &= 0xE0;
-            if ((stepInfo[2] & 0x20) != 0) {
+            if ((flags & 0x20) != 0) {
                 annoteLen = buffDecoder.readInt() - keys.getKeyRMKSize();
             }
         }
@@ -274,66 +263,68 @@ public class XQFParser {
         return annoteLen > 0 ? buffDecoder.readString(annoteLen, GB18030) : null;
     }
 
+    /*
+     * 读取所有的着法，建立着法树
+     * 文件中着法按深度优先的顺序存放：每一步之后先是它的后续着法，后续全部结束之后才是它的变着
+     * 用一个显式的栈记录还有变着没有读的父节点，不使用递归，很长的棋谱也不会栈溢出
+     */
     private static void readSteps(XQFBufferDecoder buffDecoder, XQFKey keys,
                                   XQFManual manual, XQFManual.MoveNode node) {
-        byte[] stepInfo = buffDecoder.readBytes(4);
-        if (stepInfo.length == 0) return;
-
-        // print stepInfo in hex format
-//        StringBuilder sb = new StringBuilder();
-//        for (byte b : stepInfo) {
-//            sb.append(Integer.toHexString(b & 0xFF)).append(" ");
-//        }
-//        Log.d("XQFParser", "StepInfo: " + sb.toString());
+        ArrayDeque<XQFManual.MoveNode> varParents = new ArrayDeque<>();
+        while (buffDecoder.remaining() >= 4) {
+            int stepFrom = buffDecoder.readByte();
+            int stepTo = buffDecoder.readByte();
+            int flags = buffDecoder.readByte();
+            buffDecoder.readByte();
+
+            int annoteLen = 0;
+            boolean hasNextStep = false;
+            boolean hasVarStep = false;
+
+            int moveFrom, moveTo;
+            if (manual.getVersion() <= 0x0A) {
+                // 低版本在走子数据后紧跟着注释长度，长度为0则没有注释
+                if ((flags & 0xF0) != 0) hasNextStep = true;
+                if ((flags & 0x0F) != 0) hasVarStep = true;
+                annoteLen = buffDecoder.readInt();
 
-        int annoteLen = 0;
-        boolean hasNextStep = false;
-        boolean hasVarStep = false;
-
-        int moveFrom, moveTo;
-        if (manual.getVersion() <= 0x0A) {
-            // 低版本在走子数据后紧跟着注释长度，长度为0则没有注释
-            if ((stepInfo[2] & 0xF0) != 0) hasNextStep = true;
-            if ((stepInfo[2] & 0x0F) != 0) hasVarStep = true;
-            annoteLen = buffDecoder.readInt();
+                moveFrom =  (stepFrom - 0x18) & 0xFF;
+                moveTo =  (stepTo - 0x20) & 0xFF;
+            } else {
+                // 高版本通过flag来标记有没有注释，有则紧跟着注释长度和注释字段
+                if ((flags & 0x80) != 0) hasNextStep = true; // #有后续
+                if ((flags & 0x40) != 0) hasVarStep = true; // 有变招
+                if ((flags & 0x20) != 0) { // 有注释
+                    annoteLen = buffDecoder.readInt() - keys.getKeyRMKSize();
+                }
 
-            // moveFrom = stepInfo[0] & 0xFF - 0x18; // this does not work !!!!!!, we need the parentheses
-            moveFrom =  ((stepInfo[0] & 0xFF) - 0x18) & 0xFF;
-            moveTo =  ((stepInfo[1] & 0xFF) - 0x20) & 0xFF;
-        } else {
-            // 高版本通过flag来标记有没有注释，有则紧跟着注释长度和注释字段
-            stepInfo[2] &= 0xE0;
-            if ((stepInfo[2] & 0x80) != 0) hasNextStep = true; // #有后续
-            if ((stepInfo[2] & 0x40) != 0) hasVarStep = true; // 有变招
-            if ((stepInfo[2] & 0x20) != 0) { // 有注释
-                annoteLen = buffDecoder.readInt() - keys.getKeyRMKSize();
+                moveFrom = (((stepFrom - 0x18) & 0xFF ) - keys.getKeyXYf()) & 0xFF;
+                moveTo = (((stepTo - 0x20) & 0xFF ) - keys.getKeyXYt()) & 0xFF;
             }
 
-            moveFrom = ((((stepInfo[0] & 0xFF) - 0x18) & 0xFF ) - keys.getKeyXYf()) & 0xFF;
-            moveTo = ((((stepInfo[1] & 0xFF) - 0x20) & 0xFF ) - keys.getKeyXYt()) & 0xFF;
-        }
-
-//        Log.d("XQFParser", "Move: " + moveFrom + " -> " + moveTo);
-//        Log.d("XQFParser", "HasNextStep: " + hasNextStep + ", HasVarStep: " + hasVarStep + ", AnnoteLen: " + annoteLen);
+            Position from = getPosFromValue(moveFrom);
+            Position to = getPosFromValue(moveTo);
+            Move move = new Move(from, to);
+            String annote = annoteLen > 0 ? buffDecoder.readString(annoteLen, GB18030) : null;
+            move.setComment(annote);
 
-        Position from = getPosFromValue(moveFrom);
-        Position to = getPosFromValue(moveTo);
-        Move move = new Move(from, to);
-        String annote = annoteLen > 0 ? buffDecoder.readString(annoteLen, GB18030) : null;
-        move.setComment(annote);
-//        Log.d("XQFParser", "Move: " + move);
+            // add movenode
+            XQFManual.MoveNode nextNode = new XQFManual.MoveNode(move);
+            nextNode.setParent(node);
+            node.addNextMove(nextNode);
 
-        // add movenode
-        XQFManual.MoveNode nextNode = new XQFManual.MoveNode(move);
-        nextNode.setParent(node);
-        node.addNextMove(nextNode);
-
-        if (hasNextStep) {
-            readSteps(buffDecoder, keys, manual, nextNode);
-        }
+            // 变着要等后续着法都读完之后再读
+            if (hasVarStep) {
+                varParents.push(node);
+            }
 
-        if (hasVarStep) {
-            readSteps(buffDecoder, keys, manual, node);
+            if (hasNextStep) {
+                node = nextNode;
+            } else if (!varParents.isEmpty()) {
+                node = varParents.pop();
+            } else {
+                break;
+            }
         }
     }
 
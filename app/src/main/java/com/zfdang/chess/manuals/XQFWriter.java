@@ -0,0 +1,268 @@
+package com.zfdang.chess.manuals;
+
+import android.util.Log;
+
+import com.zfdang.chess.gamelogic.Board;
+import com.zfdang.chess.gamelogic.Move;
+import com.zfdang.chess.gamelogic.Piece;
+import com.zfdang.chess.gamelogic.Position;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+/*
+ * 把XQFManual写成XQF文件，使用不加密的1.0版格式(版本号0x0A)，XQFParser可以原样读回
+ * 文件头固定0x400字节，之后按深度优先的顺序写入着法，每一步8个字节加上注释文本
+ * 着法写入一个复用的ByteBuffer，满了就写到channel，注释再长也不需要把整个文件放在内存中
+ * 同一个实例可以连续导出很多棋谱，不能在多个线程中同时使用
+ */
+public class XQFWriter {
+    private static final Charset GB18030 = Charset.forName("GB18030");
+    public static final int VERSION = 0x0A;
+
+    private static final int FLAG_NEXT = 0xF0;
+    private static final int FLAG_VARIATION = 0x0F;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+    private final CharsetEncoder encoder = GB18030.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    // 编码注释用的临时缓冲区，需要先知道长度才能写入
+    private ByteBuffer scratch = ByteBuffer.allocate(1024);
+
+    private WritableByteChannel channel;
+
+    /*
+     * 把manual写到channel，不关闭channel
+     * 棋盘上某种棋子的数量超过XQF能表示的数量(比如三个车)时返回false，这时channel中没有写入任何内容
+     */
+    public boolean write(XQFManual manual, WritableByteChannel channel) throws IOException {
+        byte[] piecePos = encodePiecePos(manual.board);
+        if (piecePos == null) {
+            return false;
+        }
+
+        this.channel = channel;
+        buffer.clear();
+        writeHeader(manual, piecePos);
+
+        // 0x0400: 第一条记录没有着法，注释是整个棋局的注释
+        XQFManual.MoveNode head = manual.getHeadMove();
+        writeStep(0x18, 0x20, head.nextMoves.isEmpty() ? 0 : FLAG_NEXT, manual.getAnnotation());
+
+        final IOException[] error = new IOException[1];
+        manual.walk(new XQFManual.MoveVisitor() {
+            @Override
+            public boolean enter(XQFManual.MoveNode node, int depth, int index) {
+                Move m = node.move;
+                if (m == null) {
+                    return true;
+                }
+                int flags = 0;
+                if (!node.nextMoves.isEmpty()) {
+                    flags |= FLAG_NEXT;
+                }
+                // 后面还有兄弟节点，读取时先读完这一步的后续，再回来读变着
+                if (node.parent != null && index < node.parent.nextMoves.size() - 1) {
+                    flags |= FLAG_VARIATION;
+                }
+                try {
+                    writeStep(posValue(m.fromPosition) + 0x18, posValue(m.toPosition) + 0x20, flags, m.getComment());
+                } catch (IOException e) {
+                    error[0] = e;
+                    return false;
+                }
+                return true;
+            }
+
+            @Override
+            public void leave(XQFManual.MoveNode node, int depth) {
+            }
+        });
+        if (error[0] != null) {
+            throw error[0];
+        }
+        flush();
+        this.channel = null;
+        return true;
+    }
+
+    /*
+     * 写入到文件，先写临时文件再改名，失败时不会留下不完整的文件
+     */
+    public boolean save(XQFManual manual, File file) {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileChannel out = new FileOutputStream(tmp).getChannel()) {
+            if (!write(manual, out)) {
+                Log.e("XQFWriter", "Too many pieces for XQF: " + file);
+                tmp.delete();
+                return false;
+            }
+        } catch (IOException e) {
+            Log.e("XQFWriter", "Failed to write: " + file, e);
+            tmp.delete();
+            return false;
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                Log.e("XQFWriter", "Failed to rename: " + tmp);
+                tmp.delete();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // 和XQFParser.getPosFromValue相反: 字节值 = X * 10 + Y，原点在左下角
+    private static int posValue(Position pos) {
+        return pos.x * 10 + (9 - pos.y);
+    }
+
+    // 按XQFParser.PIECE_KINDS的顺序给每个棋子分配一个位置，没有的棋子为0xFF
+    private static byte[] encodePiecePos(Board board) {
+        byte[] piecePos = new byte[32];
+        Arrays.fill(piecePos, (byte) 0xFF);
+        for (int x = 0; x < Board.BOARD_PIECE_WIDTH; x++) {
+            for (int y = Board.BOARD_PIECE_HEIGHT - 1; y >= 0; y--) {
+                int piece = board.getPieceByPosition(x, y);
+                if (!Piece.isValid(piece)) {
+                    continue;
+                }
+                int slot = -1;
+                for (int i = 0; i < 32; i++) {
+                    if (XQFParser.PIECE_KINDS[i] == piece && piecePos[i] == (byte) 0xFF) {
+                        slot = i;
+                        break;
+                    }
+                }
+                if (slot < 0) {
+                    return null;
+                }
+                piecePos[slot] = (byte) (x * 10 + (9 - y));
+            }
+        }
+        return piecePos;
+    }
+
+    private void writeHeader(XQFManual manual, byte[] piecePos) {
+        for (int i = 0; i < XQFParser.OFFSET_STEPS; i++) {
+            buffer.put((byte) 0);
+        }
+        buffer.put(XQFParser.OFFSET_MAGIC, (byte) 'X');
+        buffer.put(XQFParser.OFFSET_MAGIC + 1, (byte) 'Q');
+        buffer.put(XQFParser.OFFSET_VERSION, (byte) VERSION);
+        for (int i = 0; i < 32; i++) {
+            buffer.put(XQFParser.OFFSET_PIECE_POS + i, piecePos[i]);
+        }
+        buffer.put(XQFParser.OFFSET_RESULT, resultValue(manual.getResult()));
+        buffer.put(XQFParser.OFFSET_SETUP, categoryValue(manual.getCategory()));
+
+        putString(XQFParser.OFFSET_TITLE, 64, manual.getTitle());
+        putString(XQFParser.OFFSET_EVENT, 64, manual.getEvent());
+        putString(XQFParser.OFFSET_DATE, 16, manual.getDate());
+        putString(XQFParser.OFFSET_SITE, 16, manual.getSite());
+        putString(XQFParser.OFFSET_RED, 16, manual.getRed());
+        putString(XQFParser.OFFSET_BLACK, 16, manual.getBlack());
+        putString(XQFParser.OFFSET_RED_TIME, 16, manual.getRedDuration());
+        putString(XQFParser.OFFSET_BLACK_TIME, 16, manual.getBlackDuration());
+        putString(XQFParser.OFFSET_ANNOTATOR, 16, manual.getAnnotator());
+        putString(XQFParser.OFFSET_AUTHOR, 16, manual.getAuthor());
+    }
+
+    // 第一个字节是长度，超长时在字符的边界截断
+    private void putString(int offset, int size, String s) {
+        if (s == null || s.isEmpty()) {
+            return;
+        }
+        ByteBuffer field = buffer.duplicate();
+        field.limit(offset + size);
+        field.position(offset + 1);
+        encoder.reset();
+        encoder.encode(CharBuffer.wrap(s), field, true);
+        buffer.put(offset, (byte) (field.position() - offset - 1));
+    }
+
+    private static byte resultValue(String result) {
+        if ("红胜".equals(result)) {
+            return 0x01;
+        } else if ("黑胜".equals(result)) {
+            return 0x02;
+        } else if ("平局".equals(result)) {
+            return 0x03;
+        }
+        return 0x00;
+    }
+
+    private static byte categoryValue(String category) {
+        if ("布局".equals(category)) {
+            return 0x01;
+        } else if ("中局".equals(category)) {
+            return 0x02;
+        } else if ("残局".equals(category)) {
+            return 0x03;
+        }
+        return 0x00;
+    }
+
+    private void writeStep(int from, int to, int flags, String comment) throws IOException {
+        int length = 0;
+        if (comment != null && !comment.isEmpty()) {
+            encodeComment(comment);
+            length = scratch.remaining();
+        }
+        ensure(8);
+        buffer.put((byte) from);
+        buffer.put((byte) to);
+        buffer.put((byte) flags);
+        buffer.put((byte) 0);
+        buffer.putInt(length);
+        if (length > 0) {
+            // 注释可能比buffer还长，分段写入
+            while (scratch.hasRemaining()) {
+                ensure(1);
+                int n = Math.min(scratch.remaining(), buffer.remaining());
+                ByteBuffer part = scratch.duplicate();
+                part.limit(part.position() + n);
+                buffer.put(part);
+                scratch.position(scratch.position() + n);
+            }
+        }
+    }
+
+    private void encodeComment(String comment) {
+        int max = (int) (comment.length() * encoder.maxBytesPerChar()) + 1;
+        if (scratch.capacity() < max) {
+            scratch = ByteBuffer.allocate(max);
+        }
+        scratch.clear();
+        encoder.reset();
+        encoder.encode(CharBuffer.wrap(comment), scratch, true);
+        encoder.flush(scratch);
+        scratch.flip();
+    }
+
+    private void ensure(int n) throws IOException {
+        if (buffer.remaining() < n) {
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -1,9 +1,15 @@
 package com.zfdang.chess.openbook;
 
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.util.Log;
 
 import com.readystatesoftware.sqliteasset.SQLiteAssetHelper;
 
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
 // https://github.com/jgilfelt/android-sqlite-asset-helper
 public class BHDatabase extends SQLiteAssetHelper {
 
@@ -19,6 +25,8 @@ public class BHDatabase extends SQLiteAssetHelper {
 //                       [vindex] INTEGER)
 
     public static final String OPENBOOK_NAME = "桔库09.09.2023精修库";
+    // 从这个库转换出来的二进制开局库，见BinaryOpenBook
+    public static final String BOOK_ASSET = "databases/" + OPENBOOK_NAME + ".book";
     private static final String DATABASE_NAME = "桔库09.09.2023精修库.obk";
     private static final int DATABASE_VERSION = 15;
 
@@ -28,4 +36,23 @@ public class BHDatabase extends SQLiteAssetHelper {
         // Upgrades via overwrite
         setForcedUpgrade();
     }
+
+    /*
+     * 打开APK中的二进制开局库(BOOK_ASSET)，asset必须没有压缩(build.gradle.kts中的noCompress)
+     * 没有这个asset或者格式不对时返回null，由调用者改用BHOpenBook
+     * 没有打包二进制开局库是正常情况，只记一条info日志
+     * 放在这里而不是BinaryOpenBook中，BinaryOpenBook不依赖Android，可以在普通的JVM上生成和读取
+     */
+    public static BinaryOpenBook openBinaryBook(Context context) {
+        try (AssetFileDescriptor afd = context.getAssets().openFd(BOOK_ASSET);
+             FileInputStream in = afd.createInputStream()) {
+            return BinaryOpenBook.open(in.getChannel(), afd.getStartOffset(), afd.getLength(), OPENBOOK_NAME);
+        } catch (FileNotFoundException e) {
+            Log.i("BHDatabase", "No binary book in assets: " + BOOK_ASSET);
+            return null;
+        } catch (IOException e) {
+            Log.e("BHDatabase", "Failed to open asset: " + BOOK_ASSET, e);
+            return null;
+        }
+    }
 }
\ No newline at end of file
@@ -8,19 +8,30 @@ import android.util.Log;
 
 import com.zfdang.chess.gamelogic.Zobrist;
 
-import java.sql.*;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
 public class BHOpenBook extends OpenBookBase {
 
-    private Connection connection;
+    // SQL保持不变，vkey作为参数绑定，SQLite连接会缓存编译好的语句，不需要每次查询都重新编译
+    // 列的顺序固定，不需要按名字查找列的下标
+    private static final String QUERY_SQL = "select vmove, vscore, vwin, vdraw, vlost, vmemo from bhobk"
+            + " where vvalid = 1 and vkey = ? order by vscore desc, vwin desc limit 5";
+    private static final int COL_MOVE = 0;
+    private static final int COL_SCORE = 1;
+    private static final int COL_WIN = 2;
+    private static final int COL_DRAW = 3;
+    private static final int COL_LOST = 4;
+    private static final int COL_MEMO = 5;
 
     private String name;
     private BHDatabase bhDB = null;
     SQLiteDatabase db = null;
 
+    // 绑定参数的数组在查询之间复用
+    private final String[] queryArgs = new String[1];
+
     public BHOpenBook(Context context){
         // database asset file is managed by BHDatabase class
         bhDB = new BHDatabase(context);
@@ -31,30 +42,26 @@ public class BHOpenBook extends OpenBookBase {
 
 
     @Override
-    protected List<BookData> get(long vkey) {
+    protected synchronized List<BookData> get(long vkey) {
         List<BookData> list = new ArrayList<>();
-        try {
-            String sql = String.format("select * from bhobk where vvalid = 1 and vkey = %d order by vscore desc, vwin desc limit 5", vkey, vkey);
-            Log.d("BHOpenBook", "get: " + sql);
-            Cursor cursor = db.rawQuery(sql, null);
-            // iterate result
-
+        queryArgs[0] = Long.toString(vkey);
+        // cursor用完之后一定要关闭
+        try (Cursor cursor = db.rawQuery(QUERY_SQL, queryArgs)) {
             while (cursor.moveToNext()) {
                 BookData bd = new BookData();
-                int vmove = cursor.getInt(cursor.getColumnIndex("vmove"));
+                int vmove = cursor.getInt(COL_MOVE);
                 String move = Zobrist.getMoveFromVmove(vmove);
                 bd.setMove(move);
-                bd.setScore(cursor.getInt(cursor.getColumnIndex("vscore")));
-                bd.setWinRate(cursor.getDouble(cursor.getColumnIndex("vwin")));
-                bd.setDrawNum(cursor.getInt(cursor.getColumnIndex("vdraw")));
-                bd.setLoseNum(cursor.getInt(cursor.getColumnIndex("vlost")));
-                bd.setNote(cursor.getString(cursor.getColumnIndex("vmemo")));
+                bd.setScore(cursor.getInt(COL_SCORE));
+                bd.setWinRate(cursor.getDouble(COL_WIN));
+                bd.setDrawNum(cursor.getInt(COL_DRAW));
+                bd.setLoseNum(cursor.getInt(COL_LOST));
+                bd.setNote(cursor.getString(COL_MEMO));
                 bd.setSource(this.name);
                 list.add(bd);
             }
         } catch (Exception e) {
-            Log.d("BHOpenBook", "get: " + e.getMessage());
-            Log.d("BHOpenBook", "get: " + e.getStackTrace());
+            Log.e("BHOpenBook", "Failed to query vkey " + vkey, e);
         }
         return list;
     }
@@ -67,6 +74,7 @@ public class BHOpenBook extends OpenBookBase {
 
     @Override
     public void close() {
+        super.close();
         bhDB.close();
     }
 }
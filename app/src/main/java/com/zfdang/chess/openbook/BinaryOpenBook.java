@@ -0,0 +1,300 @@
+package com.zfdang.chess.openbook;
+
+import com.zfdang.chess.gamelogic.Zobrist;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/*
+ * 紧凑的二进制开局库，代替BHDatabase的SQLite库
+ * 离线把bhobk表中有效的着法转换成按vkey排序的定长记录，注释文本放在记录区后面的注释区
+ * 读取时把文件映射到内存(可以是APK中没有压缩的asset)，不需要先把数据库复制出来
+ * 查询在映射区上二分查找，只用绝对位置读取，找到之后才创建BookData
+ *
+ * 文件格式(大端):
+ *   magic, version, 记录数, 注释区的偏移, 注释区的长度
+ *   记录区: 每条记录30个字节，vkey(8) vmove(2) vscore(4) vwin(4) vdraw(4) vlost(4) 注释的偏移(4)
+ *           按vkey排序，vkey相同时和BHOpenBook的SQL一样按vscore、vwin从大到小排序
+ *   注释区: 所有注释的UTF-8编码依次相接，一条注释的长度是下一条记录的注释偏移减去它的偏移
+ *
+ * 转换(通过benchmark模块在普通的JVM上运行，带sqlite-jdbc):
+ *   ./gradlew :benchmark:convertOpenBook -Pobk=<obk文件> -Pout=<输出文件>
+ */
+public class BinaryOpenBook extends OpenBookBase {
+    private static final int BOOK_MAGIC = 0x58514F42;  // "XQOB"
+    private static final int BOOK_VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 2 + 4 + 8 + 4;
+    private static final int RECORD_SIZE = 30;
+
+    private static final int OFF_MOVE = 8;
+    private static final int OFF_SCORE = 10;
+    private static final int OFF_WIN = 14;
+    private static final int OFF_DRAW = 18;
+    private static final int OFF_LOST = 22;
+    private static final int OFF_MEMO = 26;
+
+    // 和BHOpenBook的查询一样，每个局面最多返回5个着法
+    private static final int MAX_RESULTS = 5;
+
+    private final String name;
+    private final ByteBuffer records;
+    private final int count;
+    private final ByteBuffer memos;
+    private final int memoLength;
+
+    private BinaryOpenBook(String name, ByteBuffer records, int count, ByteBuffer memos, int memoLength) {
+        this.name = name;
+        this.records = records;
+        this.count = count;
+        this.memos = memos;
+        this.memoLength = memoLength;
+    }
+
+    public int getRecordCount() {
+        return count;
+    }
+
+    public static BinaryOpenBook open(File file, String name) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            return open(channel, 0, channel.size(), name);
+        }
+    }
+
+    /*
+     * 打开文件中的一段，例如APK中没有压缩的asset(AssetFileDescriptor的startOffset和length)
+     * 通道关闭之后映射仍然有效
+     */
+    public static BinaryOpenBook open(FileChannel channel, long start, long length, String name) throws IOException {
+        if (length < HEADER_SIZE) {
+            throw new IOException("Invalid openbook");
+        }
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, start, HEADER_SIZE);
+        if (header.getInt() != BOOK_MAGIC || header.getShort() != BOOK_VERSION) {
+            throw new IOException("Invalid openbook");
+        }
+        int count = header.getInt();
+        long memoOffset = header.getLong();
+        int memoLength = header.getInt();
+        if (count < 0 || memoLength < 0 || memoOffset != HEADER_SIZE + (long) count * RECORD_SIZE
+                || memoOffset + memoLength > length) {
+            throw new IOException("Truncated openbook");
+        }
+
+        ByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY, start + HEADER_SIZE, (long) count * RECORD_SIZE);
+        ByteBuffer memos = channel.map(FileChannel.MapMode.READ_ONLY, start + memoOffset, memoLength);
+        return new BinaryOpenBook(name, records, count, memos, memoLength);
+    }
+
+    private long keyAt(int i) {
+        return records.getLong(i * RECORD_SIZE);
+    }
+
+    private int memoOffsetAt(int i) {
+        return i < count ? records.getInt(i * RECORD_SIZE + OFF_MEMO) : memoLength;
+    }
+
+    // 映射区是共享的，只用绝对位置读取，多个线程可以同时查询
+    @Override
+    protected List<BookData> get(long vkey) {
+        // 找到第一个 >= vkey 的记录
+        int lo = 0;
+        int hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keyAt(mid) < vkey) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+
+        if (lo == count || keyAt(lo) != vkey) {
+            // 大多数局面都不在开局库中，不分配列表
+            return Collections.emptyList();
+        }
+        List<BookData> list = new ArrayList<>();
+        for (int i = lo; i < count && keyAt(i) == vkey && list.size() < MAX_RESULTS; i++) {
+            int base = i * RECORD_SIZE;
+            BookData bd = new BookData();
+            bd.setMove(Zobrist.getMoveFromVmove(records.getShort(base + OFF_MOVE) & 0xFFFF));
+            bd.setScore(records.getInt(base + OFF_SCORE));
+            bd.setWinRate(records.getInt(base + OFF_WIN));
+            bd.setDrawNum(records.getInt(base + OFF_DRAW));
+            bd.setLoseNum(records.getInt(base + OFF_LOST));
+            bd.setNote(readMemo(i));
+            bd.setSource(name);
+            list.add(bd);
+        }
+        return list;
+    }
+
+    private String readMemo(int i) {
+        int start = memoOffsetAt(i);
+        int end = memoOffsetAt(i + 1);
+        byte[] bytes = new byte[end - start];
+        for (int k = 0; k < bytes.length; k++) {
+            bytes[k] = memos.get(start + k);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    protected List<BookData> get(String fenCode, boolean onlyFinalPhase) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public String toString() {
+        return "BinaryOpenBook{" + "name='" + name + '\'' + ", records=" + count + '}';
+    }
+
+    /*
+     * 离线建立二进制开局库，逐条add之后write
+     */
+    public static class Builder {
+        private long[] keys = new long[1024];
+        private int[] moves = new int[1024];
+        private int[] scores = new int[1024];
+        private int[] wins = new int[1024];
+        private int[] draws = new int[1024];
+        private int[] losts = new int[1024];
+        private String[] memos = new String[1024];
+        private int size;
+
+        public int size() {
+            return size;
+        }
+
+        public void add(long vkey, int vmove, int vscore, int vwin, int vdraw, int vlost, String memo) {
+            if (size == keys.length) {
+                int n = size * 2;
+                keys = Arrays.copyOf(keys, n);
+                moves = Arrays.copyOf(moves, n);
+                scores = Arrays.copyOf(scores, n);
+                wins = Arrays.copyOf(wins, n);
+                draws = Arrays.copyOf(draws, n);
+                losts = Arrays.copyOf(losts, n);
+                memos = Arrays.copyOf(memos, n);
+            }
+            keys[size] = vkey;
+            moves[size] = vmove;
+            scores[size] = vscore;
+            wins[size] = vwin;
+            draws[size] = vdraw;
+            losts[size] = vlost;
+            memos[size] = memo;
+            size++;
+        }
+
+        /*
+         * 排序之后写入out，先写临时文件再改名；返回写入的记录数
+         */
+        public int write(File out) throws IOException {
+            // 离线转换，按下标排序简单一些
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    if (keys[a] != keys[b]) {
+                        return keys[a] < keys[b] ? -1 : 1;
+                    }
+                    if (scores[a] != scores[b]) {
+                        return scores[a] > scores[b] ? -1 : 1;
+                    }
+                    return Integer.compare(wins[b], wins[a]);
+                }
+            });
+
+            byte[][] memoBytes = new byte[size][];
+            long memoLength = 0;
+            for (int i = 0; i < size; i++) {
+                String memo = memos[order[i]];
+                memoBytes[i] = memo == null ? new byte[0] : memo.getBytes(StandardCharsets.UTF_8);
+                memoLength += memoBytes[i].length;
+            }
+            if (memoLength > Integer.MAX_VALUE) {
+                throw new IOException("Memos too large: " + memoLength);
+            }
+
+            File tmp = new File(out.getPath() + ".tmp");
+            try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                dos.writeInt(BOOK_MAGIC);
+                dos.writeShort(BOOK_VERSION);
+                dos.writeInt(size);
+                dos.writeLong(HEADER_SIZE + (long) size * RECORD_SIZE);
+                dos.writeInt((int) memoLength);
+                int memoOffset = 0;
+                for (int i = 0; i < size; i++) {
+                    int k = order[i];
+                    dos.writeLong(keys[k]);
+                    dos.writeShort(moves[k]);
+                    dos.writeInt(scores[k]);
+                    dos.writeInt(wins[k]);
+                    dos.writeInt(draws[k]);
+                    dos.writeInt(losts[k]);
+                    dos.writeInt(memoOffset);
+                    memoOffset += memoBytes[i].length;
+                }
+                for (byte[] bytes : memoBytes) {
+                    dos.write(bytes);
+                }
+            }
+            if (!tmp.renameTo(out)) {
+                out.delete();
+                if (!tmp.renameTo(out)) {
+                    throw new IOException("Failed to write openbook: " + out);
+                }
+            }
+            return size;
+        }
+    }
+
+    /*
+     * 把BHDatabase格式的开局库(bhobk表)转换成二进制开局库，只保留vvalid = 1的着法
+     */
+    public static int convert(Connection connection, File out) throws SQLException, IOException {
+        Builder builder = new Builder();
+        try (Statement st = connection.createStatement();
+             ResultSet rs = st.executeQuery("select vkey, vmove, vscore, vwin, vdraw, vlost, vmemo from bhobk where vvalid = 1")) {
+            while (rs.next()) {
+                builder.add(rs.getLong(1), rs.getInt(2), rs.getInt(3), rs.getInt(4),
+                        rs.getInt(5), rs.getInt(6), rs.getString(7));
+            }
+        }
+        return builder.write(out);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: BinaryOpenBook <obk> <book>");
+            System.exit(2);
+        }
+        long start = System.currentTimeMillis();
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + args[0])) {
+            int count = convert(connection, new File(args[1]));
+            System.out.println("Converted " + count + " records into " + args[1]
+                    + ", elapsedMillis=" + (System.currentTimeMillis() - start));
+        }
+    }
+}
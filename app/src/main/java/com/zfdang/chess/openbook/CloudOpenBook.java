@@ -1,6 +1,8 @@
 package com.zfdang.chess.openbook;
 
 
+import android.util.Log;
+
 import com.zfdang.chess.utils.HttpUtils;
 import com.zfdang.chess.utils.StringUtils;
 
@@ -25,7 +27,6 @@ public class CloudOpenBook extends OpenBookBase {
         try {
             String content = "action=queryall&board=" + URLEncoder.encode(fenCode, "UTF-8");
             String result = HttpUtils.sendByGet(URL, content, cloudTimeout);
-            System.out.println(result);
 
             if (StringUtils.isNotEmpty(result) && result.contains("move")) {
 
@@ -58,7 +59,7 @@ public class CloudOpenBook extends OpenBookBase {
             }
 
         } catch (Exception e) {
-            e.printStackTrace();
+            Log.e("CloudOpenBook", "Failed to query: " + fenCode, e);
         }
 
         return list;
@@ -66,7 +67,7 @@ public class CloudOpenBook extends OpenBookBase {
 
     @Override
     public void close() {
-
+        super.close();
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,277 @@
+package com.zfdang.chess.openbook;
+
+import android.util.Log;
+
+import com.zfdang.chess.gamelogic.Board;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/*
+ * 把几个开局库(本地库、云库)合成一个：同时查询所有的库，在同一个时间预算内收集结果，按着法合并
+ * 每个库在自己的线程中查询，到了截止时间还没有返回的库直接放弃，不等待，也不影响走棋的时间
+ * 上一次查询还没有返回的库(比如网络很慢的云库)这一次不再查询，慢的请求不会越积越多
+ *
+ * 按FEN查询时，同时用FEN算出的vkey查询本地库，用FEN查询云库；按vkey查询时只有本地库有结果
+ * 各个库的分数不可比(本地库是按胜负统计的分数，云库是引擎的评分)，只有一个库返回了着法时原样返回；
+ * 几个库都返回了着法时，先在每个库内部按名次折算成0-100的分(第一名100，n个着法中第r名为100*(n-r)/n)，
+ * 再按库的权重加权平均，分母是返回了着法的所有库的权重之和，只有一个库有的着法也按权重折算。胜率也一样
+ * 这样权重小的库(云库)中独有的着法不会和几个库都推荐的着法平起平坐；其他信息用权重最大的库的
+ */
+public class CompositeOpenBook extends OpenBookBase {
+    public static final long DEFAULT_DEADLINE_MILLIS = 300;
+
+    private static class Source {
+        final OpenBookBase book;
+        final double weight;
+        // 上一次还没有返回的查询
+        Future<List<BookData>> running;
+        // 超过截止时间的次数、因为上一次查询还没有返回而跳过的次数
+        int late;
+        int skipped;
+
+        Source(OpenBookBase book, double weight) {
+            this.book = book;
+            this.weight = weight;
+        }
+    }
+
+    // 合并中的一个着法
+    private static class Merged {
+        final BookData data;
+        double score;
+        double winRate;
+
+        // 复制一份，不修改各个库返回的BookData(OpenBookCache中缓存的是同一个对象)
+        Merged(BookData bd) {
+            data = new BookData();
+            data.setMove(bd.getMove());
+            data.setWord(bd.getWord());
+            data.setWinNum(bd.getWinNum());
+            data.setDrawNum(bd.getDrawNum());
+            data.setLoseNum(bd.getLoseNum());
+            data.setNote(bd.getNote());
+            data.setSource(bd.getSource());
+        }
+    }
+
+    private final long deadlineMillis;
+    // 按权重从大到小排列
+    private final List<Source> sources = new ArrayList<>();
+    private final ExecutorService pool;
+
+    public CompositeOpenBook() {
+        this(DEFAULT_DEADLINE_MILLIS);
+    }
+
+    public CompositeOpenBook(long deadlineMillis) {
+        this.deadlineMillis = deadlineMillis;
+        // 每个库的查询占一个线程，空闲的线程会自动退出
+        this.pool = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "OpenBook-source");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // 权重必须大于0，查询开始之前添加
+    public void addBook(OpenBookBase book, double weight) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("weight must be positive: " + weight);
+        }
+        synchronized (sources) {
+            int i = 0;
+            while (i < sources.size() && sources.get(i).weight >= weight) {
+                i++;
+            }
+            sources.add(i, new Source(book, weight));
+        }
+    }
+
+    // 从合成的库中去掉一个库(不关闭)，正在进行的查询会在后台结束
+    public boolean removeBook(OpenBookBase book) {
+        synchronized (sources) {
+            for (int i = 0; i < sources.size(); i++) {
+                if (sources.get(i).book == book) {
+                    sources.remove(i);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    protected List<BookData> get(long vkey) {
+        return fanOut(vkey, true, null, false);
+    }
+
+    @Override
+    protected List<BookData> get(String fenCode, boolean onlyFinalPhase) {
+        Board board = new Board();
+        if (!board.restoreFromFEN(fenCode)) {
+            // 不能解析的FEN只交给云库
+            return fanOut(0, false, fenCode, onlyFinalPhase);
+        }
+        return fanOut(board.getZobrist(board.bRedGo), true, fenCode, onlyFinalPhase);
+    }
+
+    private List<BookData> fanOut(final long vkey, final boolean hasKey, final String fenCode, final boolean onlyFinalPhase) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+        List<Source> list;
+        synchronized (sources) {
+            list = new ArrayList<>(sources);
+        }
+
+        List<Future<List<BookData>>> futures = new ArrayList<>(list.size());
+        for (final Source s : list) {
+            synchronized (s) {
+                if (s.running != null && !s.running.isDone()) {
+                    s.skipped++;
+                    futures.add(null);
+                    continue;
+                }
+                s.running = pool.submit(() -> {
+                    List<BookData> result = new ArrayList<>();
+                    if (hasKey) {
+                        result.addAll(s.book.get(vkey));
+                    }
+                    if (fenCode != null) {
+                        result.addAll(s.book.get(fenCode, onlyFinalPhase));
+                    }
+                    return result;
+                });
+                futures.add(s.running);
+            }
+        }
+
+        // 按权重顺序收集，已经返回的结果在截止之后也能取到
+        List<Source> found = new ArrayList<>(list.size());
+        List<List<BookData>> results = new ArrayList<>(list.size());
+        // 返回了着法的库的权重之和
+        double totalWeight = 0;
+        for (int i = 0; i < list.size(); i++) {
+            Future<List<BookData>> f = futures.get(i);
+            if (f == null) {
+                continue;
+            }
+            Source s = list.get(i);
+            try {
+                List<BookData> data = distinct(f.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+                if (!data.isEmpty()) {
+                    found.add(s);
+                    results.add(data);
+                    totalWeight += s.weight;
+                }
+            } catch (TimeoutException e) {
+                // 不取消，让它在后台结束；返回之前这个库不再查询
+                synchronized (s) {
+                    s.late++;
+                }
+            } catch (ExecutionException e) {
+                Log.e("CompositeOpenBook", "Failed to query " + s.book, e.getCause());
+            } catch (InterruptedException e) {
+                // 查询被取消了
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        Map<String, Merged> merged = new LinkedHashMap<>();
+        if (found.size() == 1) {
+            // 只有一个库，不需要折算
+            merge(merged, found.get(0), results.get(0), false);
+            totalWeight = found.get(0).weight;
+        } else {
+            for (int i = 0; i < found.size(); i++) {
+                merge(merged, found.get(i), results.get(i), true);
+            }
+        }
+
+        List<BookData> result = new ArrayList<>(merged.size());
+        for (Merged m : merged.values()) {
+            m.data.setScore((int) Math.round(m.score / totalWeight));
+            m.data.setWinRate(m.winRate / totalWeight);
+            result.add(m.data);
+        }
+        return result;
+    }
+
+    // 去掉没有着法的记录，同一个库中重复的着法只保留第一个
+    private static List<BookData> distinct(List<BookData> data) {
+        Map<String, BookData> moves = new LinkedHashMap<>();
+        for (BookData bd : data) {
+            if (bd.getMove() != null && !moves.containsKey(bd.getMove())) {
+                moves.put(bd.getMove(), bd);
+            }
+        }
+        return new ArrayList<>(moves.values());
+    }
+
+    // byRank: 分数和胜率按在这个库中的名次折算
+    private static void merge(Map<String, Merged> merged, Source s, List<BookData> data, boolean byRank) {
+        for (BookData bd : data) {
+            Merged m = merged.get(bd.getMove());
+            if (m == null) {
+                m = new Merged(bd);
+                merged.put(bd.getMove(), m);
+            } else if (bd.getSource() != null
+                    && (m.data.getSource() == null || !m.data.getSource().contains(bd.getSource()))) {
+                m.data.setSource(m.data.getSource() == null ? bd.getSource() : m.data.getSource() + "/" + bd.getSource());
+            }
+            if (byRank) {
+                // 分数(胜率)比它高的着法数就是名次，分数相同的名次相同
+                int scoreRank = 0;
+                int winRank = 0;
+                for (BookData other : data) {
+                    if (other.getScore() > bd.getScore()) {
+                        scoreRank++;
+                    }
+                    if (other.getWinRate() > bd.getWinRate()) {
+                        winRank++;
+                    }
+                }
+                m.score += s.weight * 100.0 * (data.size() - scoreRank) / data.size();
+                m.winRate += s.weight * 100.0 * (data.size() - winRank) / data.size();
+            } else {
+                m.score += s.weight * bd.getScore();
+                m.winRate += s.weight * bd.getWinRate();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        pool.shutdownNow();
+        synchronized (sources) {
+            for (Source s : sources) {
+                s.book.close();
+            }
+            sources.clear();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("CompositeOpenBook{");
+        synchronized (sources) {
+            for (int i = 0; i < sources.size(); i++) {
+                Source s = sources.get(i);
+                synchronized (s) {
+                    sb.append(i == 0 ? "" : ", ").append(s.book).append(" x").append(s.weight)
+                            .append(" late=").append(s.late).append(" skipped=").append(s.skipped);
+                }
+            }
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -5,6 +5,7 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Future;
 
 public interface OpenBook {
 
@@ -21,6 +22,15 @@ public interface OpenBook {
     // for cloud openbook
     public List<BookData> query(String fenCode, boolean onlyFinalPhase, SortRule rule);
 
+    // 在后台线程中查询，结果通过listener返回(在后台线程中回调)
+    // 新的查询会取消同一个开局库中还没有返回的查询，被取消的查询不会回调；查询失败时回调空列表
+    public Future<?> queryAsync(long vkey, boolean redGo, SortRule rule, OpenBookListener listener);
+
+    public Future<?> queryAsync(String fenCode, boolean onlyFinalPhase, SortRule rule, OpenBookListener listener);
+
+    // 取消还没有返回的查询，局面变化(悔棋、新开局)时调用
+    public void cancelQueries();
+
     // close database
     public void close();
 }
@@ -1,13 +1,26 @@
 package com.zfdang.chess.openbook;
 
+import android.util.Log;
+
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 abstract public class OpenBookBase implements OpenBook{
 
+    // 每个开局库一个后台线程，查询按顺序执行，第一次异步查询时才创建
+    private ExecutorService executor;
+    // 每次异步查询加一，回调之前检查，过时的结果直接丢弃
+    private int generation;
+    private Future<?> pending;
+
     abstract protected List<BookData> get(long vkey);
 
     abstract protected List<BookData> get(String fenCode, boolean onlyFinalPhase);
@@ -26,6 +39,77 @@ abstract public class OpenBookBase implements OpenBook{
         return list;
     }
 
+    @Override
+    public Future<?> queryAsync(final long vkey, final boolean redGo, final SortRule rule, OpenBookListener listener) {
+        return submit(new Callable<List<BookData>>() {
+            @Override
+            public List<BookData> call() {
+                return query(vkey, redGo, rule);
+            }
+        }, listener);
+    }
+
+    @Override
+    public Future<?> queryAsync(final String fenCode, final boolean onlyFinalPhase, final SortRule rule, OpenBookListener listener) {
+        return submit(new Callable<List<BookData>>() {
+            @Override
+            public List<BookData> call() {
+                return query(fenCode, onlyFinalPhase, rule);
+            }
+        }, listener);
+    }
+
+    private synchronized Future<?> submit(final Callable<List<BookData>> task, final OpenBookListener listener) {
+        cancelQueries();
+        final int id = generation;
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "OpenBook");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        pending = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (!isCurrent(id)) {
+                    return;
+                }
+                List<BookData> list;
+                try {
+                    list = task.call();
+                } catch (Exception e) {
+                    Log.e("OpenBook", "Failed to query openbook", e);
+                    list = Collections.emptyList();
+                }
+                ArrayList<BookData> data = new ArrayList<>(list);
+                // 在锁中检查并回调，cancelQueries返回之后不会再收到过时的结果
+                // 回调要尽快返回，不能等待可能调用cancelQueries的线程；转到其他线程处理时要自己再检查一次
+                synchronized (OpenBookBase.this) {
+                    // 查询期间局面已经变了
+                    if (!isCurrent(id)) {
+                        return;
+                    }
+                    listener.onBookData(data);
+                }
+            }
+        });
+        return pending;
+    }
+
+    private synchronized boolean isCurrent(int id) {
+        return id == generation && !Thread.currentThread().isInterrupted();
+    }
+
+    @Override
+    public synchronized void cancelQueries() {
+        generation++;
+        if (pending != null) {
+            pending.cancel(true);
+            pending = null;
+        }
+    }
+
     void sort(List<BookData> list, SortRule rule) {
         Collections.sort(list, new Comparator<BookData>() {
             private Random rd = new SecureRandom();
@@ -64,8 +148,18 @@ abstract public class OpenBookBase implements OpenBook{
         });
     }
 
+    // 子类重写close时要调用super.close()，停止后台线程
     @Override
     public void close() {
-
+        ExecutorService e;
+        synchronized (this) {
+            generation++;
+            pending = null;
+            e = executor;
+            executor = null;
+        }
+        if (e != null) {
+            e.shutdownNow();
+        }
     }
 }
@@ -0,0 +1,502 @@
+package com.zfdang.chess.openbook;
+
+import android.util.Log;
+
+import com.zfdang.chess.gamelogic.Board;
+import com.zfdang.chess.gamelogic.Move;
+import com.zfdang.chess.gamelogic.Piece;
+import com.zfdang.chess.gamelogic.Rule;
+import com.zfdang.chess.manuals.PGNReader;
+import com.zfdang.chess.manuals.XQFManual;
+import com.zfdang.chess.manuals.XQFParser;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * 从棋谱库生成开局库：重放每个XQF棋谱和PGN棋局的着法树(包括变着)，按 (局面, 着法) 统计走子方的胜、和、负局数
+ * 局面用Board.getZobrist(走子方)，着法用BHDatabase的vmove编码，和BHOpenBook的查询一致；结果未知的棋局不统计
+ *
+ * 每个工作线程依次取一个文件，一局一局地读和重放，统计到自己的表中，不需要加锁
+ * 每个线程的表按vkey的高位分成SHARDS个分片，最后各个分片由线程池并行合并，一个局面的所有着法在同一个分片中
+ *
+ * 输出为bhobk表(BHOpenBook)，或者BinaryOpenBook的二进制开局库；.obk必须是新的或者bhobk表为空的数据库，不会追加到已有的开局库中
+ * 用到android.util.Log，在普通的JVM上通过benchmark模块运行(用其中的Log代替，带sqlite-jdbc):
+ *   ./gradlew :benchmark:buildOpenBook -Pdir=<目录> -Pout=<输出.obk|输出.book> [-Pthreads=线程数]
+ */
+public class OpenBookBuilder {
+    public static class Report {
+        public int files;
+        public int games;
+        // 结果未知、没有统计的棋局
+        public int skippedGames;
+        // 无法读取或解析的文件
+        public final List<String> parseFailures = new ArrayList<>();
+        // 统计的着法数，同一局中重复出现的 (局面, 着法) 只算一次
+        public long moves;
+        // 合并之后不同的 (局面, 着法) 数
+        public int entries;
+        public long elapsedMillis;
+
+        @Override
+        public String toString() {
+            return "Report{" +
+                    "files=" + files +
+                    ", games=" + games +
+                    ", skippedGames=" + skippedGames +
+                    ", parseFailures=" + parseFailures.size() +
+                    ", moves=" + moves +
+                    ", entries=" + entries +
+                    ", elapsedMillis=" + elapsedMillis +
+                    '}';
+        }
+    }
+
+    // 分片数，取vkey的高SHARD_BITS位
+    private static final int SHARD_BITS = 6;
+    private static final int SHARDS = 1 << SHARD_BITS;
+
+    public static final int DEFAULT_MAX_PLY = 40;
+    public static final int DEFAULT_MIN_GAMES = 2;
+    // 计算分数时相当于多了这么多局和棋，只有几局的着法不会排到前面
+    private static final int SCORE_PRIOR = 10;
+
+    private final int threads;
+    private int maxPly = DEFAULT_MAX_PLY;
+    private int minGames = DEFAULT_MIN_GAMES;
+    // build之后每个分片合并好的统计
+    private MoveTable[] shards;
+
+    public OpenBookBuilder(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    // 只统计前maxPly步
+    public void setMaxPly(int maxPly) {
+        this.maxPly = maxPly;
+    }
+
+    // 出现次数少于minGames局的着法不写入开局库
+    public void setMinGames(int minGames) {
+        this.minGames = Math.max(1, minGames);
+    }
+
+    /*
+     * 统计root目录下的所有棋谱，比较耗时，应该在后台线程中调用
+     * 之后用writeBook或者writeDatabase输出
+     */
+    public Report build(File root) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        final List<File> files = listManuals(root);
+        final AtomicInteger next = new AtomicInteger();
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Worker>> futures = new ArrayList<>(threads);
+            for (int i = 0; i < threads; i++) {
+                futures.add(pool.submit(() -> {
+                    Worker w = new Worker();
+                    int index;
+                    while ((index = next.getAndIncrement()) < files.size()) {
+                        w.addFile(files.get(index));
+                    }
+                    return w;
+                }));
+            }
+            final Worker[] workers = new Worker[threads];
+            for (int i = 0; i < threads; i++) {
+                workers[i] = get(futures.get(i));
+            }
+
+            // 每个分片把所有线程的统计合并到第一个线程的表中
+            List<Future<MoveTable>> merges = new ArrayList<>(SHARDS);
+            for (int s = 0; s < SHARDS; s++) {
+                final int shard = s;
+                merges.add(pool.submit(() -> {
+                    MoveTable merged = workers[0].shards[shard];
+                    for (int w = 1; w < workers.length; w++) {
+                        merged.addAll(workers[w].shards[shard]);
+                        workers[w].shards[shard] = null;
+                    }
+                    return merged;
+                }));
+            }
+            shards = new MoveTable[SHARDS];
+            Report report = new Report();
+            for (int s = 0; s < SHARDS; s++) {
+                shards[s] = get(merges.get(s));
+                report.entries += shards[s].size;
+            }
+
+            for (Worker w : workers) {
+                report.files += w.files;
+                report.games += w.games;
+                report.skippedGames += w.skippedGames;
+                report.moves += w.moves;
+                report.parseFailures.addAll(w.parseFailures);
+            }
+            Collections.sort(report.parseFailures);
+            report.elapsedMillis = System.currentTimeMillis() - start;
+            return report;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static <T> T get(Future<T> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /*
+     * 对每个 (局面, 着法) 调用visitor，只包括至少minGames局的着法
+     * 胜负是走子方的，分数 = (胜 - 负) * 100 / (局数 + SCORE_PRIOR)，局数少的着法分数向0收缩
+     */
+    public interface RecordVisitor {
+        void visit(long vkey, int vmove, int vscore, int vwin, int vdraw, int vlost) throws Exception;
+    }
+
+    public int forEach(RecordVisitor visitor) throws Exception {
+        if (shards == null) {
+            throw new IllegalStateException("build() has not been called");
+        }
+        int count = 0;
+        for (MoveTable t : shards) {
+            for (int i = 0; i < t.moves.length; i++) {
+                if (t.moves[i] == 0) {
+                    continue;
+                }
+                int win = t.wins[i];
+                int draw = t.draws[i];
+                int lost = t.losses[i];
+                int games = win + draw + lost;
+                if (games < minGames) {
+                    continue;
+                }
+                visitor.visit(t.keys[i], t.moves[i], (win - lost) * 100 / (games + SCORE_PRIOR), win, draw, lost);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // 写成BinaryOpenBook的二进制开局库，返回记录数
+    public int writeBook(File out) throws Exception {
+        final BinaryOpenBook.Builder builder = new BinaryOpenBook.Builder();
+        forEach((vkey, vmove, vscore, vwin, vdraw, vlost) -> builder.add(vkey, vmove, vscore, vwin, vdraw, vlost, null));
+        return builder.write(out);
+    }
+
+    /*
+     * 写入bhobk表，表不存在时按BHDatabase中的结构创建；在一个事务中批量插入，返回记录数
+     * 表中已经有记录时抛出IllegalStateException，不写入：追加会让同一个 (局面, 着法) 出现两次
+     */
+    public int writeDatabase(Connection connection) throws Exception {
+        try (Statement st = connection.createStatement()) {
+            st.executeUpdate("CREATE TABLE IF NOT EXISTS bhobk([id] INTEGER PRIMARY KEY AUTOINCREMENT,"
+                    + " [vkey] INTEGER, [vmove] INTEGER, [vscore] INTEGER, [vwin] INTEGER, [vdraw] INTEGER,"
+                    + " [vlost] INTEGER, [vvalid] INTEGER, [vmemo] BLOB, [vindex] INTEGER)");
+            try (ResultSet rs = st.executeQuery("select 1 from bhobk limit 1")) {
+                if (rs.next()) {
+                    throw new IllegalStateException("Table bhobk is not empty, write into a new database");
+                }
+            }
+            st.executeUpdate("CREATE INDEX IF NOT EXISTS bhobk_vkey ON bhobk(vkey)");
+        }
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try (final PreparedStatement insert = connection.prepareStatement(
+                "insert into bhobk(vkey, vmove, vscore, vwin, vdraw, vlost, vvalid, vindex) values (?, ?, ?, ?, ?, ?, 1, 0)")) {
+            final int[] pending = new int[1];
+            int count = forEach((vkey, vmove, vscore, vwin, vdraw, vlost) -> {
+                insert.setLong(1, vkey);
+                insert.setInt(2, vmove);
+                insert.setInt(3, vscore);
+                insert.setInt(4, vwin);
+                insert.setInt(5, vdraw);
+                insert.setInt(6, vlost);
+                insert.addBatch();
+                if (++pending[0] == 10000) {
+                    insert.executeBatch();
+                    pending[0] = 0;
+                }
+            });
+            insert.executeBatch();
+            connection.commit();
+            return count;
+        } catch (Exception e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    // 用栈遍历目录，结果按路径排序
+    static List<File> listManuals(File root) {
+        List<File> result = new ArrayList<>();
+        ArrayDeque<File> dirs = new ArrayDeque<>();
+        dirs.push(root);
+        while (!dirs.isEmpty()) {
+            File[] files = dirs.pop().listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File f : files) {
+                String name = f.getName().toLowerCase();
+                if (f.isDirectory()) {
+                    dirs.push(f);
+                } else if (name.endsWith(".xqf") || name.endsWith(".pgn")) {
+                    result.add(f);
+                }
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    // BHDatabase的vmove: 高8位是终点，低8位是起点，Board的下标和c90的编码一致
+    static int toVmove(int from, int to) {
+        return to << 8 | from;
+    }
+
+    // 一个工作线程的统计，只在这个线程中访问
+    private class Worker {
+        final MoveTable[] shards = new MoveTable[SHARDS];
+        final List<String> parseFailures = new ArrayList<>();
+        int files;
+        int games;
+        int skippedGames;
+        long moves;
+
+        Worker() {
+            for (int s = 0; s < SHARDS; s++) {
+                shards[s] = new MoveTable();
+            }
+        }
+
+        void addFile(File f) {
+            files++;
+            try {
+                if (f.getName().toLowerCase().endsWith(".xqf")) {
+                    XQFManual manual = XQFParser.parse(XQFParser.readFile(f));
+                    if (manual == null) {
+                        parseFailures.add(f.getPath());
+                        return;
+                    }
+                    addManual(manual);
+                } else {
+                    // 一局一局地读，大的PGN文件也不会全部读到内存中
+                    try (PGNReader reader = new PGNReader(new FileInputStream(f))) {
+                        XQFManual game;
+                        while ((game = reader.next()) != null) {
+                            addManual(game);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                Log.e("OpenBookBuilder", "Failed to read: " + f, e);
+                parseFailures.add(f.getPath());
+            }
+        }
+
+        void addManual(XQFManual manual) {
+            games++;
+            // 红方的结果: 1胜 0和 -1负
+            final int redResult;
+            if ("红胜".equals(manual.getResult())) {
+                redResult = 1;
+            } else if ("黑胜".equals(manual.getResult())) {
+                redResult = -1;
+            } else if ("平局".equals(manual.getResult())) {
+                redResult = 0;
+            } else {
+                skippedGames++;
+                return;
+            }
+
+            // 同一局的着法树中重复出现的 (局面, 着法) 只算一次，用局号区分
+            final int gameId = games;
+            final Board b = new Board(manual.board);
+            b.bRedGo = manual.isRedFirst();
+            manual.walk(new XQFManual.MoveVisitor() {
+                @Override
+                public boolean enter(XQFManual.MoveNode node, int depth, int index) {
+                    Move m = node.move;
+                    // 返回false会结束整个遍历，超过maxPly的着法只是跳过，leave中也不撤销
+                    if (m == null || depth > maxPly) {
+                        return true;
+                    }
+                    // 不合规则的着法(包括不是走子方的棋子)之后都无法重放了
+                    if (!Rule.isValidMove(m, b)) {
+                        return false;
+                    }
+                    int piece = b.getPieceByPosition(m.fromPosition);
+                    boolean red = b.bRedGo;
+                    if (Piece.isRed(piece) != red) {
+                        return false;
+                    }
+                    int from = Board.toSquare(m.fromPosition.x, m.fromPosition.y);
+                    int to = Board.toSquare(m.toPosition.x, m.toPosition.y);
+                    long vkey = b.getZobrist(red);
+                    if (shards[shardOf(vkey)].add(vkey, toVmove(from, to), gameId, red ? redResult : -redResult)) {
+                        moves++;
+                    }
+                    b.makeMove(Rule.encodeMove(from, to, piece, b.getPieceByPosition(m.toPosition)));
+                    return true;
+                }
+
+                @Override
+                public void leave(XQFManual.MoveNode node, int depth) {
+                    if (node.move != null && depth <= maxPly) {
+                        b.unmakeMove();
+                    }
+                }
+            });
+        }
+    }
+
+    static int shardOf(long vkey) {
+        return (int) (vkey >>> (64 - SHARD_BITS));
+    }
+
+    /*
+     * (vkey, vmove) -> 胜、和、负局数的开放寻址哈希表，用并行的基本类型数组，不为每个着法创建对象
+     * vmove为0表示空位，合法着法的起点和终点都在棋盘内，vmove不会是0
+     */
+    static final class MoveTable {
+        long[] keys;
+        int[] moves;
+        int[] wins;
+        int[] draws;
+        int[] losses;
+        // 最后一次统计这个着法的局号
+        int[] lastGame;
+        int size;
+
+        MoveTable() {
+            allocate(256);
+        }
+
+        private void allocate(int capacity) {
+            keys = new long[capacity];
+            moves = new int[capacity];
+            wins = new int[capacity];
+            draws = new int[capacity];
+            losses = new int[capacity];
+            lastGame = new int[capacity];
+        }
+
+        private int find(long key, int move) {
+            int mask = keys.length - 1;
+            long h = (key ^ move * 0x9E3779B97F4A7C15L) * 0xC2B2AE3D27D4EB4FL;
+            int i = (int) (h >>> 32) & mask;
+            while (moves[i] != 0 && (keys[i] != key || moves[i] != move)) {
+                i = (i + 1) & mask;
+            }
+            return i;
+        }
+
+        private int slot(long key, int move) {
+            // 装填因子不超过1/2
+            if (size * 2 >= keys.length) {
+                grow();
+            }
+            int i = find(key, move);
+            if (moves[i] == 0) {
+                keys[i] = key;
+                moves[i] = move;
+                size++;
+            }
+            return i;
+        }
+
+        // 同一局已经统计过时返回false
+        boolean add(long key, int move, int game, int result) {
+            int i = slot(key, move);
+            if (lastGame[i] == game) {
+                return false;
+            }
+            lastGame[i] = game;
+            count(i, result > 0 ? 1 : 0, result == 0 ? 1 : 0, result < 0 ? 1 : 0);
+            return true;
+        }
+
+        private void count(int i, int win, int draw, int lost) {
+            wins[i] += win;
+            draws[i] += draw;
+            losses[i] += lost;
+        }
+
+        void addAll(MoveTable other) {
+            for (int j = 0; j < other.moves.length; j++) {
+                if (other.moves[j] != 0) {
+                    count(slot(other.keys[j], other.moves[j]), other.wins[j], other.draws[j], other.losses[j]);
+                }
+            }
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldMoves = moves;
+            int[] oldWins = wins;
+            int[] oldDraws = draws;
+            int[] oldLosses = losses;
+            int[] oldLastGame = lastGame;
+            allocate(oldKeys.length * 2);
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldMoves[j] != 0) {
+                    int i = find(oldKeys[j], oldMoves[j]);
+                    keys[i] = oldKeys[j];
+                    moves[i] = oldMoves[j];
+                    wins[i] = oldWins[j];
+                    draws[i] = oldDraws[j];
+                    losses[i] = oldLosses[j];
+                    lastGame[i] = oldLastGame[j];
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: OpenBookBuilder <dir> <out.obk|out.book> [threads]  (out.obk must be new or have an empty bhobk table)");
+            System.exit(2);
+        }
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        OpenBookBuilder builder = new OpenBookBuilder(threads);
+        Report report = builder.build(new File(args[0]));
+        for (String path : report.parseFailures) {
+            System.out.println("PARSE FAILED: " + path);
+        }
+        System.out.println(report);
+
+        int count;
+        if (args[1].toLowerCase().endsWith(".book")) {
+            count = builder.writeBook(new File(args[1]));
+        } else {
+            try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + args[1])) {
+                count = builder.writeDatabase(connection);
+            }
+        }
+        System.out.println("Wrote " + count + " records into " + args[1]);
+    }
+}
@@ -0,0 +1,109 @@
+package com.zfdang.chess.openbook;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * 开局库查询的内存缓存，放在BHOpenBook等本地库的前面
+ * 按vkey(局面的Zobrist值)缓存解码之后的BookData列表，没有着法的局面也缓存，超过容量时淘汰最久没有用过的局面
+ * 自动对弈时每一步都要查开局库，悔棋、换边之后又会回到查过的局面，命中时不需要再查数据库
+ * 云库的查询(按FEN)不缓存，直接转给被缓存的开局库
+ */
+public class OpenBookCache extends OpenBookBase {
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private final OpenBookBase book;
+    private final LinkedHashMap<Long, List<BookData>> cache;
+    private int hits;
+    private int misses;
+
+    public OpenBookCache(OpenBookBase book) {
+        this(book, DEFAULT_CAPACITY);
+    }
+
+    public OpenBookCache(OpenBookBase book, final int capacity) {
+        this.book = book;
+        // accessOrder为true时，get会把局面移到最后，最前面的就是最久没有用过的
+        this.cache = new LinkedHashMap<Long, List<BookData>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, List<BookData>> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /*
+     * 返回列表的副本，query会按SortRule对它排序，不影响缓存中的顺序
+     */
+    @Override
+    protected List<BookData> get(long vkey) {
+        List<BookData> list;
+        synchronized (cache) {
+            list = cache.get(vkey);
+            if (list != null) {
+                hits++;
+                return new ArrayList<>(list);
+            }
+            misses++;
+        }
+
+        // 查数据库时不持有锁
+        list = Collections.unmodifiableList(new ArrayList<>(book.get(vkey)));
+        synchronized (cache) {
+            cache.put(vkey, list);
+        }
+        return new ArrayList<>(list);
+    }
+
+    @Override
+    protected List<BookData> get(String fenCode, boolean onlyFinalPhase) {
+        return book.get(fenCode, onlyFinalPhase);
+    }
+
+    public int getHits() {
+        synchronized (cache) {
+            return hits;
+        }
+    }
+
+    public int getMisses() {
+        synchronized (cache) {
+            return misses;
+        }
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+            hits = 0;
+            misses = 0;
+        }
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        clear();
+        book.close();
+    }
+
+    @Override
+    public String toString() {
+        synchronized (cache) {
+            return "OpenBookCache{" +
+                    "size=" + cache.size() +
+                    ", hits=" + hits +
+                    ", misses=" + misses +
+                    '}';
+        }
+    }
+}
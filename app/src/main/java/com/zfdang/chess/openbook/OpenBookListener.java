@@ -5,5 +5,6 @@ import java.util.List;
 
 public interface OpenBookListener {
     // this method might be called multiple, please handle it properly
+    // 在开局库的后台线程中调用，调用时持有开局库的锁：cancelQueries之后不会再被调用，但是要尽快返回
     public void onBookData(ArrayList<BookData> data);
 }
@@ -0,0 +1,41 @@
+package com.zfdang.chess;
+
+import com.zfdang.chess.gamelogic.Board;
+import com.zfdang.chess.gamelogic.Rule;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/*
+ * 单元测试共用的工具：读取和复制app的assets中的棋谱，着法转成ucci字符串
+ */
+public final class TestUtils {
+    // 单元测试的工作目录是app模块
+    public static final String ASSETS = "src/main/assets/";
+
+    private TestUtils() {
+    }
+
+    public static byte[] readAsset(String name) throws IOException {
+        return Files.readAllBytes(Paths.get(ASSETS, name));
+    }
+
+    // 把assets中的name复制到dest，需要时建立上级目录
+    public static void copyAsset(String name, File dest) throws IOException {
+        dest.getParentFile().mkdirs();
+        Files.copy(Paths.get(ASSETS, name), dest.toPath());
+    }
+
+    // Rule.encodeMove编码的着法转成ucci字符串，比如"h2e2"，0返回""
+    public static String ucci(int move) {
+        if (move == 0) {
+            return "";
+        }
+        int from = Rule.getMoveFrom(move);
+        int to = Rule.getMoveTo(move);
+        return String.format("%c%d%c%d", 'a' + Board.squareX(from), 9 - Board.squareY(from),
+                'a' + Board.squareX(to), 9 - Board.squareY(to));
+    }
+}
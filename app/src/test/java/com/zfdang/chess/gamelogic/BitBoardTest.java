@@ -0,0 +1,98 @@
+package com.zfdang.chess.gamelogic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class BitBoardTest {
+
+    private static final String MIDDLE_GAME = "r1ba1a3/4kn3/2n1b4/pNp1p1p1p/4c4/6P2/P1P2R2P/1CcC5/9/2BAKAB2 w - - 0 1";
+
+    private static BitBoard fromFEN(String fen) {
+        Board board = new Board();
+        assertTrue(board.restoreFromFEN(fen));
+        return new BitBoard(board);
+    }
+
+    @Test
+    public void testConvertBoard() {
+        Board board = new Board();
+        board.restoreFromFEN(MIDDLE_GAME);
+        board.score = 12.5f;
+        BitBoard bb = new BitBoard(board);
+        assertEquals(Piece.WJU, bb.getPiece(BitBoard.square(5, 6)));
+
+        Board back = bb.toBoard();
+        assertEquals(board.toFENString(), back.toFENString());
+        assertEquals(board.getZobrist(true), back.getZobrist(true));
+        assertEquals(12.5f, back.score, 0);
+    }
+
+    @Test
+    public void testPerft() {
+        BitBoard bb = fromFEN(Perft.START_FEN);
+        assertEquals(44, bb.perft(1));
+        assertEquals(1920, bb.perft(2));
+        assertEquals(79666, bb.perft(3));
+        assertEquals(Perft.START_FEN, bb.toBoard().toFENString());
+
+        assertEquals(43929, fromFEN(MIDDLE_GAME).perft(3));
+    }
+
+    // 随机走棋，每一步都和Rule生成的合法走法比较
+    @Test
+    public void testSameMovesAsRule() {
+        Random random = new Random(8);
+        int[] ruleMoves = new int[Rule.MAX_GEN_MOVES];
+        int[] bitMoves = new int[Rule.MAX_GEN_MOVES];
+        for (int game = 0; game < 20; game++) {
+            Board board = new Board();
+            BitBoard bb = new BitBoard(board);
+            for (int ply = 0; ply < 120; ply++) {
+                boolean red = board.bRedGo;
+                int n = Rule.generateLegalMoves(board, red, ruleMoves);
+                int m = bb.generateLegalMoves(red, bitMoves);
+                assertEquals(n, m);
+                for (int i = 0; i < m; i++) {
+                    int move = bitMoves[i];
+                    bitMoves[i] = Rule.encodeMove(BitBoard.toBoardSquare(Rule.getMoveFrom(move)),
+                            BitBoard.toBoardSquare(Rule.getMoveTo(move)), Rule.getMovePiece(move), Rule.getMoveCaptured(move));
+                }
+                int[] expected = Arrays.copyOf(ruleMoves, n);
+                int[] actual = Arrays.copyOf(bitMoves, m);
+                Arrays.sort(expected);
+                Arrays.sort(actual);
+                assertTrue(Arrays.equals(expected, actual));
+                assertEquals(board.getAttackMap().isInCheck(red), bb.isInCheck(red));
+                if (n == 0) {
+                    assertTrue(bb.isDead(red));
+                    break;
+                }
+                int move = ruleMoves[random.nextInt(n)];
+                board.makeMove(move);
+                bb.makeMove(Rule.encodeMove(BitBoard.fromBoardSquare(Rule.getMoveFrom(move)),
+                        BitBoard.fromBoardSquare(Rule.getMoveTo(move)), Rule.getMovePiece(move), Rule.getMoveCaptured(move)));
+            }
+            assertEquals(board.toFENString(), bb.toBoard().toFENString());
+        }
+    }
+
+    @Test
+    public void testCheckmate() {
+        // 双车错：一车将军，一车封住下一行，帅控制中路
+        BitBoard bb = fromFEN("R2k5/R8/9/9/9/9/9/9/9/4K4 b - - 0 1");
+        assertTrue(bb.isInCheck(false));
+        assertTrue(bb.isCheckmate(false));
+        assertFalse(bb.isLegalMove(BitBoard.square(3, 0), BitBoard.square(4, 0)));
+
+        bb = fromFEN(Perft.START_FEN);
+        assertFalse(bb.isCheckmate(true));
+        assertTrue(bb.isLegalMove(BitBoard.square(7, 7), BitBoard.square(4, 7)));
+        assertFalse(bb.isLegalMove(BitBoard.square(7, 7), BitBoard.square(7, 1)));
+    }
+}
@@ -2,10 +2,13 @@ package com.zfdang.chess.gamelogic;
 
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import org.junit.Test;
 
+import java.util.ArrayList;
+
 public class BoardTest {
 
     @Test
@@ -16,6 +19,40 @@ public class BoardTest {
         assertEquals(expectedFEN, actualFEN);
     }
 
+    @Test
+    public void testRestoreFromInvalidFEN() {
+        Board board = new Board();
+        String fen = "r1ba1a3/4kn3/2n1b4/pNp1p1p1p/4c4/6P2/P1P2R2P/1CcC5/9/2BAKAB2 b - - 0 5";
+        assertTrue(board.restoreFromFEN(fen));
+        long key = board.getZobrist(false);
+
+        String[] invalid = {
+                // 某一行超过9列
+                "rnbakabnr/9/1c5c1/p1p1p1p1p/9/9/P1P1P1P1P/1C5C1/9/RNBAKABNRR w - - 0 1",
+                "rnbakabnr/9/1c5c1/p1p1p1p1p/9/9/P1P1P1P1P/1C5C2/9/RNBAKABNR w - - 0 1",
+                "rnbakabnr/91/1c5c1/p1p1p1p1p/9/9/P1P1P1P1P/1C5C1/9/RNBAKABNR w - - 0 1",
+                // 某一行不足9列
+                "rnbakabnr/8/1c5c1/p1p1p1p1p/9/9/P1P1P1P1P/1C5C1/9/RNBAKABNR w - - 0 1",
+                "rnbakabnr/9/1c5c1/p1p1p1p1p/9/9/P1P1P1P1P/1C5C1/9/RNBAKABN w - - 0 1",
+                // 超过10行、不足10行
+                "rnbakabnr/9/1c5c1/p1p1p1p1p/9/9/P1P1P1P1P/1C5C1/9/RNBAKABNR/9 w - - 0 1",
+                "rnbakabnr/9/1c5c1/p1p1p1p1p/9/9/P1P1P1P1P/1C5C1/9/RNBAKABNR/9/9/9/9 w - - 0 1",
+                "rnbakabnr/9/1c5c1/p1p1p1p1p/9/9/P1P1P1P1P/1C5C1/RNBAKABNR w - - 0 1",
+                // 不认识的棋子
+                "rnbakabnr/9/1c5c1/p1p1p1p1p/9/9/P1P1P1P1P/1C5C1/9/RNBAKABNX w - - 0 1",
+                "rnbakabnr/9/1c5c1/p1p1p1p1p/9/9/P1P1P1P1P/1C5C1/9/RNBAKAB0NR w - - 0 1",
+                // 走子方、回合数不对
+                "rnbakabnr/9/1c5c1/p1p1p1p1p/9/9/P1P1P1P1P/1C5C1/9/RNBAKABNR x - - 0 1",
+                "rnbakabnr/9/1c5c1/p1p1p1p1p/9/9/P1P1P1P1P/1C5C1/9/RNBAKABNR w - - 0 a",
+        };
+        for (String s : invalid) {
+            assertFalse(s, board.restoreFromFEN(s));
+            // 失败时棋盘保持不变
+            assertEquals(s, fen, board.toFENString());
+            assertEquals(s, key, board.getZobrist(false));
+        }
+    }
+
     @Test
     public void testRestoreFromFEN() {
         Board board = new Board();
@@ -26,6 +63,106 @@ public class BoardTest {
         assertEquals(fenString, board.toFENString());
     }
 
+    @Test
+    public void testIncrementalZobrist() {
+        Board board = new Board();
+        assertEquals(Zobrist.getZobristFromBoard(board, true), board.getZobrist(true));
+
+        assertTrue(board.doMoveFromString("h2e2"));
+        assertTrue(board.doMoveFromString("h9g7"));
+        assertTrue(board.doMoveFromString("e2e6"));
+        assertEquals(Zobrist.getZobristFromBoard(board, true), board.getZobrist(true));
+        assertEquals(Zobrist.getZobristFromBoard(board, false), board.getZobrist(false));
+
+        board.restoreFromFEN("r1ba1a3/4kn3/2n1b4/pNp1p1p1p/4c4/6P2/P1P2R2P/1CcC5/9/2BAKAB2 w - - 0 1");
+        assertEquals(Zobrist.getZobristFromBoard(board, true), board.getZobrist(true));
+
+        Board copy = new Board(board);
+        copy.setPieceByPosition(4, 4, Piece.EMPTY);
+        board.clear();
+        assertEquals(Zobrist.getZobristFromBoard(copy, false), copy.getZobrist(false));
+        assertEquals(Zobrist.getZobristFromBoard(board, false), board.getZobrist(false));
+    }
+
+    @Test
+    public void testMakeUnmakeMove() {
+        Board board = new Board();
+        board.restoreFromFEN("r1ba1a3/4kn3/2n1b4/pNp1p1p1p/4c4/6P2/P1P2R2P/1CcC5/9/2BAKAB2 w - - 0 1");
+        String fen = board.toFENString();
+        long key = board.getZobrist(true);
+
+        // 红车吃黑马
+        int move = Rule.encodeMove(Board.toSquare(5, 6), Board.toSquare(5, 1), Piece.WJU, Piece.BMA);
+        board.makeMove(move);
+        assertEquals(Piece.WJU, board.getPieceByPosition(5, 1));
+        assertFalse(board.bRedGo);
+        assertEquals(Zobrist.getZobristFromBoard(board, false), board.getZobrist(false));
+
+        assertTrue(board.unmakeMove());
+        assertEquals(fen, board.toFENString());
+        assertEquals(key, board.getZobrist(true));
+        assertFalse(board.unmakeMove());
+
+        // 一串走法中有非法的走法时，棋盘保持不变
+        ArrayList<String> moves = new ArrayList<>();
+        moves.add("f3f8");
+        moves.add("e8e7");
+        moves.add("a0a1");
+        assertFalse(board.doMovesFromUCCIStrings(moves));
+        assertEquals(fen, board.toFENString());
+        assertEquals(key, board.getZobrist(true));
+
+        moves.remove(2);
+        assertTrue(board.doMovesFromUCCIStrings(moves));
+        assertEquals(Zobrist.getZobristFromBoard(board, true), board.getZobrist(true));
+        assertFalse(board.unmakeMove());
+    }
+
+    @Test
+    public void testAttackMap() {
+        Board board = new Board();
+        AttackMap map = board.getAttackMap();
+        // 开局时炮可以打马，马可以跳到三路和七路
+        assertTrue(map.isAttacked(Board.toSquare(1, 0), true));
+        assertTrue(map.isAttacked(Board.toSquare(2, 2), false));
+        assertFalse(map.isInCheck(true));
+
+        // 炮二平五，马8进7，炮五进四，士4进5，每一步之后增量更新的结果都和重新计算的一样
+        ArrayList<String> moves = new ArrayList<>();
+        moves.add("h2e2");
+        moves.add("h9g7");
+        moves.add("e2e6");
+        moves.add("d9e8");
+        for (String move : moves) {
+            ArrayList<String> one = new ArrayList<>();
+            one.add(move);
+            assertTrue(board.doMovesFromUCCIStrings(one));
+            assertAttackMapEquals(new AttackMap(new Board(board)), map);
+        }
+        // 炮吃中卒之后，隔着士将军
+        assertTrue(map.isInCheck(false));
+        assertTrue(Rule.isJiangShuaiInDanger(Piece.BJIANG, new Position(4, 0), board));
+
+        // 所有应将的走法走完之后，黑将都不再被将军
+        int[] legal = new int[Rule.MAX_GEN_MOVES];
+        int count = Rule.generateLegalMoves(board, false, legal);
+        assertTrue(count > 0);
+        for (int i = 0; i < count; i++) {
+            board.makeMove(legal[i]);
+            assertFalse(map.isInCheck(false));
+            board.unmakeMove();
+        }
+        assertAttackMapEquals(new AttackMap(new Board(board)), map);
+    }
+
+    private void assertAttackMapEquals(AttackMap expected, AttackMap actual) {
+        for (int sq = 0; sq < Board.BOARD_SQUARES; sq++) {
+            assertEquals(expected.getAttackCount(sq, true), actual.getAttackCount(sq, true));
+            assertEquals(expected.getAttackCount(sq, false), actual.getAttackCount(sq, false));
+        }
+        assertEquals(expected.kingsFacing(), actual.kingsFacing());
+    }
+
     public void testGetPieceByPosition() {
         Board board = new Board();
 
@@ -0,0 +1,110 @@
+package com.zfdang.chess.gamelogic;
+
+import static com.zfdang.chess.TestUtils.ucci;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ChsMoveParserTest {
+    private final ChsMoveParser parser = new ChsMoveParser();
+
+    private String parse(String text, Board board) {
+        return ucci(parser.parse(text, board));
+    }
+
+    @Test
+    public void testStartPosition() {
+        Board board = new Board();
+        assertEquals("h2e2", parse("炮二平五", board));
+        assertEquals("b0c2", parse("马八进七", board));
+        assertEquals("c0e2", parse("相七进五", board));
+        assertEquals("f0e1", parse("仕四进五", board));
+        assertEquals("i0i1", parse("车一进一", board));
+        assertEquals("g3g4", parse("兵三进一", board));
+
+        // 炮二进五没有炮架，不能吃黑炮
+        assertEquals("", parse("炮二进五", board));
+        assertEquals("", parse("马二平三", board));
+        assertEquals("", parse("车二进一", board));
+        assertEquals("", parse("炮二平", board));
+        assertEquals("", parse("H2-E2", board));
+
+        // 黑方的三种数字写法
+        board.bRedGo = false;
+        assertEquals("h9g7", parse("马8进7", board));
+        assertEquals("h9g7", parse("马８进７", board));
+        assertEquals("h9g7", parse("馬八進七", board));
+        assertEquals("b7e7", parse("炮2平5", board));
+        // 红黑两方的棋子名字都可以用，走的是走子方的棋子
+        assertEquals("b7e7", parse("砲二平五", board));
+    }
+
+    @Test
+    public void testOrder() {
+        Board board = new Board();
+        assertTrue(board.restoreFromFEN("3k5/9/9/9/9/2p6/2p6/2p1R4/9/4RK3 w - - 0 1"));
+        // 同一纵线上的两个车：红方y小的在前
+        assertEquals("e2e4", parse("前车进二", board));
+        assertEquals("e0d0", parse("后车平六", board));
+        assertEquals("e0e1", parse("後車进一", board));
+        assertEquals("", parse("中车进一", board));
+
+        // 黑方三个卒：y大的在前
+        board.bRedGo = false;
+        assertEquals("c2c1", parse("前卒进1", board));
+        assertEquals("c3d3", parse("中卒平4", board));
+        assertEquals("c4b4", parse("后卒平2", board));
+        assertEquals("c3b3", parse("二卒平2", board));
+        // 后卒进1的终点有自己的卒
+        assertEquals("", parse("后卒进1", board));
+    }
+
+    @Test
+    public void testPawnFiles() {
+        Board board = new Board();
+        // 两条纵线上都有两个兵，用纵线区分
+        assertTrue(board.restoreFromFEN("3k5/9/9/1P4P2/1P4P2/9/9/9/9/4K4 w - - 0 1"));
+        assertEquals("g6g7", parse("前三进一", board));
+        assertEquals("b5c5", parse("后八平七", board));
+        // 一二三四: 从右到左、从前到后排序
+        assertEquals("g6f6", parse("一兵平四", board));
+        assertEquals("g5f5", parse("二兵平四", board));
+        assertEquals("b6b7", parse("三兵进一", board));
+        assertEquals("b5a5", parse("四兵平九", board));
+        assertEquals("", parse("五兵平九", board));
+    }
+
+    @Test
+    public void testManyPawns() {
+        // 自定义局面中每条纵线上都有很多兵，候选的起点超过16个
+        Board board = new Board();
+        assertTrue(board.restoreFromFEN("PPP1k1PPP/PPPPPPPPP/PPPPPPPPP/PPPPPPPPP/PPPPPPPPP/"
+                + "PPPPPPPPP/PPPPPPPPP/PPPPPPPPP/PPPPPPPPP/PPPPKPPPP w - - 0 1"));
+        assertEquals("c9d9", parse("前兵平六", board));
+        assertEquals("", parse("后兵平六", board));
+        assertEquals("", parse("五兵进一", board));
+    }
+
+    // 对生成的每一步中文着法做反向解析，应该得到同一步
+    @Test
+    public void testRoundTrip() {
+        Board board = new Board();
+        int[] moves = new int[Rule.MAX_GEN_MOVES];
+        for (int ply = 0; ply < 60; ply++) {
+            int count = Rule.generateLegalMoves(board, board.bRedGo, moves);
+            if (count == 0) {
+                break;
+            }
+            for (int i = 0; i < count; i++) {
+                int from = Rule.getMoveFrom(moves[i]);
+                int to = Rule.getMoveTo(moves[i]);
+                Move move = new Move(new Position(Board.squareX(from), Board.squareY(from)),
+                        new Position(Board.squareX(to), Board.squareY(to)), board);
+                String text = move.getChsString();
+                assertEquals(text, move.getUCCIString(), parse(text, board));
+            }
+            board.makeMove(moves[(ply * 7) % count]);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.zfdang.chess.gamelogic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+
+public class GameTest {
+
+    private Game playGame() {
+        Game game = new Game(true);
+        String[] moves = {"h2e2", "h9g7", "h0g2", "i9h9", "i0h0", "b9c7", "e2e6", "d9e8"};
+        float score = 0.3f;
+        for (String ucci : moves) {
+            Move m = new Move(game.currentBoard);
+            assertTrue(m.fromUCCIString(ucci));
+            game.currentBoard.score = score;
+            score = -score * 2;
+            game.setStartPos(m.fromPosition);
+            game.setEndPos(m.toPosition);
+            game.movePiece();
+        }
+        game.currentBoard.score = 1.5f;
+        return game;
+    }
+
+    private void assertSameGame(Game expected, Game actual) {
+        assertEquals(expected.currentBoard.toFENString(), actual.currentBoard.toFENString());
+        assertEquals(expected.currentBoard.score, actual.currentBoard.score, 0);
+        assertEquals(expected.history.size(), actual.history.size());
+        for (int i = 0; i < expected.history.size(); i++) {
+            Game.HistoryRecord e = expected.history.get(i);
+            Game.HistoryRecord a = actual.history.get(i);
+            assertEquals(e.ucciString, a.ucciString);
+            assertEquals(e.chsString, a.chsString);
+            assertEquals(e.isRedMove, a.isRedMove);
+            assertEquals(e.captured, a.captured);
+            assertEquals(e.score, a.score, 0);
+            assertEquals(expected.getBoardAt(i).toFENString(), actual.getBoardAt(i).toFENString());
+        }
+    }
+
+    // 模拟旧版本的HistoryRecord：每一步都带着走之前的棋盘
+    private void attachBoards(Game game) {
+        for (int i = 0; i < game.history.size(); i++) {
+            game.history.get(i).move.board = game.getBoardAt(i);
+        }
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        Game game = playGame();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        game.writeTo(out);
+
+        Game loaded = Game.readFrom(new ByteArrayInputStream(out.toByteArray()));
+        assertSameGame(game, loaded);
+
+        // 旧版本的存档比新格式大得多
+        attachBoards(game);
+        ByteArrayOutputStream old = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(old)) {
+            oos.writeObject(game);
+        }
+        assertTrue(out.size() * 10 < old.size());
+    }
+
+    @Test
+    public void testLoadOldFormat() throws Exception {
+        Game game = playGame();
+        game.isGameOver = true;
+        Game expected = playGame();
+        attachBoards(game);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(out)) {
+            oos.writeObject(game);
+        }
+
+        Game loaded = Game.readFrom(new ByteArrayInputStream(out.toByteArray()));
+        assertSameGame(expected, loaded);
+        assertTrue(loaded.isGameOver);
+        assertNull(loaded.history.get(0).move.board);
+    }
+
+    @Test
+    public void testEmptyGame() throws Exception {
+        Game game = new Game(false);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        game.writeTo(out);
+        Game loaded = Game.readFrom(new ByteArrayInputStream(out.toByteArray()));
+        assertSameGame(game, loaded);
+    }
+
+    @Test
+    public void testUndoAndSnapshots() {
+        // 来回走马，走过几个快照间隔
+        Game game = new Game(true);
+        String[] cycle = {"b0c2", "b9c7", "c2b0", "c7b9"};
+        String[] fens = new String[101];
+        for (int i = 0; i < 100; i++) {
+            fens[i] = game.currentBoard.toFENString();
+            Move m = new Move(game.currentBoard);
+            assertTrue(m.fromUCCIString(cycle[i % cycle.length]));
+            game.currentBoard.score = i;
+            game.setStartPos(m.fromPosition);
+            game.setEndPos(m.toPosition);
+            game.movePiece();
+        }
+        fens[100] = game.currentBoard.toFENString();
+
+        for (int i = 0; i <= 100; i++) {
+            assertEquals(fens[i], game.getBoardAt(i).toFENString());
+        }
+        assertEquals(fens[0], game.getStartBoard().toFENString());
+
+        game.undoMove();
+        assertEquals(fens[99], game.currentBoard.toFENString());
+        assertEquals(99, game.currentBoard.score, 0);
+        Board expected = new Board();
+        assertTrue(expected.restoreFromFEN(fens[99]));
+        assertEquals(expected.getZobrist(true), game.currentBoard.getZobrist(true));
+
+        game.undoMoves(60);
+        assertEquals(39, game.history.size());
+        assertEquals(fens[39], game.currentBoard.toFENString());
+        for (int i = 0; i <= 39; i++) {
+            assertEquals(fens[i], game.getBoardAt(i).toFENString());
+        }
+
+        game.undoMoves(5);
+        assertEquals(fens[34], game.currentBoard.toFENString());
+        assertEquals(34, game.currentBoard.score, 0);
+    }
+}
@@ -0,0 +1,38 @@
+package com.zfdang.chess.gamelogic;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class PerftTest {
+
+    @Test
+    public void testStartPosition() {
+        assertEquals(44, Perft.perft(Perft.START_FEN, 1));
+        assertEquals(1920, Perft.perft(Perft.START_FEN, 2));
+        assertEquals(79666, Perft.perft(Perft.START_FEN, 3));
+        assertEquals(3290240, Perft.perft(Perft.START_FEN, 4));
+    }
+
+    @Test
+    public void testMiddleGame() {
+        String fen = "r1ba1a3/4kn3/2n1b4/pNp1p1p1p/4c4/6P2/P1P2R2P/1CcC5/9/2BAKAB2 w - - 0 1";
+        assertEquals(38, Perft.perft(fen, 1));
+        assertEquals(1128, Perft.perft(fen, 2));
+        assertEquals(43929, Perft.perft(fen, 3));
+        assertEquals(1339047, Perft.perft(fen, 4));
+
+        fen = "1rbaka2R/5r3/6n2/2p1p1p2/4P1bP1/PpC3Bc1/1nPR2P2/2N2AN2/1c2K1p2/2BAC4 w - - 0 1";
+        assertEquals(4485547, Perft.perft(fen, 4));
+    }
+
+    @Test
+    public void testBoardUnchanged() {
+        Board board = new Board();
+        board.restoreFromFEN(Perft.START_FEN);
+        long key = board.getZobrist(true);
+        new Perft(board, 3).perft(3);
+        assertEquals(Perft.START_FEN, board.toFENString());
+        assertEquals(key, board.getZobrist(true));
+    }
+}
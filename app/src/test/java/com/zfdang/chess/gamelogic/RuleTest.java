@@ -0,0 +1,150 @@
+package com.zfdang.chess.gamelogic;
+
+import static com.zfdang.chess.TestUtils.ucci;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class RuleTest {
+    private static final String START = "rnbakabnr/9/1c5c1/p1p1p1p1p/9/9/P1P1P1P1P/1C5C1/9/RNBAKABNR w - - 0 1";
+    private static final String MIDDLE_GAME = "r1ba1a3/4kn3/2n1b4/pNp1p1p1p/4c4/6P2/P1P2R2P/1CcC5/9/2BAKAB2 w - - 0 1";
+    // 过河的兵卒、炮隔子吃子、帅不能走到和将照面的位置
+    private static final String ENDGAME = "3k5/3aP4/4b4/9/2p3C2/6p2/9/2c1A4/3p5/4K4 w - - 0 1";
+
+    private static Board fromFEN(String fen) {
+        Board board = new Board();
+        assertTrue(board.restoreFromFEN(fen));
+        return board;
+    }
+
+    // 按字母排序的走法，方便比较
+    private static List<String> legalMoves(Board board, boolean red) {
+        int[] moves = new int[Rule.MAX_GEN_MOVES];
+        int count = Rule.generateLegalMoves(board, red, moves);
+        List<String> list = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            list.add(ucci(moves[i]));
+        }
+        Collections.sort(list);
+        return list;
+    }
+
+    @Test
+    public void testStartPosition() {
+        Board board = new Board();
+        int[] moves = new int[Rule.MAX_GEN_MOVES];
+        for (boolean red : new boolean[]{true, false}) {
+            int count = Rule.generateMoves(board, red, moves);
+            assertEquals(44, count);
+            Set<Integer> unique = new HashSet<>();
+            for (int i = 0; i < count; i++) {
+                int m = moves[i];
+                assertTrue(unique.add(m));
+                // 编码中的棋子和被吃的棋子和棋盘一致
+                assertEquals(board.getPieceBySquare(Rule.getMoveFrom(m)), Rule.getMovePiece(m));
+                assertEquals(board.getPieceBySquare(Rule.getMoveTo(m)), Rule.getMoveCaptured(m));
+                assertEquals(red, Piece.isRed(Rule.getMovePiece(m)));
+            }
+            assertEquals(44, Rule.generateLegalMoves(board, red, moves));
+        }
+
+        // 炮: 上4步、翻过炮架吃马、下1步、左1步、右5步
+        int count = Rule.generatePieceMoves(board, Board.toSquare(1, 7), moves, 0);
+        assertEquals(12, count);
+        int captures = 0;
+        for (int i = 0; i < count; i++) {
+            if (Rule.getMoveCaptured(moves[i]) != Piece.EMPTY) {
+                captures++;
+                assertEquals("b2b9", ucci(moves[i]));
+            }
+        }
+        assertEquals(1, captures);
+        // 从start开始写入，前面的不变
+        moves[0] = -1;
+        assertEquals(1 + 2, Rule.generatePieceMoves(board, Board.toSquare(1, 9), moves, 1));
+        assertEquals(-1, moves[0]);
+        assertEquals(0, Rule.generatePieceMoves(board, Board.toSquare(4, 5), moves, 0));
+    }
+
+    // 和原来的PossibleToPositions逐个棋子比较终点，再和isPieceMove逐个终点比较
+    @Test
+    public void testSameAsPossibleToPositions() {
+        for (String fen : new String[]{START, MIDDLE_GAME, ENDGAME}) {
+            Board board = fromFEN(fen);
+            int[] moves = new int[Rule.MAX_PIECE_MOVES];
+            for (int y = 0; y < Board.BOARD_PIECE_HEIGHT; y++) {
+                for (int x = 0; x < Board.BOARD_PIECE_WIDTH; x++) {
+                    int piece = board.getPieceByPosition(new Position(x, y));
+                    if (!Piece.isValid(piece)) {
+                        continue;
+                    }
+                    Set<String> expected = new HashSet<>();
+                    for (Position p : Rule.PossibleToPositions(piece, x, y, board)) {
+                        expected.add(p.x + "," + p.y);
+                    }
+                    Set<String> actual = new HashSet<>();
+                    int count = Rule.generatePieceMoves(board, Board.toSquare(x, y), moves, 0);
+                    for (int i = 0; i < count; i++) {
+                        int to = Rule.getMoveTo(moves[i]);
+                        actual.add(Board.squareX(to) + "," + Board.squareY(to));
+                    }
+                    assertEquals(fen + " " + x + "," + y, expected, actual);
+
+                    // isPieceMove只检查一步，结果和生成的走法一致
+                    for (int ty = 0; ty < Board.BOARD_PIECE_HEIGHT; ty++) {
+                        for (int tx = 0; tx < Board.BOARD_PIECE_WIDTH; tx++) {
+                            assertEquals(fen + " " + x + "," + y + "->" + tx + "," + ty, actual.contains(tx + "," + ty),
+                                    Rule.isPieceMove(board, Board.toSquare(x, y), Board.toSquare(tx, ty)));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCheckEvasion() {
+        // 被车将军，只能吃掉车；帅不能走到照面的d线以外的位置，e线和黑将照面
+        Board board = fromFEN("4k4/9/9/9/R2r5/9/9/9/9/3K5 w - - 0 1");
+        assertEquals(Arrays.asList("a5d5"), legalMoves(board, true));
+
+        // 同样的局面，没有车可以吃的时候被将死
+        board = fromFEN("4k4/9/9/9/3r5/9/9/9/9/3K5 w - - 0 1");
+        assertEquals(Collections.emptyList(), legalMoves(board, true));
+        assertTrue(Rule.isJiangShuaiDead(Piece.WSHUAI, new Position(3, 9), board));
+
+        // 被马将军，车只能吃马，不能离开；帅可以走到马攻击不到的位置
+        board = fromFEN("3k5/9/9/9/9/9/9/2Rn5/9/4K4 w - - 0 1");
+        assertEquals(Arrays.asList("c2d2", "e0d0", "e0e1", "e0f0"), legalMoves(board, true));
+
+        // 被炮将军，炮架离开e线或者吃炮都可以，在e线上走动不行
+        board = fromFEN("3k5/9/9/9/4c4/9/4R4/9/9/4K4 w - - 0 1");
+        List<String> moves = legalMoves(board, true);
+        assertTrue(moves.toString(), moves.contains("e3e5"));
+        assertTrue(moves.toString(), moves.contains("e3a3"));
+        assertFalse(moves.toString(), moves.contains("e3e4"));
+        assertFalse(moves.toString(), moves.contains("e3e2"));
+    }
+
+    @Test
+    public void testPinnedPiece() {
+        // 马被车牵制，不能走；帅只能走到f0，d0和黑将照面
+        Board board = fromFEN("3k5/9/9/9/4r4/9/9/9/4N4/4K4 w - - 0 1");
+        assertEquals(Arrays.asList("e0f0"), legalMoves(board, true));
+
+        int[] moves = new int[Rule.MAX_GEN_MOVES];
+        // 不检查走后是否被将军时马的走法都在
+        assertEquals(6 + 1, Rule.generateMoves(board, true, moves));
+        // 生成合法走法之后棋盘不变
+        assertEquals("3k5/9/9/9/4r4/9/9/9/4N4/4K4 w - - 0 1", board.toFENString());
+    }
+}
@@ -0,0 +1,63 @@
+package com.zfdang.chess.manuals;
+
+import static com.zfdang.chess.TestUtils.copyAsset;
+import static com.zfdang.chess.TestUtils.readAsset;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+public class BatchValidatorTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static final String PGN = "[Event \"test\"]\n"
+            + "[Red \"red\"]\n"
+            + "[Black \"black\"]\n"
+            + "1. H2-E2 H9-G7\n"
+            + "2. H0-G2 I9-H9\n"
+            + "1-0\n"
+            + "[Event \"illegal\"]\n"
+            + "1. H2-E2 H7-H0\n"
+            + "0-1\n";
+
+    @Test
+    public void testValidate() throws Exception {
+        File root = tmp.newFolder("XQF");
+        byte[] plain = readAsset("XQF/1.棋理大全-洪磊鑫/003~019中炮对屏风马的排兵布阵.xqf");
+        new File(root, "a/b").mkdirs();
+        Files.write(new File(root, "a/plain.xqf").toPath(), plain);
+        copyAsset("XQF/当代排局谱/037快马加鞭.XQF", new File(root, "a/b/037.XQF"));
+
+        // 第一步改成炮二进五：没有炮架，不能吃黑炮
+        byte[] illegal = plain.clone();
+        illegal[0x408] = (byte) (72 + 0x18);
+        illegal[0x409] = (byte) (77 + 0x20);
+        Files.write(new File(root, "illegal.xqf").toPath(), illegal);
+
+        Files.write(new File(root, "broken.xqf").toPath(), new byte[100]);
+        Files.write(new File(root, "games.pgn").toPath(), PGN.getBytes(StandardCharsets.UTF_8));
+        Files.write(new File(root, "readme.txt").toPath(), "not a manual".getBytes());
+
+        BatchValidator.Report report = new BatchValidator(4).validate(root);
+        assertEquals(5, report.files);
+        // 3个XQF，加上PGN中的2局
+        assertEquals(5, report.games);
+        assertEquals(1, report.parseFailures.size());
+        assertTrue(report.parseFailures.get(0).endsWith("broken.xqf"));
+        assertEquals(2, report.illegalGames.size());
+        assertTrue(report.illegalGames.get(0).contains("games.pgn #2 ply 2"));
+        assertTrue(report.illegalGames.get(1).contains("illegal.xqf ply 1"));
+
+        // 结果和线程数无关
+        BatchValidator.Report single = new BatchValidator(1).validate(root);
+        assertEquals(report.moves, single.moves);
+        assertEquals(report.illegalGames, single.illegalGames);
+    }
+}
@@ -0,0 +1,130 @@
+package com.zfdang.chess.manuals;
+
+import static com.zfdang.chess.TestUtils.copyAsset;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class LazyManualLibraryTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    // 和AssetManager一样：文件和不存在的路径list返回空数组
+    private static class DirSource implements LazyManualLibrary.Source {
+        final File root;
+        final AtomicInteger lists = new AtomicInteger();
+        final AtomicInteger opens = new AtomicInteger();
+
+        DirSource(File root) {
+            this.root = root;
+        }
+
+        @Override
+        public String[] list(String path) {
+            lists.incrementAndGet();
+            String[] names = new File(root, path).list();
+            return names == null ? new String[0] : names;
+        }
+
+        @Override
+        public InputStream open(String path) throws IOException {
+            opens.incrementAndGet();
+            return new FileInputStream(new File(root, path));
+        }
+    }
+
+    @Test
+    public void testLazyRead() throws Exception {
+        File assets = tmp.newFolder("assets");
+        copyAsset("XQF/当代排局谱/037快马加鞭.XQF", new File(assets, "XQF/排局/037.XQF"));
+        copyAsset("XQF/当代排局谱/001环绕宫缘.XQF", new File(assets, "XQF/排局/001.XQF"));
+        copyAsset("XQF/1.棋理大全-洪磊鑫/003~019中炮对屏风马的排兵布阵.xqf", new File(assets, "XQF/1.棋理/003.xqf"));
+        Files.write(new File(assets, "XQF/排局/后记.txt").toPath(), "text".getBytes());
+        new File(assets, "XQF/空目录").mkdirs();
+
+        DirSource source = new DirSource(assets);
+        File cache = new File(tmp.getRoot(), "files/XQF");
+        LazyManualLibrary library = new LazyManualLibrary(source, "XQF", cache);
+
+        // 没有棋谱的目录和说明文字都不列出来
+        assertEquals(Arrays.asList("1.棋理", "排局"), library.listFolders(""));
+        assertTrue(library.list("").isEmpty());
+        assertEquals(Arrays.asList("排局/001.XQF", "排局/037.XQF"), library.list("排局"));
+        assertEquals(Collections.emptyList(), library.listFolders("排局"));
+        // 目录列表只读一次
+        int lists = source.lists.get();
+        library.list("排局");
+        library.listFolders("");
+        assertEquals(lists, source.lists.get());
+        // 什么都没有复制
+        assertFalse(cache.exists());
+
+        byte[] bytes = library.read("排局/037.XQF");
+        assertArrayEquals(Files.readAllBytes(new File(assets, "XQF/排局/037.XQF").toPath()), bytes);
+        assertEquals("快马加鞭", XQFParser.parse(bytes).getTitle());
+        assertTrue(library.getCachedFile("排局/037.XQF").isFile());
+        assertEquals(1, source.opens.get());
+
+        // 第二次从复制的文件读取
+        assertArrayEquals(bytes, library.read("排局/037.XQF"));
+        assertEquals(1, source.opens.get());
+
+        assertNull(library.read("排局/none.XQF"));
+        assertFalse(library.getCachedFile("排局/none.XQF").exists());
+
+        // 建立索引时读取，不复制
+        ManualLibrary uncached = library.withoutCache();
+        assertEquals(library.list("排局"), uncached.list("排局"));
+        assertArrayEquals(Files.readAllBytes(new File(assets, "XQF/排局/001.XQF").toPath()), uncached.read("排局/001.XQF"));
+        assertFalse(library.getCachedFile("排局/001.XQF").exists());
+
+        library.clearCache();
+        assertFalse(cache.exists());
+    }
+
+    @Test
+    public void testPrefetch() throws Exception {
+        File assets = tmp.newFolder("assets");
+        copyAsset("XQF/当代排局谱/037快马加鞭.XQF", new File(assets, "XQF/排局/037.XQF"));
+        copyAsset("XQF/当代排局谱/001环绕宫缘.XQF", new File(assets, "XQF/排局/001.XQF"));
+        copyAsset("XQF/1.棋理大全-洪磊鑫/003~019中炮对屏风马的排兵布阵.xqf", new File(assets, "XQF/1.棋理/003.xqf"));
+
+        DirSource source = new DirSource(assets);
+        File cache = new File(tmp.getRoot(), "files/XQF");
+        LazyManualLibrary library = new LazyManualLibrary(source, "XQF", cache);
+
+        library.prefetch("排局");
+        library.awaitPrefetch();
+        assertTrue(library.getCachedFile("排局/001.XQF").isFile());
+        assertTrue(library.getCachedFile("排局/037.XQF").isFile());
+        assertFalse(library.getCachedFile("1.棋理/003.xqf").exists());
+        assertEquals(2, source.opens.get());
+
+        // 已经复制过的不再读取
+        library.prefetch("排局");
+        library.awaitPrefetch();
+        assertEquals(2, source.opens.get());
+        library.read("排局/001.XQF");
+        assertEquals(2, source.opens.get());
+
+        // 临时文件都已经改名或删除
+        String[] names = new File(cache, "排局").list();
+        Arrays.sort(names);
+        assertArrayEquals(new String[]{"001.XQF", "037.XQF"}, names);
+    }
+}
@@ -0,0 +1,89 @@
+package com.zfdang.chess.manuals;
+
+import static com.zfdang.chess.TestUtils.copyAsset;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class ManualArchiveTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testPackAndRead() throws Exception {
+        File root = tmp.newFolder("XQF");
+        copyAsset("XQF/1.棋理大全-洪磊鑫/003~019中炮对屏风马的排兵布阵.xqf", new File(root, "棋理/003.xqf"));
+        copyAsset("XQF/当代排局谱/037快马加鞭.XQF", new File(root, "排局/037.XQF"));
+        copyAsset("XQF/当代排局谱/001环绕宫缘.XQF", new File(root, "排局/古谱/001.XQF"));
+        copyAsset("XQF/当代排局谱/001环绕宫缘.XQF", new File(root, "排局-2/001.XQF"));
+        Files.write(new File(root, "readme.txt").toPath(), "not a manual".getBytes());
+
+        File packed = new File(tmp.getRoot(), "XQF.pack");
+        assertEquals(4, ManualArchive.pack(root, packed));
+
+        ManualArchive archive = ManualArchive.open(packed);
+        assertEquals(4, archive.size());
+        assertTrue(archive.contains("排局/037.XQF"));
+        assertFalse(archive.contains("readme.txt"));
+
+        assertEquals(Arrays.asList("排局", "排局-2", "棋理"), archive.listFolders(""));
+        assertEquals(Collections.singletonList("古谱"), archive.listFolders("排局"));
+        assertEquals(Collections.singletonList("排局/037.XQF"), archive.list("排局"));
+        assertEquals(Collections.singletonList("排局/古谱/001.XQF"), archive.list("排局/古谱"));
+        assertTrue(archive.list("").isEmpty());
+
+        // 内容和原来的文件完全一样
+        for (String path : archive.getPaths()) {
+            byte[] original = Files.readAllBytes(new File(root, path).toPath());
+            assertArrayEquals(original, archive.read(path));
+            ByteBuffer slice = archive.slice(path);
+            assertEquals(original.length, slice.remaining());
+        }
+        XQFManual manual = archive.parse("排局/037.XQF");
+        assertEquals("快马加鞭", manual.getTitle());
+        assertTrue(manual.validateAllMoves());
+
+        assertNull(archive.read("排局/none.XQF"));
+        assertNull(archive.parse("排局/none.XQF"));
+    }
+
+    @Test
+    public void testInvalidArchive() throws Exception {
+        File root = tmp.newFolder("XQF");
+        copyAsset("XQF/当代排局谱/037快马加鞭.XQF", new File(root, "037.XQF"));
+        File packed = new File(tmp.getRoot(), "XQF.pack");
+        ManualArchive.pack(root, packed);
+
+        byte[] bytes = Files.readAllBytes(packed.toPath());
+        File truncated = new File(tmp.getRoot(), "truncated.pack");
+        Files.write(truncated.toPath(), Arrays.copyOf(bytes, bytes.length - 1));
+        try {
+            ManualArchive.open(truncated);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+
+        File notArchive = new File(root, "037.XQF");
+        try {
+            ManualArchive.open(notArchive);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.zfdang.chess.manuals;
+
+import static com.zfdang.chess.TestUtils.copyAsset;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+public class ManualIndexTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testBuildAndQuery() throws Exception {
+        File root = tmp.newFolder("XQF");
+        File indexFile = new File(tmp.getRoot(), "xqf.index");
+        copyAsset("XQF/1.棋理大全-洪磊鑫/003~019中炮对屏风马的排兵布阵.xqf", new File(root, "棋理/003.xqf"));
+        copyAsset("XQF/当代排局谱/037快马加鞭.XQF", new File(root, "排局/037.XQF"));
+        copyAsset("XQF/当代排局谱/001环绕宫缘.XQF", new File(root, "排局/001.XQF"));
+        Files.write(new File(root, "readme.txt").toPath(), "not a manual".getBytes());
+        Files.write(new File(root, "broken.xqf").toPath(), new byte[100]);
+
+        ManualIndex index = new ManualIndex(root, indexFile);
+        assertFalse(index.load());
+        // 3个棋谱，加上一个读取失败的
+        assertEquals(4, index.update());
+        assertEquals(3, index.size());
+        assertEquals(1, index.getFailedEntries().size());
+        assertEquals("broken.xqf", index.getFailedEntries().get(0).path);
+        index.save();
+
+        assertEquals(Arrays.asList("排局", "棋理"), index.listFolders(""));
+        List<ManualIndex.Entry> list = index.list("排局");
+        assertEquals(2, list.size());
+        assertEquals("排局/001.XQF", list.get(0).path);
+
+        List<ManualIndex.Entry> found = index.search("快马", null, null);
+        assertEquals(1, found.size());
+        assertEquals("快马加鞭", found.get(0).title);
+        assertEquals("残局", found.get(0).category);
+        assertEquals("平局", found.get(0).result);
+        List<ManualIndex.Entry> redWins = index.search(null, "红胜", null);
+        assertFalse(redWins.isEmpty());
+        for (ManualIndex.Entry e : redWins) {
+            assertEquals("红胜", e.result);
+        }
+        assertEquals(3, index.search("", null, ManualIndex.BY_TITLE).size());
+
+        // 重新载入索引，没有变化的文件不再读取，读取失败的文件也不再读取
+        ManualIndex reloaded = new ManualIndex(root, indexFile);
+        assertTrue(reloaded.load());
+        assertEquals(3, reloaded.size());
+        assertEquals(1, reloaded.getFailedEntries().size());
+        assertEquals(index.getEntries().get(2).toString(), reloaded.getEntries().get(2).toString());
+        assertEquals(0, reloaded.update());
+
+        // 删除和修改文件
+        assertTrue(new File(root, "排局/001.XQF").delete());
+        File changed = new File(root, "棋理/003.xqf");
+        assertTrue(changed.setLastModified(changed.lastModified() + 10000));
+        // 修改1个，删除1个
+        assertEquals(2, reloaded.update());
+        assertEquals(2, reloaded.size());
+        assertEquals(1, reloaded.list("排局").size());
+
+        // 读取失败的文件修改之后重新读取，删除之后从索引中去掉
+        copyAsset("XQF/当代排局谱/001环绕宫缘.XQF", new File(root, "fixed.xqf"));
+        assertTrue(new File(root, "broken.xqf").delete());
+        assertTrue(new File(root, "fixed.xqf").renameTo(new File(root, "broken.xqf")));
+        assertEquals(1, reloaded.update());
+        assertEquals(3, reloaded.size());
+        assertTrue(reloaded.getFailedEntries().isEmpty());
+        assertTrue(new File(root, "broken.xqf").delete());
+        assertEquals(1, reloaded.update());
+        assertEquals(2, reloaded.size());
+    }
+
+    @Test
+    public void testBuildFromLibrary() throws Exception {
+        File root = tmp.newFolder("XQF");
+        copyAsset("XQF/1.棋理大全-洪磊鑫/003~019中炮对屏风马的排兵布阵.xqf", new File(root, "棋理/003.xqf"));
+        copyAsset("XQF/当代排局谱/037快马加鞭.XQF", new File(root, "排局/037.XQF"));
+        copyAsset("XQF/当代排局谱/001环绕宫缘.XQF", new File(root, "排局/001.XQF"));
+        Files.write(new File(root, "broken.xqf").toPath(), new byte[100]);
+        File pack = new File(tmp.getRoot(), "XQF.pack");
+        assertEquals(4, ManualArchive.pack(root, pack));
+        final ManualArchive archive = ManualArchive.open(pack);
+        // 记录读取了几个棋谱
+        final int[] reads = new int[1];
+        ManualLibrary library = new ManualLibrary() {
+            @Override
+            public List<String> listFolders(String folder) {
+                return archive.listFolders(folder);
+            }
+
+            @Override
+            public List<String> list(String folder) {
+                return archive.list(folder);
+            }
+
+            @Override
+            public byte[] read(String path) {
+                reads[0]++;
+                return archive.read(path);
+            }
+        };
+
+        File indexFile = new File(tmp.getRoot(), "xqf.index");
+        ManualIndex index = new ManualIndex(indexFile);
+        assertEquals(4, index.update(library, 1));
+        assertEquals(4, reads[0]);
+        assertEquals(3, index.size());
+        assertEquals(1, index.getFailedEntries().size());
+        assertEquals(Arrays.asList("排局", "棋理"), index.listFolders(""));
+        assertEquals("排局/001.XQF", index.list("排局").get(0).path);
+        assertEquals("快马加鞭", index.search("快马", null, null).get(0).title);
+        index.save();
+
+        // stamp没有变化时不读取棋谱，读取失败的也不再读取
+        ManualIndex reloaded = new ManualIndex(indexFile);
+        assertTrue(reloaded.load());
+        reads[0] = 0;
+        assertEquals(0, reloaded.update(library, 1));
+        assertEquals(0, reads[0]);
+        assertEquals(3, reloaded.size());
+
+        // 应用升级之后全部重新读取
+        assertEquals(4, reloaded.update(library, 2));
+        assertEquals(4, reads[0]);
+        assertEquals(3, reloaded.size());
+    }
+}
@@ -0,0 +1,211 @@
+package com.zfdang.chess.manuals;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+public class PGNReaderTest {
+    private static final String GAMES = "[Game \"Chinese Chess\"]\n"
+            + "[Event \"1998年全国象棋个人赛\"]\n"
+            + "[Red \"郭莉萍\"]\n"
+            + "[Black \"单霞丽\"]\n"
+            + "[Result \"1-0\"]\n"
+            + "[Annotator \"a \\\"quoted\\\" name\"]\n"
+            + "[Format \"ICCS\"]\n"
+            + "{开局介绍}\n"
+            + "1. C3-C4 {仙人指路} C9-E7 $1\n"
+            + "2. B2-D2 (2. H2-E2 H9-G7 (2... B9-C7) 3. H0-G2) 2... G6-G5!?\n"
+            + "3.B0-C2 ; 行注释\n"
+            + "B9-C7 1-0\n"
+            + "\n"
+            + "[Event \"第二局\"]\n"
+            + "[FEN \"4k4/9/9/9/9/9/9/9/4A4/4K4 w - - 0 1\"]\n"
+            + "1. E1-D2 E9-D9 *\n"
+            + "[Event \"没有结果\"]\n"
+            + "1. H2-E2 H7-H0 2. E2-E6\n"
+            + "[Event \"最后一局\"]\n"
+            + "1. B0-C2\n";
+
+    private static XQFManual.MoveNode child(XQFManual.MoveNode node, int index) {
+        return node.nextMoves.get(index);
+    }
+
+    private static String ucci(XQFManual.MoveNode node) {
+        return node.move.getUCCIString();
+    }
+
+    @Test
+    public void testReadGames() throws Exception {
+        PGNReader reader = new PGNReader(new StringReader(GAMES));
+
+        XQFManual game = reader.next();
+        assertNull(reader.getLastError());
+        assertEquals("1998年全国象棋个人赛", game.getEvent());
+        assertEquals("1998年全国象棋个人赛", game.getTitle());
+        assertEquals("郭莉萍", game.getRed());
+        assertEquals("红胜", game.getResult());
+        assertEquals("a \"quoted\" name", game.getAnnotator());
+        assertEquals("开局介绍", game.getAnnotation());
+
+        XQFManual.MoveNode head = game.getHeadMove();
+        XQFManual.MoveNode m1 = child(head, 0);
+        assertEquals("c3c4", ucci(m1));
+        assertEquals("仙人指路", m1.move.getComment());
+        XQFManual.MoveNode m2 = child(m1, 0);
+        assertEquals("c9e7", ucci(m2));
+
+        // 第二步红方有一个变着，变着中黑方又有一个变着
+        assertEquals(2, m2.nextMoves.size());
+        XQFManual.MoveNode main = child(m2, 0);
+        XQFManual.MoveNode variation = child(m2, 1);
+        assertEquals("b2d2", ucci(main));
+        assertEquals("h2e2", ucci(variation));
+        assertEquals(2, variation.nextMoves.size());
+        assertEquals("h9g7", ucci(child(variation, 0)));
+        assertEquals("b9c7", ucci(child(variation, 1)));
+        assertEquals("h0g2", ucci(child(child(variation, 0), 0)));
+
+        // 主线在变着之后接着走
+        XQFManual.MoveNode m4 = child(main, 0);
+        assertEquals("g6g5", ucci(m4));
+        XQFManual.MoveNode m5 = child(m4, 0);
+        assertEquals("b0c2", ucci(m5));
+        assertEquals("行注释", m5.move.getComment());
+        assertEquals("b9c7", ucci(child(m5, 0)));
+        assertTrue(child(m5, 0).nextMoves.isEmpty());
+        assertEquals(m5, child(m5, 0).parent);
+        assertTrue(game.validateAllMoves());
+
+        // 从FEN开始
+        game = reader.next();
+        assertNull(reader.getLastError());
+        assertEquals("第二局", game.getTitle());
+        assertEquals("未知", game.getResult());
+        assertEquals("4k4/9/9/9/9/9/9/9/4A4/4K4 w - - 0 1", game.board.toFENString());
+        assertEquals("e1d2", ucci(child(game.getHeadMove(), 0)));
+
+        // 炮直接打马不合规则，后面的着法都丢弃
+        game = reader.next();
+        assertEquals("ply 2: H7-H0", reader.getLastError());
+        assertEquals("没有结果", game.getTitle());
+        assertTrue(child(game.getHeadMove(), 0).nextMoves.isEmpty());
+
+        // 文件结束时没有结果标记
+        game = reader.next();
+        assertNull(reader.getLastError());
+        assertEquals("最后一局", game.getTitle());
+        assertEquals(1, game.getHeadMove().nextMoves.size());
+
+        assertNull(reader.next());
+        reader.close();
+    }
+
+    @Test
+    public void testWrongSide() throws Exception {
+        // 第一步是黑方的着法
+        PGNReader reader = new PGNReader(new StringReader("[Event \"x\"]\n1. H9-G7 *\n"));
+        XQFManual game = reader.next();
+        assertEquals("ply 1: H9-G7", reader.getLastError());
+        assertTrue(game.getHeadMove().nextMoves.isEmpty());
+    }
+
+    @Test
+    public void testDetectCharset() throws Exception {
+        Charset gbk = Charset.forName("GB18030");
+        byte[] utf8 = GAMES.getBytes(StandardCharsets.UTF_8);
+        byte[] gb = GAMES.getBytes(gbk);
+        assertEquals(StandardCharsets.UTF_8, PGNReader.detectCharset(new BufferedInputStream(new ByteArrayInputStream(utf8))));
+        assertEquals(gbk, PGNReader.detectCharset(new BufferedInputStream(new ByteArrayInputStream(gb))));
+
+        // 识别编码之后从头开始读
+        PGNReader reader = new PGNReader(new ByteArrayInputStream(gb));
+        assertEquals("1998年全国象棋个人赛", reader.next().getEvent());
+    }
+
+    // 很长的文件一局一局地读，不会一次读到内存中
+    @Test
+    public void testManyGames() throws Exception {
+        final String game = "[Event \"e\"]\n1. H2-E2 H9-G7 2. H0-G2 I9-H9 1-0\n";
+        final int games = 20000;
+        Reader reader = new Reader() {
+            int index = 0;
+            int offset = 0;
+
+            @Override
+            public int read(char[] cbuf, int off, int len) {
+                if (index == games) {
+                    return -1;
+                }
+                int n = Math.min(len, game.length() - offset);
+                game.getChars(offset, offset + n, cbuf, off);
+                offset += n;
+                if (offset == game.length()) {
+                    offset = 0;
+                    index++;
+                }
+                return n;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        PGNReader pgn = new PGNReader(reader);
+        int count = 0;
+        XQFManual manual;
+        while ((manual = pgn.next()) != null) {
+            assertEquals(1, manual.getHeadMove().nextMoves.size());
+            count++;
+        }
+        assertEquals(games, count);
+    }
+
+    // 包中的样例是中文纵线记法(GB18030编码)
+    @Test
+    public void testAssetSample() throws Exception {
+        try (InputStream in = new java.io.FileInputStream("src/main/assets/PGN/sample_02_pgn.pgn")) {
+            PGNReader reader = new PGNReader(in);
+            XQFManual game = reader.next();
+            assertNull(reader.getLastError());
+            assertEquals("五七炮对屏风马", game.getEvent());
+            assertEquals("最新弈法", game.getAnnotation());
+
+            XQFManual.MoveNode node = child(game.getHeadMove(), 0);
+            assertEquals("h2e2", ucci(node));
+            assertEquals("h9g7", ucci(child(node, 0)));
+            int plies = 1;
+            while (!node.nextMoves.isEmpty()) {
+                node = child(node, 0);
+                plies++;
+            }
+            assertEquals(45, plies);
+            assertTrue(game.validateAllMoves());
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    public void testChineseNotation() throws Exception {
+        PGNReader reader = new PGNReader(new StringReader("[Format \"Chinese\"]\n"
+                + "1. 炮二平五 马8进7 2. 马二进三 车９平８ 3. 车一平二 卒7进1 1-0\n"));
+        XQFManual game = reader.next();
+        assertNull(reader.getLastError());
+        XQFManual.MoveNode node = game.getHeadMove();
+        String[] expected = {"h2e2", "h9g7", "h0g2", "i9h9", "i0h0", "g6g5"};
+        for (String ucci : expected) {
+            node = child(node, 0);
+            assertEquals(ucci, ucci(node));
+        }
+        assertTrue(node.nextMoves.isEmpty());
+    }
+}
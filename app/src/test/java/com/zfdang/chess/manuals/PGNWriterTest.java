@@ -0,0 +1,77 @@
+package com.zfdang.chess.manuals;
+
+import static com.zfdang.chess.TestUtils.readAsset;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+public class PGNWriterTest {
+    private static String write(Charset charset, XQFManual... manuals) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (PGNWriter writer = new PGNWriter(Channels.newChannel(out), charset)) {
+            for (XQFManual manual : manuals) {
+                writer.write(manual);
+            }
+            assertEquals(manuals.length, writer.getGameCount());
+        }
+        return new String(out.toByteArray(), charset);
+    }
+
+    @Test
+    public void testWriteVariations() throws Exception {
+        PGNReader reader = new PGNReader(new StringReader("[Event \"测试\"]\n[Red \"红\\\"方\"]\n[Result \"1-0\"]\n"
+                + "{开局} 1. H2-E2 (1. C3-C4 C6-C5) 1... H9-G7 (1... H7-E7 {顺炮} 2. H0-G2) 1-0\n"));
+        XQFManual manual = reader.next();
+        String pgn = write(StandardCharsets.UTF_8, manual);
+        assertTrue(pgn.contains("[Event \"测试\"]\n"));
+        assertTrue(pgn.contains("[Red \"红\\\"方\"]\n"));
+        // 变着中只有第一步黑方着法前写"n..."，变着结束之后主线的黑方着法前也要写
+        assertTrue(pgn, pgn.contains("{开局} 1. H2-E2 (1. C3-C4 C6-C5) 1... H9-G7 (1... H7-E7 {顺炮} 2. H0-G2) 1-0\n"));
+
+        XQFManual copy = new PGNReader(new StringReader(pgn)).next();
+        assertEquals(XQFWriterTest.describe(manual), XQFWriterTest.describe(copy));
+        assertEquals("红\"方", copy.getRed());
+        assertEquals("红胜", copy.getResult());
+        assertEquals("开局", copy.getAnnotation());
+    }
+
+    @Test
+    public void testBlackFirst() throws Exception {
+        XQFManual manual = new PGNReader(new StringReader(
+                "[FEN \"4k4/9/9/9/9/9/9/9/4A4/5K3 b - - 0 1\"]\n1... E9-D9 2. F0-E0 {注释} D9-D8 *\n")).next();
+        String pgn = write(StandardCharsets.UTF_8, manual);
+        assertTrue(pgn.contains("[FEN \"4k4/9/9/9/9/9/9/9/4A4/5K3 b - - 0 1\"]\n"));
+        assertTrue(pgn.contains("1... E9-D9 2. F0-E0 {注释} 2... D9-D8 *"));
+        assertEquals(XQFWriterTest.describe(manual), XQFWriterTest.describe(new PGNReader(new StringReader(pgn)).next()));
+    }
+
+    // 多局棋谱写到同一个文件中，GB18030编码也能被PGNReader识别
+    @Test
+    public void testManyGames() throws Exception {
+        XQFManual plain = XQFParser.parse(readAsset("XQF/1.棋理大全-洪磊鑫/003~019中炮对屏风马的排兵布阵.xqf"));
+        XQFManual endgame = XQFParser.parse(readAsset("XQF/当代排局谱/037快马加鞭.XQF"));
+        Charset gbk = Charset.forName("GB18030");
+        byte[] bytes = write(gbk, plain, endgame, plain).getBytes(gbk);
+
+        PGNReader reader = new PGNReader(new ByteArrayInputStream(bytes));
+        XQFManual[] expected = {plain, endgame, plain};
+        XQFManual[] copies = new XQFManual[expected.length];
+        for (int i = 0; i < expected.length; i++) {
+            copies[i] = reader.next();
+            assertNull(reader.getLastError());
+            assertEquals(expected[i].board.toFENString(), copies[i].board.toFENString());
+            assertEquals(XQFWriterTest.describe(expected[i]), XQFWriterTest.describe(copies[i]));
+        }
+        assertNull(reader.next());
+        assertEquals("快马加鞭", copies[1].getTitle());
+    }
+}
@@ -0,0 +1,172 @@
+package com.zfdang.chess.manuals;
+
+import static com.zfdang.chess.TestUtils.ASSETS;
+import static com.zfdang.chess.TestUtils.copyAsset;
+import static com.zfdang.chess.TestUtils.readAsset;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.zfdang.chess.gamelogic.Board;
+import com.zfdang.chess.gamelogic.Move;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class PositionIndexTest {
+    private static final String[] MANUALS = {
+            "XQF/1.棋理大全-洪磊鑫/003~019中炮对屏风马的排兵布阵.xqf",
+            "XQF/当代排局谱/001环绕宫缘.XQF",
+            "XQF/当代排局谱/037快马加鞭.XQF",
+    };
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testBuildAndFind() throws Exception {
+        File root = new File(ASSETS);
+        File file = new File(tmp.getRoot(), "xqf.positions");
+        int records = PositionIndex.build(root, Arrays.asList(MANUALS), file);
+        assertTrue(records > 3);
+
+        PositionIndex index = PositionIndex.open(file);
+        assertEquals(3, index.getGameCount());
+        assertEquals(records, index.getRecordCount());
+
+        // 开局局面只出现在第一个棋谱中
+        Board start = new Board();
+        assertTrue(start.restoreFromFEN("rnbakabnr/9/1c5c1/p1p1p1p1p/9/9/P1P1P1P1P/1C5C1/9/RNBAKABNR w - - 0 1"));
+        List<PositionIndex.Hit> hits = index.find(start.getZobrist(true), 10);
+        assertEquals(1, hits.size());
+        assertEquals(0, hits.get(0).gameId);
+        assertEquals(MANUALS[0], hits.get(0).path);
+        assertEquals(0, hits.get(0).ply);
+        // 走子方不同是不同的局面
+        assertEquals(0, index.find(start.getZobrist(false), 10).size());
+
+        // 残局的主线走两步之后的局面
+        XQFManual manual = XQFParser.parse(readAsset(MANUALS[2]));
+        Board b = new Board(manual.board);
+        b.bRedGo = true;
+        XQFManual.MoveNode node = manual.getHeadMove();
+        for (int i = 0; i < 2; i++) {
+            node = node.nextMoves.get(0);
+            Move m = new Move(node.move.fromPosition, node.move.toPosition, b);
+            assertTrue(b.doMove(m));
+        }
+        hits = index.find(b.getZobrist(b.bRedGo), 10);
+        assertEquals(1, hits.size());
+        assertEquals(2, hits.get(0).gameId);
+        assertEquals(2, hits.get(0).ply);
+
+        assertEquals(0, index.find(12345L, 10).size());
+    }
+
+    @Test
+    public void testBuildFromLibrary() throws Exception {
+        File root = tmp.newFolder("XQF");
+        for (String name : MANUALS) {
+            copyAsset(name, new File(root, name));
+        }
+        File pack = new File(tmp.getRoot(), "XQF.pack");
+        ManualArchive.pack(root, pack);
+        ManualArchive archive = ManualArchive.open(pack);
+
+        // 和从目录建立的索引一样，不存在的棋谱也占一个编号
+        List<String> paths = Arrays.asList(MANUALS[0], "none.xqf", MANUALS[2]);
+        File fromDir = new File(tmp.getRoot(), "dir.positions");
+        File fromLibrary = new File(tmp.getRoot(), "library.positions");
+        int records = PositionIndex.build(root, paths, fromDir);
+        assertEquals(records, PositionIndex.build(archive, paths, fromLibrary));
+        assertTrue(Arrays.equals(Files.readAllBytes(fromDir.toPath()), Files.readAllBytes(fromLibrary.toPath())));
+
+        PositionIndex index = PositionIndex.open(fromLibrary);
+        assertEquals(3, index.getGameCount());
+        List<PositionIndex.Hit> hits = index.find(new Board().getZobrist(true), 10);
+        assertEquals(1, hits.size());
+        assertEquals(MANUALS[0], hits.get(0).path);
+    }
+
+    // 离线建立的索引放在APK中，从asset的偏移处打开
+    @Test
+    public void testBuildOfflineAndOpenSegment() throws Exception {
+        File root = tmp.newFolder("XQF");
+        for (String name : MANUALS) {
+            copyAsset(name, new File(root, name));
+        }
+        File file = new File(tmp.getRoot(), "positions.idx");
+        PositionIndex.main(new String[]{root.getPath(), file.getPath()});
+
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        File apk = new File(tmp.getRoot(), "app.apk");
+        try (FileOutputStream out = new FileOutputStream(apk)) {
+            out.write(new byte[100]);
+            out.write(bytes);
+            out.write(new byte[50]);
+        }
+        PositionIndex index;
+        try (RandomAccessFile raf = new RandomAccessFile(apk, "r")) {
+            index = PositionIndex.open(raf.getChannel(), 100, bytes.length);
+        }
+        assertEquals(3, index.getGameCount());
+        // 路径和ManualArchive中的一样，按路径排序
+        String[] paths = ManualArchive.listManuals(root);
+        for (int i = 0; i < paths.length; i++) {
+            assertEquals(paths[i], index.getPath(i));
+        }
+        List<PositionIndex.Hit> hits = index.find(new Board().getZobrist(true), 10);
+        assertEquals(1, hits.size());
+        assertEquals(MANUALS[0], hits.get(0).path);
+
+        try (RandomAccessFile raf = new RandomAccessFile(apk, "r")) {
+            PositionIndex.open(raf.getChannel(), 100, bytes.length - 1);
+            fail("truncated index should not open");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testPostingsSort() {
+        Random random = new Random(1);
+        PositionIndex.Postings postings = new PositionIndex.Postings();
+        long[] expected = new long[5000];
+        for (int i = 0; i < expected.length; i++) {
+            // key重复较多，检查相同key时按value排序
+            long key = random.nextInt(300) - 150;
+            int value = random.nextInt(1000);
+            postings.add(key, value);
+            expected[i] = key * 10000 + value;
+        }
+        postings.sort();
+        Arrays.sort(expected);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], postings.keys[i] * 10000 + postings.values[i]);
+        }
+    }
+
+    // 棋谱编号 >= 2^19 时value是负数，仍然要排在编号小的后面
+    @Test
+    public void testLargeGameIds() throws Exception {
+        PositionIndex.Postings postings = new PositionIndex.Postings();
+        int big = (PositionIndex.MAX_GAMES - 1) << 12 | 3;
+        int small = 5 << 12 | 7;
+        postings.add(1, big);
+        postings.add(1, small);
+        postings.add(1, big - 1);
+        postings.sort();
+        assertEquals(small, postings.values[0]);
+        assertEquals(big - 1, postings.values[1]);
+        assertEquals(big, postings.values[2]);
+    }
+}
@@ -0,0 +1,154 @@
+package com.zfdang.chess.manuals;
+
+import static com.zfdang.chess.TestUtils.ASSETS;
+import static com.zfdang.chess.TestUtils.readAsset;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+public class XQFParserTest {
+    private static int countMoves(XQFManual.MoveNode node) {
+        int count = 0;
+        for (XQFManual.MoveNode next : node.nextMoves) {
+            count += 1 + countMoves(next);
+        }
+        return count;
+    }
+
+    @Test
+    public void testReadFile() throws Exception {
+        String name = "XQF/1.棋理大全-洪磊鑫/003~019中炮对屏风马的排兵布阵.xqf";
+        assertArrayEquals(readAsset(name), XQFParser.readFile(new File(ASSETS, name)));
+        try {
+            XQFParser.readFile(new File(ASSETS, "XQF/none.xqf"));
+            fail();
+        } catch (IOException e) {
+            // 读取失败只抛出IOException
+        }
+    }
+
+    @Test
+    public void testParsePlain() throws Exception {
+        // 版本10，没有加密
+        byte[] buffer = readAsset("XQF/1.棋理大全-洪磊鑫/003~019中炮对屏风马的排兵布阵.xqf");
+        XQFManual manual = XQFParser.parse(buffer);
+        assertEquals("XQ", manual.getFormat());
+        assertEquals(10, manual.getVersion());
+        assertEquals("红胜", manual.getResult());
+        assertEquals("中局", manual.getCategory());
+        assertEquals("rnbakabnr/9/1c5c1/p1p1p1p1p/9/9/P1P1P1P1P/1C5C1/9/RNBAKABNR w - - 0 1", manual.board.toFENString());
+
+        XQFManual.MoveNode first = manual.getHeadMove().nextMoves.get(0);
+        assertEquals(7, first.move.fromPosition.x);
+        assertEquals(7, first.move.fromPosition.y);
+        assertEquals(4, first.move.toPosition.x);
+        assertEquals("黑方必应之布局", first.move.getComment());
+        assertTrue(manual.validateAllMoves());
+    }
+
+    @Test
+    public void testParseEncrypted() throws Exception {
+        // 版本18，局面和着法都是加密的
+        byte[] buffer = readAsset("XQF/当代排局谱/037快马加鞭.XQF");
+        byte[] original = buffer.clone();
+        XQFManual manual = XQFParser.parse(buffer);
+        assertEquals(18, manual.getVersion());
+        assertEquals("快马加鞭", manual.getTitle());
+        assertEquals("李风凯", manual.getAuthor());
+        assertEquals("残局", manual.getCategory());
+        assertEquals("9/3kcP3/3a4P/1CR6/2pNp4/9/9/4B1r2/6p2/3nKA2r w - - 0 1", manual.board.toFENString());
+        assertTrue(countMoves(manual.getHeadMove()) > 20);
+        assertTrue(manual.validateAllMoves());
+
+        // 解密时不修改传入的buffer，同一个buffer可以再解析一次
+        assertArrayEquals(original, buffer);
+        XQFManual again = XQFParser.parse(buffer);
+        assertEquals(countMoves(manual.getHeadMove()), countMoves(again.getHeadMove()));
+    }
+
+    @Test
+    public void testInvalidBuffer() throws Exception {
+        byte[] buffer = readAsset("XQF/当代排局谱/037快马加鞭.XQF");
+        assertNull(XQFParser.parse(Arrays.copyOf(buffer, 0x100)));
+
+        byte[] bad = buffer.clone();
+        bad[0] = 'P';
+        assertNull(XQFParser.parse(bad));
+
+        // 只有文件头，没有着法
+        XQFManual manual = XQFParser.parse(Arrays.copyOf(buffer, 0x200));
+        assertEquals(0, manual.getHeadMove().nextMoves.size());
+    }
+
+    // 低版本的一步棋记录：起点+0x18，终点+0x20，标志，保留，注释长度
+    private static void putStep(ByteBuffer buffer, int from, int to, int flags) {
+        buffer.put((byte) (from + 0x18)).put((byte) (to + 0x20)).put((byte) flags).put((byte) 0).putInt(0);
+    }
+
+    @Test
+    public void testDeepMoveTree() throws Exception {
+        // 在开局局面上来回跳马十万步，第一步有一个变着
+        final int plies = 100000;
+        byte[] header = readAsset("XQF/1.棋理大全-洪磊鑫/003~019中炮对屏风马的排兵布阵.xqf");
+        ByteBuffer buffer = ByteBuffer.allocate(0x400 + 8 * (plies + 2)).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(header, 0, 0x400);
+        putStep(buffer, 0, 0, 0);
+        // XQF坐标为X*10+Y，Y从红方底线算起
+        int[][] cycle = {{10, 22}, {19, 27}, {22, 10}, {27, 19}};
+        for (int i = 0; i < plies; i++) {
+            int flags = (i < plies - 1 ? 0xF0 : 0) | (i == 0 ? 0x0F : 0);
+            putStep(buffer, cycle[i % 4][0], cycle[i % 4][1], flags);
+        }
+        // 第一步的变着：炮二平五
+        putStep(buffer, 72, 42, 0);
+
+        XQFManual manual = XQFParser.parse(buffer.array());
+        assertEquals(2, manual.getHeadMove().nextMoves.size());
+        assertEquals(4, manual.getHeadMove().nextMoves.get(1).move.toPosition.x);
+        assertTrue(manual.validateAllMoves());
+
+        final int[] counts = new int[3];
+        assertTrue(manual.walk(new XQFManual.MoveVisitor() {
+            @Override
+            public boolean enter(XQFManual.MoveNode node, int depth, int index) {
+                counts[0]++;
+                counts[1] = Math.max(counts[1], depth);
+                return true;
+            }
+
+            @Override
+            public void leave(XQFManual.MoveNode node, int depth) {
+                counts[2]++;
+            }
+        }));
+        assertEquals(plies + 2, counts[0]);
+        assertEquals(plies, counts[1]);
+        assertEquals(plies + 2, counts[2]);
+        assertTrue(manual.toString().contains("\n       h2e2"));
+
+        // 中止遍历
+        final int[] entered = new int[1];
+        assertFalse(manual.walk(new XQFManual.MoveVisitor() {
+            @Override
+            public boolean enter(XQFManual.MoveNode node, int depth, int index) {
+                return ++entered[0] < 10;
+            }
+
+            @Override
+            public void leave(XQFManual.MoveNode node, int depth) {
+            }
+        }));
+        assertEquals(10, entered[0]);
+    }
+}
@@ -0,0 +1,135 @@
+package com.zfdang.chess.manuals;
+
+import static com.zfdang.chess.TestUtils.readAsset;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.zfdang.chess.gamelogic.Game;
+import com.zfdang.chess.gamelogic.Move;
+import com.zfdang.chess.gamelogic.Position;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+public class XQFWriterTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    // 整个着法树: 深度、第几个分支、着法和注释
+    static String describe(XQFManual manual) {
+        final StringBuilder sb = new StringBuilder();
+        manual.walk(new XQFManual.MoveVisitor() {
+            @Override
+            public boolean enter(XQFManual.MoveNode node, int depth, int index) {
+                sb.append(depth).append(':').append(index);
+                if (node.move != null) {
+                    sb.append(':').append(node.move.getUCCIString());
+                    if (node.move.getComment() != null) {
+                        sb.append('{').append(node.move.getComment()).append('}');
+                    }
+                }
+                sb.append(' ');
+                return true;
+            }
+
+            @Override
+            public void leave(XQFManual.MoveNode node, int depth) {
+            }
+        });
+        return sb.toString();
+    }
+
+    private static byte[] write(XQFManual manual) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(new XQFWriter().write(manual, Channels.newChannel(out)));
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        // 加密的高版本和不加密的低版本，都写成不加密的1.0版，变着和注释都保留
+        String[] names = {"XQF/1.棋理大全-洪磊鑫/003~019中炮对屏风马的排兵布阵.xqf", "XQF/当代排局谱/037快马加鞭.XQF"};
+        for (String name : names) {
+            XQFManual manual = XQFParser.parse(readAsset(name));
+            XQFManual copy = XQFParser.parse(write(manual));
+            assertEquals(XQFWriter.VERSION, copy.getVersion());
+            assertEquals(manual.getTitle(), copy.getTitle());
+            assertEquals(manual.getAuthor(), copy.getAuthor());
+            assertEquals(manual.getResult(), copy.getResult());
+            assertEquals(manual.getCategory(), copy.getCategory());
+            assertEquals(manual.board.toFENString(), copy.board.toFENString());
+            assertEquals(describe(manual), describe(copy));
+        }
+    }
+
+    @Test
+    public void testHeaderAndLongComment() throws Exception {
+        XQFManual manual = new XQFManual();
+        // 超过64个字节的标题在字符边界截断
+        manual.setTitle("一二三四五六七八九十一二三四五六七八九十一二三四五六七八九十一二三四");
+        manual.setRed("红方");
+        manual.setResult("平局");
+        StringBuilder annotation = new StringBuilder();
+        for (int i = 0; i < 50000; i++) {
+            annotation.append("注");
+        }
+        manual.setAnnotation(annotation.toString());
+
+        XQFManual copy = XQFParser.parse(write(manual));
+        assertEquals(manual.getTitle().substring(0, 31), copy.getTitle());
+        assertEquals("红方", copy.getRed());
+        assertEquals("平局", copy.getResult());
+        // 注释比写入的缓冲区还长
+        assertEquals(annotation.toString(), copy.getAnnotation());
+        assertTrue(copy.getHeadMove().nextMoves.isEmpty());
+    }
+
+    @Test
+    public void testTooManyPieces() throws Exception {
+        XQFManual manual = new XQFManual();
+        assertTrue(manual.board.restoreFromFEN("4k4/9/9/9/9/9/9/9/RRR6/4K4 w - - 0 1"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertFalse(new XQFWriter().write(manual, Channels.newChannel(out)));
+        assertEquals(0, out.size());
+
+        File file = new File(tmp.getRoot(), "bad.xqf");
+        assertFalse(new XQFWriter().save(manual, file));
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void testSaveGame() throws Exception {
+        Game game = new Game(true);
+        int[][] moves = {{7, 7, 4, 7}, {7, 0, 6, 2}, {7, 9, 6, 7}};
+        for (int[] m : moves) {
+            game.setStartPos(new Position(m[0], m[1]));
+            game.setEndPos(new Position(m[2], m[3]));
+            game.movePiece();
+        }
+        game.history.get(0).move.setComment("中炮");
+
+        List<Move> history = new ArrayList<>();
+        for (Game.HistoryRecord record : game.history) {
+            history.add(record.move);
+        }
+        XQFManual manual = XQFManual.fromMoves(game.getStartBoard(), history, "红胜");
+        assertEquals("0:0 1:0:h2e2{中炮} 2:0:h9g7 3:0:h0g2 ", describe(manual));
+        assertEquals("红胜", manual.getResult());
+
+        File file = new File(tmp.getRoot(), "game.xqf");
+        assertTrue(new XQFWriter().save(manual, file));
+        XQFManual copy = XQFParser.parse(Files.readAllBytes(file.toPath()));
+        assertEquals(describe(manual), describe(copy));
+        assertEquals("红胜", copy.getResult());
+        assertTrue(copy.validateAllMoves());
+    }
+}
@@ -0,0 +1,126 @@
+package com.zfdang.chess.openbook;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.zfdang.chess.gamelogic.Board;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+public class BinaryOpenBookTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    // 和BHDatabase中的vmove一样: 高8位是终点，低8位是起点
+    private static int vmove(String ucci) {
+        int from = Board.toSquare(ucci.charAt(0) - 'a', 9 - (ucci.charAt(1) - '0'));
+        int to = Board.toSquare(ucci.charAt(2) - 'a', 9 - (ucci.charAt(3) - '0'));
+        return to << 8 | from;
+    }
+
+    private BinaryOpenBook build(BinaryOpenBook.Builder builder) throws IOException {
+        File file = tmp.newFile("test.book");
+        builder.write(file);
+        return BinaryOpenBook.open(file, "test");
+    }
+
+    @Test
+    public void testQuery() throws IOException {
+        BinaryOpenBook.Builder builder = new BinaryOpenBook.Builder();
+        // 故意乱序添加，写入时排序
+        builder.add(100, vmove("b2e2"), 5, 3, 2, 1, "");
+        builder.add(-7, vmove("h9g7"), 1, 0, 0, 0, null);
+        builder.add(100, vmove("h2e2"), 20, 10, 5, 3, "当头炮");
+        builder.add(Long.MAX_VALUE, vmove("c3c4"), 0, 0, 0, 0, "max");
+        builder.add(100, vmove("h0g2"), 20, 12, 0, 0, "起马局");
+        builder.add(Long.MIN_VALUE, vmove("b7e7"), 0, 0, 0, 0, "min");
+        BinaryOpenBook book = build(builder);
+        assertEquals(6, book.getRecordCount());
+
+        // vkey相同的着法按vscore、vwin从大到小
+        List<BookData> list = book.get(100);
+        assertEquals(3, list.size());
+        assertEquals("h0g2", list.get(0).getMove());
+        assertEquals("起马局", list.get(0).getNote());
+        assertEquals("h2e2", list.get(1).getMove());
+        assertEquals(20, (int) list.get(1).getScore());
+        assertEquals(10.0, list.get(1).getWinRate(), 0);
+        assertEquals(5, (int) list.get(1).getDrawNum());
+        assertEquals(3, (int) list.get(1).getLoseNum());
+        assertEquals("当头炮", list.get(1).getNote());
+        assertEquals("b2e2", list.get(2).getMove());
+        assertEquals("", list.get(2).getNote());
+        assertEquals("test", list.get(2).getSource());
+
+        assertEquals("h9g7", book.get(-7).get(0).getMove());
+        assertEquals("", book.get(-7).get(0).getNote());
+        assertEquals("min", book.get(Long.MIN_VALUE).get(0).getNote());
+        assertEquals("max", book.get(Long.MAX_VALUE).get(0).getNote());
+        assertTrue(book.get(0).isEmpty());
+        assertTrue(book.get(101).isEmpty());
+        assertTrue(book.get(Long.MAX_VALUE - 1).isEmpty());
+
+        // 通过OpenBook接口按规则排序
+        list = book.query(100, true, OpenBook.SortRule.BEST_WINRATE);
+        assertEquals("h0g2", list.get(0).getMove());
+        assertEquals("b2e2", list.get(2).getMove());
+        book.close();
+    }
+
+    @Test
+    public void testLimit() throws IOException {
+        BinaryOpenBook.Builder builder = new BinaryOpenBook.Builder();
+        // 超过初始容量，测试扩容
+        for (int i = 0; i < 3000; i++) {
+            builder.add(i % 300, vmove("h2e2"), i, 0, 0, 0, "n" + i);
+        }
+        BinaryOpenBook book = build(builder);
+        for (int key = 0; key < 300; key++) {
+            List<BookData> list = book.get(key);
+            // 和BHOpenBook一样，每个局面最多5个着法，分数最高的在前
+            assertEquals(5, list.size());
+            assertEquals(2700 + key, (int) list.get(0).getScore());
+            assertEquals("n" + (2700 + key), list.get(0).getNote());
+            assertEquals(1500 + key, (int) list.get(4).getScore());
+        }
+    }
+
+    @Test
+    public void testEmptyAndInvalid() throws IOException {
+        BinaryOpenBook book = build(new BinaryOpenBook.Builder());
+        assertEquals(0, book.getRecordCount());
+        assertTrue(book.get(1).isEmpty());
+
+        File bad = tmp.newFile("bad.book");
+        Files.write(bad.toPath(), new byte[64]);
+        try {
+            BinaryOpenBook.open(bad, "bad");
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+
+        // 截断的文件
+        BinaryOpenBook.Builder builder = new BinaryOpenBook.Builder();
+        builder.add(1, vmove("h2e2"), 0, 0, 0, 0, "注释");
+        File file = tmp.newFile("truncated.book");
+        builder.write(file);
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        Files.write(file.toPath(), Arrays.copyOf(bytes, bytes.length - 1));
+        try {
+            BinaryOpenBook.open(file, "truncated");
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.zfdang.chess.openbook;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.zfdang.chess.gamelogic.Board;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+public class CompositeOpenBookTest {
+    // 本地库按vkey、云库按FEN返回固定的着法；gate不为null时等待gate打开，模拟很慢的网络
+    private static class FakeBook extends OpenBookBase {
+        final String name;
+        final boolean byFen;
+        final List<BookData> data = new ArrayList<>();
+        CountDownLatch gate;
+        volatile long lastKey;
+        volatile int queries;
+
+        FakeBook(String name, boolean byFen) {
+            this.name = name;
+            this.byFen = byFen;
+        }
+
+        FakeBook add(String move, int score, double winRate) {
+            BookData bd = new BookData();
+            bd.setMove(move);
+            bd.setScore(score);
+            bd.setWinRate(winRate);
+            bd.setSource(name);
+            data.add(bd);
+            return this;
+        }
+
+        private List<BookData> lookup() {
+            queries++;
+            if (gate != null) {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    return Collections.emptyList();
+                }
+            }
+            return new ArrayList<>(data);
+        }
+
+        @Override
+        protected List<BookData> get(long vkey) {
+            lastKey = vkey;
+            return byFen ? Collections.<BookData>emptyList() : lookup();
+        }
+
+        @Override
+        protected List<BookData> get(String fenCode, boolean onlyFinalPhase) {
+            return byFen ? lookup() : Collections.<BookData>emptyList();
+        }
+    }
+
+    private static final String START_FEN = new Board().toFENString();
+
+    private static BookData find(List<BookData> list, String move) {
+        for (BookData bd : list) {
+            if (move.equals(bd.getMove())) {
+                return bd;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void testMerge() {
+        FakeBook local = new FakeBook("local", false).add("h2e2", 10, 0.5).add("b2e2", 20, 0.4)
+                // 同一个库中重复的着法只算第一个
+                .add("h2e2", 100, 1.0);
+        // 云库的分数是引擎的评分，和本地库的分数不是一个尺度
+        FakeBook cloud = new FakeBook("cloud", true).add("h2e2", 250, 0.8).add("c3c4", 30, 0.6);
+        CompositeOpenBook book = new CompositeOpenBook(5000);
+        book.addBook(cloud, 1.5);
+        book.addBook(local, 2.0);
+
+        List<BookData> list = book.query(START_FEN, false, OpenBook.SortRule.BEST_SCORE);
+        // 按FEN查询时本地库用FEN算出的vkey
+        assertEquals(new Board().getZobrist(true), local.lastKey);
+        assertEquals(3, list.size());
+        // 每个库内按名次折算: 本地库 b2e2 100, h2e2 50；云库 h2e2 100, c3c4 50
+        BookData h2e2 = find(list, "h2e2");
+        assertEquals(Math.round((2 * 50 + 1.5 * 100) / 3.5), (int) h2e2.getScore());
+        assertEquals((2 * 100 + 1.5 * 100) / 3.5, h2e2.getWinRate(), 1e-9);
+        // 权重大的库在前
+        assertEquals("local/cloud", h2e2.getSource());
+        // 只有一个库有的着法也按权重折算，分母是所有返回了着法的库的权重之和
+        assertEquals(Math.round(2 * 100 / 3.5), (int) find(list, "b2e2").getScore());
+        assertEquals(2 * 50 / 3.5, find(list, "b2e2").getWinRate(), 1e-9);
+        assertEquals(Math.round(1.5 * 50 / 3.5), (int) find(list, "c3c4").getScore());
+        assertEquals("h2e2", list.get(0).getMove());
+        assertEquals("b2e2", list.get(1).getMove());
+
+        // 各个库返回的BookData没有被修改
+        assertEquals(10, (int) local.data.get(0).getScore());
+        assertEquals("local", local.data.get(0).getSource());
+
+        // 按vkey查询只有本地库有结果，分数不折算
+        list = book.query(new Board().getZobrist(true), true, OpenBook.SortRule.BEST_SCORE);
+        assertEquals(2, list.size());
+        assertEquals("b2e2", list.get(0).getMove());
+        assertEquals(20, (int) list.get(0).getScore());
+        assertEquals(10, (int) list.get(1).getScore());
+        assertEquals(0.5, list.get(1).getWinRate(), 1e-9);
+        book.close();
+    }
+
+    @Test
+    public void testSingleSource() {
+        // 两个库推荐不同的着法，分数一样时权重大的库的着法在前
+        FakeBook local = new FakeBook("local", false).add("h2e2", 60, 0.6);
+        FakeBook cloud = new FakeBook("cloud", true).add("c3c4", 60, 0.6);
+        CompositeOpenBook book = new CompositeOpenBook(5000);
+        book.addBook(local, 1.0);
+        book.addBook(cloud, 0.5);
+
+        List<BookData> list = book.query(START_FEN, false, OpenBook.SortRule.BEST_SCORE);
+        assertEquals(2, list.size());
+        assertEquals("h2e2", list.get(0).getMove());
+        assertEquals(Math.round(100 / 1.5), (int) list.get(0).getScore());
+        assertEquals("c3c4", list.get(1).getMove());
+        assertEquals(Math.round(50 / 1.5), (int) list.get(1).getScore());
+        assertEquals(50 / 1.5, list.get(1).getWinRate(), 1e-9);
+
+        // 只剩一个库时分数不变
+        assertTrue(book.removeBook(cloud));
+        list = book.query(START_FEN, false, OpenBook.SortRule.BEST_SCORE);
+        assertEquals(1, list.size());
+        assertEquals(60, (int) list.get(0).getScore());
+        assertEquals(1, cloud.queries);
+        book.close();
+    }
+
+    @Test
+    public void testDeadline() {
+        FakeBook local = new FakeBook("local", false).add("h2e2", 10, 0.5);
+        FakeBook cloud = new FakeBook("cloud", true).add("c3c4", 50, 0.6);
+        cloud.gate = new CountDownLatch(1);
+        CompositeOpenBook book = new CompositeOpenBook(100);
+        book.addBook(local, 1.0);
+        book.addBook(cloud, 1.0);
+
+        // 云库没有返回，到截止时间只返回本地库的结果
+        long start = System.currentTimeMillis();
+        List<BookData> list = book.query(START_FEN, false, OpenBook.SortRule.BEST_SCORE);
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        assertEquals(1, list.size());
+        assertEquals("h2e2", list.get(0).getMove());
+
+        // 上一次的查询还没有返回，这次不再查询云库
+        list = book.query(START_FEN, false, OpenBook.SortRule.BEST_SCORE);
+        assertEquals(1, list.size());
+        assertEquals(1, cloud.queries);
+        assertTrue(book.toString(), book.toString().contains("late=1 skipped=1"));
+
+        // 云库返回之后又可以查询了
+        cloud.gate.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (cloud.queries < 2 && System.currentTimeMillis() < deadline) {
+            cloud.gate = null;
+            list = book.query(START_FEN, false, OpenBook.SortRule.BEST_SCORE);
+        }
+        assertEquals(2, list.size());
+        assertNotNull(find(list, "c3c4"));
+        book.close();
+    }
+}
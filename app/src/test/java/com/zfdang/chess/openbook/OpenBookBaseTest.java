@@ -0,0 +1,132 @@
+package com.zfdang.chess.openbook;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class OpenBookBaseTest {
+    // vkey为1时等待gate打开，模拟很慢的数据库或者网络查询；vkey为负数时查询失败
+    private static class SlowBook extends OpenBookBase {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+
+        @Override
+        protected List<BookData> get(long vkey) {
+            if (vkey < 0) {
+                throw new IllegalStateException("database closed");
+            }
+            if (vkey == 1) {
+                started.countDown();
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    // 被取消，继续返回结果，回调之前会被丢弃
+                }
+            }
+            List<BookData> list = new ArrayList<>();
+            BookData bd = new BookData();
+            bd.setMove("move" + vkey);
+            list.add(bd);
+            return list;
+        }
+
+        @Override
+        protected List<BookData> get(String fenCode, boolean onlyFinalPhase) {
+            List<BookData> list = new ArrayList<>();
+            BookData bd = new BookData();
+            bd.setMove(fenCode);
+            list.add(bd);
+            return list;
+        }
+    }
+
+    private static String take(BlockingQueue<List<BookData>> results) throws InterruptedException {
+        List<BookData> list = results.poll(5, TimeUnit.SECONDS);
+        return list.isEmpty() ? "" : list.get(0).getMove();
+    }
+
+    @Test
+    public void testQueryAsync() throws Exception {
+        SlowBook book = new SlowBook();
+        final BlockingQueue<List<BookData>> results = new LinkedBlockingQueue<>();
+        OpenBookListener listener = data -> results.add(data);
+
+        book.queryAsync(2, true, OpenBook.SortRule.BEST_SCORE, listener).get(5, TimeUnit.SECONDS);
+        assertEquals("move2", take(results));
+        book.queryAsync("fen", false, OpenBook.SortRule.BEST_SCORE, listener);
+        assertEquals("fen", take(results));
+
+        // 查询失败时返回空列表
+        book.queryAsync(-1, true, OpenBook.SortRule.BEST_SCORE, listener);
+        assertEquals("", take(results));
+        book.close();
+    }
+
+    @Test
+    public void testCancelStaleQuery() throws Exception {
+        SlowBook book = new SlowBook();
+        final BlockingQueue<List<BookData>> results = new LinkedBlockingQueue<>();
+        OpenBookListener listener = data -> results.add(data);
+
+        // 第一个查询还没有返回，局面就变了
+        book.queryAsync(1, true, OpenBook.SortRule.BEST_SCORE, listener);
+        assertTrue(book.started.await(5, TimeUnit.SECONDS));
+        book.queryAsync(3, true, OpenBook.SortRule.BEST_SCORE, listener).get(5, TimeUnit.SECONDS);
+        assertEquals("move3", take(results));
+        assertTrue(results.isEmpty());
+
+        // 取消之后不会回调，gate一直没有打开，查询在取消之前不会返回
+        book.queryAsync(1, true, OpenBook.SortRule.BEST_SCORE, listener);
+        book.cancelQueries();
+        book.queryAsync(4, true, OpenBook.SortRule.BEST_SCORE, listener).get(5, TimeUnit.SECONDS);
+        assertEquals("move4", take(results));
+        assertEquals(Collections.emptyList(), new ArrayList<>(results));
+        book.close();
+    }
+
+    @Test
+    public void testNoDeliveryAfterCancel() throws Exception {
+        SlowBook book = new SlowBook();
+        // 已经取消的最后一个查询，和回调之间没有其他同步
+        final AtomicInteger cancelled = new AtomicInteger();
+        final AtomicBoolean stale = new AtomicBoolean();
+        for (int i = 1; i <= 500; i++) {
+            final int id = i;
+            book.queryAsync(2, true, OpenBook.SortRule.BEST_SCORE, data -> {
+                if (cancelled.get() >= id) {
+                    stale.set(true);
+                }
+            });
+            // cancelQueries返回之后，这个查询不会再回调
+            book.cancelQueries();
+            cancelled.set(id);
+        }
+        book.queryAsync(2, true, OpenBook.SortRule.BEST_SCORE, data -> { }).get(5, TimeUnit.SECONDS);
+        assertFalse(stale.get());
+        book.close();
+    }
+
+    @Test
+    public void testCacheAsync() throws Exception {
+        OpenBookCache cache = new OpenBookCache(new SlowBook());
+        final BlockingQueue<List<BookData>> results = new LinkedBlockingQueue<>();
+        cache.queryAsync(2, true, OpenBook.SortRule.BEST_SCORE, data -> results.add(data)).get(5, TimeUnit.SECONDS);
+        cache.queryAsync(2, true, OpenBook.SortRule.BEST_SCORE, data -> results.add(data)).get(5, TimeUnit.SECONDS);
+        assertEquals("move2", take(results));
+        assertEquals("move2", take(results));
+        assertEquals(1, cache.getHits());
+        cache.close();
+    }
+}
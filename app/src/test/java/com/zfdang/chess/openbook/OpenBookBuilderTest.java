@@ -0,0 +1,138 @@
+package com.zfdang.chess.openbook;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.zfdang.chess.gamelogic.Board;
+import com.zfdang.chess.gamelogic.Rule;
+import com.zfdang.chess.manuals.PGNReader;
+import com.zfdang.chess.manuals.XQFWriter;
+
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class OpenBookBuilderTest {
+    @org.junit.Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static final String GAMES =
+            "[Result \"1-0\"]\n1. H2-E2 H9-G7 2. H0-G2 1-0\n\n" +
+            "[Result \"1/2-1/2\"]\n1. H2-E2 H9-G7 2. B0-C2 (2. H0-G2) B9-C7 1/2-1/2\n\n" +
+            // 结果未知，不统计
+            "[Result \"*\"]\n1. H2-E2 H9-G7 *\n\n" +
+            // 变着转换到主线的局面，同一局只算一次
+            "[Result \"1-0\"]\n1. H2-E2 (1. H0-G2 H9-G7 2. H2-E2 B9-C7) 1... H9-G7 2. H0-G2 B9-C7 1-0\n\n";
+
+    private File createLibrary() throws IOException {
+        File root = tmp.newFolder("manuals");
+        Files.write(new File(root, "games.pgn").toPath(), GAMES.getBytes(StandardCharsets.UTF_8));
+        // XQF棋谱: 黑胜
+        File sub = new File(root, "xqf");
+        assertTrue(sub.mkdir());
+        PGNReader reader = new PGNReader(new StringReader("[Result \"0-1\"]\n1. B2-E2 H9-G7 0-1\n"));
+        assertTrue(new XQFWriter().save(reader.next(), new File(sub, "black.xqf")));
+        Files.write(new File(sub, "broken.xqf").toPath(), new byte[16]);
+        return root;
+    }
+
+    private static String move(String ucci, Board board) {
+        int from = Board.toSquare(ucci.charAt(0) - 'a', 9 - (ucci.charAt(1) - '0'));
+        int to = Board.toSquare(ucci.charAt(2) - 'a', 9 - (ucci.charAt(3) - '0'));
+        board.makeMove(Rule.encodeMove(from, to, board.getPieceBySquare(from), board.getPieceBySquare(to)));
+        return ucci;
+    }
+
+    // 所有记录，按vkey和vmove排序，和线程数无关
+    private static List<String> records(OpenBookBuilder builder) throws Exception {
+        final List<String> list = new ArrayList<>();
+        builder.forEach((vkey, vmove, vscore, vwin, vdraw, vlost) ->
+                list.add(String.format("%016x %04x %d %d/%d/%d", vkey, vmove, vscore, vwin, vdraw, vlost)));
+        Collections.sort(list);
+        return list;
+    }
+
+    private static String stats(BookData bd) {
+        return bd.getMove() + " " + (int) bd.getWinRate() + "/" + bd.getDrawNum() + "/" + bd.getLoseNum();
+    }
+
+    @Test
+    public void testBuild() throws Exception {
+        File root = createLibrary();
+        OpenBookBuilder builder = new OpenBookBuilder(2);
+        builder.setMinGames(1);
+        OpenBookBuilder.Report report = builder.build(root);
+        assertEquals(3, report.files);
+        assertEquals(5, report.games);
+        assertEquals(1, report.skippedGames);
+        assertEquals(1, report.parseFailures.size());
+
+        File file = tmp.newFile("built.book");
+        int count = builder.writeBook(file);
+        assertEquals(report.entries, count);
+        BinaryOpenBook book = BinaryOpenBook.open(file, "built");
+
+        // 开局局面，红方走子的统计
+        Board board = new Board();
+        List<BookData> list = book.query(board.getZobrist(true), true, OpenBook.SortRule.BEST_SCORE);
+        assertEquals(3, list.size());
+        assertEquals("h2e2 2/1/0", stats(list.get(0)));
+        assertEquals((2 - 0) * 100 / (3 + 10), (int) list.get(0).getScore());
+        assertEquals("h0g2 1/0/0", stats(list.get(1)));
+        assertEquals("b2e2 0/0/1", stats(list.get(2)));
+
+        // 黑方走子的局面，胜负是黑方的
+        move("h2e2", board);
+        list = book.query(board.getZobrist(false), false, OpenBook.SortRule.BEST_SCORE);
+        assertEquals(1, list.size());
+        assertEquals("h9g7 0/1/2", stats(list.get(0)));
+
+        // 主线和变着都走到这个局面，第四局只算一次
+        move("h9g7", board);
+        move("h0g2", board);
+        list = book.query(board.getZobrist(false), false, OpenBook.SortRule.BEST_SCORE);
+        assertEquals(1, list.size());
+        assertEquals("b9c7 0/0/1", stats(list.get(0)));
+    }
+
+    @Test
+    public void testOptions() throws Exception {
+        File root = createLibrary();
+        OpenBookBuilder builder = new OpenBookBuilder(1);
+        builder.build(root);
+        // 默认至少两局
+        File file = tmp.newFile("min.book");
+        builder.writeBook(file);
+        BinaryOpenBook book = BinaryOpenBook.open(file, "min");
+        List<BookData> list = book.query(new Board().getZobrist(true), true, OpenBook.SortRule.BEST_SCORE);
+        assertEquals(1, list.size());
+        assertEquals("h2e2 2/1/0", stats(list.get(0)));
+
+        // 只统计第一步，变着中的第一步也要统计
+        builder = new OpenBookBuilder(1);
+        builder.setMinGames(1);
+        builder.setMaxPly(1);
+        builder.build(root);
+        assertEquals(3, records(builder).size());
+    }
+
+    @Test
+    public void testThreads() throws Exception {
+        File root = createLibrary();
+        OpenBookBuilder single = new OpenBookBuilder(1);
+        single.setMinGames(1);
+        single.build(root);
+        OpenBookBuilder parallel = new OpenBookBuilder(4);
+        parallel.setMinGames(1);
+        parallel.build(root);
+        assertEquals(records(single), records(parallel));
+    }
+}
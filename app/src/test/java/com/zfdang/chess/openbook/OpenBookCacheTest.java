@@ -0,0 +1,99 @@
+package com.zfdang.chess.openbook;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class OpenBookCacheTest {
+    // 记录查询次数的开局库，vkey为偶数的局面有两个着法
+    private static class CountingBook extends OpenBookBase {
+        int queries;
+        boolean closed;
+
+        @Override
+        protected List<BookData> get(long vkey) {
+            queries++;
+            List<BookData> list = new ArrayList<>();
+            if (vkey % 2 == 0) {
+                list.add(data("h2e2", 10));
+                list.add(data("b2e2", 20));
+            }
+            return list;
+        }
+
+        @Override
+        protected List<BookData> get(String fenCode, boolean onlyFinalPhase) {
+            queries++;
+            return Collections.emptyList();
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private static BookData data(String move, int score) {
+        BookData bd = new BookData();
+        bd.setMove(move);
+        bd.setScore(score);
+        return bd;
+    }
+
+    @Test
+    public void testHitAndMiss() {
+        CountingBook book = new CountingBook();
+        OpenBookCache cache = new OpenBookCache(book, 4);
+
+        List<BookData> list = cache.query(2, true, OpenBook.SortRule.BEST_SCORE);
+        assertEquals("b2e2", list.get(0).getMove());
+        // 调用者修改返回的列表不影响缓存
+        list.clear();
+        list = cache.query(2, true, OpenBook.SortRule.BEST_SCORE);
+        assertEquals(2, list.size());
+        assertEquals("b2e2", list.get(0).getMove());
+
+        // 没有着法的局面也缓存
+        assertTrue(cache.query(3, true, OpenBook.SortRule.BEST_SCORE).isEmpty());
+        assertTrue(cache.query(3, false, OpenBook.SortRule.BEST_SCORE).isEmpty());
+
+        assertEquals(2, book.queries);
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(2, cache.size());
+
+        // 按FEN的查询不缓存
+        cache.query("fen", false, OpenBook.SortRule.BEST_SCORE);
+        cache.query("fen", false, OpenBook.SortRule.BEST_SCORE);
+        assertEquals(4, book.queries);
+
+        cache.close();
+        assertTrue(book.closed);
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testEviction() {
+        CountingBook book = new CountingBook();
+        OpenBookCache cache = new OpenBookCache(book, 3);
+        for (long vkey = 1; vkey <= 3; vkey++) {
+            cache.query(vkey, true, OpenBook.SortRule.BEST_SCORE);
+        }
+        // 用过1之后，最久没有用过的是2
+        cache.query(1, true, OpenBook.SortRule.BEST_SCORE);
+        cache.query(4, true, OpenBook.SortRule.BEST_SCORE);
+        assertEquals(3, cache.size());
+        assertEquals(4, book.queries);
+
+        cache.query(1, true, OpenBook.SortRule.BEST_SCORE);
+        cache.query(3, true, OpenBook.SortRule.BEST_SCORE);
+        assertEquals(4, book.queries);
+        cache.query(2, true, OpenBook.SortRule.BEST_SCORE);
+        assertEquals(5, book.queries);
+    }
+}
@@ -0,0 +1,120 @@
+// JMH benchmarks for the pure-Java parts of :app (gamelogic, manuals, openbook)
+// run: ./gradlew :benchmark:jmh
+// results: benchmark/build/results/jmh/results.json
+// the same sources also back the command line tools below (validateManuals, ...),
+// android.util.Log is replaced by the shim in src/main/java
+plugins {
+    `java-library`
+    alias(libs.plugins.jmh)
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_17
+    targetCompatibility = JavaVersion.VERSION_17
+}
+
+tasks.withType<JavaCompile> {
+    options.encoding = "UTF-8"
+}
+
+// :app is an Android module and can't be a dependency of a JVM module,
+// so compile the Android-free sources of app directly, with a Log shim in src/main/java
+sourceSets {
+    main {
+        java {
+            srcDir("../app/src/main/java")
+            include("android/util/**")
+            include("com/zfdang/chess/gamelogic/**")
+            include("com/zfdang/chess/manuals/**")
+            include("com/zfdang/chess/openbook/BookData.java")
+            include("com/zfdang/chess/openbook/OpenBook.java")
+            include("com/zfdang/chess/openbook/OpenBookBase.java")
+            include("com/zfdang/chess/openbook/OpenBookListener.java")
+            include("com/zfdang/chess/openbook/BinaryOpenBook.java")
+            include("com/zfdang/chess/openbook/OpenBookBuilder.java")
+            // Game uses android.content.Context
+            exclude("com/zfdang/chess/gamelogic/Game.java")
+        }
+    }
+}
+
+dependencies {
+    // 命令行工具读写.obk开局库(SQLite)
+    runtimeOnly(libs.sqlite.jdbc)
+}
+
+jmh {
+    jmhVersion.set(libs.versions.jmh)
+    fork.set(1)
+    warmupIterations.set(3)
+    iterations.set(5)
+    timeOnIteration.set("1s")
+    warmup.set("1s")
+    profilers.add("gc")
+    resultFormat.set("JSON")
+    jvmArgsAppend.add("-Dchess.assets=" + rootProject.file("app/src/main/assets").absolutePath)
+    // ./gradlew :benchmark:jmh -Pjmh.includes=Rule
+    if (project.hasProperty("jmh.includes")) {
+        includes.add(project.property("jmh.includes").toString())
+    }
+}
+
+// 批量检查棋谱库，在普通的JVM上运行，日志由src/main/java中的Log输出到stderr
+// ./gradlew :benchmark:validateManuals -Pdir=<目录> [-Pthreads=4]
+tasks.register<JavaExec>("validateManuals") {
+    group = "manuals"
+    description = "Parse and replay every XQF/PGN manual under -Pdir (default: app assets)"
+    classpath = sourceSets["main"].runtimeClasspath
+    mainClass.set("com.zfdang.chess.manuals.BatchValidator")
+    val dir = project.findProperty("dir")?.toString() ?: rootProject.file("app/src/main/assets/XQF").absolutePath
+    args = listOfNotNull(dir, project.findProperty("threads")?.toString())
+}
+
+// 把XQF目录打包成一个ManualArchive，放到app/src/main/assets/XQF.pack之后应用直接从中读取
+// ./gradlew :benchmark:packManuals [-Pdir=<XQF目录>] [-Pout=<输出文件>]
+tasks.register<JavaExec>("packManuals") {
+    group = "manuals"
+    description = "Pack the XQF manuals under -Pdir (default: app assets) into one XQF.pack archive"
+    classpath = sourceSets["main"].runtimeClasspath
+    mainClass.set("com.zfdang.chess.manuals.ManualArchive")
+    val dir = project.findProperty("dir")?.toString() ?: rootProject.file("app/src/main/assets/XQF").absolutePath
+    val out = project.findProperty("out")?.toString() ?: layout.buildDirectory.file("manuals/XQF.pack").get().asFile.absolutePath
+    args = listOf(dir, out)
+}
+
+// 离线建立局面索引，默认输出到build/manuals/assets，:app构建时把这个目录作为assets打包，设备上只映射不建立
+// ./gradlew :benchmark:buildPositionIndex [-Pdir=<XQF目录>] [-Pout=<输出文件>]
+tasks.register<JavaExec>("buildPositionIndex") {
+    group = "manuals"
+    description = "Build the position index of the XQF manuals under -Pdir (default: app assets) into positions.idx"
+    classpath = sourceSets["main"].runtimeClasspath
+    mainClass.set("com.zfdang.chess.manuals.PositionIndex")
+    val dir = project.findProperty("dir")?.toString() ?: rootProject.file("app/src/main/assets/XQF").absolutePath
+    val out = project.findProperty("out")?.toString() ?: layout.buildDirectory.file("manuals/assets/positions.idx").get().asFile.absolutePath
+    args = listOf(dir, out)
+    // 棋谱没有变化时不重新建立
+    inputs.dir(dir)
+    outputs.file(out)
+}
+
+// 从棋谱库生成开局库，输出.obk(bhobk表，必须是新的数据库)或者.book(BinaryOpenBook)
+// ./gradlew :benchmark:buildOpenBook -Pdir=<目录> -Pout=<输出.obk|输出.book> [-Pthreads=4]
+tasks.register<JavaExec>("buildOpenBook") {
+    group = "openbook"
+    description = "Build an opening book from the manuals under -Pdir into -Pout"
+    classpath = sourceSets["main"].runtimeClasspath
+    mainClass.set("com.zfdang.chess.openbook.OpenBookBuilder")
+    val dir = project.findProperty("dir")?.toString() ?: rootProject.file("app/src/main/assets/XQF").absolutePath
+    val out = project.findProperty("out")?.toString() ?: layout.buildDirectory.file("openbook/manuals.book").get().asFile.absolutePath
+    args = listOfNotNull(dir, out, project.findProperty("threads")?.toString())
+}
+
+// 把BHDatabase的.obk开局库转换成BinaryOpenBook，放到app/src/main/assets/databases/下就会优先使用
+// ./gradlew :benchmark:convertOpenBook -Pobk=<obk文件> -Pout=<输出.book>
+tasks.register<JavaExec>("convertOpenBook") {
+    group = "openbook"
+    description = "Convert a BHDatabase .obk opening book (-Pobk) into a BinaryOpenBook file (-Pout)"
+    classpath = sourceSets["main"].runtimeClasspath
+    mainClass.set("com.zfdang.chess.openbook.BinaryOpenBook")
+    args = listOfNotNull(project.findProperty("obk")?.toString(), project.findProperty("out")?.toString())
+}
@@ -0,0 +1,51 @@
+package com.zfdang.chess.gamelogic;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class BoardBenchmark {
+
+    @Param({
+            "rnbakabnr/9/1c5c1/p1p1p1p1p/9/9/P1P1P1P1P/1C5C1/9/RNBAKABNR w - - 0 1",
+            "r1ba1a3/4kn3/2n1b4/pNp1p1p1p/4c4/6P2/P1P2R2P/1CcC5/9/2BAKAB2 w - - 0 1",
+    })
+    public String fen;
+
+    private Board board;
+    private Board target;
+
+    @Setup
+    public void setup() {
+        board = new Board();
+        if (!board.restoreFromFEN(fen)) {
+            throw new IllegalStateException("invalid FEN: " + fen);
+        }
+        target = new Board();
+    }
+
+    @Benchmark
+    public String toFENString() {
+        return board.toFENString();
+    }
+
+    @Benchmark
+    public boolean restoreFromFEN() {
+        return target.restoreFromFEN(fen);
+    }
+
+    @Benchmark
+    public long zobristFromBoard() {
+        return Zobrist.getZobristFromBoard(board, true);
+    }
+}
@@ -0,0 +1,62 @@
+package com.zfdang.chess.gamelogic;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RuleBenchmark {
+
+    // 中局局面，各种棋子都有
+    private static final String MIDDLE_GAME = "r1ba1a3/4kn3/2n1b4/pNp1p1p1p/4c4/6P2/P1P2R2P/1CcC5/9/2BAKAB2 w - - 0 1";
+    // 红方被将军，但还有应将的走法
+    private static final String IN_CHECK = "3akab2/9/4b4/p3p3p/9/9/P3c3P/4C4/9/2B1KAB2 w - - 0 1";
+
+    private Board middleGame;
+    private Board inCheck;
+    private Position redKing;
+    private Position checkedKing;
+
+    @Setup
+    public void setup() {
+        middleGame = new Board();
+        middleGame.restoreFromFEN(MIDDLE_GAME);
+        redKing = Rule.findJiangShuaiPos(Piece.WSHUAI, middleGame);
+
+        inCheck = new Board();
+        inCheck.restoreFromFEN(IN_CHECK);
+        checkedKing = Rule.findJiangShuaiPos(Piece.WSHUAI, inCheck);
+    }
+
+    // 所有棋子的PossibleToPositions
+    @Benchmark
+    public void possibleToPositions(Blackhole bh) {
+        for (int y = 0; y < Board.BOARD_PIECE_HEIGHT; y++) {
+            for (int x = 0; x < Board.BOARD_PIECE_WIDTH; x++) {
+                int piece = middleGame.getPieceByPosition(x, y);
+                if (Piece.isValid(piece)) {
+                    bh.consume(Rule.PossibleToPositions(piece, x, y, middleGame));
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public boolean isJiangShuaiInDanger() {
+        return Rule.isJiangShuaiInDanger(Piece.WSHUAI, redKing, middleGame);
+    }
+
+    @Benchmark
+    public boolean isJiangShuaiDead() {
+        return Rule.isJiangShuaiDead(Piece.WSHUAI, checkedKing, inCheck);
+    }
+}
@@ -0,0 +1,54 @@
+package com.zfdang.chess.manuals;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ManualBenchmark {
+
+    // 相对于app/src/main/assets的路径
+    @Param({"XQF/1.棋理大全-洪磊鑫/003~019中炮对屏风马的排兵布阵.xqf"})
+    public String xqfFile;
+
+    @Param({"PGN/sample_02_pgn.pgn"})
+    public String pgnFile;
+
+    private byte[] xqfBuffer;
+    private byte[] pgnBuffer;
+
+    @Setup
+    public void setup() throws IOException {
+        Path assets = Paths.get(System.getProperty("chess.assets", "../app/src/main/assets"));
+        xqfBuffer = Files.readAllBytes(assets.resolve(xqfFile));
+        pgnBuffer = Files.readAllBytes(assets.resolve(pgnFile));
+        if (XQFParser.parse(xqfBuffer) == null) {
+            throw new IllegalStateException("failed to parse " + xqfFile);
+        }
+    }
+
+    @Benchmark
+    public XQFManual parseXQF() {
+        return XQFParser.parse(xqfBuffer);
+    }
+
+    @Benchmark
+    public List<PGNManual> parsePGN() throws IOException {
+        return PGNManual.parse(new ByteArrayInputStream(pgnBuffer));
+    }
+}
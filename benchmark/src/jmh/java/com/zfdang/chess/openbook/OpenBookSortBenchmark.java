@@ -0,0 +1,62 @@
+package com.zfdang.chess.openbook;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class OpenBookSortBenchmark {
+
+    // 开局库一个局面通常只有几个到几十个候选走法
+    @Param({"8", "40"})
+    public int size;
+
+    @Param({"BEST_SCORE", "BEST_WINRATE", "POSITIVE_RANDOM"})
+    public OpenBook.SortRule rule;
+
+    private final OpenBookBase book = new OpenBookBase() {
+        @Override
+        protected List<BookData> get(long vkey) {
+            return new ArrayList<>();
+        }
+
+        @Override
+        protected List<BookData> get(String fenCode, boolean onlyFinalPhase) {
+            return new ArrayList<>();
+        }
+    };
+
+    private List<BookData> data;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(20241017);
+        data = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            BookData bd = new BookData();
+            bd.setMove("h2e2");
+            bd.setScore(random.nextInt(400) - 200);
+            bd.setWinRate(random.nextDouble() * 100);
+            data.add(bd);
+        }
+    }
+
+    @Benchmark
+    public List<BookData> sort() {
+        List<BookData> list = new ArrayList<>(data);
+        book.sort(list, rule);
+        return list;
+    }
+}